@@ -23,12 +23,14 @@ import com.google.iot.coap.Coap;
 import com.google.iot.coap.UnsupportedSchemeException;
 import com.google.iot.m2m.base.*;
 import com.google.iot.m2m.local.LocalThing;
+import com.google.iot.m2m.local.SceneRecallReport;
+import com.google.iot.m2m.local.SceneRecallingGroup;
 import com.google.iot.m2m.trait.BaseTrait;
 import java.util.*;
 import java.util.concurrent.Executor;
 import org.checkerframework.checker.nullness.qual.Nullable;
 
-final class SmcpGroup extends SmcpThing implements Group, PersistentStateInterface {
+final class SmcpGroup extends SmcpThing implements SceneRecallingGroup, PersistentStateInterface {
 
     private final String mGroupId;
 
@@ -327,6 +329,58 @@ final class SmcpGroup extends SmcpThing implements Group, PersistentStateInterfa
         return super.applyProperties(properties);
     }
 
+    @Override
+    public ListenableFuture<SceneRecallReport> recallScene(String sceneId, Modifier ... modifiers) {
+        final Map<String, Object> properties;
+
+        try {
+            properties = SceneRecallingGroup.createRecallProperties(sceneId, modifiers);
+
+        } catch (InvalidModifierListException x) {
+            return Futures.immediateFailedFuture(x);
+        }
+
+        // Native members are all reached with a single multicast request,
+        // but they can't be individually accounted for in the report.
+        ListenableFuture<?> nativeFuture = super.applyProperties(properties);
+
+        if (mTechnology.isHosted(this)
+                && mLocalGroup.hasLocalMembers()
+                && mLocalGroup instanceof SceneRecallingGroup) {
+            ListenableFuture<SceneRecallReport> hostedFuture =
+                    ((SceneRecallingGroup) mLocalGroup).recallScene(sceneId, modifiers);
+
+            // Wait for both, then fail like the non-hosted path if the multicast failed.
+            ListenableFuture<SceneRecallReport> ret = Futures.whenAllComplete(
+                    nativeFuture, hostedFuture).callAsync(
+                    () -> Futures.transformAsync(
+                            nativeFuture,
+                            ignored -> Futures.transform(
+                                    hostedFuture,
+                                    report -> new SceneRecallReport(
+                                            sceneId,
+                                            report.getRecalledMembers(),
+                                            report.getMembersMissingScene(),
+                                            report.getFailedMembers(),
+                                            true),
+                                    Runnable::run),
+                            Runnable::run),
+                    Runnable::run);
+
+            return chainCancelation(nativeFuture, chainCancelation(hostedFuture, ret));
+        }
+
+        return Futures.transform(
+                nativeFuture,
+                ignored -> new SceneRecallReport(
+                        sceneId,
+                        Collections.emptySet(),
+                        Collections.emptySet(),
+                        Collections.emptySet(),
+                        true),
+                Runnable::run);
+    }
+
     @Override
     public <T> void registerPropertyListener(
             Executor executor, PropertyKey<T> key, PropertyListener<T> listener) {
@@ -48,6 +48,7 @@ public final class FilePersistentStateManager implements PersistentStateManager
             Logger.getLogger(FilePersistentStateManager.class.getCanonicalName());
 
     private final ScheduledExecutorService mExecutor;
+    private final boolean mOwnsExecutor;
     private final Map<String, PersistentStateInterface> mManagedObjects = new HashMap<>();
     private final CborMap mPersistentState = CborMap.create();
     private final File mFile;
@@ -68,7 +69,28 @@ public final class FilePersistentStateManager implements PersistentStateManager
      */
     public static FilePersistentStateManager create(File file)
             throws IOException, CorruptPersistentStateException {
-        FilePersistentStateManager ret = new FilePersistentStateManager(file);
+        return create(file, null);
+    }
+
+    /**
+     * Creates a new {@link PersistentStateManager} that is backed by a {@link File}, saving
+     * changes in the background using {@code executor}. The executor is not shut down when the
+     * returned object is closed. This allows the saves to be driven by a test executor.
+     *
+     * @param file the {@link File} to use for loading/storing the serialized persistent state
+     * @param executor the executor to use for saving in the background, or null to use a
+     *     thread of its own
+     * @return a new {@link FilePersistentStateManager} instance
+     * @throws IllegalArgumentException if {@code file} is a directory
+     * @throws IOException if there was a problem with reading the contents of {@code file}
+     * @throws CorruptPersistentStateException if the data stored in {@code file} could not be
+     *     parsed correctly
+     * @see #create(File)
+     */
+    public static FilePersistentStateManager create(
+            File file, @Nullable ScheduledExecutorService executor)
+            throws IOException, CorruptPersistentStateException {
+        FilePersistentStateManager ret = new FilePersistentStateManager(file, executor);
 
         try {
             ret.loadInitialData();
@@ -91,7 +113,25 @@ public final class FilePersistentStateManager implements PersistentStateManager
      * @throws IOException if there was a problem with reading the contents of {@code file}
      */
     public static FilePersistentStateManager createAndResetIfCorrupt(File file) throws IOException {
-        FilePersistentStateManager ret = new FilePersistentStateManager(file);
+        return createAndResetIfCorrupt(file, null);
+    }
+
+    /**
+     * Creates a new {@link PersistentStateManager} that is backed by a {@link File}, automatically
+     * erasing it if it is corrupted, and saving changes in the background using {@code executor}.
+     * The executor is not shut down when the returned object is closed.
+     *
+     * @param file the {@link File} to use for loading/storing the serialized persistent state
+     * @param executor the executor to use for saving in the background, or null to use a
+     *     thread of its own
+     * @return a new {@link FilePersistentStateManager} instance
+     * @throws IllegalArgumentException if {@code file} is a directory
+     * @throws IOException if there was a problem with reading the contents of {@code file}
+     * @see #createAndResetIfCorrupt(File)
+     */
+    public static FilePersistentStateManager createAndResetIfCorrupt(
+            File file, @Nullable ScheduledExecutorService executor) throws IOException {
+        FilePersistentStateManager ret = new FilePersistentStateManager(file, executor);
 
         try {
             ret.loadInitialData();
@@ -126,7 +166,7 @@ public final class FilePersistentStateManager implements PersistentStateManager
         return ret;
     }
 
-    private FilePersistentStateManager(File file) {
+    private FilePersistentStateManager(File file, @Nullable ScheduledExecutorService executor) {
         mFile = file;
 
         if (mFile.isDirectory()) {
@@ -137,6 +177,12 @@ public final class FilePersistentStateManager implements PersistentStateManager
         mOldFile = new File(mFile.getParentFile(), mFile.getName() + ".old");
         mCorruptFile = new File(mFile.getParentFile(), mFile.getName() + ".corrupt");
 
+        if (executor != null) {
+            mExecutor = executor;
+            mOwnsExecutor = false;
+            return;
+        }
+
         mExecutor = new ScheduledThreadPoolExecutor(1) {
             @Override
             protected void afterExecute(Runnable r, @Nullable Throwable t) {
@@ -148,6 +194,7 @@ public final class FilePersistentStateManager implements PersistentStateManager
                 }
             }
         };
+        mOwnsExecutor = true;
     }
 
     private void loadInitialData() throws IOException, CorruptPersistentStateException {
@@ -436,6 +483,13 @@ public final class FilePersistentStateManager implements PersistentStateManager
     }
 
     private void closeNoFlush() {
+        // Makes any save that is still scheduled do nothing.
+        mWritePending.set(false);
+
+        if (!mOwnsExecutor) {
+            return;
+        }
+
         mExecutor.shutdownNow();
         try {
             mExecutor.awaitTermination(1, TimeUnit.SECONDS);
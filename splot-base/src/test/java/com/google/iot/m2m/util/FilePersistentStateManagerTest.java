@@ -19,10 +19,12 @@ import static org.junit.jupiter.api.Assertions.*;
 
 import com.google.iot.cbor.CborRuntimeException;
 import com.google.iot.m2m.base.*;
+import com.google.iot.m2m.testing.VirtualTimeScheduledExecutorService;
 import java.io.File;
 import java.io.IOException;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
 
 import org.checkerframework.checker.nullness.qual.Nullable;
@@ -147,6 +149,51 @@ class FilePersistentStateManagerTest {
         file.delete();
     }
 
+    @Test
+    void virtualTimeBehavior() throws Exception {
+        File file = new File("temp.cbor");
+        VirtualTimeScheduledExecutorService executor = new VirtualTimeScheduledExecutorService();
+
+        file.delete();
+
+        {
+            TestIface obj1 = new TestIface();
+
+            PersistentStateManager persistentStateManager =
+                    FilePersistentStateManager.create(file, executor);
+
+            persistentStateManager.startManaging("obj1", obj1);
+            obj1.increment();
+
+            // Both changes are saved together, once the save delay has passed.
+            assertEquals(1, executor.getPendingCount());
+            executor.advanceBy(249, TimeUnit.MILLISECONDS);
+            assertFalse(file.exists());
+            executor.advanceBy(1, TimeUnit.MILLISECONDS);
+            assertTrue(file.exists());
+            assertEquals(0, executor.getPendingCount());
+
+            persistentStateManager.close();
+            assertFalse(executor.isShutdown());
+        }
+
+        {
+            TestIface obj1 = new TestIface();
+
+            PersistentStateManager persistentStateManager =
+                    FilePersistentStateManager.create(file, executor);
+
+            persistentStateManager.startManaging("obj1", obj1);
+
+            assertEquals("Not fresh", PARAM_STRING_KEY.getFromMap(obj1.mMap));
+            assertEquals(2, (int) PARAM_INTEGER_KEY.getFromMap(obj1.mMap));
+
+            persistentStateManager.close();
+        }
+
+        file.delete();
+    }
+
     @Test
     void updateBehavior() throws Exception {
         File file = new File("temp.cbor");
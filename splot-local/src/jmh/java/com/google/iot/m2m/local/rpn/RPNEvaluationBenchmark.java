@@ -0,0 +1,87 @@
+/*
+ * Copyright (C) 2019 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.iot.m2m.local.rpn;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-evaluation latency of compiled versus interpreted RPN recipes.
+ *
+ * <p>Run with:
+ * <pre>
+ * mvn -P jmh test-compile exec:java -Dexec.classpathScope=test \
+ *     -Dexec.mainClass=com.google.iot.m2m.local.rpn.RPNEvaluationBenchmark
+ * </pre>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class RPNEvaluationBenchmark {
+    /** The CIE xy to CCT example from the {@link RPNContext} documentation. */
+    static final String CCT_RECIPE =
+            "POP 0.1858 - SWAP POP 0.3320 - SWAP DROP SWAP / "
+                    + "-449 3525 -6823.3 5520.33 POLY3 1500 7000 CLAMP";
+
+    /** A typical level pairing transform. */
+    static final String LEVEL_RECIPE = "0 1 CLAMP 4 / SIN v_l +";
+
+    @Param({"true", "false"})
+    public boolean compilerEnabled;
+
+    private RPNFunction mCctFunction;
+    private RPNFunction mLevelFunction;
+    private List<Object> mCctInput;
+
+    @Setup
+    public void setUp() {
+        RPNContext context = new RPNContext();
+        context.setCompilerEnabled(compilerEnabled);
+        context.setVariable("v_l", 0.25);
+
+        mCctFunction = context.compile(CCT_RECIPE);
+        mLevelFunction = context.compile(LEVEL_RECIPE);
+        mCctInput = Arrays.asList(0.3127, 0.3290);
+    }
+
+    @Benchmark
+    public Object cct() {
+        return mCctFunction.apply(mCctInput);
+    }
+
+    @Benchmark
+    public Object level() {
+        return mLevelFunction.apply(0.5);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        Options options = new OptionsBuilder()
+                .include(RPNEvaluationBenchmark.class.getSimpleName())
+                .build();
+
+        new Runner(options).run();
+    }
+}
@@ -12,9 +12,14 @@ public abstract class AbstractResourceLink<T> extends ResourceLink<T> {
     private final Map<Listener<T>, Executor> mListenerMap = new HashMap<>();
 
     protected final void didChangeValue(@Nullable T value) {
-        synchronized (mListenerMap) {
-            for (Map.Entry<Listener<T>, Executor> entry : mListenerMap.entrySet()) {
-                entry.getValue().execute(() -> entry.getKey().onResourceLinkChanged(this, value));
+        // Listeners that run synchronously (like pairings) have their writes
+        // coalesced, so that changes fanning out to several properties of the
+        // same thing end up as a single write.
+        try (ResourceLinkBatch ignored = ResourceLinkBatch.begin()) {
+            synchronized (mListenerMap) {
+                for (Map.Entry<Listener<T>, Executor> entry : mListenerMap.entrySet()) {
+                    entry.getValue().execute(() -> entry.getKey().onResourceLinkChanged(this, value));
+                }
             }
         }
     }
@@ -0,0 +1,287 @@
+/*
+ * Copyright (C) 2019 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.iot.m2m.local;
+
+import com.google.common.base.Ticker;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.iot.m2m.base.Operation;
+import com.google.iot.m2m.base.Splot;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+import java.net.URI;
+import java.util.*;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.logging.Logger;
+
+/**
+ * A single run of a list of actions, used by {@link LocalActions}.
+ *
+ * <p>A plain write to a property (no {@code inc}, {@code tog}, {@code ins} or {@code rem}
+ * operation) is only invoked once if the previous action on the same resource wrote an equal
+ * value, since writing it again can't change the outcome. Other actions, like method calls and
+ * increments, are always invoked. Actions are invoked in order, with at most
+ * {@code maxConcurrency} of them outstanding at any time: the first ones are invoked right
+ * away, without waiting for each other, and the rest as earlier ones complete. An action is
+ * never invoked while an earlier action on the same resource is still outstanding, so every
+ * resource sees its actions in list order. The {@link #getFuture() future} completes with
+ * the {@link ActionOutcome outcome} of every action once they have all completed; it never
+ * fails, since failures are reported in the outcomes. A {@link Listener} is told about each
+ * outcome as soon as it is known, so that it doesn't have to wait for the slowest action.
+ */
+final class ActionDispatch {
+    private static final boolean DEBUG = false;
+    private static final Logger LOGGER = Logger.getLogger(ActionDispatch.class.getCanonicalName());
+
+    /** Receives the outcome of each action as soon as it completes. */
+    interface Listener {
+        void onActionOutcome(ActionOutcome outcome);
+    }
+
+    /** An action to invoke, and the indexes of every action merged into it. */
+    private static final class Invocation {
+        final ResourceLink<Object> mResourceLink;
+        final @Nullable Object mBody;
+        final List<Integer> mIndexes = new ArrayList<>();
+
+        // The invocation of the previous action on the same resource, which must complete
+        // before this one is invoked.
+        final @Nullable Invocation mPrevious;
+
+        long mStartTime = 0;
+
+        // Guarded by the dispatch.
+        boolean mDone = false;
+
+        Invocation(ResourceLink<Object> resourceLink, @Nullable Object body,
+                   @Nullable Invocation previous) {
+            mResourceLink = resourceLink;
+            mBody = body;
+            mPrevious = previous;
+        }
+
+        boolean isReady() {
+            return mPrevious == null || mPrevious.mDone;
+        }
+    }
+
+    /**
+     * Indicates if invoking {@code uri} simply writes a value to a property, such that writing
+     * the same value twice in a row has the same effect as writing it once.
+     */
+    static boolean isPlainWrite(URI uri) {
+        if (Operation.fromQuery(uri.getQuery()) != Operation.UNSPECIFIED) {
+            return false;
+        }
+
+        String path = uri.getPath();
+
+        if (path == null) {
+            return false;
+        }
+
+        // Property paths end with the section, the trait and the name of the property.
+        String[] components = path.split("/");
+
+        if (components.length < 3) {
+            return false;
+        }
+
+        String section = components[components.length - 3];
+
+        return Splot.SECTION_STATE.equals(section)
+                || Splot.SECTION_CONFIG.equals(section)
+                || Splot.SECTION_METADATA.equals(section);
+    }
+
+    private final List<Invocation> mInvocations = new ArrayList<>();
+
+    // Invocations that haven't been invoked yet, in order.
+    private final List<Invocation> mWaiting = new LinkedList<>();
+    private final ActionOutcome[] mOutcomes;
+    private final int mMaxConcurrency;
+    private final Executor mExecutor;
+    private final Ticker mTicker;
+    private final SettableFuture<List<ActionOutcome>> mFuture = SettableFuture.create();
+    private @Nullable Listener mListener = null;
+
+    private int mOutstanding = 0;
+    private int mCompleted = 0;
+
+    /**
+     * Prepares to invoke {@code bodies.get(i)} on {@code resourceLinks.get(i)} for each
+     * {@code i}. Nothing is invoked until {@link #start()} is called.
+     */
+    ActionDispatch(List<ResourceLink<Object>> resourceLinks, List<@Nullable Object> bodies,
+                   int maxConcurrency, Executor executor, Ticker ticker) {
+        if (maxConcurrency < 1) {
+            throw new IllegalArgumentException("Invalid concurrency " + maxConcurrency);
+        }
+
+        mOutcomes = new ActionOutcome[resourceLinks.size()];
+        mMaxConcurrency = maxConcurrency;
+        mExecutor = executor;
+        mTicker = ticker;
+
+        // The latest invocation on each resource.
+        Map<URI, Invocation> latest = new HashMap<>();
+
+        for (int i = 0; i < resourceLinks.size(); i++) {
+            ResourceLink<Object> resourceLink = resourceLinks.get(i);
+            URI uri = resourceLink.getUri();
+            Object body = bodies.get(i);
+            Invocation invocation = latest.get(uri);
+
+            if (invocation == null
+                    || !isPlainWrite(uri)
+                    || !Objects.deepEquals(invocation.mBody, body)) {
+                invocation = new Invocation(resourceLink, body, invocation);
+                mInvocations.add(invocation);
+                latest.put(uri, invocation);
+            }
+
+            invocation.mIndexes.add(i);
+        }
+
+        mWaiting.addAll(mInvocations);
+
+        if (DEBUG) {
+            LOGGER.info(mInvocations.size() + " of " + mOutcomes.length + " actions are invoked");
+        }
+    }
+
+    /** The number of distinct invocations this dispatch makes. */
+    int getInvocationCount() {
+        return mInvocations.size();
+    }
+
+    ListenableFuture<List<ActionOutcome>> getFuture() {
+        return mFuture;
+    }
+
+    /**
+     * Sets the listener told about each outcome, on the executor the dispatch was created
+     * with. Must be called before {@link #start()}.
+     */
+    void setListener(@Nullable Listener listener) {
+        mListener = listener;
+    }
+
+    /** Starts invoking the actions, returning the same future as {@link #getFuture()}. */
+    ListenableFuture<List<ActionOutcome>> start() {
+        if (mInvocations.isEmpty()) {
+            mFuture.set(Collections.emptyList());
+        } else {
+            invokeMore();
+        }
+        return mFuture;
+    }
+
+    private void invokeMore() {
+        while (true) {
+            Invocation invocation = null;
+
+            synchronized (this) {
+                if (mOutstanding >= mMaxConcurrency) {
+                    return;
+                }
+
+                // The first action that isn't waiting for an earlier one on the same resource.
+                for (Iterator<Invocation> iter = mWaiting.iterator(); iter.hasNext(); ) {
+                    Invocation next = iter.next();
+
+                    if (next.isReady()) {
+                        iter.remove();
+                        invocation = next;
+                        break;
+                    }
+                }
+
+                if (invocation == null) {
+                    return;
+                }
+
+                mOutstanding++;
+            }
+
+            // Invoked outside of the lock, since it may complete synchronously.
+            ListenableFuture<?> future;
+
+            invocation.mStartTime = mTicker.read();
+
+            try {
+                future = invocation.mResourceLink.invoke(invocation.mBody);
+            } catch (RuntimeException x) {
+                future = Futures.immediateFailedFuture(x);
+            }
+
+            final Invocation invoking = invocation;
+            final ListenableFuture<?> invoked = future;
+
+            invoked.addListener(() -> onInvocationDone(invoking, invoked), mExecutor);
+        }
+    }
+
+    private void onInvocationDone(Invocation invocation, ListenableFuture<?> future) {
+        final long latency = mTicker.read() - invocation.mStartTime;
+        Throwable error = null;
+
+        try {
+            Futures.getDone(future);
+        } catch (ExecutionException x) {
+            error = x.getCause();
+        } catch (CancellationException x) {
+            error = x;
+        }
+
+        final boolean done;
+        final List<ActionOutcome> outcomes = new ArrayList<>(invocation.mIndexes.size());
+
+        synchronized (this) {
+            boolean duplicate = false;
+
+            for (int index : invocation.mIndexes) {
+                ActionOutcome outcome = new ActionOutcome(
+                        index, invocation.mResourceLink.getUri(), error, latency, duplicate);
+                mOutcomes[index] = outcome;
+                outcomes.add(outcome);
+                duplicate = true;
+            }
+
+            invocation.mDone = true;
+            mOutstanding--;
+            mCompleted++;
+            done = mCompleted == mInvocations.size();
+        }
+
+        final Listener listener = mListener;
+
+        if (listener != null) {
+            for (ActionOutcome outcome : outcomes) {
+                listener.onActionOutcome(outcome);
+            }
+        }
+
+        if (done) {
+            mFuture.set(Collections.unmodifiableList(Arrays.asList(mOutcomes)));
+        } else {
+            invokeMore();
+        }
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright (C) 2019 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.iot.m2m.local;
+
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+import java.net.URI;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The outcome of one action invoked by {@link LocalActions#dispatchActions()}.
+ */
+public final class ActionOutcome {
+    private final int mIndex;
+    private final URI mUri;
+    private final @Nullable Throwable mError;
+    private final long mLatencyNanos;
+    private final boolean mDuplicate;
+
+    ActionOutcome(int index, URI uri, @Nullable Throwable error, long latencyNanos,
+                  boolean duplicate) {
+        mIndex = index;
+        mUri = uri;
+        mError = error;
+        mLatencyNanos = latencyNanos;
+        mDuplicate = duplicate;
+    }
+
+    /** The index of the action in the list of actions. */
+    public int getIndex() {
+        return mIndex;
+    }
+
+    /** The URI of the resource the action was invoked on. */
+    public URI getUri() {
+        return mUri;
+    }
+
+    /** Indicates if the action completed successfully. */
+    public boolean isSuccess() {
+        return mError == null;
+    }
+
+    /** The reason the action failed, or null if it succeeded. */
+    public @Nullable Throwable getError() {
+        return mError;
+    }
+
+    /** The time between invoking the action and it completing. */
+    public long getLatency(TimeUnit unit) {
+        return unit.convert(mLatencyNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Indicates if this action wrote the same value to a property as the previous action on
+     * that property, in which case it wasn't invoked again and shares the outcome of the
+     * earlier one.
+     */
+    public boolean isDuplicate() {
+        return mDuplicate;
+    }
+
+    @Override
+    public String toString() {
+        return "ActionOutcome{" + mIndex + ", " + mUri
+                + (mError == null ? ", ok" : ", " + mError)
+                + ", " + TimeUnit.NANOSECONDS.toMicros(mLatencyNanos) + "us"
+                + (mDuplicate ? ", duplicate}" : "}");
+    }
+}
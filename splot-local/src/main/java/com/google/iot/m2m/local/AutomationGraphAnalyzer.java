@@ -0,0 +1,429 @@
+/*
+ * Copyright (C) 2019 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.iot.m2m.local;
+
+import com.google.errorprone.annotations.CanIgnoreReturnValue;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+import java.net.URI;
+import java.util.*;
+
+/**
+ * Static analysis of how changes flow between resources through a set of pairings, rules and
+ * timers, to find configurations that would overload the system before they are enabled.
+ *
+ * <p>Every automation is described by the resources it watches and the resources it writes
+ * to. From that, the analyzer builds a graph with an edge from each watched resource to each
+ * resource written as a result, and {@link #analyze(int) reports}:
+ *
+ * <ul>
+ *   <li>The fan-in of every resource, which is the number of automations that write to it,
+ *       and its fan-out, which is the number of automations evaluated when it changes.
+ *   <li>The {@link Cycle cycles} in the graph. A pairing that both pushes and pulls between
+ *       the same two resources is not a cycle on its own, since it never writes back the value
+ *       it just received.
+ *   <li>The resources whose change would cause more evaluations than a given limit, counting
+ *       every evaluation down every path of at most {@link #getDepthLimit()} automations. This
+ *       matches how far {@link LocalPairingGraph} lets a change propagate.
+ * </ul>
+ *
+ * <p>The analysis only looks at the configuration: it assumes every evaluation writes to all
+ * of the automation's outputs, so the counts are an upper bound.
+ *
+ * @see LocalAutomationManager#analyzeAutomation(int)
+ */
+public final class AutomationGraphAnalyzer {
+    /** Default maximum number of automations a change is followed through. */
+    public static final int DEFAULT_DEPTH_LIMIT = LocalPairingGraph.DEFAULT_HOP_LIMIT;
+
+    /** One direction of an automation: a change to any input writes to every output. */
+    private static final class Evaluator {
+        final String mAutomation;
+        final Set<URI> mInputs;
+        final Set<URI> mOutputs;
+        final boolean mPairing;
+
+        // The evaluator for the opposite direction of the same pairing, if any.
+        @Nullable Evaluator mReverse = null;
+
+        Evaluator(String automation, Collection<URI> inputs, Collection<URI> outputs,
+                  boolean pairing) {
+            mAutomation = automation;
+            mInputs = new LinkedHashSet<>(inputs);
+            mOutputs = new LinkedHashSet<>(outputs);
+            mPairing = pairing;
+        }
+    }
+
+    /** A set of resources that changes can go around between, and the automations involved. */
+    public static final class Cycle {
+        private final Set<URI> mResources;
+        private final Set<String> mAutomations;
+
+        Cycle(Set<URI> resources, Set<String> automations) {
+            mResources = Collections.unmodifiableSet(resources);
+            mAutomations = Collections.unmodifiableSet(automations);
+        }
+
+        /** Returns the resources that are part of this cycle. */
+        public Set<URI> getResources() {
+            return mResources;
+        }
+
+        /** Returns the IDs of the automations writing to the resources of this cycle. */
+        public Set<String> getAutomations() {
+            return mAutomations;
+        }
+
+        @Override
+        public String toString() {
+            return "Cycle{resources=" + mResources + ", automations=" + mAutomations + "}";
+        }
+    }
+
+    /** The result of {@link #analyze(int)}. */
+    public static final class Report {
+        private final Map<URI, Integer> mFanIn;
+        private final Map<URI, Integer> mFanOut;
+        private final Map<URI, Long> mEvaluationCounts;
+        private final Map<URI, Long> mHotSpots;
+        private final List<Cycle> mCycles;
+        private final int mEvaluationLimit;
+
+        Report(Map<URI, Integer> fanIn, Map<URI, Integer> fanOut,
+               Map<URI, Long> evaluationCounts, Map<URI, Long> hotSpots, List<Cycle> cycles,
+               int evaluationLimit) {
+            mFanIn = Collections.unmodifiableMap(fanIn);
+            mFanOut = Collections.unmodifiableMap(fanOut);
+            mEvaluationCounts = Collections.unmodifiableMap(evaluationCounts);
+            mHotSpots = Collections.unmodifiableMap(hotSpots);
+            mCycles = Collections.unmodifiableList(cycles);
+            mEvaluationLimit = evaluationLimit;
+        }
+
+        /** Returns every resource watched or written to by the analyzed automations. */
+        public Set<URI> getResources() {
+            return mEvaluationCounts.keySet();
+        }
+
+        /** Returns the number of automations that write to {@code resource}. */
+        public int getFanIn(URI resource) {
+            return mFanIn.getOrDefault(resource, 0);
+        }
+
+        /** Returns the number of automations that are evaluated when {@code resource} changes. */
+        public int getFanOut(URI resource) {
+            return mFanOut.getOrDefault(resource, 0);
+        }
+
+        /**
+         * Returns the number of evaluations a change of {@code resource} would cause, including
+         * the evaluations caused by the writes that follow.
+         */
+        public long getEvaluationCount(URI resource) {
+            return mEvaluationCounts.getOrDefault(resource, 0L);
+        }
+
+        /** Returns the limit the evaluation counts of the {@link #getHotSpots() hot spots} exceed. */
+        public int getEvaluationLimit() {
+            return mEvaluationLimit;
+        }
+
+        /**
+         * Returns the resources whose change would cause more evaluations than
+         * {@link #getEvaluationLimit()}, mapped to that number of evaluations. The resources
+         * causing the most evaluations come first.
+         */
+        public Map<URI, Long> getHotSpots() {
+            return mHotSpots;
+        }
+
+        /** Returns the cycles between the resources. */
+        public List<Cycle> getCycles() {
+            return mCycles;
+        }
+
+        /** Indicates if the analysis found neither cycles nor hot spots. */
+        public boolean isClean() {
+            return mCycles.isEmpty() && mHotSpots.isEmpty();
+        }
+
+        @Override
+        public String toString() {
+            return "Report{resources=" + mEvaluationCounts.size()
+                    + ", cycles=" + mCycles
+                    + ", hotSpots=" + mHotSpots + "}";
+        }
+    }
+
+    private final List<Evaluator> mEvaluators = new ArrayList<>();
+    private int mDepthLimit = DEFAULT_DEPTH_LIMIT;
+
+    /** Returns the maximum number of automations a change is followed through. */
+    public int getDepthLimit() {
+        return mDepthLimit;
+    }
+
+    /** Changes the maximum number of automations a change is followed through. */
+    @CanIgnoreReturnValue
+    public AutomationGraphAnalyzer setDepthLimit(int depthLimit) {
+        if (depthLimit < 1) {
+            throw new IllegalArgumentException("Invalid depth limit " + depthLimit);
+        }
+        mDepthLimit = depthLimit;
+        return this;
+    }
+
+    /**
+     * Adds a pairing that copies changes of {@code source} to {@code destination} if
+     * {@code push} is set, and the other way around if {@code pull} is set. A pairing missing
+     * either resource has no effect.
+     */
+    @CanIgnoreReturnValue
+    public AutomationGraphAnalyzer addPairing(String id, @Nullable URI source,
+                                              @Nullable URI destination,
+                                              boolean push, boolean pull) {
+        if (source == null || destination == null) {
+            return this;
+        }
+
+        Evaluator forward = null;
+        Evaluator reverse = null;
+
+        if (push) {
+            forward = new Evaluator(id, Collections.singleton(source),
+                    Collections.singleton(destination), true);
+            mEvaluators.add(forward);
+        }
+
+        if (pull) {
+            reverse = new Evaluator(id, Collections.singleton(destination),
+                    Collections.singleton(source), true);
+            mEvaluators.add(reverse);
+        }
+
+        if (forward != null && reverse != null) {
+            forward.mReverse = reverse;
+            reverse.mReverse = forward;
+        }
+
+        return this;
+    }
+
+    /**
+     * Adds a rule that is evaluated when any of the {@code conditions} change, and may then
+     * invoke all of the {@code actions}.
+     */
+    @CanIgnoreReturnValue
+    public AutomationGraphAnalyzer addRule(String id, Collection<URI> conditions,
+                                           Collection<URI> actions) {
+        mEvaluators.add(new Evaluator(id, conditions, actions, false));
+        return this;
+    }
+
+    /**
+     * Adds a timer that invokes all of the {@code actions}. Timers aren't triggered by changes,
+     * so they only add to the fan-in of the resources they write to.
+     */
+    @CanIgnoreReturnValue
+    public AutomationGraphAnalyzer addTimer(String id, Collection<URI> actions) {
+        mEvaluators.add(new Evaluator(id, Collections.emptySet(), actions, false));
+        return this;
+    }
+
+    /**
+     * Analyzes the automations added so far.
+     *
+     * @param evaluationLimit resources whose change would cause more evaluations than this are
+     *     reported as {@link Report#getHotSpots() hot spots}
+     */
+    public Report analyze(int evaluationLimit) {
+        Map<URI, Set<String>> writers = new LinkedHashMap<>();
+        Map<URI, Set<String>> readers = new LinkedHashMap<>();
+        Map<URI, List<Evaluator>> evaluatorsByInput = new HashMap<>();
+
+        for (Evaluator evaluator : mEvaluators) {
+            for (URI input : evaluator.mInputs) {
+                readers.computeIfAbsent(input, k -> new HashSet<>()).add(evaluator.mAutomation);
+                writers.computeIfAbsent(input, k -> new HashSet<>());
+                evaluatorsByInput.computeIfAbsent(input, k -> new ArrayList<>()).add(evaluator);
+            }
+
+            for (URI output : evaluator.mOutputs) {
+                writers.computeIfAbsent(output, k -> new HashSet<>()).add(evaluator.mAutomation);
+                readers.computeIfAbsent(output, k -> new HashSet<>());
+            }
+        }
+
+        Map<URI, Integer> fanIn = new LinkedHashMap<>();
+        Map<URI, Integer> fanOut = new LinkedHashMap<>();
+
+        for (URI resource : writers.keySet()) {
+            fanIn.put(resource, writers.get(resource).size());
+            fanOut.put(resource, readers.get(resource).size());
+        }
+
+        Map<URI, Long> evaluationCounts = new LinkedHashMap<>();
+        Map<CascadeKey, Long> memo = new HashMap<>();
+        List<Map.Entry<URI, Long>> hotSpots = new ArrayList<>();
+
+        for (URI resource : writers.keySet()) {
+            long count = countEvaluations(resource, mDepthLimit, null, evaluatorsByInput, memo);
+
+            evaluationCounts.put(resource, count);
+
+            if (count > evaluationLimit) {
+                hotSpots.add(new AbstractMap.SimpleImmutableEntry<>(resource, count));
+            }
+        }
+
+        hotSpots.sort((a, b) -> Long.compare(b.getValue(), a.getValue()));
+
+        Map<URI, Long> sortedHotSpots = new LinkedHashMap<>();
+
+        for (Map.Entry<URI, Long> entry : hotSpots) {
+            sortedHotSpots.put(entry.getKey(), entry.getValue());
+        }
+
+        return new Report(fanIn, fanOut, evaluationCounts, sortedHotSpots,
+                findCycles(writers.keySet(), evaluatorsByInput), evaluationLimit);
+    }
+
+    /** Key for memoizing {@link #countEvaluations}. */
+    private static final class CascadeKey {
+        final URI mResource;
+        final int mDepth;
+        final @Nullable Evaluator mCause;
+
+        CascadeKey(URI resource, int depth, @Nullable Evaluator cause) {
+            mResource = resource;
+            mDepth = depth;
+            mCause = cause;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof CascadeKey)) {
+                return false;
+            }
+            CascadeKey other = (CascadeKey) obj;
+            return mResource.equals(other.mResource)
+                    && mDepth == other.mDepth
+                    && mCause == other.mCause;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(mResource, mDepth, System.identityHashCode(mCause));
+        }
+    }
+
+    /**
+     * Returns the number of evaluations caused by a change of {@code resource} written by
+     * {@code cause}, following at most {@code depth} automations.
+     */
+    private static long countEvaluations(URI resource, int depth, @Nullable Evaluator cause,
+                                         Map<URI, List<Evaluator>> evaluatorsByInput,
+                                         Map<CascadeKey, Long> memo) {
+        CascadeKey key = new CascadeKey(resource, depth, cause);
+        Long memoized = memo.get(key);
+
+        if (memoized != null) {
+            return memoized;
+        }
+
+        long ret = 0;
+
+        for (Evaluator evaluator : evaluatorsByInput.getOrDefault(resource,
+                Collections.emptyList())) {
+            if (cause != null && evaluator == cause.mReverse) {
+                // A pairing never writes back the value it just wrote.
+                continue;
+            }
+
+            ret = saturatedAdd(ret, 1);
+
+            if (depth > 1) {
+                for (URI output : evaluator.mOutputs) {
+                    ret = saturatedAdd(ret, countEvaluations(output, depth - 1, evaluator,
+                            evaluatorsByInput, memo));
+                }
+            }
+        }
+
+        memo.put(key, ret);
+        return ret;
+    }
+
+    private static long saturatedAdd(long a, long b) {
+        long ret = a + b;
+        return ret < 0 ? Long.MAX_VALUE : ret;
+    }
+
+    /** Returns the resources written to when {@code resource} changes. */
+    private static List<URI> successorsOf(URI resource,
+                                          Map<URI, List<Evaluator>> evaluatorsByInput) {
+        List<URI> ret = new ArrayList<>();
+
+        for (Evaluator evaluator : evaluatorsByInput.getOrDefault(resource,
+                Collections.emptyList())) {
+            ret.addAll(evaluator.mOutputs);
+        }
+
+        return ret;
+    }
+
+    /** Finds the strongly connected components of the graph that are cycles. */
+    private List<Cycle> findCycles(Set<URI> resources,
+                                   Map<URI, List<Evaluator>> evaluatorsByInput) {
+        List<Cycle> ret = new ArrayList<>();
+
+        for (Set<URI> component : new StronglyConnectedComponents(resources,
+                resource -> successorsOf(resource, evaluatorsByInput)).find()) {
+            Set<String> automations = new TreeSet<>();
+            Set<Evaluator> evaluators = new HashSet<>();
+
+            for (URI resource : component) {
+                for (Evaluator evaluator : evaluatorsByInput.getOrDefault(resource,
+                        Collections.emptyList())) {
+                    for (URI output : evaluator.mOutputs) {
+                        if (component.contains(output)) {
+                            automations.add(evaluator.mAutomation);
+                            evaluators.add(evaluator);
+                        }
+                    }
+                }
+            }
+
+            if (evaluators.isEmpty()) {
+                // A single resource without an edge to itself.
+                continue;
+            }
+
+            Evaluator first = evaluators.iterator().next();
+
+            if (evaluators.size() == 2 && first.mReverse != null
+                    && evaluators.contains(first.mReverse)) {
+                // Just a pairing that both pushes and pulls.
+                continue;
+            }
+
+            ret.add(new Cycle(component, automations));
+        }
+
+        return ret;
+    }
+}
@@ -0,0 +1,187 @@
+/*
+ * Copyright (C) 2019 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.iot.m2m.local;
+
+import com.google.iot.m2m.trait.AutomationStatisticsTrait;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntSupplier;
+import java.util.function.Supplier;
+
+/**
+ * Runtime statistics for a {@link LocalPairing}, {@link LocalRule} or {@link LocalTimer},
+ * which they expose through {@link AutomationStatisticsTrait}. Use
+ * {@link #sum(Iterable)} to total the statistics of several automations, like
+ * {@link LocalAutomationManager#getStatistics()} does.
+ *
+ * <p>Everything is recorded using lock-free counters, so it can be updated from any thread
+ * without slowing the automation down.
+ */
+public final class AutomationStatistics {
+    /** Fraction of durations that {@link #getEvaluationP99Nanos()} is greater than. */
+    private static final double P99 = 0.99;
+
+    private final LatencyHistogram mEvaluationTimes = new LatencyHistogram();
+    private final LatencyHistogram mInvokeTimes = new LatencyHistogram();
+    private final LongAdder mDropCount = new LongAdder();
+    private final IntSupplier mInstructionCount;
+
+    /**
+     * Creates an empty set of statistics, which gets the number of RPN instructions the
+     * automation evaluates from {@code instructionCount}.
+     */
+    AutomationStatistics(IntSupplier instructionCount) {
+        mInstructionCount = instructionCount;
+    }
+
+    /** Returns the total of several sets of statistics. */
+    public static AutomationStatistics sum(Iterable<AutomationStatistics> statistics) {
+        int instructionCount = 0;
+
+        for (AutomationStatistics stats : statistics) {
+            instructionCount += stats.getInstructionCount();
+        }
+
+        final int totalInstructionCount = instructionCount;
+        final AutomationStatistics ret = new AutomationStatistics(() -> totalInstructionCount);
+
+        for (AutomationStatistics stats : statistics) {
+            ret.mEvaluationTimes.add(stats.mEvaluationTimes);
+            ret.mInvokeTimes.add(stats.mInvokeTimes);
+            ret.mDropCount.add(stats.getDropCount());
+        }
+
+        return ret;
+    }
+
+    /** Records an evaluation that took {@code nanos} nanoseconds. */
+    void recordEvaluation(long nanos) {
+        mEvaluationTimes.record(nanos);
+    }
+
+    /** Records a write or action that took {@code nanos} nanoseconds to complete. */
+    void recordInvoke(long nanos) {
+        mInvokeTimes.record(nanos);
+    }
+
+    /** Records a change that was dropped or merged with another one. */
+    void recordDrop() {
+        mDropCount.increment();
+    }
+
+    /** Number of times the automation has been evaluated. */
+    public long getEvaluationCount() {
+        return mEvaluationTimes.getCount();
+    }
+
+    /** Average time an evaluation takes, in nanoseconds. */
+    public double getEvaluationMeanNanos() {
+        return mEvaluationTimes.getMeanNanos();
+    }
+
+    /** Time that 99% of evaluations take less than, in nanoseconds, to within 12.5%. */
+    public long getEvaluationP99Nanos() {
+        return mEvaluationTimes.getNanosAtFraction(P99);
+    }
+
+    /** Number of RPN instructions in the recipes the automation evaluates. */
+    public int getInstructionCount() {
+        return mInstructionCount.getAsInt();
+    }
+
+    /** Number of writes or actions the automation has performed. */
+    public long getInvokeCount() {
+        return mInvokeTimes.getCount();
+    }
+
+    /** Average time it takes a write or action to complete, in nanoseconds. */
+    public double getInvokeMeanNanos() {
+        return mInvokeTimes.getMeanNanos();
+    }
+
+    /**
+     * Time that 99% of writes or actions take less than to complete, in nanoseconds, to
+     * within 12.5%.
+     */
+    public long getInvokeP99Nanos() {
+        return mInvokeTimes.getNanosAtFraction(P99);
+    }
+
+    /** Number of changes that were dropped or merged with another one. */
+    public long getDropCount() {
+        return mDropCount.sum();
+    }
+
+    private static float toSeconds(double nanos) {
+        return (float) (nanos / TimeUnit.SECONDS.toNanos(1));
+    }
+
+    private static int toInteger(long count) {
+        return (int) Math.min(count, Integer.MAX_VALUE);
+    }
+
+    /** Creates a trait that reports the statistics returned by {@code statistics}. */
+    static AutomationStatisticsTrait.AbstractLocalTrait createTrait(
+            Supplier<AutomationStatistics> statistics) {
+        return new AutomationStatisticsTrait.AbstractLocalTrait() {
+            @Override
+            public Integer onGetEvalCount() {
+                return toInteger(statistics.get().getEvaluationCount());
+            }
+
+            @Override
+            public Float onGetEvalMean() {
+                return toSeconds(statistics.get().getEvaluationMeanNanos());
+            }
+
+            @Override
+            public Float onGetEvalP99() {
+                return toSeconds(statistics.get().getEvaluationP99Nanos());
+            }
+
+            @Override
+            public Integer onGetInstructionCount() {
+                return statistics.get().getInstructionCount();
+            }
+
+            @Override
+            public Integer onGetInvokeCount() {
+                return toInteger(statistics.get().getInvokeCount());
+            }
+
+            @Override
+            public Float onGetInvokeMean() {
+                return toSeconds(statistics.get().getInvokeMeanNanos());
+            }
+
+            @Override
+            public Float onGetInvokeP99() {
+                return toSeconds(statistics.get().getInvokeP99Nanos());
+            }
+
+            @Override
+            public Integer onGetDropCount() {
+                return toInteger(statistics.get().getDropCount());
+            }
+        };
+    }
+
+    /** Creates a trait that reports these statistics. */
+    AutomationStatisticsTrait.AbstractLocalTrait createTrait() {
+        return createTrait(() -> this);
+    }
+}
@@ -0,0 +1,161 @@
+/*
+ * Copyright (C) 2019 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.iot.m2m.local;
+
+import com.google.iot.m2m.base.InvalidMethodArgumentsException;
+import com.google.iot.m2m.base.InvalidValueException;
+import com.google.iot.m2m.base.ParamKey;
+import com.google.iot.m2m.base.Thing;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+/**
+ * Implements the bulk create and delete methods shared by the pairing, timer and rule manager
+ * traits, on top of the single-child operations of each trait.
+ *
+ * <p>Both run inside a {@link ChildPersistentStateManager} batch, so the list of children is
+ * only saved once per call, however many children are added or removed. When the trait
+ * belongs to a {@link LocalThing}, they also run inside a batch of that thing, which would
+ * otherwise save its state once for each child added or removed.
+ */
+final class BulkChildOperations {
+    /** Creates a single child, like the trait's create method. */
+    interface ChildFactory {
+        Thing create(Map<String, Object> args) throws InvalidMethodArgumentsException;
+    }
+
+    private BulkChildOperations() {}
+
+    /**
+     * Creates a child for each item of {@code itemsKey} in {@code args}, returning their IDs
+     * in the same order. If any item can't be created, the children already created by this
+     * call are deleted again with {@code deleter}, and the error names the failing item.
+     */
+    static String[] createChildren(Map<String, Object> args,
+                                   ParamKey<Map<String, Object>[]> itemsKey,
+                                   Thing parent,
+                                   Thing parent,
+                              ChildPersistentStateManager stateManager,
+                                   ChildFactory factory,
+                                   Function<Thing, @Nullable String> idGetter,
+                                   Predicate<Thing> deleter)
+            throws InvalidMethodArgumentsException {
+        final Map<String, Object>[] items;
+
+        try {
+            items = itemsKey.coerceFromMap(args);
+        } catch (InvalidValueException e) {
+            throw new InvalidMethodArgumentsException(
+                    "Bad value for \"" + itemsKey.getName() + "\" " + e);
+        }
+
+        if (items == null) {
+            throw new InvalidMethodArgumentsException("Missing \"" + itemsKey.getName() + "\"");
+        }
+
+        final List<Thing> created = new ArrayList<>(items.length);
+        final String[] ret = new String[items.length];
+
+        beginBatch(parent, stateManager);
+
+        try {
+            for (int i = 0; i < items.length; i++) {
+                try {
+                    Thing child = factory.create(items[i]);
+                    created.add(child);
+                    ret[i] = idGetter.apply(child);
+
+                } catch (InvalidMethodArgumentsException e) {
+                    created.forEach(deleter::test);
+                    throw new InvalidMethodArgumentsException(
+                            "Item " + i + ": " + e.getMessage(), e);
+
+                } catch (RuntimeException e) {
+                    created.forEach(deleter::test);
+                    throw e;
+                }
+            }
+        } finally {
+            endBatch(parent, stateManager);
+        }
+
+        return ret;
+    }
+
+    /**
+     * Deletes the children whose IDs are listed by {@code idsKey} in {@code args}, returning
+     * how many were deleted. Unknown IDs are ignored.
+     */
+    static int deleteChildren(Map<String, Object> args,
+                              ParamKey<String[]> idsKey,
+                              ChildPersistentStateManager stateManager,
+                              Function<String, @Nullable Thing> childGetter,
+                              Predicate<Thing> deleter)
+            throws InvalidMethodArgumentsException {
+        final String[] ids;
+
+        try {
+            ids = idsKey.coerceFromMap(args);
+        } catch (InvalidValueException e) {
+            throw new InvalidMethodArgumentsException(
+                    "Bad value for \"" + idsKey.getName() + "\" " + e);
+        }
+
+        if (ids == null) {
+            throw new InvalidMethodArgumentsException("Missing \"" + idsKey.getName() + "\"");
+        }
+
+        int count = 0;
+
+        beginBatch(parent, stateManager);
+
+        try {
+            for (String childId : ids) {
+                Thing child = childGetter.apply(childId);
+
+                if (child != null && deleter.test(child)) {
+                    count++;
+                }
+            }
+        } finally {
+            endBatch(parent, stateManager);
+        }
+
+        return count;
+    }
+
+    private static void beginBatch(Thing parent, ChildPersistentStateManager stateManager) {
+        if (parent instanceof LocalThing) {
+            ((LocalThing) parent).beginPersistentStateBatch();
+        }
+        stateManager.beginBatch();
+    }
+
+    private static void endBatch(Thing parent, ChildPersistentStateManager stateManager) {
+        try {
+            stateManager.endBatch();
+        } finally {
+            if (parent instanceof LocalThing) {
+                ((LocalThing) parent).endPersistentStateBatch();
+            }
+        }
+    }
+}
@@ -0,0 +1,400 @@
+/*
+ * Copyright (C) 2019 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.iot.m2m.local;
+
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+import java.time.*;
+import java.time.temporal.ChronoUnit;
+import java.time.zone.ZoneOffsetTransition;
+import java.util.Locale;
+
+/**
+ * A compiled, cron-like calendar schedule, such as "weekdays at 7:00", used by
+ * {@link LocalTimer} as an alternative to schedule programs.
+ *
+ * <p>Schedules have the same five fields as a crontab entry, optionally preceded by a time
+ * zone:
+ *
+ * <pre>
+ * [TZ=&lt;zone&gt;] &lt;minute&gt; &lt;hour&gt; &lt;day-of-month&gt; &lt;month&gt; &lt;day-of-week&gt;
+ * </pre>
+ *
+ * <p>Each field is {@code *} or a comma-separated list of values and ranges like {@code 1-5},
+ * each of which may be followed by a step like {@code /15}. Months may also be given as
+ * {@code JAN}-{@code DEC}, and days of the week as {@code SUN}-{@code SAT}, where both 0 and 7
+ * are Sunday. As with cron, if both the day of the month and the day of the week are
+ * restricted, a day matching either one matches. The shorthands {@code @hourly},
+ * {@code @daily}, {@code @weekly}, {@code @monthly} and {@code @yearly} are also accepted.
+ *
+ * <p>Some examples:
+ *
+ * <ul>
+ *   <li>{@code 0 7 * * MON-FRI}: Every weekday at 7:00.
+ *   <li>{@code 30 13 * * *}: Every day at 1:30 PM.
+ *   <li>{@code TZ=Europe/Paris 0 12 * * TUE}: Every Tuesday at noon, Paris time.
+ *   <li>{@code *}{@code /15 * * * *}: Every fifteen minutes.
+ * </ul>
+ *
+ * <p>Each field is kept as a bit mask, so finding the next matching time takes a handful of
+ * bit operations per month, rather than stepping through days and minutes or running a
+ * program. Daylight saving time changes are handled like cron does: a time skipped by the
+ * clocks going forward fires once the clocks have changed, and a time repeated by the clocks
+ * going back only fires once, unless the schedule fires every hour.
+ */
+public final class CalendarSchedule {
+    private static final String[] MONTH_NAMES = {
+        "JAN", "FEB", "MAR", "APR", "MAY", "JUN", "JUL", "AUG", "SEP", "OCT", "NOV", "DEC"
+    };
+
+    private static final String[] DAY_NAMES = {"SUN", "MON", "TUE", "WED", "THU", "FRI", "SAT"};
+
+    /** Schedules that don't match within this many years never match. */
+    private static final int MAX_SEARCH_YEARS = 400;
+
+    private static final long EVERY_HOUR = (1L << 24) - 1;
+    private static final long EVERY_DAY_OF_WEEK = (1L << 7) - 1;
+
+    private final String mRecipe;
+    private final @Nullable ZoneId mZone;
+    private final long mMinutes;
+    private final long mHours;
+    private final long mDaysOfMonth;
+    private final long mMonths;
+    private final long mDaysOfWeek;
+    private final boolean mDayOfMonthRestricted;
+    private final boolean mDayOfWeekRestricted;
+
+    private CalendarSchedule(String recipe, @Nullable ZoneId zone, long minutes, long hours,
+                             long daysOfMonth, long months, long daysOfWeek,
+                             boolean dayOfMonthRestricted, boolean dayOfWeekRestricted) {
+        mRecipe = recipe;
+        mZone = zone;
+        mMinutes = minutes;
+        mHours = hours;
+        mDaysOfMonth = daysOfMonth;
+        mMonths = months;
+        mDaysOfWeek = daysOfWeek;
+        mDayOfMonthRestricted = dayOfMonthRestricted;
+        mDayOfWeekRestricted = dayOfWeekRestricted;
+    }
+
+    /**
+     * Compiles {@code recipe} into a schedule.
+     *
+     * @throws IllegalArgumentException if {@code recipe} isn't a valid schedule
+     */
+    public static CalendarSchedule parse(String recipe) {
+        String spec = recipe.trim();
+        ZoneId zone = null;
+
+        if (spec.regionMatches(true, 0, "TZ=", 0, 3)) {
+            int end = spec.indexOf(' ');
+
+            if (end < 0) {
+                throw new IllegalArgumentException("Missing schedule after time zone: " + recipe);
+            }
+
+            try {
+                zone = ZoneId.of(spec.substring(3, end));
+            } catch (DateTimeException x) {
+                throw new IllegalArgumentException("Bad time zone in " + recipe, x);
+            }
+
+            spec = spec.substring(end + 1).trim();
+        }
+
+        switch (spec.toLowerCase(Locale.ROOT)) {
+            case "@hourly": spec = "0 * * * *"; break;
+            case "@daily": spec = "0 0 * * *"; break;
+            case "@weekly": spec = "0 0 * * 0"; break;
+            case "@monthly": spec = "0 0 1 * *"; break;
+            case "@yearly": spec = "0 0 1 1 *"; break;
+            default: break;
+        }
+
+        String[] fields = spec.split("\\s+");
+
+        if (fields.length != 5) {
+            throw new IllegalArgumentException("Expected five fields in " + recipe);
+        }
+
+        long daysOfWeek = parseField(fields[4], 0, 7, DAY_NAMES, 0, recipe);
+
+        // Both 0 and 7 are Sunday.
+        if ((daysOfWeek & (1L << 7)) != 0) {
+            daysOfWeek = (daysOfWeek & ~(1L << 7)) | 1L;
+        }
+
+        return new CalendarSchedule(recipe, zone,
+                parseField(fields[0], 0, 59, null, 0, recipe),
+                parseField(fields[1], 0, 23, null, 0, recipe),
+                parseField(fields[2], 1, 31, null, 0, recipe),
+                parseField(fields[3], 1, 12, MONTH_NAMES, 1, recipe),
+                daysOfWeek,
+                !fields[2].startsWith("*"),
+                !fields[4].startsWith("*"));
+    }
+
+    /** Parses a field into a bit mask with a bit set for each value in it. */
+    private static long parseField(String field, int min, int max, String @Nullable [] names,
+                                   int firstName, String recipe) {
+        long ret = 0;
+
+        for (String item : field.split(",")) {
+            int step = 1;
+            int slash = item.indexOf('/');
+
+            if (slash >= 0) {
+                step = parseValue(item.substring(slash + 1), 1, max, null, 0, recipe);
+                item = item.substring(0, slash);
+            }
+
+            int from;
+            int to;
+
+            if (item.equals("*")) {
+                from = min;
+                to = max;
+
+            } else {
+                int dash = item.indexOf('-');
+
+                if (dash >= 0) {
+                    from = parseValue(item.substring(0, dash), min, max, names, firstName, recipe);
+                    to = parseValue(item.substring(dash + 1), min, max, names, firstName, recipe);
+
+                    if (to < from) {
+                        throw new IllegalArgumentException("Bad range " + item + " in " + recipe);
+                    }
+
+                } else {
+                    from = parseValue(item, min, max, names, firstName, recipe);
+                    to = slash >= 0 ? max : from;
+                }
+            }
+
+            for (int i = from; i <= to; i += step) {
+                ret |= 1L << i;
+            }
+        }
+
+        return ret;
+    }
+
+    private static int parseValue(String value, int min, int max, String @Nullable [] names,
+                                  int firstName, String recipe) {
+        if (names != null) {
+            for (int i = 0; i < names.length; i++) {
+                if (names[i].equalsIgnoreCase(value)) {
+                    return i + firstName;
+                }
+            }
+        }
+
+        final int ret;
+
+        try {
+            ret = Integer.parseInt(value);
+        } catch (NumberFormatException x) {
+            throw new IllegalArgumentException("Bad value " + value + " in " + recipe, x);
+        }
+
+        if (ret < min || ret > max) {
+            throw new IllegalArgumentException("Value " + value + " out of range in " + recipe);
+        }
+
+        return ret;
+    }
+
+    /** Returns the recipe this schedule was compiled from. */
+    public String getRecipe() {
+        return mRecipe;
+    }
+
+    /** Returns the time zone given in the recipe, if any. */
+    public @Nullable ZoneId getZone() {
+        return mZone;
+    }
+
+    /**
+     * Returns the first time after {@code after} that this schedule fires, or null if it never
+     * does, like on February 30th. Unless the recipe specifies a time zone, the zone of
+     * {@code after} is used.
+     */
+    public @Nullable ZonedDateTime next(ZonedDateTime after) {
+        final ZoneId zone = mZone != null ? mZone : after.getZone();
+        final Instant afterInstant = after.toInstant();
+        final LocalDateTime afterLocal = LocalDateTime.ofInstant(afterInstant, zone);
+
+        ZonedDateTime ret = next(afterInstant, afterLocal, zone);
+
+        if (mHours == EVERY_HOUR) {
+            // During the first pass through a repeated hour, the second pass is also ahead.
+            ZoneOffsetTransition transition = zone.getRules().getTransition(afterLocal);
+
+            if (transition != null && transition.isOverlap()) {
+                LocalDateTime local = nextLocal(
+                        LocalDateTime.ofInstant(afterInstant, transition.getOffsetAfter())
+                                .truncatedTo(ChronoUnit.MINUTES)
+                                .plusMinutes(1));
+
+                if (local != null) {
+                    ZonedDateTime repeat =
+                            ZonedDateTime.ofLocal(local, zone, transition.getOffsetAfter());
+
+                    if (repeat.toInstant().isAfter(afterInstant)
+                            && (ret == null || repeat.isBefore(ret))) {
+                        ret = repeat;
+                    }
+                }
+            }
+        }
+
+        return ret;
+    }
+
+    private @Nullable ZonedDateTime next(Instant afterInstant, LocalDateTime afterLocal,
+                                         ZoneId zone) {
+        LocalDateTime start = afterLocal.truncatedTo(ChronoUnit.MINUTES).plusMinutes(1);
+
+        // Only loops more than once around daylight saving time changes.
+        while (true) {
+            LocalDateTime local = nextLocal(start);
+
+            if (local == null) {
+                return null;
+            }
+
+            // In a gap, this is moved later by the length of the gap. In an overlap, this is
+            // the first of the two times.
+            ZonedDateTime ret = ZonedDateTime.ofLocal(local, zone, null);
+
+            if (ret.toInstant().isAfter(afterInstant)) {
+                return ret;
+            }
+
+            if (mHours == EVERY_HOUR) {
+                ret = ret.withLaterOffsetAtOverlap();
+
+                if (ret.toInstant().isAfter(afterInstant)) {
+                    return ret;
+                }
+            }
+
+            start = local.plusMinutes(1);
+        }
+    }
+
+    /** Returns the first local time at or after {@code start} that matches all of the fields. */
+    private @Nullable LocalDateTime nextLocal(LocalDateTime start) {
+        LocalDate date = start.toLocalDate();
+        int hour = start.getHour();
+        int minute = start.getMinute();
+        final int lastYear = date.getYear() + MAX_SEARCH_YEARS;
+
+        while (date.getYear() <= lastYear) {
+            int month = date.getMonthValue();
+
+            if ((mMonths & (1L << month)) == 0) {
+                int nextMonth = nextSetBit(mMonths, month + 1);
+
+                date = nextMonth < 0
+                        ? LocalDate.of(date.getYear() + 1, Long.numberOfTrailingZeros(mMonths), 1)
+                        : LocalDate.of(date.getYear(), nextMonth, 1);
+                hour = 0;
+                minute = 0;
+                continue;
+            }
+
+            int day = nextSetBit(getDayMask(date), date.getDayOfMonth());
+
+            if (day < 0) {
+                date = date.withDayOfMonth(1).plusMonths(1);
+                hour = 0;
+                minute = 0;
+                continue;
+            }
+
+            if (day != date.getDayOfMonth()) {
+                date = date.withDayOfMonth(day);
+                hour = 0;
+                minute = 0;
+            }
+
+            int nextHour = nextSetBit(mHours, hour);
+
+            if (nextHour == hour) {
+                int nextMinute = nextSetBit(mMinutes, minute);
+
+                if (nextMinute >= 0) {
+                    return LocalDateTime.of(date, LocalTime.of(hour, nextMinute));
+                }
+
+                nextHour = nextSetBit(mHours, hour + 1);
+            }
+
+            if (nextHour >= 0) {
+                return LocalDateTime.of(date,
+                        LocalTime.of(nextHour, Long.numberOfTrailingZeros(mMinutes)));
+            }
+
+            date = date.plusDays(1);
+            hour = 0;
+            minute = 0;
+        }
+
+        return null;
+    }
+
+    /** Returns a mask with a bit set for each day of the month of {@code date} that matches. */
+    private long getDayMask(LocalDate date) {
+        final long lengthMask = (1L << (date.lengthOfMonth() + 1)) - 2;
+
+        // Rotate the days of the week so bit 0 is the weekday of the first of the month, then
+        // repeat that for every week.
+        final int first = date.withDayOfMonth(1).getDayOfWeek().getValue() % 7;
+        long week = ((mDaysOfWeek >>> first) | (mDaysOfWeek << (7 - first))) & EVERY_DAY_OF_WEEK;
+        long weekdays = week | (week << 7) | (week << 14) | (week << 21) | (week << 28);
+
+        weekdays = (weekdays << 1) & lengthMask;
+
+        final long days = mDaysOfMonth & lengthMask;
+
+        if (mDayOfMonthRestricted && mDayOfWeekRestricted) {
+            return days | weekdays;
+        } else if (mDayOfWeekRestricted) {
+            return weekdays;
+        } else {
+            return days;
+        }
+    }
+
+    /** Returns the lowest set bit in {@code mask} at or above {@code from}, or -1. */
+    private static int nextSetBit(long mask, int from) {
+        if (from >= Long.SIZE) {
+            return -1;
+        }
+
+        long remaining = mask & (-1L << from);
+        return remaining == 0 ? -1 : Long.numberOfTrailingZeros(remaining);
+    }
+
+    @Override
+    public String toString() {
+        return "CalendarSchedule{" + mRecipe + "}";
+    }
+}
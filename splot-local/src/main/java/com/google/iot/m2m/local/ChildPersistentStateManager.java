@@ -0,0 +1,253 @@
+/*
+ * Copyright (C) 2019 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.iot.m2m.local;
+
+import com.google.iot.m2m.base.PersistentStateInterface;
+import com.google.iot.m2m.base.PersistentStateListener;
+import com.google.iot.m2m.base.PersistentStateManager;
+import com.google.iot.m2m.util.NestedPersistentStateManager;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.logging.Logger;
+
+/**
+ * Keeps track of the persistent state of the children of one of the automation manager traits.
+ *
+ * <p>By default, the state of every child is nested within the state of the trait, using a
+ * {@link NestedPersistentStateManager}. Once {@link #setExternalManager} has been called, each
+ * child is instead managed directly by the given {@link PersistentStateManager} under its own
+ * name, and the state of the trait only lists the IDs of its children. A change to one child
+ * then only refreshes the state of that child, and the trait only needs to be saved when
+ * children are added or removed.
+ *
+ * <p>State saved in the nested format is still restored after switching to an external
+ * manager, and is then saved in the new format.
+ *
+ * <p>Between {@link #beginBatch()} and {@link #endBatch()}, requests to save the state of the
+ * trait are held back, and made only once at the end. Without an external manager, that
+ * includes the saves requested by children, since their state is nested in the trait's. With
+ * one, children are saved by the external manager as usual: a batch only saves the list of
+ * children once, which is what changes when many children are added or removed.
+ */
+final class ChildPersistentStateManager implements PersistentStateInterface {
+    private static final boolean DEBUG = false;
+    private static final Logger LOGGER =
+            Logger.getLogger(ChildPersistentStateManager.class.getCanonicalName());
+
+    private final NestedPersistentStateManager mNestedPersistentStateManager =
+            new NestedPersistentStateManager();
+
+    private @Nullable PersistentStateManager mExternalManager = null;
+    private String mPrefix = "";
+
+    // IDs of the children managed by the external manager.
+    private final Set<String> mChildIds = new HashSet<>();
+
+    // State of children saved in the nested format, to hand over to the external manager.
+    private final Map<String, Map<String, Object>> mLegacyState = new HashMap<>();
+
+    private volatile @Nullable PersistentStateListener mListener = null;
+
+    private int mBatchDepth = 0;
+    private boolean mBatchChanged = false;
+
+    ChildPersistentStateManager() {
+        mNestedPersistentStateManager.setPersistentStateListener(new PersistentStateListener() {
+            @Override
+            public void onSavePersistentState(PersistentStateInterface ignored) {
+                changedPersistentState();
+            }
+
+            @Override
+            public void onSavePersistentStateBlocking(PersistentStateInterface ignored)
+                    throws IOException {
+                final PersistentStateListener listener = mListener;
+                if (listener != null) {
+                    listener.onSavePersistentStateBlocking(ChildPersistentStateManager.this);
+                }
+            }
+        });
+    }
+
+    /**
+     * Manages the state of each child with {@code manager}, under the name of the child
+     * prefixed with {@code prefix}. Must be called before any children have been added.
+     */
+    synchronized void setExternalManager(PersistentStateManager manager, String prefix) {
+        if (!mChildIds.isEmpty() || !mNestedPersistentStateManager.copyPersistentState().isEmpty()) {
+            throw new IllegalStateException(
+                    "setExternalManager() must be called before children are added");
+        }
+        mExternalManager = manager;
+        mPrefix = prefix;
+    }
+
+    /** Returns the name {@code childId} is managed under by the external manager. */
+    String getExternalName(String childId) {
+        return mPrefix + childId;
+    }
+
+    /** Starts managing the persistent state of a child, restoring it if there is any. */
+    void startManaging(String childId, PersistentStateInterface child) {
+        final PersistentStateManager manager;
+        final Map<String, Object> legacyState;
+        final boolean added;
+
+        synchronized (this) {
+            manager = mExternalManager;
+
+            if (manager == null) {
+                legacyState = null;
+                added = false;
+            } else {
+                legacyState = mLegacyState.remove(childId);
+                added = mChildIds.add(childId) || legacyState != null;
+            }
+        }
+
+        if (manager == null) {
+            mNestedPersistentStateManager.startManaging(childId, child);
+            return;
+        }
+
+        if (legacyState != null) {
+            if (DEBUG) LOGGER.info("Migrating state of " + childId);
+            child.initWithPersistentState(legacyState);
+        }
+
+        manager.startManaging(getExternalName(childId), child);
+
+        if (added) {
+            changedPersistentState();
+        }
+    }
+
+    /** Stops managing the persistent state of a child, and erases it. */
+    void stopManaging(String childId) {
+        final PersistentStateManager manager;
+
+        synchronized (this) {
+            manager = mExternalManager;
+
+            if (manager != null && !mChildIds.remove(childId)) {
+                return;
+            }
+        }
+
+        if (manager == null) {
+            mNestedPersistentStateManager.stopManaging(childId);
+            mNestedPersistentStateManager.reset(childId);
+            return;
+        }
+
+        manager.stopManaging(getExternalName(childId));
+        manager.reset(getExternalName(childId));
+        changedPersistentState();
+    }
+
+    /**
+     * Holds back requests to save the state of the trait until the matching call to
+     * {@link #endBatch()}. Calls may be nested.
+     */
+    synchronized void beginBatch() {
+        mBatchDepth++;
+    }
+
+    /** Ends a batch started by {@link #beginBatch()}, saving the state if it changed. */
+    void endBatch() {
+        synchronized (this) {
+            if (mBatchDepth == 0) {
+                throw new IllegalStateException("endBatch() without beginBatch()");
+            }
+
+            if (--mBatchDepth > 0 || !mBatchChanged) {
+                return;
+            }
+
+            mBatchChanged = false;
+        }
+
+        changedPersistentState();
+    }
+
+    private void changedPersistentState() {
+        synchronized (this) {
+            if (mBatchDepth > 0) {
+                mBatchChanged = true;
+                return;
+            }
+        }
+
+        final PersistentStateListener listener = mListener;
+        if (listener != null) {
+            listener.onSavePersistentState(this);
+        }
+    }
+
+    @Override
+    public Map<String, Object> copyPersistentState() {
+        synchronized (this) {
+            if (mExternalManager != null) {
+                Map<String, Object> ret = new HashMap<>();
+
+                // Children are restored from the keys, their state lives elsewhere.
+                for (String childId : mChildIds) {
+                    ret.put(childId, new HashMap<String, Object>());
+                }
+
+                return ret;
+            }
+        }
+
+        return mNestedPersistentStateManager.copyPersistentState();
+    }
+
+    @Override
+    public void initWithPersistentState(@Nullable Map<String, Object> persistentState) {
+        if (persistentState == null) {
+            return;
+        }
+
+        synchronized (this) {
+            if (mExternalManager != null) {
+                for (Map.Entry<String, Object> entry : persistentState.entrySet()) {
+                    if (!(entry.getValue() instanceof Map)) {
+                        continue;
+                    }
+
+                    @SuppressWarnings("unchecked")
+                    Map<String, Object> state = (Map<String, Object>) entry.getValue();
+
+                    if (!state.isEmpty()) {
+                        mLegacyState.put(entry.getKey(), state);
+                    } else {
+                        mChildIds.add(entry.getKey());
+                    }
+                }
+                return;
+            }
+        }
+
+        mNestedPersistentStateManager.initWithPersistentState(persistentState);
+    }
+
+    @Override
+    public void setPersistentStateListener(@Nullable PersistentStateListener listener) {
+        mListener = listener;
+    }
+}
@@ -0,0 +1,161 @@
+/*
+ * Copyright (C) 2019 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.iot.m2m.local;
+
+import com.google.common.base.Ticker;
+import com.google.errorprone.annotations.CanIgnoreReturnValue;
+import com.google.iot.m2m.base.InvalidPropertyValueException;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Coalesces bursts of changes into a single run of a task, used by {@link LocalRule} and
+ * {@link LocalPairing} to implement their hold-off window and maximum rate.
+ *
+ * <p>When a change is {@link #trigger() triggered}, the task is scheduled to run after the
+ * hold-off window, or later if running it then would exceed the maximum rate. Further
+ * changes before the task runs are absorbed by that same run, so the task should always work
+ * with the latest values rather than anything captured when it was triggered.
+ *
+ * <p>If neither a hold-off window nor a maximum rate is set, the throttle is
+ * {@link #isEnabled() disabled} and callers are expected to handle changes immediately, as
+ * they would without it.
+ */
+final class EvaluationThrottle {
+    private final Runnable mTask;
+    private final LocalTimerService mTimerService;
+    private final Ticker mTicker;
+
+    private long mHoldOffNanos = 0;
+    private long mMinIntervalNanos = 0;
+
+    private @Nullable LocalTimerService.Timeout mPending = null;
+    private boolean mHasRun = false;
+    private long mLastRun = 0;
+
+    private long mTriggerCount = 0;
+    private long mRunCount = 0;
+
+    EvaluationThrottle(Runnable task) {
+        this(task, LocalTimerService.getDefault(), Ticker.systemTicker());
+    }
+
+    EvaluationThrottle(Runnable task, LocalTimerService timerService, Ticker ticker) {
+        mTask = task;
+        mTimerService = timerService;
+        mTicker = ticker;
+    }
+
+    /** Converts a number of seconds from a trait property into nanoseconds. */
+    static long secondsToNanos(@Nullable Float seconds) throws InvalidPropertyValueException {
+        if (seconds == null) {
+            return 0;
+        }
+
+        if (!(seconds >= 0) || seconds.isInfinite()) {
+            throw new InvalidPropertyValueException("Invalid duration " + seconds);
+        }
+
+        return (long) (seconds * 1e9);
+    }
+
+    /** Converts a rate in changes per second from a trait property into an interval. */
+    static long rateToIntervalNanos(@Nullable Float rate) throws InvalidPropertyValueException {
+        if (rate == null || rate == 0) {
+            return 0;
+        }
+
+        if (!(rate > 0) || rate.isInfinite()) {
+            throw new InvalidPropertyValueException("Invalid rate " + rate);
+        }
+
+        return (long) (1e9 / rate);
+    }
+
+    synchronized boolean isEnabled() {
+        return mHoldOffNanos > 0 || mMinIntervalNanos > 0;
+    }
+
+    synchronized void setHoldOff(long nanos) {
+        mHoldOffNanos = nanos;
+    }
+
+    synchronized float getHoldOffSeconds() {
+        return mHoldOffNanos / 1e9f;
+    }
+
+    synchronized void setMinInterval(long nanos) {
+        mMinIntervalNanos = nanos;
+    }
+
+    synchronized float getMaxRate() {
+        return mMinIntervalNanos == 0 ? 0.0f : (float) (1e9 / mMinIntervalNanos);
+    }
+
+    /**
+     * Arranges for the task to run, unless a run is already pending.
+     *
+     * @return false if the change was merged into a pending run
+     */
+    @CanIgnoreReturnValue
+    synchronized boolean trigger() {
+        mTriggerCount++;
+
+        if (mPending != null) {
+            // The pending run will see this change.
+            return false;
+        }
+
+        long delay = mHoldOffNanos;
+
+        if (mHasRun && mMinIntervalNanos > 0) {
+            delay = Math.max(delay, mLastRun + mMinIntervalNanos - mTicker.read());
+        }
+
+        mPending = mTimerService.schedule(this::run, Math.max(0, delay), TimeUnit.NANOSECONDS);
+        return true;
+    }
+
+    /** Cancels any pending run of the task. */
+    synchronized void cancel() {
+        if (mPending != null) {
+            mPending.cancel();
+            mPending = null;
+        }
+    }
+
+    private void run() {
+        synchronized (this) {
+            mPending = null;
+            mHasRun = true;
+            mLastRun = mTicker.read();
+            mRunCount++;
+        }
+
+        mTask.run();
+    }
+
+    /** Returns the number of times {@link #trigger()} has been called. */
+    synchronized long getTriggerCount() {
+        return mTriggerCount;
+    }
+
+    /** Returns the number of times the task has been run by this throttle. */
+    synchronized long getRunCount() {
+        return mRunCount;
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright (C) 2019 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.iot.m2m.local;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free histogram of durations in nanoseconds, used by {@link AutomationStatistics}.
+ *
+ * <p>Durations below {@value #LINEAR_LIMIT} nanoseconds have a bucket each. Above that, every
+ * power of two is split into {@value #SUB_BUCKETS} buckets, so percentiles are accurate to
+ * within 12.5% no matter how large the durations are. Recording a duration is a couple of
+ * atomic increments.
+ */
+final class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int LINEAR_LIMIT = 2 * SUB_BUCKETS;
+    private static final int LINEAR_BITS = SUB_BUCKET_BITS + 1;
+    static final int BUCKET_COUNT = LINEAR_LIMIT + (63 - LINEAR_BITS) * SUB_BUCKETS;
+
+    private final AtomicLongArray mBuckets = new AtomicLongArray(BUCKET_COUNT);
+    private final LongAdder mCount = new LongAdder();
+    private final LongAdder mTotalNanos = new LongAdder();
+
+    static int bucketFor(long nanos) {
+        if (nanos < LINEAR_LIMIT) {
+            return nanos < 0 ? 0 : (int) nanos;
+        }
+
+        final int exponent = 63 - Long.numberOfLeadingZeros(nanos);
+        final int subBucket = (int) (nanos >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+
+        return LINEAR_LIMIT + (exponent - LINEAR_BITS) * SUB_BUCKETS + subBucket;
+    }
+
+    /** Returns the largest duration that falls into {@code bucket}. */
+    static long upperBoundOf(int bucket) {
+        if (bucket < LINEAR_LIMIT) {
+            return bucket;
+        }
+
+        final int exponent = (bucket - LINEAR_LIMIT) / SUB_BUCKETS + LINEAR_BITS;
+        final long subBucket = (bucket - LINEAR_LIMIT) % SUB_BUCKETS;
+        final long width = 1L << (exponent - SUB_BUCKET_BITS);
+
+        return (1L << exponent) + (subBucket + 1) * width - 1;
+    }
+
+    void record(long nanos) {
+        mBuckets.incrementAndGet(bucketFor(nanos));
+        mCount.increment();
+        mTotalNanos.add(Math.max(nanos, 0));
+    }
+
+    /** Adds the durations recorded by {@code other} to this histogram. */
+    void add(LatencyHistogram other) {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            final long count = other.mBuckets.get(i);
+
+            if (count != 0) {
+                mBuckets.addAndGet(i, count);
+            }
+        }
+
+        mCount.add(other.mCount.sum());
+        mTotalNanos.add(other.mTotalNanos.sum());
+    }
+
+    long getCount() {
+        return mCount.sum();
+    }
+
+    double getMeanNanos() {
+        final long count = mCount.sum();
+        return count == 0 ? 0 : (double) mTotalNanos.sum() / count;
+    }
+
+    /**
+     * Returns a duration that {@code fraction} of the recorded durations are less than or
+     * equal to, or zero if nothing has been recorded.
+     */
+    long getNanosAtFraction(double fraction) {
+        long total = 0;
+
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            total += mBuckets.get(i);
+        }
+
+        if (total == 0) {
+            return 0;
+        }
+
+        final long rank = Math.max(1, (long) Math.ceil(fraction * total));
+        long seen = 0;
+
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += mBuckets.get(i);
+
+            if (seen >= rank) {
+                return upperBoundOf(i);
+            }
+        }
+
+        return upperBoundOf(BUCKET_COUNT - 1);
+    }
+}
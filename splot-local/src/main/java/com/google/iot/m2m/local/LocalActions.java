@@ -15,6 +15,7 @@
  */
 package com.google.iot.m2m.local;
 
+import com.google.common.base.Ticker;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.errorprone.annotations.CanIgnoreReturnValue;
 import com.google.iot.m2m.base.*;
@@ -37,6 +38,11 @@ public abstract class LocalActions extends LocalThing {
     private static final boolean DEBUG = false;
     private static final Logger LOGGER = Logger.getLogger(LocalActions.class.getCanonicalName());
 
+    /**
+     * Default maximum number of actions that may be outstanding at once.
+     */
+    public static final int DEFAULT_MAX_CONCURRENT_ACTIONS = 16;
+
     private long mLastFiredTime = 0;
 
     @SuppressWarnings("unchecked")
@@ -53,12 +59,6 @@ public abstract class LocalActions extends LocalThing {
             mResourceLink = resourceLink;
             mBody = body;
         }
-
-        @CanIgnoreReturnValue
-        ListenableFuture<?> invoke() {
-            if (DEBUG) LOGGER.info("Invoking " + mResourceLink + " with " + mBody);
-            return mResourceLink.invoke(mBody);
-        }
     }
 
     private List<Action> mActions = new ArrayList<>();
@@ -69,9 +69,17 @@ public abstract class LocalActions extends LocalThing {
     // Number of times this automation pairing has fired.
     private int mCount = 0;
 
+    // Maximum number of actions outstanding at once.
+    private int mMaxConcurrentActions = DEFAULT_MAX_CONCURRENT_ACTIONS;
+
+    // Runtime statistics, reported through AutomationStatisticsTrait.
+    private final AutomationStatistics mStatistics =
+            new AutomationStatistics(this::getInstructionCount);
+
     public LocalActions(ResourceLinkManager technology) {
         mResourceLinkManager = technology;
         registerTrait(mActionsTrait);
+        registerTrait(mStatistics.createTrait());
     }
 
     abstract protected Executor getExecutor();
@@ -83,6 +91,32 @@ public abstract class LocalActions extends LocalThing {
         return mResourceLinkManager;
     }
 
+    /**
+     * Returns the runtime statistics of this automation.
+     */
+    public AutomationStatistics getStatistics() {
+        return mStatistics;
+    }
+
+    /**
+     * Returns the number of RPN instructions this automation evaluates,
+     * reported by {@link #getStatistics()}.
+     */
+    protected int getInstructionCount() {
+        return 0;
+    }
+
+    /** Returns the URIs of the resources the configured actions are invoked on. */
+    List<URI> copyActionUris() {
+        List<URI> ret = new ArrayList<>();
+
+        for (Action action : mActions) {
+            ret.add(action.mResourceLink.getUri());
+        }
+
+        return ret;
+    }
+
     /**
      * Gets the current invocation count.
      */
@@ -99,31 +133,34 @@ public abstract class LocalActions extends LocalThing {
     }
 
     /**
-     * Invokes the configured actions once.
+     * Changes the maximum number of actions that may be outstanding at once
+     * when this automation fires. Defaults to {@link #DEFAULT_MAX_CONCURRENT_ACTIONS}.
      */
-    protected void invoke() {
-        List<Action> actions = new ArrayList<>(mActions);
-        int i = 0;
+    public void setMaxConcurrentActions(int maxConcurrentActions) {
+        if (maxConcurrentActions < 1) {
+            throw new IllegalArgumentException(
+                    "Invalid concurrency " + maxConcurrentActions);
+        }
+        mMaxConcurrentActions = maxConcurrentActions;
+    }
 
-        for (Action action : actions) {
-            final int index = i++;
-            ListenableFuture<?> future = action.invoke();
+    /**
+     * Gets the maximum number of actions that may be outstanding at once.
+     */
+    public int getMaxConcurrentActions() {
+        return mMaxConcurrentActions;
+    }
 
-            future.addListener(()->{
-                try {
-                    future.get();
-                } catch (InterruptedException e) {
-                    Thread.currentThread().interrupt();
-                } catch (CancellationException ignored) {
-                } catch (ExecutionException e) {
-                    if (DEBUG) {
-                        LOGGER.warning("Caught exception on action invoke: " + e);
-                        e.printStackTrace();
-                    }
-                    onInvokeError(index, e.getCause().getClass().getCanonicalName());
-                }
-            }, getExecutor());
-        }
+    /**
+     * Invokes the configured actions once. Actions that are invoked right away
+     * and write to properties in the same section of the same thing may be
+     * coalesced into a single write. Actions that have to wait for earlier
+     * ones to complete are invoked on their own.
+     *
+     * @see #dispatchActions()
+     */
+    protected void invoke() {
+        dispatchActions();
 
         mCount++;
         mLastFiredTime = System.nanoTime();
@@ -131,6 +168,60 @@ public abstract class LocalActions extends LocalThing {
         mActionsTrait.didChangeLast(0);
     }
 
+    /**
+     * Invokes the configured actions without updating the invocation count.
+     * A property write that repeats the previous action on the same property
+     * is only invoked once, and up to {@link #getMaxConcurrentActions()}
+     * actions are invoked without waiting for earlier ones to complete, except
+     * that actions on the same resource are always invoked one at a time, in
+     * order. {@link #onInvokeError} is called for every action that fails, as
+     * soon as it fails.
+     *
+     * @return a future for the outcome of each action, in the same order as
+     *     the actions. It completes once every action has completed and never
+     *     fails.
+     */
+    @CanIgnoreReturnValue
+    protected ListenableFuture<List<ActionOutcome>> dispatchActions() {
+        List<Action> actions = new ArrayList<>(mActions);
+        List<ResourceLink<Object>> resourceLinks = new ArrayList<>(actions.size());
+        List<@Nullable Object> bodies = new ArrayList<>(actions.size());
+
+        for (Action action : actions) {
+            if (DEBUG) LOGGER.info("Invoking " + action.mResourceLink + " with " + action.mBody);
+            resourceLinks.add(action.mResourceLink);
+            bodies.add(action.mBody);
+        }
+
+        ActionDispatch dispatch = new ActionDispatch(resourceLinks, bodies,
+                mMaxConcurrentActions, getExecutor(), Ticker.systemTicker());
+
+        dispatch.setListener(outcome -> {
+            Throwable error = outcome.getError();
+
+            if (!outcome.isDuplicate()) {
+                mStatistics.recordInvoke(outcome.getLatency(TimeUnit.NANOSECONDS));
+            }
+
+            if (error == null || error instanceof CancellationException) {
+                return;
+            }
+
+            if (DEBUG) {
+                LOGGER.warning("Caught exception on action invoke: " + error);
+                error.printStackTrace();
+            }
+
+            onInvokeError(outcome.getIndex(), error.getClass().getCanonicalName());
+        });
+
+        // Actions that don't fit within the concurrency limit are invoked
+        // once earlier ones complete, which may be after the batch is closed.
+        try (ResourceLinkBatch ignored = ResourceLinkBatch.begin()) {
+            return dispatch.start();
+        }
+    }
+
     /**
      * Called whenever there was an error during invocation.
      * @param actionIndex the index of the action that caused the error.
@@ -19,6 +19,9 @@ import com.google.iot.m2m.base.*;
 import com.google.iot.m2m.trait.BaseTrait;
 import org.checkerframework.checker.nullness.qual.Nullable;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 
 /**
@@ -60,6 +63,138 @@ public class LocalAutomationManager extends LocalThing {
         registerTrait(mPairingManagerTrait);
         registerTrait(mTimerManagerTrait);
         registerTrait(mRuleManagerTrait);
+        registerTrait(AutomationStatistics.createTrait(this::getStatistics));
+
+        // The state of the traits is part of ours, so they save it through us. That way the
+        // saves they request during a bulk create or delete join our batch, and the whole
+        // call is saved once.
+        PersistentStateListener traitListener = new PersistentStateListener() {
+            @Override
+            public void onSavePersistentState(PersistentStateInterface ignored) {
+                changedPersistentState();
+            }
+
+            @Override
+            public void onSavePersistentStateBlocking(PersistentStateInterface ignored)
+                    throws IOException {
+                try {
+                    changedPersistentStateBlocking();
+                } catch (TechnologyException x) {
+                    throw new IOException(x);
+                }
+            }
+        };
+
+        mPairingManagerTrait.setPersistentStateListener(traitListener);
+        mTimerManagerTrait.setPersistentStateListener(traitListener);
+        mRuleManagerTrait.setPersistentStateListener(traitListener);
+    }
+
+    /**
+     * Returns the total runtime statistics of all of the pairings, timers and rules managed
+     * by this object. These are also reported through
+     * {@link com.google.iot.m2m.trait.AutomationStatisticsTrait}.
+     */
+    public AutomationStatistics getStatistics() {
+        List<AutomationStatistics> statistics = new ArrayList<>();
+
+        for (Thing child : mPairingManagerTrait.onCopyChildrenSet()) {
+            if (child instanceof LocalPairing) {
+                statistics.add(((LocalPairing) child).getStatistics());
+            }
+        }
+
+        for (Thing child : mTimerManagerTrait.onCopyChildrenSet()) {
+            if (child instanceof LocalActions) {
+                statistics.add(((LocalActions) child).getStatistics());
+            }
+        }
+
+        for (Thing child : mRuleManagerTrait.onCopyChildrenSet()) {
+            if (child instanceof LocalActions) {
+                statistics.add(((LocalActions) child).getStatistics());
+            }
+        }
+
+        return AutomationStatistics.sum(statistics);
+    }
+
+    /**
+     * Analyzes how changes would flow between resources through the pairings, timers and
+     * rules managed by this object, whether or not they are enabled. This can be used to find
+     * configurations that would overload the system before enabling them.
+     *
+     * <p>Automations are identified in the report by {@code "pairings/"}, {@code "timers/"} or
+     * {@code "rules/"} followed by their ID. Changes are followed through as many automations
+     * as the {@link #getPairingGraph() pairing graph} allows.
+     *
+     * @param evaluationLimit resources whose change would cause more evaluations than this are
+     *     reported as hot spots
+     * @see AutomationGraphAnalyzer
+     */
+    public AutomationGraphAnalyzer.Report analyzeAutomation(int evaluationLimit) {
+        AutomationGraphAnalyzer analyzer = new AutomationGraphAnalyzer();
+
+        analyzer.setDepthLimit(getPairingGraph().getHopLimit());
+
+        for (Thing child : mPairingManagerTrait.onCopyChildrenSet()) {
+            String id = mPairingManagerTrait.onGetIdForChild(child);
+
+            if (id != null && child instanceof LocalPairing) {
+                ((LocalPairing) child).addToAnalyzer(analyzer, "pairings/" + id);
+            }
+        }
+
+        for (Thing child : mTimerManagerTrait.onCopyChildrenSet()) {
+            String id = mTimerManagerTrait.onGetIdForChild(child);
+
+            if (id != null && child instanceof LocalTimer) {
+                ((LocalTimer) child).addToAnalyzer(analyzer, "timers/" + id);
+            }
+        }
+
+        for (Thing child : mRuleManagerTrait.onCopyChildrenSet()) {
+            String id = mRuleManagerTrait.onGetIdForChild(child);
+
+            if (id != null && child instanceof LocalRule) {
+                ((LocalRule) child).addToAnalyzer(analyzer, "rules/" + id);
+            }
+        }
+
+        return analyzer.analyze(evaluationLimit);
+    }
+
+    /** Returns the graph tracking how changes propagate between the managed pairings. */
+    public LocalPairingGraph getPairingGraph() {
+        return mPairingManagerTrait.getPairingGraph();
+    }
+
+    /** Returns the network evaluating the conditions of the rules managed by this object. */
+    public LocalRuleNetwork getRuleNetwork() {
+        return mRuleManagerTrait.getRuleNetwork();
+    }
+
+    /**
+     * Has {@code manager} save the state of each pairing, timer and rule as an object of its
+     * own, rather than nesting all of them in the state of this automation manager. Their
+     * names start with {@code prefix}, followed by {@code "pairings/"}, {@code "timers/"} or
+     * {@code "rules/"} and the ID of the child. Saves then only need to serialize the
+     * automations that changed.
+     *
+     * <p>Must be called before this object's persistent state is initialized, which is
+     * usually done by passing this object to {@link PersistentStateManager#startManaging}:
+     *
+     * <pre>{@code
+     * automationManager.setChildPersistentStateManager(psm, "automation/");
+     * psm.startManaging("automation", automationManager);
+     * }</pre>
+     *
+     * <p>State that was saved while nested is restored and converted.
+     */
+    public void setChildPersistentStateManager(PersistentStateManager manager, String prefix) {
+        mPairingManagerTrait.setChildPersistentStateManager(manager, prefix + "pairings/");
+        mTimerManagerTrait.setChildPersistentStateManager(manager, prefix + "timers/");
+        mRuleManagerTrait.setChildPersistentStateManager(manager, prefix + "rules/");
     }
 
     @Override
@@ -108,11 +243,4 @@ public class LocalAutomationManager extends LocalThing {
         super.initWithPersistentState(persistentState);
     }
 
-    @Override
-    public void setPersistentStateListener(@Nullable PersistentStateListener listener) {
-        mPairingManagerTrait.setPersistentStateListener(listener);
-        mTimerManagerTrait.setPersistentStateListener(listener);
-        mRuleManagerTrait.setPersistentStateListener(listener);
-        super.setPersistentStateListener(listener);
-    }
 }
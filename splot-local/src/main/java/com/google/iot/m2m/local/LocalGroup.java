@@ -24,6 +24,7 @@ import com.google.iot.m2m.base.*;
 import com.google.iot.m2m.trait.BaseTrait;
 import com.google.iot.m2m.trait.GroupTrait;
 import java.util.*;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executor;
 import java.util.logging.Level;
@@ -37,7 +38,7 @@ import org.checkerframework.checker.nullness.qual.Nullable;
  * need group functionality with things native to technologies that don't support
  * groups.
  */
-final class LocalGroup extends LocalThing implements Group {
+final class LocalGroup extends LocalThing implements SceneRecallingGroup {
     private static final boolean DEBUG = false;
     private static final Logger LOGGER = Logger.getLogger(LocalGroup.class.getCanonicalName());
 
@@ -503,6 +504,73 @@ final class LocalGroup extends LocalThing implements Group {
         return Futures.successfulAsList(futures);
     }
 
+    @Override
+    public ListenableFuture<SceneRecallReport> recallScene(String sceneId,
+                                                           Modifier... modifiers) {
+        final Map<String, Object> properties;
+
+        try {
+            properties = SceneRecallingGroup.createRecallProperties(sceneId, modifiers);
+
+        } catch (InvalidModifierListException x) {
+            return Futures.immediateFailedFuture(x);
+        }
+
+        final List<Thing> members;
+
+        synchronized (mMembers) {
+            members = new ArrayList<>(mMembers);
+        }
+
+        // Resolve every member's scene before sending anything, so that
+        // members lacking the scene are skipped instead of being sent a
+        // request that can't do anything useful. Nothing is done while
+        // holding the lock on the members, since applying the scene may
+        // involve I/O.
+        final Set<Thing> missing = new HashSet<>();
+        final List<Thing> batch = new ArrayList<>(members.size());
+
+        for (Thing fe : members) {
+            if (fe instanceof LocalSceneThing
+                    && !((LocalSceneThing) fe).prepareToRecallSceneId(sceneId)) {
+                missing.add(fe);
+            } else {
+                batch.add(fe);
+            }
+        }
+
+        final Map<Thing, ListenableFuture<?>> futures = new LinkedHashMap<>();
+
+        for (Thing fe : batch) {
+            futures.put(fe, fe.applyProperties(properties));
+        }
+
+        if (DEBUG) {
+            LOGGER.info("recallScene: " + sceneId + " on " + futures.size()
+                    + " members, " + missing.size() + " lacking the scene");
+        }
+
+        return Futures.whenAllComplete(futures.values()).call(
+                () -> {
+                    final Set<Thing> recalled = new HashSet<>();
+                    final Set<Thing> failed = new HashSet<>();
+
+                    for (Map.Entry<Thing, ListenableFuture<?>> entry : futures.entrySet()) {
+                        try {
+                            Futures.getDone(entry.getValue());
+                            recalled.add(entry.getKey());
+
+                        } catch (ExecutionException | CancellationException x) {
+                            if (DEBUG) LOGGER.info("recallScene: " + entry.getKey() + ": " + x);
+                            failed.add(entry.getKey());
+                        }
+                    }
+
+                    return new SceneRecallReport(sceneId, recalled, missing, failed, false);
+                },
+                getExecutor());
+    }
+
     @Override
     @CanIgnoreReturnValue
     public ListenableFuture<Boolean> delete() {
@@ -19,6 +19,7 @@ import com.google.common.util.concurrent.ListenableFuture;
 import com.google.iot.m2m.base.*;
 import com.google.iot.m2m.local.rpn.RPNContext;
 import com.google.iot.m2m.local.rpn.RPNException;
+import com.google.iot.m2m.local.rpn.RPNFunction;
 import com.google.iot.m2m.trait.AutomationPairingTrait;
 import com.google.iot.m2m.trait.BaseTrait;
 import com.google.iot.m2m.trait.EnabledDisabledTrait;
@@ -43,6 +44,9 @@ public class LocalPairing extends LocalThing {
     private static final boolean DEBUG = false;
     private static final Logger LOGGER = Logger.getLogger(LocalPairing.class.getCanonicalName());
 
+    private static final int SLOT_V = RPNContext.getVariableSlot("v");
+    private static final int SLOT_V_L = RPNContext.getVariableSlot("v_l");
+
     private static final Object EMPTY = new Object();
 
     private RPNContext mSharedRPNContext = new RPNContext();
@@ -51,14 +55,21 @@ public class LocalPairing extends LocalThing {
 
     // Resource link for the source
     private ResourceLink<Object> mSource = null;
-    private final ResourceLink.Listener<Object> mSourceListener = (rl, value) -> handleSourceChange(value);
+    private final ResourceLink.Listener<Object> mSourceListener = (rl, value) -> onSourceChanged(value);
     private Object mSourceLastValue = EMPTY;
 
     // Resource link for the destination
     private ResourceLink<Object> mDestination = null;
-    private final ResourceLink.Listener<Object> mDestinationListener = (rl, value) -> handleDestinationChange(value);
+    private final ResourceLink.Listener<Object> mDestinationListener = (rl, value) -> onDestinationChanged(value);
     private Object mDestinationLastValue = EMPTY;
 
+    // Coalesce changes in each direction when a hold-off window or maximum rate is set.
+    // The latest value waiting to be propagated is kept in mPending*Value.
+    private final EvaluationThrottle mPushThrottle;
+    private final EvaluationThrottle mPullThrottle;
+    private @Nullable Object mPendingSourceValue = null;
+    private @Nullable Object mPendingDestinationValue = null;
+
     // Technology backing this pairing
     private final ResourceLinkManager mTechnology;
 
@@ -74,12 +85,23 @@ public class LocalPairing extends LocalThing {
 
     private String mPullTrap = null;
 
+    // Set while this pairing is part of a cycle of pairings.
+    private String mCycleTrap = null;
+
+    // Tracks how changes propagate between this and other pairings.
+    private final LocalPairingGraph mPairingGraph;
+    private final LocalPairingGraph.Listener mGraphListener = this::onCycleChanged;
+
     // True if this pairing is enabled.
     private boolean mEnabled = true;
 
     // Number of times this automation pairing has fired.
     private int mCount = 0;
 
+    // Runtime statistics, reported through AutomationStatisticsTrait.
+    private final AutomationStatistics mStatistics =
+            new AutomationStatistics(this::getInstructionCount);
+
     // Timestamp of last change.
     private long mTimestamp = 0;
 
@@ -98,14 +120,121 @@ public class LocalPairing extends LocalThing {
     private double mDestinationEpsilon = 0.0001;
 
     public LocalPairing(ResourceLinkManager technology) {
+        this(technology, new LocalPairingGraph());
+    }
+
+    /**
+     * Creates a pairing that tracks the propagation of changes in {@code pairingGraph}, to
+     * detect cycles and propagation storms involving other pairings in the same graph.
+     */
+    public LocalPairing(ResourceLinkManager technology, LocalPairingGraph pairingGraph) {
+        this(technology, pairingGraph, LocalTimerService.getDefault());
+    }
+
+    /**
+     * Creates a pairing like {@link #LocalPairing(ResourceLinkManager, LocalPairingGraph)},
+     * whose hold-off windows and maximum rates are enforced using timeouts scheduled by
+     * {@code timerService} instead of the service shared by all pairings.
+     */
+    public LocalPairing(ResourceLinkManager technology, LocalPairingGraph pairingGraph,
+            LocalTimerService timerService) {
         mTechnology = technology;
+        mPairingGraph = pairingGraph;
+        mPushThrottle = new EvaluationThrottle(
+                this::flushSourceChange, timerService, timerService.getTicker());
+        mPullThrottle = new EvaluationThrottle(
+                this::flushDestinationChange, timerService, timerService.getTicker());
         registerTrait(mBaseTrait);
         registerTrait(mPairingTrait);
         registerTrait(mEnabledDisabledTrait);
+        registerTrait(mStatistics.createTrait());
+    }
+
+    /** Returns the runtime statistics of this pairing. */
+    public AutomationStatistics getStatistics() {
+        return mStatistics;
+    }
+
+    /** Describes the resources this pairing copies between to {@code analyzer}. */
+    void addToAnalyzer(AutomationGraphAnalyzer analyzer, String id) {
+        ResourceLink<Object> source = mSource;
+        ResourceLink<Object> destination = mDestination;
+
+        analyzer.addPairing(id,
+                source == null ? null : source.getUri(),
+                destination == null ? null : destination.getUri(),
+                mPush,
+                mPull);
+    }
+
+    private int getInstructionCount() {
+        int ret = 0;
+
+        if (mForwardTransform instanceof RPNFunction) {
+            ret += ((RPNFunction) mForwardTransform).getInstructionCount();
+        }
+
+        if (mReverseTransform instanceof RPNFunction) {
+            ret += ((RPNFunction) mReverseTransform).getInstructionCount();
+        }
+
+        return ret;
+    }
+
+    private void onSourceChanged(@Nullable Object value) {
+        if (!mPushThrottle.isEnabled()) {
+            handleSourceChange(value);
+            return;
+        }
+
+        synchronized (this) {
+            mPendingSourceValue = value;
+        }
+
+        if (!mPushThrottle.trigger()) {
+            mStatistics.recordDrop();
+        }
+    }
+
+    private void flushSourceChange() {
+        Object value;
+
+        synchronized (this) {
+            value = mPendingSourceValue;
+        }
+
+        handleSourceChange(value);
+    }
+
+    private void onDestinationChanged(@Nullable Object value) {
+        if (!mPullThrottle.isEnabled()) {
+            handleDestinationChange(value);
+            return;
+        }
+
+        synchronized (this) {
+            mPendingDestinationValue = value;
+        }
+
+        if (!mPullThrottle.trigger()) {
+            mStatistics.recordDrop();
+        }
+    }
+
+    private void flushDestinationChange() {
+        Object value;
+
+        synchronized (this) {
+            value = mPendingDestinationValue;
+        }
+
+        handleDestinationChange(value);
     }
 
     void handleSourceChange(@Nullable Object value) {
         ResourceLink<Object> rl = mDestination;
+        ResourceLink<Object> source = mSource;
+        final Object sourceValue = value;
 
         if (rl == null || !mPush || Objects.equals(value, mSourceLastValue)) {
             return;
@@ -121,8 +250,10 @@ public class LocalPairing extends LocalThing {
             }
         }
 
-        mForwardRPNContext.setVariable("v", value);
-        mForwardRPNContext.setVariable("v_l", mSourceLastValue);
+        mForwardRPNContext.setVariable(SLOT_V, value);
+        mForwardRPNContext.setVariable(SLOT_V_L, mSourceLastValue);
+
+        final long evaluationStart = System.nanoTime();
 
         try {
             Object oldValue = value;
@@ -132,6 +263,8 @@ public class LocalPairing extends LocalThing {
             mPushTrap = x.toString();
             mBaseTrait.didChangeTrap(getTrapString());
             return;
+        } finally {
+            mStatistics.recordEvaluation(System.nanoTime() - evaluationStart);
         }
 
         if (RPNContext.isStopSignal(value) || Objects.equals(value, mDestinationLastValue)) {
@@ -146,6 +279,19 @@ public class LocalPairing extends LocalThing {
             }
         }
 
+        if (source != null) {
+            String storm = mPairingGraph.propagate(
+                    source.getUri(), sourceValue, rl.getUri(), value);
+
+            if (storm != null) {
+                LOGGER.warning(storm + ": " + source.getUri() + " -> " + rl.getUri());
+                mPushTrap = storm;
+                mBaseTrait.didChangeTrap(getTrapString());
+                mStatistics.recordDrop();
+                return;
+            }
+        }
+
         mDestinationLastValue = value;
 
         if (mPushTrap != null) {
@@ -154,9 +300,12 @@ public class LocalPairing extends LocalThing {
             mBaseTrait.didChangeTrap(getTrapString());
         }
 
+        final long invokeStart = System.nanoTime();
         ListenableFuture<?> invokedFuture = rl.invoke(value);
 
         invokedFuture.addListener(()->{
+            mStatistics.recordInvoke(System.nanoTime() - invokeStart);
+
             try {
                 invokedFuture.get();
 
@@ -178,6 +327,8 @@ public class LocalPairing extends LocalThing {
 
     void handleDestinationChange(@Nullable Object value) {
         ResourceLink<Object> rl = mSource;
+        ResourceLink<Object> destination = mDestination;
+        final Object destinationValue = value;
 
         if (rl == null || !mPull || Objects.equals(value, mDestinationLastValue)) {
             return;
@@ -192,8 +343,10 @@ public class LocalPairing extends LocalThing {
             }
         }
 
-        mReverseRPNContext.setVariable("v", value);
-        mReverseRPNContext.setVariable("v_l", mDestinationLastValue);
+        mReverseRPNContext.setVariable(SLOT_V, value);
+        mReverseRPNContext.setVariable(SLOT_V_L, mDestinationLastValue);
+
+        final long evaluationStart = System.nanoTime();
 
         try {
             Object oldValue = value;
@@ -203,6 +356,8 @@ public class LocalPairing extends LocalThing {
             mPullTrap = x.toString();
             mBaseTrait.didChangeTrap(getTrapString());
             return;
+        } finally {
+            mStatistics.recordEvaluation(System.nanoTime() - evaluationStart);
         }
 
         if (RPNContext.isStopSignal(value) || Objects.equals(value, mSourceLastValue)) {
@@ -217,6 +372,19 @@ public class LocalPairing extends LocalThing {
             }
         }
 
+        if (destination != null) {
+            String storm = mPairingGraph.propagate(
+                    destination.getUri(), destinationValue, rl.getUri(), value);
+
+            if (storm != null) {
+                LOGGER.warning(storm + ": " + destination.getUri() + " -> " + rl.getUri());
+                mPullTrap = storm;
+                mBaseTrait.didChangeTrap(getTrapString());
+                mStatistics.recordDrop();
+                return;
+            }
+        }
+
         mSourceLastValue = value;
 
         if (mPullTrap != null) {
@@ -225,9 +393,12 @@ public class LocalPairing extends LocalThing {
             mBaseTrait.didChangeTrap(getTrapString());
         }
 
+        final long invokeStart = System.nanoTime();
         ListenableFuture<?> invokedFuture = rl.invoke(value);
 
         invokedFuture.addListener(()->{
+            mStatistics.recordInvoke(System.nanoTime() - invokeStart);
+
             try {
                 invokedFuture.get();
 
@@ -247,6 +418,20 @@ public class LocalPairing extends LocalThing {
         mPairingTrait.didChangeLast(0);
     }
 
+    private void onCycleChanged(boolean inCycle) {
+        mCycleTrap = inCycle ? AutomationPairingTrait.TRAP_PROPAGATION_CYCLE : null;
+        mBaseTrait.didChangeTrap(getTrapString());
+    }
+
+    /** Tells {@link #mPairingGraph} which resources this pairing currently copies between. */
+    private void updatePairingGraph() {
+        mPairingGraph.update(mGraphListener,
+                mSource == null ? null : mSource.getUri(),
+                mDestination == null ? null : mDestination.getUri(),
+                mEnabled && mPush,
+                mEnabled && mPull);
+    }
+
     @Nullable String getTrapString() {
         String trap = "";
 
@@ -261,6 +446,13 @@ public class LocalPairing extends LocalThing {
             trap += mPullTrap;
         }
 
+        if (mCycleTrap != null) {
+            if (!trap.isEmpty()) {
+                trap += " ";
+            }
+            trap += mCycleTrap;
+        }
+
         if (trap.isEmpty()) {
             return null;
         }
@@ -295,6 +487,7 @@ public class LocalPairing extends LocalThing {
         if (DEBUG) LOGGER.info("disablePush");
 
         mSource.unregisterListener(mSourceListener);
+        mPushThrottle.cancel();
     }
 
     void enablePull() {
@@ -324,6 +517,7 @@ public class LocalPairing extends LocalThing {
         if (DEBUG) LOGGER.info("disablePull");
 
         mDestination.unregisterListener(mDestinationListener);
+        mPullThrottle.cancel();
     }
 
     BaseTrait.AbstractLocalTrait mBaseTrait = new BaseTrait.AbstractLocalTrait() {
@@ -392,6 +586,7 @@ public class LocalPairing extends LocalThing {
                 }
             }
 
+            updatePairingGraph();
             didChangeValue(value);
             changedPersistentState();
         }
@@ -433,6 +628,7 @@ public class LocalPairing extends LocalThing {
                     if (mPull) enablePull();
                 }
 
+                updatePairingGraph();
                 didChangeSource(onGetSource());
             }
         }
@@ -472,6 +668,7 @@ public class LocalPairing extends LocalThing {
                     if (mPull) enablePull();
                 }
 
+                updatePairingGraph();
                 didChangeDestination(onGetDestination());
             }
         }
@@ -562,6 +759,7 @@ public class LocalPairing extends LocalThing {
                 }
             }
 
+            updatePairingGraph();
             didChangePush(mPush);
         }
 
@@ -582,9 +780,38 @@ public class LocalPairing extends LocalThing {
                 }
             }
 
+            updatePairingGraph();
             didChangePull(mPull);
         }
 
+        @Override
+        public Float onGetHoldOff() {
+            return mPushThrottle.getHoldOffSeconds();
+        }
+
+        @Override
+        public void onSetHoldOff(@Nullable Float value) throws InvalidPropertyValueException {
+            long nanos = EvaluationThrottle.secondsToNanos(value);
+
+            mPushThrottle.setHoldOff(nanos);
+            mPullThrottle.setHoldOff(nanos);
+            didChangeHoldOff(onGetHoldOff());
+        }
+
+        @Override
+        public Float onGetMaxRate() {
+            return mPushThrottle.getMaxRate();
+        }
+
+        @Override
+        public void onSetMaxRate(@Nullable Float value) throws InvalidPropertyValueException {
+            long nanos = EvaluationThrottle.rateToIntervalNanos(value);
+
+            mPushThrottle.setMinInterval(nanos);
+            mPullThrottle.setMinInterval(nanos);
+            didChangeMaxRate(onGetMaxRate());
+        }
+
         @Override
         @Nullable
         public Integer onGetLast() throws TechnologyException {
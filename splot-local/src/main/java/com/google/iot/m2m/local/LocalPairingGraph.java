@@ -0,0 +1,433 @@
+/*
+ * Copyright (C) 2019 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.iot.m2m.local;
+
+import com.google.common.base.Ticker;
+import com.google.iot.m2m.trait.AutomationPairingTrait;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+import java.net.URI;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Keeps track of how changes propagate through a set of {@link LocalPairing} instances, to
+ * stop values from bouncing around forever.
+ *
+ * <p>At configuration time, the graph knows which resources each pairing copies values between.
+ * Whenever that changes, it finds the pairings that are part of a cycle made of more than one
+ * pairing, and {@link Listener#onCycleChanged tells them}. A single pairing that both pushes and
+ * pulls is not considered a cycle, since it is already guarded by comparing against the last
+ * values it has seen.
+ *
+ * <p>At run time, every value a pairing writes is recorded along with its causal history: the
+ * resources it has already been written to, the value each of them was given, and the number of
+ * hops it has taken. When a pairing then sees that same value arrive, it continues the history
+ * rather than starting a new one. A change that would write a different value back to a
+ * resource it has already visited is a loop, and a
+ * change that has taken more than {@link #getHopLimit()} hops is considered a storm. Either
+ * way, the change is dropped and counted, and the pairing reports it as a trap.
+ *
+ * <p>All of the pairings created by a {@link LocalPairingManagerTrait} share the same graph.
+ */
+public final class LocalPairingGraph {
+    private static final boolean DEBUG = false;
+    private static final Logger LOGGER =
+            Logger.getLogger(LocalPairingGraph.class.getCanonicalName());
+
+    /** Default maximum number of pairings a single change may propagate through. */
+    public static final int DEFAULT_HOP_LIMIT = 8;
+
+    /**
+     * How long a written value is remembered. A change that arrives later than this is
+     * treated as a new change, rather than a consequence of the write.
+     */
+    public static final long CAUSALITY_WINDOW_MS = 1000;
+
+    // Numeric values that differ by less than this are considered the same, since the
+    // resource may have converted it to a different type.
+    private static final double VALUE_EPSILON = 0.0001;
+
+    /** Receives notifications about a pairing's place in the graph. */
+    public interface Listener {
+        /** Called when the pairing becomes part of a cycle, or stops being part of one. */
+        void onCycleChanged(boolean inCycle);
+    }
+
+    /** The resources a pairing copies values between. */
+    private static final class Edges {
+        final @Nullable URI mSource;
+        final @Nullable URI mDestination;
+        final boolean mPush;
+        final boolean mPull;
+
+        Edges(@Nullable URI source, @Nullable URI destination, boolean push, boolean pull) {
+            mSource = source;
+            mDestination = destination;
+            mPush = push && source != null && destination != null;
+            mPull = pull && source != null && destination != null;
+        }
+
+        /** Returns the resource this copies changes of {@code uri} to, or null. */
+        @Nullable URI targetOf(URI uri) {
+            if (mPush && uri.equals(mSource)) {
+                return mDestination;
+            }
+            if (mPull && uri.equals(mDestination)) {
+                return mSource;
+            }
+            return null;
+        }
+    }
+
+    /** A value written to a resource by a pairing, and how it got there. */
+    private static final class Write {
+        final @Nullable Object mValue;
+        final int mHops;
+        // The resources visited by the change so far, and the value each was given.
+        final Map<URI, Object> mVisited;
+        final long mTimestamp;
+
+        Write(@Nullable Object value, int hops, Map<URI, Object> visited, long timestamp) {
+            mValue = value;
+            mHops = hops;
+            mVisited = visited;
+            mTimestamp = timestamp;
+        }
+    }
+
+    private final Ticker mTicker;
+    private int mHopLimit = DEFAULT_HOP_LIMIT;
+
+    private final Map<Listener, Edges> mEdges = new HashMap<>();
+
+    // The pairings that copy changes away from each resource.
+    private final Map<URI, Set<Listener>> mOutgoing = new HashMap<>();
+    private Set<Listener> mInCycle = new HashSet<>();
+    private final Map<URI, Write> mRecentWrites = new HashMap<>();
+
+    private long mPropagationCount = 0;
+    private long mLoopCount = 0;
+    private long mHopLimitCount = 0;
+
+    public LocalPairingGraph() {
+        this(Ticker.systemTicker());
+    }
+
+    /** Creates a pairing graph that reads the current time from {@code ticker}. */
+    public LocalPairingGraph(Ticker ticker) {
+        mTicker = ticker;
+    }
+
+    /** Returns the maximum number of pairings a single change may propagate through. */
+    public synchronized int getHopLimit() {
+        return mHopLimit;
+    }
+
+    /** Changes the maximum number of pairings a single change may propagate through. */
+    public synchronized void setHopLimit(int hopLimit) {
+        if (hopLimit < 1) {
+            throw new IllegalArgumentException("Invalid hop limit " + hopLimit);
+        }
+        mHopLimit = hopLimit;
+    }
+
+    /**
+     * Updates the resources that {@code pairing} copies values between. Pushing copies from
+     * the source to the destination and pulling does the opposite; a pairing that does
+     * neither, such as a disabled one, is removed from the graph.
+     */
+    public void update(Listener pairing, @Nullable URI source, @Nullable URI destination,
+                       boolean push, boolean pull) {
+        Set<Listener> changed;
+        Set<Listener> inCycle;
+
+        synchronized (this) {
+            Edges edges = new Edges(source, destination, push, pull);
+            Edges previous;
+
+            if (edges.mPush || edges.mPull) {
+                previous = mEdges.put(pairing, edges);
+            } else {
+                previous = mEdges.remove(pairing);
+            }
+
+            if (previous != null) {
+                removeOutgoing(previous.mSource, pairing);
+                removeOutgoing(previous.mDestination, pairing);
+            }
+
+            if (edges.mPush) {
+                mOutgoing.computeIfAbsent(edges.mSource, k -> new HashSet<>()).add(pairing);
+            }
+
+            if (edges.mPull) {
+                mOutgoing.computeIfAbsent(edges.mDestination, k -> new HashSet<>()).add(pairing);
+            }
+
+            inCycle = findPairingsInCycles();
+            changed = new HashSet<>(inCycle);
+            changed.addAll(mInCycle);
+            changed.removeIf(p -> inCycle.contains(p) && mInCycle.contains(p));
+            mInCycle = inCycle;
+        }
+
+        if (DEBUG) LOGGER.info("update: " + inCycle.size() + " pairings in cycles");
+
+        // Notify outside the lock, since pairings will update their traps.
+        for (Listener listener : changed) {
+            listener.onCycleChanged(inCycle.contains(listener));
+        }
+    }
+
+    private void removeOutgoing(@Nullable URI uri, Listener pairing) {
+        if (uri == null) {
+            return;
+        }
+
+        Set<Listener> pairings = mOutgoing.get(uri);
+
+        if (pairings != null && pairings.remove(pairing) && pairings.isEmpty()) {
+            mOutgoing.remove(uri);
+        }
+    }
+
+    /** Returns the resources that changes of {@code uri} are copied to. */
+    private List<URI> successorsOf(URI uri) {
+        List<URI> ret = new ArrayList<>();
+
+        for (Listener pairing : mOutgoing.getOrDefault(uri, Collections.emptySet())) {
+            ret.add(mEdges.get(pairing).targetOf(uri));
+        }
+
+        return ret;
+    }
+
+    /**
+     * Returns the pairings for which the destination of one of their edges can reach its
+     * start without going through the pairing itself.
+     *
+     * <p>The strongly connected components of the graph are found once, so a pairing that
+     * only copies one way is in a cycle exactly when both its resources are in the same
+     * component. A pairing that copies both ways always connects its resources by itself.
+     * Another path between them exists unless removing the pairing splits its component in
+     * two, ignoring the direction of the edges, which makes it a bridge of the component.
+     */
+    private Set<Listener> findPairingsInCycles() {
+        Set<Listener> ret = new HashSet<>();
+        Map<URI, Set<URI>> componentOf = new HashMap<>();
+
+        for (Set<URI> component
+                : new StronglyConnectedComponents(mOutgoing.keySet(), this::successorsOf).find()) {
+            for (URI uri : component) {
+                componentOf.put(uri, component);
+            }
+        }
+
+        // The pairings within each component, ignoring direction.
+        Map<URI, List<Listener>> undirected = new HashMap<>();
+        List<Listener> bidirectional = new ArrayList<>();
+
+        for (Map.Entry<Listener, Edges> entry : mEdges.entrySet()) {
+            Listener pairing = entry.getKey();
+            Edges edges = entry.getValue();
+            Set<URI> component = componentOf.get(edges.mSource);
+
+            if (component == null || component != componentOf.get(edges.mDestination)) {
+                continue;
+            }
+
+            if (!(edges.mPush && edges.mPull) || edges.mSource.equals(edges.mDestination)) {
+                ret.add(pairing);
+            } else {
+                bidirectional.add(pairing);
+            }
+
+            undirected.computeIfAbsent(edges.mSource, k -> new ArrayList<>()).add(pairing);
+            undirected.computeIfAbsent(edges.mDestination, k -> new ArrayList<>()).add(pairing);
+        }
+
+        if (!bidirectional.isEmpty()) {
+            Set<Listener> bridges = findBridges(undirected);
+
+            for (Listener pairing : bidirectional) {
+                if (!bridges.contains(pairing)) {
+                    ret.add(pairing);
+                }
+            }
+        }
+
+        return ret;
+    }
+
+    /**
+     * Returns the pairings whose removal would disconnect the undirected graph described by
+     * {@code adjacency}, using Tarjan's bridge-finding algorithm. Like
+     * {@link StronglyConnectedComponents}, it iterates rather than recursing.
+     */
+    private Set<Listener> findBridges(Map<URI, List<Listener>> adjacency) {
+        Set<Listener> ret = new HashSet<>();
+        Map<URI, Integer> index = new HashMap<>();
+        Map<URI, Integer> lowLink = new HashMap<>();
+        Map<URI, Listener> parentEdge = new HashMap<>();
+        int nextIndex = 0;
+
+        for (URI root : adjacency.keySet()) {
+            if (index.containsKey(root)) {
+                continue;
+            }
+
+            Deque<URI> path = new ArrayDeque<>();
+            Deque<Iterator<Listener>> iterators = new ArrayDeque<>();
+
+            index.put(root, nextIndex);
+            lowLink.put(root, nextIndex);
+            nextIndex++;
+            path.push(root);
+            iterators.push(adjacency.get(root).iterator());
+
+            while (!path.isEmpty()) {
+                URI uri = path.peek();
+                Iterator<Listener> pairings = iterators.peek();
+
+                if (pairings.hasNext()) {
+                    Listener pairing = pairings.next();
+
+                    if (pairing == parentEdge.get(uri)) {
+                        continue;
+                    }
+
+                    Edges edges = mEdges.get(pairing);
+                    URI next = uri.equals(edges.mSource) ? edges.mDestination : edges.mSource;
+
+                    if (!index.containsKey(next)) {
+                        index.put(next, nextIndex);
+                        lowLink.put(next, nextIndex);
+                        nextIndex++;
+                        parentEdge.put(next, pairing);
+                        path.push(next);
+                        iterators.push(adjacency.get(next).iterator());
+
+                    } else {
+                        lowLink.put(uri, Math.min(lowLink.get(uri), index.get(next)));
+                    }
+                    continue;
+                }
+
+                path.pop();
+                iterators.pop();
+
+                if (!path.isEmpty()) {
+                    URI parent = path.peek();
+                    lowLink.put(parent, Math.min(lowLink.get(parent), lowLink.get(uri)));
+
+                    if (lowLink.get(uri) > index.get(parent)) {
+                        ret.add(parentEdge.get(uri));
+                    }
+                }
+            }
+        }
+
+        return ret;
+    }
+
+    private static boolean isSameValue(@Nullable Object a, @Nullable Object b) {
+        if (a instanceof Number && b instanceof Number) {
+            return Math.abs(((Number) a).doubleValue() - ((Number) b).doubleValue())
+                    < VALUE_EPSILON;
+        }
+        return Objects.equals(a, b);
+    }
+
+    /**
+     * Called by a pairing that is about to write {@code value} to {@code to}, because it saw
+     * {@code received} arrive from {@code from}.
+     *
+     * @return null if the write should go ahead, otherwise the trap explaining why the change
+     *     must be dropped: {@link AutomationPairingTrait#TRAP_PROPAGATION_LOOP} or
+     *     {@link AutomationPairingTrait#TRAP_PROPAGATION_HOP_LIMIT}.
+     */
+    public synchronized @Nullable String propagate(URI from, @Nullable Object received,
+                                                   URI to, @Nullable Object value) {
+        final long now = mTicker.read();
+        final long window = TimeUnit.MILLISECONDS.toNanos(CAUSALITY_WINDOW_MS);
+
+        mRecentWrites.values().removeIf(write -> now - write.mTimestamp > window);
+
+        Write cause = mRecentWrites.get(from);
+
+        if (cause != null && !isSameValue(cause.mValue, received)) {
+            // Something else changed the resource since we wrote to it.
+            cause = null;
+        }
+
+        final int hops = cause == null ? 1 : cause.mHops + 1;
+        final Map<URI, Object> visited = new HashMap<>();
+
+        if (cause != null) {
+            visited.putAll(cause.mVisited);
+        } else {
+            visited.put(from, received);
+        }
+
+        if (visited.containsKey(to) && !isSameValue(value, visited.get(to))) {
+            // Writing back the value the resource already had in this change would be harmless
+            // and is suppressed by the pairing itself, but a different value means we are going
+            // around in circles.
+            if (DEBUG) LOGGER.info("Loop detected: " + from + " -> " + to);
+            mLoopCount++;
+            return AutomationPairingTrait.TRAP_PROPAGATION_LOOP;
+        }
+
+        if (hops > mHopLimit) {
+            if (DEBUG) LOGGER.info("Hop limit reached: " + from + " -> " + to);
+            mHopLimitCount++;
+            return AutomationPairingTrait.TRAP_PROPAGATION_HOP_LIMIT;
+        }
+
+        visited.put(to, value);
+        mRecentWrites.put(to, new Write(value, hops, visited, now));
+        mPropagationCount++;
+
+        return null;
+    }
+
+    /** Returns the number of pairings that are currently part of a cycle. */
+    public synchronized int getCycleCount() {
+        return mInCycle.size();
+    }
+
+    /** Returns the number of changes that have been allowed to propagate. */
+    public synchronized long getPropagationCount() {
+        return mPropagationCount;
+    }
+
+    /** Returns the number of changes dropped because they were going around a loop. */
+    public synchronized long getLoopCount() {
+        return mLoopCount;
+    }
+
+    /** Returns the number of changes dropped because they reached the hop limit. */
+    public synchronized long getHopLimitCount() {
+        return mHopLimitCount;
+    }
+
+    /** Returns the total number of changes dropped to prevent a propagation storm. */
+    public synchronized long getStormCount() {
+        return mLoopCount + mHopLimitCount;
+    }
+}
@@ -20,7 +20,6 @@ import com.google.common.util.concurrent.ListenableFuture;
 import com.google.errorprone.annotations.CanIgnoreReturnValue;
 import com.google.iot.m2m.base.*;
 import com.google.iot.m2m.trait.*;
-import com.google.iot.m2m.util.NestedPersistentStateManager;
 import org.checkerframework.checker.nullness.qual.Nullable;
 
 import java.util.HashMap;
@@ -40,16 +39,36 @@ public class LocalPairingManagerTrait extends AutomationPairingManagerTrait.Abst
     private static final Logger LOGGER = Logger.getLogger(LocalPairingManagerTrait.class.getCanonicalName());
 
     private final ResourceLinkManager mResourceLinkManager;
+    private final LocalPairingGraph mPairingGraph = new LocalPairingGraph();
+    private final LocalTimerService mTimerService;
 
     Map<String, LocalPairing> mPairingLookup = new HashMap<>();
     Map<Thing, String> mPairingReverseLookup = new HashMap<>();
     int mNextChildId = 1;
     Thing mParent;
-    NestedPersistentStateManager mNestedPersistentStateManager = new NestedPersistentStateManager();
+    ChildPersistentStateManager mChildPersistentStateManager = new ChildPersistentStateManager();
 
     public LocalPairingManagerTrait(ResourceLinkManager resourceLinkManager, Thing parent) {
+        this(resourceLinkManager, parent, LocalTimerService.getDefault());
+    }
+
+    /**
+     * Creates a trait whose pairings enforce their hold-off windows and maximum rates using
+     * timeouts scheduled by {@code timerService}.
+     */
+    public LocalPairingManagerTrait(ResourceLinkManager resourceLinkManager, Thing parent,
+            LocalTimerService timerService) {
         mResourceLinkManager = resourceLinkManager;
         mParent = parent;
+        mTimerService = timerService;
+    }
+
+    /**
+     * Returns the graph tracking how changes propagate between the pairings managed by this
+     * trait, which keeps count of the cycles and propagation storms it has detected.
+     */
+    public LocalPairingGraph getPairingGraph() {
+        return mPairingGraph;
     }
 
     private String getNewChildId() {
@@ -90,8 +109,7 @@ public class LocalPairingManagerTrait extends AutomationPairingManagerTrait.Abst
         mPairingReverseLookup.remove(child);
         mPairingLookup.remove(childId);
 
-        mNestedPersistentStateManager.stopManaging(childId);
-        mNestedPersistentStateManager.reset(childId);
+        mChildPersistentStateManager.stopManaging(childId);
 
         didRemoveChild(child);
         return true;
@@ -103,7 +121,7 @@ public class LocalPairingManagerTrait extends AutomationPairingManagerTrait.Abst
             onDeleteChild(mPairingLookup.get(childId));
         }
 
-        LocalPairing pairing = new LocalPairing(mResourceLinkManager) {
+        LocalPairing pairing = new LocalPairing(mResourceLinkManager, mPairingGraph, mTimerService) {
             @Override
             public ListenableFuture<Boolean> delete() {
                 return Futures.immediateFuture(onDeleteChild(this));
@@ -122,7 +140,7 @@ public class LocalPairingManagerTrait extends AutomationPairingManagerTrait.Abst
 
         mPairingLookup.put(childId, pairing);
         mPairingReverseLookup.put(pairing, childId);
-        mNestedPersistentStateManager.startManaging(childId, pairing);
+        mChildPersistentStateManager.startManaging(childId, pairing);
         didAddChild(pairing);
 
         return pairing;
@@ -199,9 +217,37 @@ public class LocalPairingManagerTrait extends AutomationPairingManagerTrait.Abst
         return ret;
     }
 
+    @Override
+    public String[] onInvokeCreateBulk(Map<String, Object> args) throws InvalidMethodArgumentsException {
+        String[] ret = BulkChildOperations.createChildren(args, AutomationPairingManagerTrait.PARAM_ITEMS,
+                mParent, mChildPersistentStateManager, this::onInvokeCreate, this::onGetIdForChild,
+                this::onDeleteChild);
+
+        if (DEBUG) LOGGER.info("Created " + ret.length + " pairings");
+
+        return ret;
+    }
+
+    @Override
+    public Integer onInvokeDeleteBulk(Map<String, Object> args) throws InvalidMethodArgumentsException {
+        return BulkChildOperations.deleteChildren(args, AutomationPairingManagerTrait.PARAM_IDS,
+                mParent, mChildPersistentStateManager, mPairingLookup::get, this::onDeleteChild);
+    }
+
+    /**
+     * Saves the state of each pairing managed by this trait separately using {@code manager},
+     * under the ID of the pairing prefixed with {@code prefix}, instead of nesting it in the
+     * state of this trait. This means that changing a single pairing only refreshes the
+     * state of that pairing. Must be called before this trait's persistent state is
+     * initialized.
+     */
+    public void setChildPersistentStateManager(PersistentStateManager manager, String prefix) {
+        mChildPersistentStateManager.setExternalManager(manager, prefix);
+    }
+
     @Override
     public Map<String, Object> copyPersistentState() {
-        return mNestedPersistentStateManager.copyPersistentState();
+        return mChildPersistentStateManager.copyPersistentState();
     }
 
     @Override
@@ -209,7 +255,7 @@ public class LocalPairingManagerTrait extends AutomationPairingManagerTrait.Abst
         if (persistentState == null) {
             return;
         }
-        mNestedPersistentStateManager.initWithPersistentState(persistentState);
+        mChildPersistentStateManager.initWithPersistentState(persistentState);
 
         for (Map.Entry<String, Object> entry : persistentState.entrySet()) {
             Object entryValue = entry.getValue();
@@ -224,6 +270,6 @@ public class LocalPairingManagerTrait extends AutomationPairingManagerTrait.Abst
 
     @Override
     public void setPersistentStateListener(@Nullable PersistentStateListener listener) {
-        mNestedPersistentStateManager.setPersistentStateListener(listener);
+        mChildPersistentStateManager.setPersistentStateListener(listener);
     }
 }
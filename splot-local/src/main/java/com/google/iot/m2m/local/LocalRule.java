@@ -18,10 +18,12 @@ package com.google.iot.m2m.local;
 import com.google.iot.m2m.base.*;
 import com.google.iot.m2m.local.rpn.RPNContext;
 import com.google.iot.m2m.local.rpn.RPNException;
+import com.google.iot.m2m.local.rpn.RPNFunction;
 import com.google.iot.m2m.trait.*;
 import org.checkerframework.checker.nullness.qual.Nullable;
 
 import java.net.URI;
+import java.time.Clock;
 import java.util.*;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicBoolean;
@@ -41,7 +43,13 @@ public class LocalRule extends LocalActions {
     private static final boolean DEBUG = false;
     private static final Logger LOGGER = Logger.getLogger(LocalRule.class.getCanonicalName());
 
-    private RPNContext mSharedRPNContext = new RPNContext();
+    private static final int SLOT_V = RPNContext.getVariableSlot("v");
+    private static final int SLOT_V_L = RPNContext.getVariableSlot("v_l");
+    private static final int SLOT_C = RPNContext.getVariableSlot("c");
+
+    private final RPNContext mSharedRPNContext;
+
+    private final LocalRuleNetwork mRuleNetwork;
 
     // True if this rule is enabled.
     private boolean mEnabled = false;
@@ -54,37 +62,76 @@ public class LocalRule extends LocalActions {
     @SuppressWarnings("unchecked")
     private Map<String,Object>[] mConditionsInfo = new Map[0];
 
-    class Condition implements ResourceLink.Listener<Object> {
+    class Condition implements ResourceLink.Listener<Object>, LocalRuleNetwork.Listener {
         final ResourceLink<Object> mResourceLink;
-        Function<Object, Object> mExpression = (x) -> true;
+        final String mRecipe;
+        final Function<Object, Object> mExpression;
+
+        // True if the result of mExpression only depends on the value of the resource, in
+        // which case it is evaluated by a node in mRuleNetwork that may be shared with other
+        // rules. Expressions that read v_l, c, rtc.* and so on are evaluated here, every time.
+        final boolean mShared;
+
+        // The node evaluating this condition while it is being monitored, if mShared is true.
+        volatile LocalRuleNetwork.@Nullable Node mNode = null;
 
         volatile Object mLastValue = null;
         volatile Object mCurrValue = null;
 
-        Condition(ResourceLink<Object> resourceLink) {
+        Condition(ResourceLink<Object> resourceLink, String recipe, RPNFunction expression) {
             mResourceLink = resourceLink;
+            mRecipe = recipe;
+            mExpression = expression;
+            mShared = LocalRuleNetwork.isShareable(expression);
         }
 
         void beginMonitoring() {
-            mResourceLink.registerListener(getExecutor(), this);
+            if (mShared) {
+                mNode = mRuleNetwork.subscribe(mResourceLink, mRecipe, this);
+            } else {
+                mResourceLink.registerListener(getExecutor(), this);
+            }
         }
 
         void endMonitoring() {
-            mResourceLink.unregisterListener(this);
+            LocalRuleNetwork.Node node = mNode;
+
+            if (node != null) {
+                mNode = null;
+                mRuleNetwork.unsubscribe(node, this);
+            } else {
+                mResourceLink.unregisterListener(this);
+            }
         }
 
         boolean evaluate() {
+            LocalRuleNetwork.Node node = mNode;
+
+            if (node != null) {
+                // The node only evaluates the expression if the value changed since it was
+                // last asked, by this rule or any other.
+                try {
+                    return node.getResult();
+                } catch (RPNException x) {
+                    onConditionError(x);
+                    return false;
+                }
+            }
+
             boolean ret;
             if (DEBUG) LOGGER.info("evaluate: currValue: " + mCurrValue);
             if (DEBUG) LOGGER.info("evaluate: lastValue: " + mLastValue);
             try {
                 Object value = mCurrValue;
-                mSharedRPNContext.setVariable("v", value);
-                mSharedRPNContext.setVariable("v_l", mLastValue);
+                mSharedRPNContext.setVariable(SLOT_V, value);
+                mSharedRPNContext.setVariable(SLOT_V_L, mLastValue);
                 mLastValue = mCurrValue;
                 ret = TypeConverter.BOOLEAN.coerceNonNull(mExpression.apply(value));
             } catch (InvalidValueException ignore) {
                 ret = false;
+            } catch (RPNException x) {
+                onConditionError(x);
+                ret = false;
             }
             if (DEBUG) LOGGER.info("Evaluating "
                     + mResourceLink.getUri() + " -> " + ret);
@@ -100,6 +147,11 @@ public class LocalRule extends LocalActions {
             }
             scheduleEvaluateConditions();
         }
+
+        @Override
+        public void onNodeChanged(LocalRuleNetwork.Node node) {
+            scheduleEvaluateConditions();
+        }
     }
 
     private List<Condition> mConditions = new ArrayList<>();
@@ -107,6 +159,7 @@ public class LocalRule extends LocalActions {
     private ScheduledExecutorService mExecutor = Utils.getDefaultExecutor();
 
     private AtomicBoolean mEvaluationPending = new AtomicBoolean(false);
+    private final EvaluationThrottle mThrottle;
     private Future<?> mScheduledEvaluation = null;
     private String mTrap = null;
 
@@ -116,16 +169,55 @@ public class LocalRule extends LocalActions {
     }
 
     public LocalRule(ResourceLinkManager technology) {
+        this(technology, new LocalRuleNetwork());
+    }
+
+    /**
+     * Creates a rule whose conditions are evaluated by {@code ruleNetwork}, sharing them
+     * with any identical conditions of other rules using the same network.
+     */
+    public LocalRule(ResourceLinkManager technology, LocalRuleNetwork ruleNetwork) {
+        this(technology, ruleNetwork, LocalTimerService.getDefault());
+    }
+
+    /**
+     * Creates a rule whose conditions are evaluated by {@code ruleNetwork}, and whose
+     * evaluations are throttled using timeouts scheduled by {@code timerService} instead of
+     * the service shared by all rules.
+     */
+    public LocalRule(ResourceLinkManager technology, LocalRuleNetwork ruleNetwork,
+            LocalTimerService timerService) {
         super(technology);
+        mRuleNetwork = ruleNetwork;
+        mSharedRPNContext = ruleNetwork.newContext();
+        mThrottle = new EvaluationThrottle(
+                this::evaluateConditions, timerService, timerService.getTicker());
         registerTrait(mBaseTrait);
         registerTrait(mRuleTrait);
         registerTrait(mEnabledDisabledTrait);
+        mSharedRPNContext.setRtcClock(Clock.systemDefaultZone());
         updateRpnContextVariables();
     }
 
     private void updateRpnContextVariables() {
-        mSharedRPNContext.setVariable("c", getCount());
-        mSharedRPNContext.updateRtcVariables(Calendar.getInstance());
+        mSharedRPNContext.setVariable(SLOT_C, getCount());
+    }
+
+    /**
+     * Changes the clock used to compute the {@code rtc.*} variables. The system clock in the
+     * default time zone is used unless changed. Mostly useful for testing.
+     */
+    public void setClock(Clock clock) {
+        mSharedRPNContext.setRtcClock(clock);
+    }
+
+    /**
+     * Changes the executor used to evaluate conditions and invoke actions. Must be called
+     * before the rule is enabled. Mostly useful for testing. Changes to conditions shared
+     * through the rule network are received on the network's executor instead.
+     */
+    public void setExecutor(ScheduledExecutorService executor) {
+        mExecutor = executor;
     }
 
     @Override
@@ -137,7 +229,7 @@ public class LocalRule extends LocalActions {
 
         super.invoke();
 
-        mSharedRPNContext.setVariable("c", getCount());
+        mSharedRPNContext.setVariable(SLOT_C, getCount());
     }
 
     @Override
@@ -147,6 +239,13 @@ public class LocalRule extends LocalActions {
         mBaseTrait.didChangeTrap(trap);
     }
 
+    private void onConditionError(RPNException x) {
+        LOGGER.warning("Condition failed: " + x);
+        String trap = x.toString();
+        mTrap = trap;
+        mBaseTrait.didChangeTrap(trap);
+    }
+
     private synchronized void beginMonitoringConditions() {
         if (DEBUG) LOGGER.info("beginMonitoringConditions");
 
@@ -165,6 +264,8 @@ public class LocalRule extends LocalActions {
             mScheduledEvaluation = null;
         }
 
+        mThrottle.cancel();
+
         for (Condition condition : mConditions) {
             condition.endMonitoring();
         }
@@ -174,10 +275,20 @@ public class LocalRule extends LocalActions {
 
     private void scheduleEvaluateConditions() {
         if (DEBUG) LOGGER.info("scheduleEvaluateConditions");
-        if (mEvaluationPending.compareAndSet(false, true)) {
+        if (mThrottle.isEnabled()) {
+            // Changes are coalesced until the hold-off window ends or the rate allows.
+            if (!mThrottle.trigger()) {
+                getStatistics().recordDrop();
+            }
+
+        } else if (mEvaluationPending.compareAndSet(false, true)) {
             synchronized (this) {
                 mScheduledEvaluation = getExecutor().submit(this::evaluateConditions);
             }
+
+        } else {
+            // The pending evaluation will see this change.
+            getStatistics().recordDrop();
         }
     }
 
@@ -190,40 +301,81 @@ public class LocalRule extends LocalActions {
                 return;
             }
 
-            updateRpnContextVariables();
+            final long start = System.nanoTime();
+            final boolean pass;
 
-            for (Condition condition : mConditions) {
-                if (!condition.evaluate()) {
-                    // This condition isn't satisfied.
-
-                    if (mMatchAll) {
-                        // We are triggering only if everything matches.
-                        if (DEBUG) LOGGER.info("evaluateConditions: FAIL");
-                        return;
-                    }
-                } else {
-                    // This condition IS satisfied.
-
-                    if (!mMatchAll) {
-                        // We are triggering on any match.
-                        if (DEBUG) LOGGER.info("evaluateConditions: PASS");
-                        invoke();
-                        return;
-                    }
-                }
+            try {
+                pass = checkConditions();
+            } finally {
+                getStatistics().recordEvaluation(System.nanoTime() - start);
             }
 
-            if (mMatchAll) {
-                if (DEBUG) LOGGER.info("evaluateConditions: PASS");
+            if (pass) {
                 invoke();
-            } else {
-                if (DEBUG) LOGGER.info("evaluateConditions: FAIL");
             }
         } finally {
             mEvaluationPending.set(false);
         }
     }
 
+    private boolean checkConditions() {
+        updateRpnContextVariables();
+
+        // Shared conditions whose inputs haven't changed return their previous result,
+        // so this only evaluates expressions for the values that actually changed.
+        for (Condition condition : mConditions) {
+            if (!condition.evaluate()) {
+                // This condition isn't satisfied.
+
+                if (mMatchAll) {
+                    // We are triggering only if everything matches.
+                    if (DEBUG) LOGGER.info("evaluateConditions: FAIL");
+                    return false;
+                }
+            } else {
+                // This condition IS satisfied.
+
+                if (!mMatchAll) {
+                    // We are triggering on any match.
+                    if (DEBUG) LOGGER.info("evaluateConditions: PASS");
+                    return true;
+                }
+            }
+        }
+
+        if (mMatchAll) {
+            if (DEBUG) LOGGER.info("evaluateConditions: PASS");
+            return true;
+        }
+
+        if (DEBUG) LOGGER.info("evaluateConditions: FAIL");
+        return false;
+    }
+
+    /** Describes the resources this rule watches and acts on to {@code analyzer}. */
+    void addToAnalyzer(AutomationGraphAnalyzer analyzer, String id) {
+        List<URI> conditionUris = new ArrayList<>();
+
+        for (Condition condition : mConditions) {
+            conditionUris.add(condition.mResourceLink.getUri());
+        }
+
+        analyzer.addRule(id, conditionUris, copyActionUris());
+    }
+
+    @Override
+    protected int getInstructionCount() {
+        int ret = 0;
+
+        for (Condition condition : mConditions) {
+            if (condition.mExpression instanceof RPNFunction) {
+                ret += ((RPNFunction) condition.mExpression).getInstructionCount();
+            }
+        }
+
+        return ret;
+    }
+
     private BaseTrait.AbstractLocalTrait mBaseTrait = new BaseTrait.AbstractLocalTrait() {
         @Override
         public String onGetModel() {
@@ -331,9 +483,8 @@ public class LocalRule extends LocalActions {
                         }
 
                         ResourceLink<Object> resourceLink = getResourceLinkManager().getResourceLinkForUri(path);
-                        Condition condition = new Condition(resourceLink);
-
-                        condition.mExpression = mSharedRPNContext.compile(expression);
+                        Condition condition = new Condition(resourceLink, expression,
+                                mSharedRPNContext.compile(expression));
 
                         conditions.add(condition);
                     }
@@ -388,6 +539,28 @@ public class LocalRule extends LocalActions {
                 didChangeMatch(onGetMatch());
             }
         }
+
+        @Override
+        public Float onGetHoldOff() {
+            return mThrottle.getHoldOffSeconds();
+        }
+
+        @Override
+        public void onSetHoldOff(@Nullable Float value) throws InvalidPropertyValueException {
+            mThrottle.setHoldOff(EvaluationThrottle.secondsToNanos(value));
+            didChangeHoldOff(onGetHoldOff());
+        }
+
+        @Override
+        public Float onGetMaxRate() {
+            return mThrottle.getMaxRate();
+        }
+
+        @Override
+        public void onSetMaxRate(@Nullable Float value) throws InvalidPropertyValueException {
+            mThrottle.setMinInterval(EvaluationThrottle.rateToIntervalNanos(value));
+            didChangeMaxRate(onGetMaxRate());
+        }
     };
 
     @Override
@@ -20,7 +20,6 @@ import com.google.common.util.concurrent.ListenableFuture;
 import com.google.errorprone.annotations.CanIgnoreReturnValue;
 import com.google.iot.m2m.base.*;
 import com.google.iot.m2m.trait.*;
-import com.google.iot.m2m.util.NestedPersistentStateManager;
 import org.checkerframework.checker.nullness.qual.Nullable;
 
 import java.util.HashMap;
@@ -40,16 +39,36 @@ public class LocalRuleManagerTrait extends AutomationRuleManagerTrait.AbstractLo
     private static final Logger LOGGER = Logger.getLogger(LocalRuleManagerTrait.class.getCanonicalName());
 
     private final ResourceLinkManager mResourceLinkManager;
+    private final LocalRuleNetwork mRuleNetwork;
 
     private Map<String, LocalRule> mRuleLookup = new HashMap<>();
     private Map<Thing, String> mRuleReverseLookup = new HashMap<>();
     private int mNextChildId = 1;
     private Thing mParent;
-    private NestedPersistentStateManager mNestedPersistentStateManager = new NestedPersistentStateManager();
+    private ChildPersistentStateManager mChildPersistentStateManager = new ChildPersistentStateManager();
 
     public LocalRuleManagerTrait(ResourceLinkManager resourceLinkManager, Thing parent) {
+        this(resourceLinkManager, parent, new LocalRuleNetwork());
+    }
+
+    /**
+     * Creates a trait whose rules evaluate their conditions using {@code ruleNetwork}, which
+     * determines the executor shared conditions receive changes on and the limits of every
+     * rule's expressions.
+     */
+    public LocalRuleManagerTrait(ResourceLinkManager resourceLinkManager, Thing parent,
+            LocalRuleNetwork ruleNetwork) {
         mResourceLinkManager = resourceLinkManager;
         mParent = parent;
+        mRuleNetwork = ruleNetwork;
+    }
+
+    /**
+     * Returns the network evaluating the conditions of all of the rules managed by this trait,
+     * which keeps statistics about how many conditions are shared.
+     */
+    public LocalRuleNetwork getRuleNetwork() {
+        return mRuleNetwork;
     }
 
     private String getNewChildId() {
@@ -90,8 +109,7 @@ public class LocalRuleManagerTrait extends AutomationRuleManagerTrait.AbstractLo
         mRuleReverseLookup.remove(child);
         mRuleLookup.remove(childId);
 
-        mNestedPersistentStateManager.stopManaging(childId);
-        mNestedPersistentStateManager.reset(childId);
+        mChildPersistentStateManager.stopManaging(childId);
 
         didRemoveChild(child);
         return true;
@@ -103,7 +121,7 @@ public class LocalRuleManagerTrait extends AutomationRuleManagerTrait.AbstractLo
             onDeleteChild(mRuleLookup.get(childId));
         }
 
-        LocalRule Rule = new LocalRule(mResourceLinkManager) {
+        LocalRule Rule = new LocalRule(mResourceLinkManager, mRuleNetwork) {
             @Override
             public ListenableFuture<Boolean> delete() {
                 return Futures.immediateFuture(onDeleteChild(this));
@@ -122,7 +140,7 @@ public class LocalRuleManagerTrait extends AutomationRuleManagerTrait.AbstractLo
 
         mRuleLookup.put(childId, Rule);
         mRuleReverseLookup.put(Rule, childId);
-        mNestedPersistentStateManager.startManaging(childId, Rule);
+        mChildPersistentStateManager.startManaging(childId, Rule);
         didAddChild(Rule);
 
         return Rule;
@@ -209,9 +227,37 @@ public class LocalRuleManagerTrait extends AutomationRuleManagerTrait.AbstractLo
         return ret;
     }
 
+    @Override
+    public String[] onInvokeCreateBulk(Map<String, Object> args) throws InvalidMethodArgumentsException {
+        String[] ret = BulkChildOperations.createChildren(args, AutomationRuleManagerTrait.PARAM_ITEMS,
+                mParent, mChildPersistentStateManager, this::onInvokeCreate, this::onGetIdForChild,
+                this::onDeleteChild);
+
+        if (DEBUG) LOGGER.info("Created " + ret.length + " rules");
+
+        return ret;
+    }
+
+    @Override
+    public Integer onInvokeDeleteBulk(Map<String, Object> args) throws InvalidMethodArgumentsException {
+        return BulkChildOperations.deleteChildren(args, AutomationRuleManagerTrait.PARAM_IDS,
+                mParent, mChildPersistentStateManager, mRuleLookup::get, this::onDeleteChild);
+    }
+
+    /**
+     * Saves the state of each rule managed by this trait separately using {@code manager},
+     * under the ID of the rule prefixed with {@code prefix}, instead of nesting it in the
+     * state of this trait. This means that changing a single rule only refreshes the
+     * state of that rule. Must be called before this trait's persistent state is
+     * initialized.
+     */
+    public void setChildPersistentStateManager(PersistentStateManager manager, String prefix) {
+        mChildPersistentStateManager.setExternalManager(manager, prefix);
+    }
+
     @Override
     public Map<String, Object> copyPersistentState() {
-        return mNestedPersistentStateManager.copyPersistentState();
+        return mChildPersistentStateManager.copyPersistentState();
     }
 
     @Override
@@ -220,7 +266,7 @@ public class LocalRuleManagerTrait extends AutomationRuleManagerTrait.AbstractLo
             return;
         }
 
-        mNestedPersistentStateManager.initWithPersistentState(persistentState);
+        mChildPersistentStateManager.initWithPersistentState(persistentState);
 
         for (Map.Entry<String, Object> entry : persistentState.entrySet()) {
             Object entryValue = entry.getValue();
@@ -235,6 +281,6 @@ public class LocalRuleManagerTrait extends AutomationRuleManagerTrait.AbstractLo
 
     @Override
     public void setPersistentStateListener(@Nullable PersistentStateListener listener) {
-        mNestedPersistentStateManager.setPersistentStateListener(listener);
+        mChildPersistentStateManager.setPersistentStateListener(listener);
     }
 }
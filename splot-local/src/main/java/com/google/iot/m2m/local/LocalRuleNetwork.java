@@ -0,0 +1,323 @@
+/*
+ * Copyright (C) 2019 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.iot.m2m.local;
+
+import com.google.iot.m2m.base.InvalidValueException;
+import com.google.iot.m2m.base.TypeConverter;
+import com.google.iot.m2m.local.rpn.RPNContext;
+import com.google.iot.m2m.local.rpn.RPNException;
+import com.google.iot.m2m.local.rpn.RPNFunction;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+import java.net.URI;
+import java.util.*;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Logger;
+
+/**
+ * Condition nodes shared between many {@link LocalRule} instances.
+ *
+ * <p>Rules often have conditions that watch the same resource using the same expression,
+ * like a motion sensor being active. Rather than each rule listening to the resource and
+ * evaluating the expression on its own, all of those conditions subscribe to a single
+ * {@link Node}. The node listens to the resource once, evaluates the expression at most once
+ * per change of value, and notifies every rule that depends on it.
+ *
+ * <p>Only expressions whose result depends on nothing but the value of the resource can be
+ * shared; see {@link #isShareable(RPNFunction)}. Rules handle other conditions themselves.
+ *
+ * <p>All of the rules created by a {@link LocalRuleManagerTrait} share the same network. Nodes
+ * receive changes on the executor given to the network, and evaluate their expressions with the
+ * instruction and time limits of its template context, which are also used by the rules
+ * themselves.
+ */
+public final class LocalRuleNetwork {
+    private static final boolean DEBUG = false;
+    private static final Logger LOGGER =
+            Logger.getLogger(LocalRuleNetwork.class.getCanonicalName());
+
+    private static final int SLOT_V = RPNContext.getVariableSlot("v");
+
+    /** Receives notifications that the result of a {@link Node} may have changed. */
+    public interface Listener {
+        void onNodeChanged(Node node);
+    }
+
+    /** Identifies a node: the resource it watches and the recipe of its expression. */
+    private static final class Key {
+        final URI mUri;
+        final String mRecipe;
+
+        Key(URI uri, String recipe) {
+            mUri = uri;
+            mRecipe = recipe;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) obj;
+            return mUri.equals(other.mUri) && mRecipe.equals(other.mRecipe);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(mUri, mRecipe);
+        }
+    }
+
+    /** A condition evaluated on behalf of every rule subscribed to it. */
+    public final class Node implements ResourceLink.Listener<Object> {
+        private final Key mKey;
+        private final ResourceLink<Object> mResourceLink;
+        private final RPNFunction mExpression;
+        private final Set<Listener> mListeners = new CopyOnWriteArraySet<>();
+
+        // Each node has its own context, so that nodes can be evaluated concurrently.
+        private final RPNContext mContext = newContext();
+
+        private volatile @Nullable Object mValue = null;
+
+        // True once a value has been received from the resource. Guarded by this.
+        private boolean mHasValue = false;
+
+        // Guarded by this.
+        private boolean mResult = false;
+        private boolean mDirty = true;
+
+        private Node(Key key, ResourceLink<Object> resourceLink) {
+            mKey = key;
+            mResourceLink = resourceLink;
+            mExpression = mContext.compile(key.mRecipe);
+        }
+
+        /** The URI of the resource this node watches. */
+        public URI getUri() {
+            return mKey.mUri;
+        }
+
+        /** The recipe of the expression this node evaluates. */
+        public String getRecipe() {
+            return mKey.mRecipe;
+        }
+
+        /** The number of conditions currently sharing this node. */
+        public int getListenerCount() {
+            return mListeners.size();
+        }
+
+        /**
+         * Returns the result of the expression for the latest value of the resource. The
+         * expression is only evaluated by the first caller after the value changes; everyone
+         * else gets the cached result.
+         *
+         * @throws RPNException if the expression failed. Failed results are not cached.
+         */
+        public synchronized boolean getResult() {
+            if (!mDirty) {
+                return mResult;
+            }
+
+            boolean ret;
+
+            mEvaluationCount.increment();
+
+            try {
+                mContext.setVariable(SLOT_V, mValue);
+                ret = TypeConverter.BOOLEAN.coerceNonNull(mExpression.apply(mValue));
+            } catch (InvalidValueException ignore) {
+                ret = false;
+            }
+
+            if (DEBUG) LOGGER.info("Evaluating " + mKey.mUri + " " + mKey.mRecipe + " -> " + ret);
+
+            mResult = ret;
+            mDirty = false;
+
+            return ret;
+        }
+
+        @Override
+        public void onResourceLinkChanged(ResourceLink<Object> rl, @Nullable Object value) {
+            synchronized (this) {
+                mValue = value;
+                mHasValue = true;
+                mDirty = true;
+            }
+
+            mChangeCount.increment();
+
+            for (Listener listener : mListeners) {
+                mNotificationCount.increment();
+                listener.onNodeChanged(this);
+            }
+        }
+    }
+
+    private final Executor mExecutor;
+    private final RPNContext mTemplateContext;
+    private final Map<Key, Node> mNodes = new HashMap<>();
+
+    private final LongAdder mChangeCount = new LongAdder();
+    private final LongAdder mEvaluationCount = new LongAdder();
+    private final LongAdder mNotificationCount = new LongAdder();
+
+    public LocalRuleNetwork() {
+        this(Utils.getDefaultExecutor());
+    }
+
+    /** Creates a rule network that receives changes to resources on {@code executor}. */
+    public LocalRuleNetwork(Executor executor) {
+        this(executor, new RPNContext());
+    }
+
+    /**
+     * Creates a rule network that receives changes to resources on {@code executor}, and
+     * evaluates expressions with the limits and compiler setting of {@code templateContext}.
+     * Changes made to the template later only apply to nodes and rules created afterwards.
+     */
+    public LocalRuleNetwork(Executor executor, RPNContext templateContext) {
+        mExecutor = executor;
+        mTemplateContext = templateContext;
+    }
+
+    /**
+     * Returns a new context with the settings of the template context, for the rules and
+     * nodes using this network. The template isn't made the parent of the new context,
+     * since nothing is ever set on it.
+     */
+    RPNContext newContext() {
+        RPNContext context = new RPNContext();
+        context.setCompilerEnabled(mTemplateContext.isCompilerEnabled());
+        context.setInstructionLimit(mTemplateContext.getInstructionLimit());
+        context.setTimeLimit(
+                mTemplateContext.getTimeLimit(TimeUnit.NANOSECONDS), TimeUnit.NANOSECONDS);
+        return context;
+    }
+
+    /**
+     * Indicates if a condition using {@code expression} can be shared: its result must only
+     * depend on the value of the resource, and not on things like {@code v_l}, {@code c} or
+     * the time of day.
+     */
+    public static boolean isShareable(RPNFunction expression) {
+        return expression.dependsOnlyOn("v");
+    }
+
+    /**
+     * Subscribes {@code listener} to the node that evaluates {@code recipe} against the value
+     * of {@code resourceLink}, creating the node if needed. If the node already has a value,
+     * {@code listener} is notified of it on the executor, like it would be of a change.
+     *
+     * @throws RPNException if the node needs to be created and {@code recipe} is invalid
+     */
+    public synchronized Node subscribe(ResourceLink<Object> resourceLink, String recipe,
+                                       Listener listener) {
+        Key key = new Key(resourceLink.getUri(), recipe);
+        Node node = mNodes.get(key);
+
+        // The listener is added before the node starts listening to the resource, so that it
+        // gets the first value even if the resource link reports it right away.
+        if (node == null) {
+            node = new Node(key, resourceLink);
+            node.mListeners.add(listener);
+            mNodes.put(key, node);
+            resourceLink.registerListener(mExecutor, node);
+            return node;
+        }
+
+        node.mListeners.add(listener);
+
+        final boolean hasValue;
+
+        synchronized (node) {
+            hasValue = node.mHasValue;
+        }
+
+        if (hasValue) {
+            final Node subscribed = node;
+            mExecutor.execute(() -> {
+                if (subscribed.mListeners.contains(listener)) {
+                    mNotificationCount.increment();
+                    listener.onNodeChanged(subscribed);
+                }
+            });
+        }
+
+        return node;
+    }
+
+    /** Unsubscribes {@code listener}, removing the node if nothing else is subscribed to it. */
+    public synchronized void unsubscribe(Node node, Listener listener) {
+        node.mListeners.remove(listener);
+
+        if (node.mListeners.isEmpty() && mNodes.remove(node.mKey, node)) {
+            node.mResourceLink.unregisterListener(node);
+        }
+    }
+
+    /** Returns the number of distinct condition nodes. */
+    public synchronized int getNodeCount() {
+        return mNodes.size();
+    }
+
+    /** Returns the number of nodes that are shared by more than one condition. */
+    public synchronized int getSharedNodeCount() {
+        int ret = 0;
+        for (Node node : mNodes.values()) {
+            if (node.mListeners.size() > 1) {
+                ret++;
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Returns the number of conditions subscribed to nodes. The ratio of this to
+     * {@link #getNodeCount()} is the average number of conditions sharing each node.
+     */
+    public synchronized int getSubscriptionCount() {
+        int ret = 0;
+        for (Node node : mNodes.values()) {
+            ret += node.mListeners.size();
+        }
+        return ret;
+    }
+
+    /** Returns the number of changes of value received by all nodes. */
+    public long getChangeCount() {
+        return mChangeCount.sum();
+    }
+
+    /** Returns the number of times a node's expression has been evaluated. */
+    public long getEvaluationCount() {
+        return mEvaluationCount.sum();
+    }
+
+    /**
+     * Returns the number of times a condition has been notified of a change. Without
+     * sharing, each of these would have needed an evaluation of its own, so the difference
+     * between this and {@link #getEvaluationCount()} is the number of evaluations saved.
+     */
+    public long getNotificationCount() {
+        return mNotificationCount.sum();
+    }
+}
@@ -51,12 +51,35 @@ public abstract class LocalSceneThing extends LocalThing {
     private static final Logger LOGGER =
             Logger.getLogger(LocalSceneThing.class.getCanonicalName());
 
+    private static final Object[] EMPTY_VALUES = new Object[0];
+
+    // Marks an ordinal that a scene doesn't have a value for.
+    private static final Object UNSET = new Object();
+
     private Scene mCurrentScene = null;
     private String mCurrentGroupId = null;
 
+    // Every property key stored in a scene on this thing, indexed by ordinal.
+    // Scenes store their values in arrays indexed by these ordinals rather
+    // than in per-scene maps. Each key counts the scenes that have a value
+    // for it, and its ordinal is freed for reuse once no scene does.
+    // Guarded by mSceneMap.
+    private final List<PropertyKey<Object>> mSceneKeys = new ArrayList<>();
+    private final Map<String, Integer> mSceneKeyOrdinals = new HashMap<>();
+    private int[] mSceneKeyUseCounts = new int[0];
+    private final Deque<Integer> mFreeSceneKeyOrdinals = new ArrayDeque<>();
+
     private class Scene implements Thing {
         private final String mSceneId;
-        private final HashMap<String, Object> mState = new HashMap<>();
+
+        // Guarded by mSceneMap.
+        private Object[] mValues = EMPTY_VALUES;
+        private String mGroupId = null;
+        private boolean mIsRemoved = false;
+
+        // Sanitized properties to apply when this scene is recalled, or
+        // null if it needs to be rebuilt. Guarded by mSceneMap.
+        private Map<String, Object> mRecallPlan = null;
 
         Scene(String sceneId) {
             mSceneId = sceneId;
@@ -66,8 +89,128 @@ public abstract class LocalSceneThing extends LocalThing {
             return mSceneId;
         }
 
-        HashMap<String, Object> getState() {
-            return mState;
+        /** Returns a copy of the state of this scene, including the group id. */
+        Map<String, Object> getState() {
+            synchronized (mSceneMap) {
+                Map<String, Object> ret = new HashMap<>();
+
+                for (int i = 0; i < mValues.length; i++) {
+                    if (mValues[i] != UNSET) {
+                        ret.put(mSceneKeys.get(i).getName(), mValues[i]);
+                    }
+                }
+
+                if (mGroupId != null) {
+                    SceneTrait.STAT_GROUP_ID.putInMap(ret, mGroupId);
+                }
+
+                return ret;
+            }
+        }
+
+        @Nullable
+        Object getValue(String keyName) {
+            synchronized (mSceneMap) {
+                Integer ordinal = mSceneKeyOrdinals.get(keyName);
+
+                if (ordinal == null || ordinal >= mValues.length || mValues[ordinal] == UNSET) {
+                    return null;
+                }
+
+                return mValues[ordinal];
+            }
+        }
+
+        void putValue(String keyName, @Nullable Object value) {
+            synchronized (mSceneMap) {
+                if (SceneTrait.STAT_GROUP_ID.getName().equals(keyName)) {
+                    mGroupId = value != null ? value.toString() : null;
+                    return;
+                }
+
+                if (mIsRemoved) {
+                    return;
+                }
+
+                final int ordinal = getSceneKeyOrdinal(keyName);
+
+                if (ordinal >= mValues.length) {
+                    final int oldLength = mValues.length;
+                    mValues = Arrays.copyOf(mValues, mSceneKeys.size());
+                    Arrays.fill(mValues, oldLength, mValues.length, UNSET);
+                }
+
+                if (mValues[ordinal] == UNSET) {
+                    mSceneKeyUseCounts[ordinal]++;
+                }
+
+                mValues[ordinal] = value;
+                mRecallPlan = null;
+            }
+        }
+
+        /** Releases the scene keys used by this scene, once it has been removed. */
+        void releaseValues() {
+            synchronized (mSceneMap) {
+                for (int i = 0; i < mValues.length; i++) {
+                    if (mValues[i] != UNSET) {
+                        releaseSceneKeyOrdinal(i);
+                    }
+                }
+
+                mValues = EMPTY_VALUES;
+                mRecallPlan = null;
+                mIsRemoved = true;
+            }
+        }
+
+        void putAllValues(Map<String, Object> state) {
+            synchronized (mSceneMap) {
+                for (Map.Entry<String, Object> entry : state.entrySet()) {
+                    putValue(entry.getKey(), entry.getValue());
+                }
+            }
+        }
+
+        /**
+         * Returns the sanitized properties to apply when recalling this
+         * scene, building them if needed. Values that no longer belong to
+         * a trait on this thing, that can't be saved, or that fail
+         * sanitization are dropped.
+         */
+        Map<String, Object> getRecallPlan() {
+            synchronized (mSceneMap) {
+                if (mRecallPlan == null) {
+                    final Map<String, Object> plan = new HashMap<>();
+
+                    for (int i = 0; i < mValues.length; i++) {
+                        if (mValues[i] == UNSET) {
+                            continue;
+                        }
+
+                        final PropertyKey<Object> key = mSceneKeys.get(i);
+                        final LocalTrait trait = getTraitForPropertyKey(key);
+
+                        if (trait == null
+                                || !trait.onCanSaveProperty(key)
+                                || SceneTrait.STAT_SCENE_ID.equals(key)) {
+                            continue;
+                        }
+
+                        try {
+                            plan.put(key.getName(),
+                                    trait.sanitizeValueForPropertyKey(key, mValues[i]));
+
+                        } catch (PropertyException | TechnologyException x) {
+                            LOGGER.warning("Dropping " + key + " from " + this + ": " + x);
+                        }
+                    }
+
+                    mRecallPlan = Collections.unmodifiableMap(plan);
+                }
+
+                return mRecallPlan;
+            }
         }
 
         @Override
@@ -76,11 +219,15 @@ public abstract class LocalSceneThing extends LocalThing {
         }
 
         String getGroupId() {
-            return SceneTrait.STAT_GROUP_ID.getFromMapNoThrow(mState);
+            synchronized (mSceneMap) {
+                return mGroupId;
+            }
         }
 
         void setGroupId(String groupId) {
-            SceneTrait.STAT_GROUP_ID.putInMap(mState, groupId);
+            synchronized (mSceneMap) {
+                mGroupId = groupId;
+            }
         }
 
         @Override
@@ -104,7 +251,17 @@ public abstract class LocalSceneThing extends LocalThing {
                 return Futures.immediateFailedFuture(new PropertyOperationUnsupportedException());
             }
 
-            key.putInMap(mState, value);
+            if (value != null && !SceneTrait.STAT_GROUP_ID.equals(key)) {
+                try {
+                    // Validate now rather than when the scene is recalled.
+                    value = trait.sanitizeValueForPropertyKey(key, value);
+
+                } catch (PropertyException | TechnologyException x) {
+                    return Futures.immediateFailedFuture(x);
+                }
+            }
+
+            putValue(key.getName(), value);
 
             changedPersistentState();
 
@@ -162,8 +319,16 @@ public abstract class LocalSceneThing extends LocalThing {
         @Nullable
         @Override
         public <T> T getCachedProperty(PropertyKey<T> key) {
+            if (SceneTrait.STAT_GROUP_ID.equals(key)) {
+                return key.cast(getGroupId());
+            }
+
             if (key.isInSection(Section.STATE)) {
-                return key.getFromMapNoThrow(mState);
+                try {
+                    return key.coerce(getValue(key.getName()));
+                } catch (InvalidValueException ignored) {
+                    return null;
+                }
             }
 
             if (BaseTrait.META_UID.equals(key)) {
@@ -178,7 +343,7 @@ public abstract class LocalSceneThing extends LocalThing {
             Map<String, Object> ret = new HashMap<>();
 
             if (Section.STATE.equals(section)) {
-                ret.putAll(mState);
+                ret.putAll(getState());
             } else if (Section.METADATA.equals(section)) {
                 BaseTrait.META_UID.putInMap(ret, mSceneId);
             }
@@ -201,7 +366,7 @@ public abstract class LocalSceneThing extends LocalThing {
                     continue;
                 }
 
-                key.putInMap(mState, entry.getValue());
+                putValue(key.getName(), entry.getValue());
             }
             return Futures.immediateFuture(null);
         }
@@ -369,6 +534,45 @@ public abstract class LocalSceneThing extends LocalThing {
         registerTrait(mSceneTrait);
     }
 
+    private int getSceneKeyOrdinal(String keyName) {
+        Integer ordinal = mSceneKeyOrdinals.get(keyName);
+
+        if (ordinal == null) {
+            final PropertyKey<Object> key = new PropertyKey<>(keyName, Object.class);
+
+            ordinal = mFreeSceneKeyOrdinals.poll();
+
+            if (ordinal == null) {
+                ordinal = mSceneKeys.size();
+                mSceneKeys.add(key);
+                mSceneKeyUseCounts = Arrays.copyOf(mSceneKeyUseCounts, mSceneKeys.size());
+            } else {
+                mSceneKeys.set(ordinal, key);
+            }
+
+            mSceneKeyOrdinals.put(keyName, ordinal);
+        }
+
+        return ordinal;
+    }
+
+    private void releaseSceneKeyOrdinal(int ordinal) {
+        if (--mSceneKeyUseCounts[ordinal] == 0) {
+            // No scene has a value for this key anymore, so its ordinal can
+            // be reused. Scene arrays are all UNSET at this ordinal.
+            mSceneKeyOrdinals.remove(mSceneKeys.get(ordinal).getName());
+            mSceneKeys.set(ordinal, null);
+            mFreeSceneKeyOrdinals.add(ordinal);
+        }
+    }
+
+    /** Number of distinct property keys currently stored in the scenes of this thing. */
+    final int getSceneKeyCount() {
+        synchronized (mSceneMap) {
+            return mSceneKeyOrdinals.size();
+        }
+    }
+
     private void updateCurrentScene(@Nullable Scene scene) {
         if (!Objects.equals(mCurrentScene, scene)) {
             mCurrentScene = scene;
@@ -380,13 +584,24 @@ public abstract class LocalSceneThing extends LocalThing {
         }
     }
 
-    private HashMap<String, Object> getSceneIdState(String sceneId) {
+    @Nullable
+    private Map<String, Object> getSceneIdRecallPlan(String sceneId) {
         synchronized (mSceneMap) {
             Scene scene = mSceneMap.get(sceneId);
-            return scene != null ? scene.mState : null;
+            return scene != null ? scene.getRecallPlan() : null;
         }
     }
 
+    /**
+     * Makes sure the recall plan for {@code sceneId} is ready, so that a
+     * subsequent recall doesn't need to build it.
+     *
+     * @return false if this thing doesn't have the given scene
+     */
+    final boolean prepareToRecallSceneId(String sceneId) {
+        return getSceneIdRecallPlan(sceneId) != null;
+    }
+
     /**
      * Returns a the set of scene IDs that this thing currently has.
      *
@@ -455,7 +670,10 @@ public abstract class LocalSceneThing extends LocalThing {
                 }
             }
 
-            scene.mState.putAll(state);
+            scene.putAllValues(state);
+
+            // Build the recall plan now so that recalling the scene is cheap.
+            scene.getRecallPlan();
         }
     }
 
@@ -486,6 +704,7 @@ public abstract class LocalSceneThing extends LocalThing {
             if (scene != null) {
                 mSceneTrait.didRemoveChild(scene);
                 mSceneMap.remove(sceneId);
+                scene.releaseValues();
             }
         }
     }
@@ -504,11 +723,15 @@ public abstract class LocalSceneThing extends LocalThing {
         }
 
         if (sceneId != null) {
-            Map<String, Object> sceneState = getSceneIdState(sceneId);
-            if (sceneState != null) {
-                Map<String, Object> newState = new HashMap<>(sceneState);
-                newState.putAll(super.expandProperties(properties));
-                SceneTrait.STAT_GROUP_ID.removeFromMap(newState);
+            Map<String, Object> recallPlan = getSceneIdRecallPlan(sceneId);
+            if (recallPlan != null) {
+                // The recall plan is already sanitized, so only the
+                // explicitly given properties need to be expanded.
+                Map<String, Object> expanded = super.expandProperties(properties);
+                Map<String, Object> newState =
+                        Maps.newHashMapWithExpectedSize(recallPlan.size() + expanded.size());
+                newState.putAll(recallPlan);
+                newState.putAll(expanded);
                 return newState;
             }
         }
@@ -560,9 +783,13 @@ public abstract class LocalSceneThing extends LocalThing {
                 for (Map.Entry<String, Map<String, Object>> entry : scenes.entrySet()) {
                     final Scene scene = new Scene(entry.getKey());
 
-                    scene.mState.putAll(entry.getValue());
+                    scene.putAllValues(entry.getValue());
+
+                    final Scene previous = mSceneMap.put(entry.getKey(), scene);
 
-                    mSceneMap.put(entry.getKey(), scene);
+                    if (previous != null) {
+                        previous.releaseValues();
+                    }
                 }
             }
 
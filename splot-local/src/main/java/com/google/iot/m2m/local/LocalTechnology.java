@@ -58,6 +58,15 @@ public final class LocalTechnology
             new NestedPersistentStateManager();
 
     private final Map<Thing, String> mHostedPathLookup = new WeakHashMap<>();
+
+    // Inverted indexes from trait short id and UID to hosted things, used to
+    // answer discovery queries without scanning every hosted thing. Kept up
+    // to date by mIndexListener. Guarded by mHostedPathLookup.
+    private final Map<String, Set<Thing>> mTraitIndex = new HashMap<>();
+    private final Map<String, WeakReference<Thing>> mUidIndex = new HashMap<>();
+    private final Map<Thing, IndexEntry> mIndexedThings = new WeakHashMap<>();
+
+    private final SectionListener mIndexListener = this::updateIndexes;
     private final Map<String, WeakReference<LocalGroup>> mGroups = new WeakHashMap<>();
 
     private final List<WeakReference<LazyResourceLink<Object>>> mLazyResourceLinks
@@ -80,6 +89,103 @@ public final class LocalTechnology
         return mExecutor;
     }
 
+    /** What a hosted thing is currently indexed under. */
+    private static final class IndexEntry {
+        @Nullable String mUid = null;
+        Set<String> mTraits = Collections.emptySet();
+    }
+
+    private static final String TRAIT_URI_SUFFIX = "/turi";
+
+    /**
+     * Updates the discovery indexes for {@code fe} from the given metadata section, which
+     * may only contain the properties that changed. The UID index is only changed if the
+     * map has a UID entry, which may be null if the UID was removed.
+     */
+    private void updateIndexes(Thing fe, Map<String, Object> metadata) {
+        final boolean hasUid = BaseTrait.META_UID.isInMap(metadata);
+        final String uid = BaseTrait.META_UID.getFromMapNoThrow(metadata);
+        final Set<String> traits = new HashSet<>();
+
+        for (String key : metadata.keySet()) {
+            // Trait URI properties look like "m/<trait>/turi"
+            if (key.endsWith(TRAIT_URI_SUFFIX)
+                    && key.startsWith(Splot.SECTION_METADATA + "/")
+                    && metadata.get(key) != null) {
+                traits.add(key.substring(Splot.SECTION_METADATA.length() + 1,
+                        key.length() - TRAIT_URI_SUFFIX.length()));
+            }
+        }
+
+        synchronized (mHostedPathLookup) {
+            if (!mHostedPathLookup.containsKey(fe)) {
+                // No longer hosted.
+                return;
+            }
+
+            final IndexEntry entry = mIndexedThings.computeIfAbsent(fe, k -> new IndexEntry());
+
+            if (hasUid && !Objects.equals(entry.mUid, uid)) {
+                if (entry.mUid != null) {
+                    WeakReference<Thing> ref = mUidIndex.get(entry.mUid);
+                    if (ref != null && ref.get() == fe) {
+                        mUidIndex.remove(entry.mUid);
+                    }
+                }
+                if (uid != null) {
+                    mUidIndex.put(uid, new WeakReference<>(fe));
+                }
+                entry.mUid = uid;
+            }
+
+            if (!traits.isEmpty() && !entry.mTraits.equals(traits)) {
+                for (String trait : entry.mTraits) {
+                    if (!traits.contains(trait)) {
+                        removeFromTraitIndex(trait, fe);
+                    }
+                }
+                for (String trait : traits) {
+                    mTraitIndex.computeIfAbsent(
+                            trait, k -> Collections.newSetFromMap(new WeakHashMap<>())).add(fe);
+                }
+                entry.mTraits = traits;
+            }
+        }
+    }
+
+    private void removeFromTraitIndex(String trait, Thing fe) {
+        Set<Thing> things = mTraitIndex.get(trait);
+        if (things != null) {
+            things.remove(fe);
+            if (things.isEmpty()) {
+                mTraitIndex.remove(trait);
+            }
+        }
+    }
+
+    /**
+     * Removes {@code fe} from the discovery indexes. Must be called
+     * while synchronized on mHostedPathLookup.
+     */
+    private void removeFromIndexes(Thing fe) {
+        final IndexEntry entry = mIndexedThings.remove(fe);
+
+        if (entry == null) {
+            return;
+        }
+
+        if (entry.mUid != null) {
+            WeakReference<Thing> ref = mUidIndex.get(entry.mUid);
+            if (ref != null && ref.get() == fe) {
+                mUidIndex.remove(entry.mUid);
+            }
+        }
+
+        for (String trait : entry.mTraits) {
+            removeFromTraitIndex(trait, fe);
+        }
+    }
+
     private <T> ListenableFuture<T> submit(Callable<T> callable) {
         ListenableFutureTask<T> future = ListenableFutureTask.create(callable);
 
@@ -119,6 +225,7 @@ public final class LocalTechnology
                     final String groupId = group.getGroupId();
                     mNestedPersistentStateManager.startManaging(GROUP_PREFIX + groupId, group);
                     mHostedPathLookup.put(fe, "g/" + groupId);
+                    fe.registerSectionListener(Runnable::run, Section.METADATA, mIndexListener);
 
                 } else {
                     if (!isAssociatedWith(fe)) {
@@ -132,6 +239,12 @@ public final class LocalTechnology
 
                         fe.fetchSection(Section.METADATA);
 
+                        // Keeps the discovery indexes up to date, including
+                        // when the UID changes. This is immediately called
+                        // back with the current metadata.
+                        fe.registerSectionListener(
+                                Runnable::run, Section.METADATA, mIndexListener);
+
                         synchronized (mGroups) {
                             mGroups.values()
                                     .forEach(
@@ -175,6 +288,8 @@ public final class LocalTechnology
                 }
             }
 
+            fe.unregisterSectionListener(mIndexListener);
+            removeFromIndexes(fe);
             mHostedPathLookup.remove(fe);
         }
     }
@@ -551,13 +666,56 @@ public final class LocalTechnology
     @Nullable
     Thing getHostedThingForUid(String uid) {
         synchronized (mHostedPathLookup) {
-            for (Thing fe : mHostedPathLookup.keySet()) {
-                if (uid.equals(fe.getCachedProperty(BaseTrait.META_UID))) {
-                    return fe;
+            WeakReference<Thing> ref = mUidIndex.get(uid);
+            return ref != null ? ref.get() : null;
+        }
+    }
+
+    /**
+     * Returns the hosted things that have all of the given traits, using the
+     * trait index. The cost is proportional to the number of things having
+     * the rarest of the given traits.
+     */
+    private Collection<Thing> getHostedThingsWithTraits(Set<String> traits) {
+        synchronized (mHostedPathLookup) {
+            Set<Thing> smallest = null;
+
+            for (String trait : traits) {
+                Set<Thing> things = mTraitIndex.get(trait);
+
+                if (things == null) {
+                    return Collections.emptyList();
+                }
+
+                if (smallest == null || things.size() < smallest.size()) {
+                    smallest = things;
                 }
             }
+
+            if (smallest == null) {
+                return copyHostedThingSet();
+            }
+
+            final List<Thing> ret = new ArrayList<>();
+
+            for (Thing fe : smallest) {
+                boolean hasAllTraits = true;
+
+                for (String trait : traits) {
+                    Set<Thing> things = mTraitIndex.get(trait);
+                    if (things != smallest && !things.contains(fe)) {
+                        hasAllTraits = false;
+                        break;
+                    }
+                }
+
+                if (hasAllTraits) {
+                    ret.add(fe);
+                }
+            }
+
+            return ret;
         }
-        return null;
     }
 
     class DiscoveryQuery extends com.google.iot.m2m.base.DiscoveryQuery {
@@ -600,6 +758,9 @@ public final class LocalTechnology
             synchronized (mThings) {
                 mThings.clear();
 
+                final boolean hasRequiredTraits =
+                        mRequiredTraits != null && !mRequiredTraits.isEmpty();
+
                 Collection<Thing> collection;
 
                 if (mRequiredUid != null) {
@@ -608,11 +769,15 @@ public final class LocalTechnology
                     if (fe != null) {
                         collection.add(fe);
                     }
+                } else if (hasRequiredTraits) {
+                    // Only candidates that have all of the required traits
+                    // are returned, so they don't need to be checked again.
+                    collection = getHostedThingsWithTraits(mRequiredTraits);
                 } else {
                     collection = copyHostedThingSet();
                 }
 
-                if (mRequiredTraits == null || mRequiredTraits.isEmpty()) {
+                if (!hasRequiredTraits) {
                     mThings.addAll(collection);
                     return;
                 }
@@ -629,34 +794,33 @@ public final class LocalTechnology
                         continue;
                     }
 
-                    if (!isGroup && mIncludeNormal) {
+                    if (!isGroup && !mIncludeNormal) {
                         continue;
                     }
 
-                    boolean missingTrait = false;
-                    for (String trait : mRequiredTraits) {
-                        String traitUri =
-                                fe.getCachedProperty(
-                                        new PropertyKey<>(
-                                                Splot.SECTION_METADATA
-                                                        + "/"
-                                                        + trait
-                                                        + "/turi",
-                                                String.class));
-                        if (traitUri == null) {
-                            missingTrait = true;
-                            break;
-                        }
-                    }
-                    if (!missingTrait) {
-                        mThings.add(fe);
+                    if (mRequiredUid != null && !hasTraits(fe, mRequiredTraits)) {
+                        continue;
                     }
+
+                    mThings.add(fe);
                 }
             }
 
             done();
         }
 
+        private boolean hasTraits(Thing fe, Set<String> traits) {
+            synchronized (mHostedPathLookup) {
+                for (String trait : traits) {
+                    Set<Thing> things = mTraitIndex.get(trait);
+                    if (things == null || !things.contains(fe)) {
+                        return false;
+                    }
+                }
+            }
+            return true;
+        }
+
         @Override
         public void stop() {
             /* Nothing to do */
@@ -66,6 +66,10 @@ public abstract class LocalThing
 
     private PersistentStateListener mPersistentStateListener = null;
 
+    private final Object mPersistentStateBatchLock = new Object();
+    private int mPersistentStateBatchDepth = 0;
+    private boolean mPersistentStateBatchChanged = false;
+
     class PropertyListenerEntry {
         final Executor mExecutor;
         final PropertyListener<?> mListener;
@@ -836,6 +840,13 @@ public abstract class LocalThing
      * <p>The persistent state will be written to non-volatile storage in the background.
      */
     final void changedPersistentState() {
+        synchronized (mPersistentStateBatchLock) {
+            if (mPersistentStateBatchDepth > 0) {
+                mPersistentStateBatchChanged = true;
+                return;
+            }
+        }
+
         final PersistentStateListener listener = mPersistentStateListener;
 
         if (listener != null) {
@@ -843,6 +854,38 @@ public abstract class LocalThing
         }
     }
 
+    /**
+     * Holds back calls to {@link #changedPersistentState()} until the matching call to
+     * {@link #endPersistentStateBatch()}, so that a series of changes, such as adding many
+     * children, is only saved once. Calls may be nested.
+     */
+    final void beginPersistentStateBatch() {
+        synchronized (mPersistentStateBatchLock) {
+            mPersistentStateBatchDepth++;
+        }
+    }
+
+    /**
+     * Ends a batch started by {@link #beginPersistentStateBatch()}, saving the state if it
+     * changed.
+     */
+    final void endPersistentStateBatch() {
+        synchronized (mPersistentStateBatchLock) {
+            if (mPersistentStateBatchDepth == 0) {
+                throw new IllegalStateException(
+                        "endPersistentStateBatch() without beginPersistentStateBatch()");
+            }
+
+            if (--mPersistentStateBatchDepth > 0 || !mPersistentStateBatchChanged) {
+                return;
+            }
+
+            mPersistentStateBatchChanged = false;
+        }
+
+        changedPersistentState();
+    }
+
     /**
      * Called whenever the persistent state of this thing has changed, and execution
      * should be blocked until the state has been committed.
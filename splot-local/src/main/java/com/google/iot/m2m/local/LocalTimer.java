@@ -18,9 +18,14 @@ package com.google.iot.m2m.local;
 import com.google.iot.m2m.base.*;
 import com.google.iot.m2m.local.rpn.RPNContext;
 import com.google.iot.m2m.local.rpn.RPNException;
+import com.google.iot.m2m.local.rpn.RPNFunction;
 import com.google.iot.m2m.trait.*;
 import org.checkerframework.checker.nullness.qual.Nullable;
 
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZonedDateTime;
 import java.util.*;
 import java.util.concurrent.*;
 import java.util.function.Function;
@@ -36,15 +41,23 @@ public class LocalTimer extends LocalActions {
     private static final boolean DEBUG = false;
     private static final Logger LOGGER = Logger.getLogger(LocalTimer.class.getCanonicalName());
 
+    private static final int SLOT_C = RPNContext.getVariableSlot("c");
+
+    /**
+     * Calendar schedules further away than this are recalculated in the meantime, so that
+     * the timer follows changes of the wall clock.
+     */
+    private static final long CALENDAR_RECHECK_MS = TimeUnit.HOURS.toMillis(1);
+
     private RPNContext mSharedRPNContext = new RPNContext();
     private RPNContext mScheduleRPNContext = new RPNContext(mSharedRPNContext);
     private RPNContext mPredicateRPNContext = new RPNContext(mSharedRPNContext);
 
-    private long mFireTime = 0;
-
     private ScheduledExecutorService mExecutor = Utils.getDefaultExecutor();
 
-    private Future<?> mTimer = null;
+    private final LocalTimerService mTimerService;
+
+    private LocalTimerService.Timeout mTimer = null;
 
     private boolean mAutoReset = false;
 
@@ -61,13 +74,35 @@ public class LocalTimer extends LocalActions {
     private Function<Object, Object> mPredicateProgram = (x) -> true;
     private String mPredicateProgramRecipe = "";
 
+    // Calendar schedule, used instead of the schedule program if set.
+    private @Nullable CalendarSchedule mCalendarSchedule = null;
+    private String mCalendarScheduleRecipe = "";
+
+    // When the timer will fire according to the calendar schedule, if it is running.
+    private @Nullable Instant mCalendarDeadline = null;
+
+    // When the timer last fired according to the calendar schedule.
+    private @Nullable Instant mLastCalendarFire = null;
+
+    private Clock mClock = Clock.systemDefaultZone();
+
     private String mTrap = null;
 
     public LocalTimer(ResourceLinkManager technology) {
+        this(technology, LocalTimerService.getDefault());
+    }
+
+    /**
+     * Creates a timer whose timeouts are scheduled by {@code timerService} instead of the
+     * service shared by all timers.
+     */
+    public LocalTimer(ResourceLinkManager technology, LocalTimerService timerService) {
         super(technology);
+        mTimerService = timerService;
         registerTrait(mBaseTrait);
         registerTrait(mTimerTrait);
         registerTrait(mEnabledDisabledTrait);
+        mSharedRPNContext.setRtcClock(mClock);
     }
 
     @Override
@@ -76,31 +111,80 @@ public class LocalTimer extends LocalActions {
     }
 
     private void updateRpnContextVariables() {
-        mSharedRPNContext.setVariable("c", getCount());
-        mSharedRPNContext.updateRtcVariables(Calendar.getInstance());
+        mSharedRPNContext.setVariable(SLOT_C, getCount());
+    }
+
+    /**
+     * Changes the clock used to compute the {@code rtc.*} variables and calendar schedules.
+     * The system clock in the default time zone is used unless changed. Mostly useful for
+     * testing.
+     */
+    public void setClock(Clock clock) {
+        mClock = clock;
+        mSharedRPNContext.setRtcClock(clock);
+    }
+
+    /**
+     * Changes the executor used to invoke actions. Must be called before the timer is
+     * started. Mostly useful for testing.
+     */
+    public void setExecutor(ScheduledExecutorService executor) {
+        mExecutor = executor;
     }
 
     private void stopTimer() {
         if (mTimer != null && !mTimer.isDone()) {
-            mTimer.cancel(false);
+            mTimer.cancel();
             if (DEBUG) LOGGER.info("Timer stopped");
         }
         mTimer = null;
+        mCalendarDeadline = null;
     }
 
+    /** Schedules the next fire, recording the work as one evaluation. */
     private void resetTimer() {
+        if (!mEnabled) {
+            return;
+        }
+
+        final long start = System.nanoTime();
+
+        try {
+            scheduleNextFire();
+        } finally {
+            getStatistics().recordEvaluation(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Schedules the next fire without recording an evaluation, so that the caller can
+     * record it together with any other work done for the same fire.
+     */
+    private void scheduleNextFire() {
         if (mEnabled) {
+            CalendarSchedule calendarSchedule = mCalendarSchedule;
+
+            if (calendarSchedule != null) {
+                resetCalendarTimer(calendarSchedule);
+                return;
+            }
+
             stopTimer();
 
-            long now = System.nanoTime();
-            Object nextObj = mScheduleProgram.apply(null);
+            Object nextObj;
+
+            try {
+                nextObj = mScheduleProgram.apply(null);
+            } catch (RPNException x) {
+                onProgramError(x);
+                return;
+            }
+
             if (nextObj instanceof Number) {
                 double seconds = ((Number) nextObj).doubleValue();
                 if (seconds > 0) {
                     long nanoseconds = TimeUnit.MILLISECONDS.toNanos((long) (seconds * 1000));
-                    mFireTime = now + nanoseconds;
-
-                    mTimer = getExecutor().schedule(
+                    mTimer = mTimerService.schedule(
                             this::handleTimerFired, nanoseconds, TimeUnit.NANOSECONDS);
                     mTimerTrait.didChangeNext((float) seconds);
                     if (DEBUG) LOGGER.info("Timer started, will fire in " + seconds + "s (" + nanoseconds + "ns)");
@@ -113,8 +197,63 @@ public class LocalTimer extends LocalActions {
         }
     }
 
+    private void resetCalendarTimer(CalendarSchedule calendarSchedule) {
+        stopTimer();
+
+        ZonedDateTime now = ZonedDateTime.now(mClock);
+        ZonedDateTime after = now;
+        Instant lastFire = mLastCalendarFire;
+
+        // The timer may fire slightly ahead of the clock, which mustn't fire it twice.
+        if (lastFire != null && lastFire.isAfter(now.toInstant())) {
+            after = lastFire.atZone(now.getZone());
+        }
+
+        final ZonedDateTime next = calendarSchedule.next(after);
+
+        if (next == null) {
+            if (DEBUG) LOGGER.info("Calendar schedule never fires again");
+            return;
+        }
+
+        long nanoseconds = Duration.between(now.toInstant(), next.toInstant()).toNanos();
+        long recheck = TimeUnit.MILLISECONDS.toNanos(CALENDAR_RECHECK_MS);
+
+        if (nanoseconds > recheck) {
+            mTimer = mTimerService.schedule(
+                    this::handleCalendarRecheck, recheck, TimeUnit.NANOSECONDS);
+        } else {
+            mTimer = mTimerService.schedule(
+                    this::handleCalendarTimerFired, nanoseconds, TimeUnit.NANOSECONDS);
+        }
+
+        mCalendarDeadline = next.toInstant();
+        mTimerTrait.didChangeNext(nanoseconds / 1e9f);
+        if (DEBUG) LOGGER.info("Timer started, will fire at " + next);
+    }
+
+    private void handleCalendarRecheck() {
+        if (DEBUG) LOGGER.info("handleCalendarRecheck");
+
+        if (mEnabled && mCalendarSchedule != null) {
+            scheduleNextFire();
+        }
+    }
+
+    private void handleCalendarTimerFired() {
+        mLastCalendarFire = mCalendarDeadline;
+        handleTimerFired();
+    }
+
     private boolean doesPredicatePass() {
-        Object predObj = mPredicateProgram.apply(true);
+        Object predObj;
+
+        try {
+            predObj = mPredicateProgram.apply(true);
+        } catch (RPNException x) {
+            onProgramError(x);
+            return false;
+        }
 
         try {
             if (predObj != null && TypeConverter.BOOLEAN.coerceNonNull(predObj)) {
@@ -129,8 +268,28 @@ public class LocalTimer extends LocalActions {
         return false;
     }
 
+    /** Describes the resources this timer acts on to {@code analyzer}. */
+    void addToAnalyzer(AutomationGraphAnalyzer analyzer, String id) {
+        analyzer.addTimer(id, copyActionUris());
+    }
+
+    @Override
+    protected int getInstructionCount() {
+        int ret = 0;
+
+        if (mScheduleProgram instanceof RPNFunction) {
+            ret += ((RPNFunction) mScheduleProgram).getInstructionCount();
+        }
+
+        if (mPredicateProgram instanceof RPNFunction) {
+            ret += ((RPNFunction) mPredicateProgram).getInstructionCount();
+        }
+
+        return ret;
+    }
+
     private boolean isRunning() {
-        Future<?> timer = mTimer;
+        LocalTimerService.Timeout timer = mTimer;
         return timer != null && !timer.isDone();
     }
 
@@ -141,7 +300,7 @@ public class LocalTimer extends LocalActions {
             mBaseTrait.didChangeTrap(null);
         }
         super.invoke();
-        mSharedRPNContext.setVariable("c", getCount());
+        mSharedRPNContext.setVariable(SLOT_C, getCount());
     }
 
     @Override
@@ -151,23 +310,47 @@ public class LocalTimer extends LocalActions {
         mBaseTrait.didChangeTrap(trap);
     }
 
+    private void onProgramError(RPNException x) {
+        LOGGER.warning("Timer program failed: " + x);
+        String trap = x.toString();
+        mTrap = trap;
+        mBaseTrait.didChangeTrap(trap);
+    }
+
     private void handleTimerFired() {
         if (DEBUG) LOGGER.info("handleTimerFired");
 
         updateRpnContextVariables();
 
+        // The predicate and schedule programs are recorded as a single evaluation of this
+        // fire, leaving out the time spent invoking the actions.
+        long start = System.nanoTime();
+
         if (!doesPredicatePass()) {
-            resetTimer();
+            try {
+                scheduleNextFire();
+            } finally {
+                getStatistics().recordEvaluation(System.nanoTime() - start);
+            }
             return;
         }
 
+        long evaluationNanos = System.nanoTime() - start;
+
         invoke();
 
         if (mAutoReset) {
             if (DEBUG) LOGGER.info("Auto restart");
-            resetTimer();
+            start = System.nanoTime();
+            try {
+                scheduleNextFire();
+            } finally {
+                evaluationNanos += System.nanoTime() - start;
+            }
         }
 
+        getStatistics().recordEvaluation(evaluationNanos);
+
         if (!isRunning()) {
             if (DEBUG) LOGGER.info("Timer done for now");
             stopTimer();
@@ -232,7 +415,7 @@ public class LocalTimer extends LocalActions {
                 if (mAutoReset) {
                     updateRpnContextVariables();
                     resetCount();
-                    mSharedRPNContext.setVariable("c", getCount());
+                    mSharedRPNContext.setVariable(SLOT_C, getCount());
                     resetTimer();
                 }
 
@@ -274,7 +457,7 @@ public class LocalTimer extends LocalActions {
                 if (mAutoReset) {
                     resetCount();
                 }
-                mSharedRPNContext.setVariable("c", getCount());
+                mSharedRPNContext.setVariable(SLOT_C, getCount());
                 resetTimer();
                 mTimerTrait.didChangeRunning(false);
             }
@@ -334,6 +517,36 @@ public class LocalTimer extends LocalActions {
             didChangeScheduleProgram(value);
         }
 
+        @Override
+        public @Nullable String onGetScheduleCalendar() {
+            return mCalendarScheduleRecipe;
+        }
+
+        @Override
+        public void onSetScheduleCalendar(@Nullable String value) throws InvalidPropertyValueException {
+            if (value == null) {
+                value = "";
+            }
+
+            if (value.equals(mCalendarScheduleRecipe)) {
+                return;
+            }
+
+            try {
+                mCalendarSchedule = value.isEmpty() ? null : CalendarSchedule.parse(value);
+                mCalendarScheduleRecipe = value;
+            } catch (IllegalArgumentException e) {
+                throw new InvalidPropertyValueException(e);
+            }
+
+            if (isRunning()) {
+                updateRpnContextVariables();
+                resetTimer();
+            }
+
+            didChangeScheduleCalendar(value);
+        }
+
         @Override
         public @Nullable String onGetPredicateProgram() {
             return mPredicateProgramRecipe;
@@ -390,11 +603,20 @@ public class LocalTimer extends LocalActions {
         @Override
         @Nullable
         public Float onGetNext() {
-            if (!isRunning() || mFireTime == 0) {
+            LocalTimerService.Timeout timer = mTimer;
+
+            if (timer == null || timer.isDone()) {
                 return null;
             }
 
-            long next = mFireTime - System.nanoTime();
+            Instant calendarDeadline = mCalendarDeadline;
+
+            if (calendarDeadline != null) {
+                long millis = Duration.between(mClock.instant(), calendarDeadline).toMillis();
+                return millis < 0 ? null : millis / 1000.0f;
+            }
+
+            long next = timer.getDelay(TimeUnit.NANOSECONDS);
 
             if (next < 0) {
                 return null;
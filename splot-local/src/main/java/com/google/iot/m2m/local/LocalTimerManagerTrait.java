@@ -20,7 +20,6 @@ import com.google.common.util.concurrent.ListenableFuture;
 import com.google.errorprone.annotations.CanIgnoreReturnValue;
 import com.google.iot.m2m.base.*;
 import com.google.iot.m2m.trait.*;
-import com.google.iot.m2m.util.NestedPersistentStateManager;
 import org.checkerframework.checker.nullness.qual.Nullable;
 
 import java.util.HashMap;
@@ -45,7 +44,7 @@ public class LocalTimerManagerTrait extends AutomationTimerManagerTrait.Abstract
     Map<Thing, String> mTimerReverseLookup = new HashMap<>();
     int mNextChildId = 1;
     Thing mParent;
-    NestedPersistentStateManager mNestedPersistentStateManager = new NestedPersistentStateManager();
+    ChildPersistentStateManager mChildPersistentStateManager = new ChildPersistentStateManager();
 
     public LocalTimerManagerTrait(ResourceLinkManager resourceLinkManager, Thing parent) {
         mResourceLinkManager = resourceLinkManager;
@@ -91,8 +90,7 @@ public class LocalTimerManagerTrait extends AutomationTimerManagerTrait.Abstract
         mTimerReverseLookup.remove(child);
         mTimerLookup.remove(childId);
 
-        mNestedPersistentStateManager.stopManaging(childId);
-        mNestedPersistentStateManager.reset(childId);
+        mChildPersistentStateManager.stopManaging(childId);
 
         didRemoveChild(child);
         return true;
@@ -123,7 +121,7 @@ public class LocalTimerManagerTrait extends AutomationTimerManagerTrait.Abstract
 
         mTimerLookup.put(childId, timer);
         mTimerReverseLookup.put(timer, childId);
-        mNestedPersistentStateManager.startManaging(childId, timer);
+        mChildPersistentStateManager.startManaging(childId, timer);
         didAddChild(timer);
 
         return timer;
@@ -227,9 +225,37 @@ public class LocalTimerManagerTrait extends AutomationTimerManagerTrait.Abstract
         return ret;
     }
 
+    @Override
+    public String[] onInvokeCreateBulk(Map<String, Object> args) throws InvalidMethodArgumentsException {
+        String[] ret = BulkChildOperations.createChildren(args, AutomationTimerManagerTrait.PARAM_ITEMS,
+                mParent, mChildPersistentStateManager, this::onInvokeCreate, this::onGetIdForChild,
+                this::onDeleteChild);
+
+        if (DEBUG) LOGGER.info("Created " + ret.length + " timers");
+
+        return ret;
+    }
+
+    @Override
+    public Integer onInvokeDeleteBulk(Map<String, Object> args) throws InvalidMethodArgumentsException {
+        return BulkChildOperations.deleteChildren(args, AutomationTimerManagerTrait.PARAM_IDS,
+                mParent, mChildPersistentStateManager, mTimerLookup::get, this::onDeleteChild);
+    }
+
+    /**
+     * Saves the state of each timer managed by this trait separately using {@code manager},
+     * under the ID of the timer prefixed with {@code prefix}, instead of nesting it in the
+     * state of this trait. This means that changing a single timer only refreshes the
+     * state of that timer. Must be called before this trait's persistent state is
+     * initialized.
+     */
+    public void setChildPersistentStateManager(PersistentStateManager manager, String prefix) {
+        mChildPersistentStateManager.setExternalManager(manager, prefix);
+    }
+
     @Override
     public Map<String, Object> copyPersistentState() {
-        return mNestedPersistentStateManager.copyPersistentState();
+        return mChildPersistentStateManager.copyPersistentState();
     }
 
     @Override
@@ -238,7 +264,7 @@ public class LocalTimerManagerTrait extends AutomationTimerManagerTrait.Abstract
             return;
         }
 
-        mNestedPersistentStateManager.initWithPersistentState(persistentState);
+        mChildPersistentStateManager.initWithPersistentState(persistentState);
 
         for (Map.Entry<String, Object> entry : persistentState.entrySet()) {
             Object entryValue = entry.getValue();
@@ -253,6 +279,6 @@ public class LocalTimerManagerTrait extends AutomationTimerManagerTrait.Abstract
 
     @Override
     public void setPersistentStateListener(@Nullable PersistentStateListener listener) {
-        mNestedPersistentStateManager.setPersistentStateListener(listener);
+        mChildPersistentStateManager.setPersistentStateListener(listener);
     }
 }
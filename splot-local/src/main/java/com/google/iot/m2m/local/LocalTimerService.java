@@ -0,0 +1,280 @@
+/*
+ * Copyright (C) 2019 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.iot.m2m.local;
+
+import com.google.common.base.Ticker;
+import com.google.errorprone.annotations.CanIgnoreReturnValue;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Schedules the timeouts of many {@link LocalTimer} instances using a single pending task on
+ * an executor, rather than one task per timer.
+ *
+ * <p>Pending timeouts are kept in a heap ordered by deadline, and the executor only ever has
+ * one task scheduled: for the earliest deadline. When that task runs, every timeout due
+ * within {@link #BATCH_WINDOW_MS} milliseconds is fired as a single batch. Cancelling a timeout
+ * only marks it as cancelled, which takes constant time; cancelled timeouts are dropped when
+ * they reach the top of the heap, or all at once if they come to outnumber the live ones.
+ *
+ * <p>The service keeps track of how late timeouts fire relative to their deadlines, which is
+ * a good indication of whether the executor is overloaded.
+ */
+public final class LocalTimerService {
+    private static final boolean DEBUG = false;
+    private static final Logger LOGGER =
+            Logger.getLogger(LocalTimerService.class.getCanonicalName());
+
+    /** Timeouts due within this many milliseconds of each other are fired together. */
+    public static final long BATCH_WINDOW_MS = 1;
+
+    private static final long BATCH_WINDOW_NANOS = TimeUnit.MILLISECONDS.toNanos(BATCH_WINDOW_MS);
+
+    /** Cancelled timeouts are only purged from a heap at least this large. */
+    private static final int MIN_PURGE_SIZE = 64;
+
+    private static LocalTimerService sDefaultService = null;
+
+    /** Returns the service shared by all timers using the default executor. */
+    static synchronized LocalTimerService getDefault() {
+        if (sDefaultService == null || sDefaultService.mExecutor.isShutdown()) {
+            sDefaultService = new LocalTimerService(Utils.getDefaultExecutor());
+        }
+
+        return sDefaultService;
+    }
+
+    /** A pending call to a task, returned by {@link #schedule}. */
+    public final class Timeout implements Comparable<Timeout> {
+        private final Runnable mTask;
+        private final long mDeadline;
+        private final long mSequence;
+        private boolean mCancelled = false;
+        private boolean mFired = false;
+
+        private Timeout(Runnable task, long deadline, long sequence) {
+            mTask = task;
+            mDeadline = deadline;
+            mSequence = sequence;
+        }
+
+        /**
+         * Prevents the task from being run, if it hasn't been already.
+         *
+         * @return true if the timeout was pending and is now cancelled
+         */
+        @CanIgnoreReturnValue
+        public boolean cancel() {
+            synchronized (LocalTimerService.this) {
+                if (mCancelled || mFired) {
+                    return false;
+                }
+
+                mCancelled = true;
+                mCancelledCount++;
+
+                if (mQueue.size() >= MIN_PURGE_SIZE && mCancelledCount > mQueue.size() / 2) {
+                    mQueue.removeIf(timeout -> timeout.mCancelled);
+                    mCancelledCount = 0;
+                }
+
+                return true;
+            }
+        }
+
+        /**
+         * Returns true if the timeout has been cancelled, or if it has fired. A timeout is
+         * considered fired as soon as its task starts running.
+         */
+        public boolean isDone() {
+            synchronized (LocalTimerService.this) {
+                return mCancelled || mFired;
+            }
+        }
+
+        /** Returns the time remaining until the deadline, which is negative if it has passed. */
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(mDeadline - mTicker.read(), TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public int compareTo(Timeout other) {
+            // Deadlines are compared by difference, since nanoTime() values may wrap.
+            long diff = mDeadline - other.mDeadline;
+
+            if (diff == 0) {
+                return Long.compare(mSequence, other.mSequence);
+            }
+
+            return diff < 0 ? -1 : 1;
+        }
+    }
+
+    private final ScheduledExecutorService mExecutor;
+    private final Ticker mTicker;
+    private final PriorityQueue<Timeout> mQueue = new PriorityQueue<>();
+    private long mNextSequence = 0;
+    private int mCancelledCount = 0;
+
+    // The task scheduled on the executor to fire the earliest timeout, if any.
+    private @Nullable ScheduledFuture<?> mTick = null;
+    private long mTickDeadline = 0;
+
+    private long mFiredCount = 0;
+    private long mBatchCount = 0;
+    private long mTotalLatenessNanos = 0;
+    private long mMaxLatenessNanos = 0;
+
+    public LocalTimerService(ScheduledExecutorService executor) {
+        this(executor, Ticker.systemTicker());
+    }
+
+    /**
+     * Creates a timer service that runs tasks on {@code executor}, reading the current time
+     * from {@code ticker}. The ticker must advance at the same rate as the executor's clock.
+     */
+    public LocalTimerService(ScheduledExecutorService executor, Ticker ticker) {
+        mExecutor = executor;
+        mTicker = ticker;
+    }
+
+    /** Returns the ticker this service reads the current time from. */
+    Ticker getTicker() {
+        return mTicker;
+    }
+
+    /** Arranges for {@code task} to be run on the executor after {@code delay}. */
+    public synchronized Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+        Timeout timeout = new Timeout(task, mTicker.read() + unit.toNanos(delay), mNextSequence++);
+
+        mQueue.add(timeout);
+        scheduleTick();
+
+        return timeout;
+    }
+
+    private void scheduleTick() {
+        Timeout next;
+
+        while ((next = mQueue.peek()) != null && next.mCancelled) {
+            mQueue.remove();
+            mCancelledCount--;
+        }
+
+        if (next == null) {
+            // Any pending tick is left alone; it will find nothing to do.
+            return;
+        }
+
+        if (mTick != null && !mTick.isDone() && mTickDeadline - next.mDeadline <= 0) {
+            // The pending tick is early enough.
+            return;
+        }
+
+        if (mTick != null) {
+            mTick.cancel(false);
+        }
+
+        mTickDeadline = next.mDeadline;
+        mTick = mExecutor.schedule(
+                this::fireDueTimeouts,
+                Math.max(0, next.mDeadline - mTicker.read()),
+                TimeUnit.NANOSECONDS);
+    }
+
+    private void fireDueTimeouts() {
+        final List<Timeout> batch = new ArrayList<>();
+
+        synchronized (this) {
+            final long now = mTicker.read();
+            Timeout next;
+
+            mTick = null;
+
+            while ((next = mQueue.peek()) != null && next.mDeadline - now <= BATCH_WINDOW_NANOS) {
+                mQueue.remove();
+
+                if (next.mCancelled) {
+                    mCancelledCount--;
+                    continue;
+                }
+
+                final long lateness = Math.max(0, now - next.mDeadline);
+
+                next.mFired = true;
+                mFiredCount++;
+                mTotalLatenessNanos += lateness;
+                mMaxLatenessNanos = Math.max(mMaxLatenessNanos, lateness);
+                batch.add(next);
+            }
+
+            if (!batch.isEmpty()) {
+                mBatchCount++;
+            }
+
+            scheduleTick();
+        }
+
+        if (DEBUG) LOGGER.info("Firing " + batch.size() + " timeouts");
+
+        for (Timeout timeout : batch) {
+            try {
+                timeout.mTask.run();
+            } catch (RuntimeException x) {
+                LOGGER.log(Level.WARNING, "Timer task threw an exception", x);
+            }
+        }
+    }
+
+    /** Returns the number of timeouts waiting to fire. */
+    public synchronized int getPendingCount() {
+        return mQueue.size() - mCancelledCount;
+    }
+
+    /** Returns the number of timeouts that have fired. */
+    public synchronized long getFiredCount() {
+        return mFiredCount;
+    }
+
+    /**
+     * Returns the number of batches timeouts have been fired in. Timeouts due at nearly the
+     * same time share a batch, so this may be less than {@link #getFiredCount()}.
+     */
+    public synchronized long getBatchCount() {
+        return mBatchCount;
+    }
+
+    /** Returns the average time between a timeout's deadline and when it actually fired. */
+    public synchronized long getMeanLateness(TimeUnit unit) {
+        if (mFiredCount == 0) {
+            return 0;
+        }
+        return unit.convert(mTotalLatenessNanos / mFiredCount, TimeUnit.NANOSECONDS);
+    }
+
+    /** Returns the longest time between a timeout's deadline and when it actually fired. */
+    public synchronized long getMaxLateness(TimeUnit unit) {
+        return unit.convert(mMaxLatenessNanos, TimeUnit.NANOSECONDS);
+    }
+}
@@ -28,6 +28,13 @@ class PropertyResourceLink<T> extends AbstractResourceLink<T> implements Propert
 
     @Override
     public ListenableFuture<?> invoke(@Nullable T value) {
+        final ResourceLinkBatch batch = ResourceLinkBatch.current();
+
+        // Writes with modifiers can't be merged with other writes.
+        if (batch != null && mModifiers.length == 0) {
+            return batch.enqueue(mFe, mKey, value);
+        }
+
         return mFe.setProperty(mKey, value, mModifiers);
     }
 
@@ -146,10 +153,12 @@ class PropertyResourceLink<T> extends AbstractResourceLink<T> implements Propert
 
     @Override
     protected void onListenerCountChanged(int listeners) {
+        // Links for the same property (like the plain and "?inc" variants)
+        // share a single upstream registration.
         if (listeners == 0) {
-            mFe.unregisterPropertyListener(mKey, this);
+            PropertySubscriptionMultiplexer.getDefault().unsubscribe(mFe, mKey, this);
         } else if (listeners == 1) {
-            mFe.registerPropertyListener(Runnable::run, mKey, this);
+            PropertySubscriptionMultiplexer.getDefault().subscribe(mFe, mKey, this);
         }
     }
 
@@ -0,0 +1,267 @@
+/*
+ * Copyright (C) 2019 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.iot.m2m.local;
+
+import com.google.iot.m2m.base.PropertyKey;
+import com.google.iot.m2m.base.PropertyListener;
+import com.google.iot.m2m.base.Thing;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.logging.Logger;
+
+/**
+ * Shares a single upstream {@link PropertyListener} registration between
+ * any number of local listeners interested in the same property of the
+ * same thing.
+ *
+ * <p>For things backed by a remote technology, every property listener
+ * registration can end up as a separate observation on the wire. Routing
+ * registrations through this class means that the first local listener for a
+ * (thing, property) pair registers upstream, every later listener just joins
+ * the fan-out list, and the upstream registration is dropped once the last
+ * local listener goes away.
+ *
+ * <p>Local listeners that join an existing subscription are immediately
+ * handed the most recently observed value, mirroring what a fresh upstream
+ * registration would have done.
+ *
+ * <p>Upstream registrations are made and dropped without holding the lock
+ * that guards the subscription table, since a thing may deliver values or do
+ * I/O while registering, and may hold its own locks while subscribing. A
+ * subscription stays in the table until it has been unregistered, and only
+ * one thread at a time registers or unregisters it. That thread keeps going
+ * until the upstream registration matches whether there are still local
+ * listeners, so subscribing may race with unsubscribing.
+ */
+final class PropertySubscriptionMultiplexer {
+    private static final boolean DEBUG = false;
+    private static final Logger LOGGER =
+            Logger.getLogger(PropertySubscriptionMultiplexer.class.getCanonicalName());
+
+    private static final PropertySubscriptionMultiplexer sDefault =
+            new PropertySubscriptionMultiplexer();
+
+    private static final Object NO_VALUE = new Object();
+
+    /**
+     * Returns the process-wide multiplexer used by resource links.
+     */
+    static PropertySubscriptionMultiplexer getDefault() {
+        return sDefault;
+    }
+
+    private static final class SubscriptionKey {
+        final Thing mThing;
+        final PropertyKey<Object> mKey;
+        final String mName;
+
+        @SuppressWarnings("unchecked")
+        SubscriptionKey(Thing thing, PropertyKey<?> key) {
+            mThing = thing;
+            mKey = (PropertyKey<Object>) key;
+            mName = key.getName();
+        }
+
+        @Override
+        public int hashCode() {
+            return System.identityHashCode(mThing) * 31 + mName.hashCode();
+        }
+
+        @Override
+        public boolean equals(@Nullable Object obj) {
+            if (!(obj instanceof SubscriptionKey)) {
+                return false;
+            }
+            SubscriptionKey rhs = (SubscriptionKey) obj;
+            return mThing == rhs.mThing && mName.equals(rhs.mName);
+        }
+    }
+
+    /** The state of a subscription's upstream registration. */
+    private enum State {
+        UNREGISTERED,
+        REGISTERING,
+        REGISTERED,
+        UNREGISTERING,
+    }
+
+    private static final class Subscription implements PropertyListener<Object> {
+        final List<PropertyListener<Object>> mListeners = new CopyOnWriteArrayList<>();
+        volatile @Nullable Object mLastValue = NO_VALUE;
+
+        // Guarded by the subscription table.
+        State mState = State.UNREGISTERED;
+
+        @Override
+        public void onPropertyChanged(Thing thing, PropertyKey<Object> key, @Nullable Object value) {
+            mLastValue = value;
+
+            for (PropertyListener<Object> listener : mListeners) {
+                listener.onPropertyChanged(thing, key, value);
+            }
+        }
+    }
+
+    private final Map<SubscriptionKey, Subscription> mSubscriptions = new HashMap<>();
+
+    PropertySubscriptionMultiplexer() {}
+
+    /**
+     * Adds {@code listener} to the shared subscription for {@code key} on
+     * {@code thing}, registering upstream if this is the first listener.
+     * The listener is called synchronously on the thread delivering the change.
+     */
+    @SuppressWarnings("unchecked")
+    <T> void subscribe(Thing thing, PropertyKey<T> key, PropertyListener<T> listener) {
+        final SubscriptionKey subscriptionKey = new SubscriptionKey(thing, key);
+        final Subscription subscription;
+        final boolean register;
+
+        synchronized (mSubscriptions) {
+            Subscription existing = mSubscriptions.get(subscriptionKey);
+
+            if (existing == null) {
+                subscription = new Subscription();
+                mSubscriptions.put(subscriptionKey, subscription);
+            } else {
+                subscription = existing;
+            }
+
+            subscription.mListeners.add((PropertyListener<Object>) listener);
+
+            // A subscription that is being registered or unregistered is
+            // taken care of by the thread doing it.
+            register = subscription.mState == State.UNREGISTERED;
+
+            if (register) {
+                subscription.mState = State.REGISTERING;
+            }
+        }
+
+        if (register) {
+            updateUpstream(subscriptionKey, subscription, true);
+
+        } else {
+            final Object lastValue = subscription.mLastValue;
+
+            if (lastValue != NO_VALUE) {
+                listener.onPropertyChanged(thing, key, (T) lastValue);
+            }
+        }
+    }
+
+    /**
+     * Removes {@code listener} from the shared subscription for {@code key}
+     * on {@code thing}, unregistering upstream if it was the last listener.
+     */
+    <T> void unsubscribe(Thing thing, PropertyKey<T> key, PropertyListener<T> listener) {
+        final SubscriptionKey subscriptionKey = new SubscriptionKey(thing, key);
+        final Subscription subscription;
+
+        synchronized (mSubscriptions) {
+            subscription = mSubscriptions.get(subscriptionKey);
+
+            if (subscription == null
+                    || !subscription.mListeners.remove(listener)
+                    || !subscription.mListeners.isEmpty()
+                    || subscription.mState != State.REGISTERED) {
+                return;
+            }
+
+            subscription.mState = State.UNREGISTERING;
+            subscription.mLastValue = NO_VALUE;
+        }
+
+        updateUpstream(subscriptionKey, subscription, false);
+    }
+
+    /**
+     * Registers or unregisters {@code subscription} upstream, without holding
+     * the lock, until the registration matches whether it still has listeners.
+     * Only called by the thread that moved it to {@link State#REGISTERING} or
+     * {@link State#UNREGISTERING}.
+     */
+    private void updateUpstream(SubscriptionKey subscriptionKey, Subscription subscription,
+                                boolean register) {
+        final Thing thing = subscriptionKey.mThing;
+        final PropertyKey<Object> key = subscriptionKey.mKey;
+
+        while (true) {
+            try {
+                if (register) {
+                    if (DEBUG) LOGGER.info("Registering upstream listener for " + key + " on " + thing);
+                    thing.registerPropertyListener(Runnable::run, key, subscription);
+                } else {
+                    if (DEBUG) LOGGER.info("Unregistering upstream listener for " + key + " on " + thing);
+                    thing.unregisterPropertyListener(key, subscription);
+                }
+            } catch (RuntimeException x) {
+                synchronized (mSubscriptions) {
+                    subscription.mState = State.UNREGISTERED;
+                    mSubscriptions.remove(subscriptionKey);
+                }
+                throw x;
+            }
+
+            synchronized (mSubscriptions) {
+                final boolean wanted = !subscription.mListeners.isEmpty();
+
+                if (wanted == register) {
+                    subscription.mState = register ? State.REGISTERED : State.UNREGISTERED;
+
+                    if (!register) {
+                        mSubscriptions.remove(subscriptionKey);
+                    }
+                    return;
+                }
+
+                // Listeners came or went while we weren't holding the lock.
+                register = wanted;
+
+                if (register) {
+                    subscription.mState = State.REGISTERING;
+                } else {
+                    subscription.mState = State.UNREGISTERING;
+                    subscription.mLastValue = NO_VALUE;
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the number of upstream registrations currently held.
+     */
+    int getUpstreamCount() {
+        synchronized (mSubscriptions) {
+            return mSubscriptions.size();
+        }
+    }
+
+    /**
+     * Returns the number of local listeners sharing the upstream registration
+     * for {@code key} on {@code thing}.
+     */
+    int getListenerCount(Thing thing, PropertyKey<?> key) {
+        synchronized (mSubscriptions) {
+            Subscription subscription = mSubscriptions.get(new SubscriptionKey(thing, key));
+            return subscription == null ? 0 : subscription.mListeners.size();
+        }
+    }
+}
@@ -0,0 +1,188 @@
+/*
+ * Copyright (C) 2019 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.iot.m2m.local;
+
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.iot.m2m.base.PropertyKey;
+import com.google.iot.m2m.base.Section;
+import com.google.iot.m2m.base.Thing;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+import java.util.*;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.logging.Logger;
+
+/**
+ * Coalesces property writes made through {@link ResourceLink#invoke} on the
+ * current thread. While a batch is open, plain property resource links don't
+ * write to their thing immediately. Instead, the writes are collected and,
+ * when the outermost batch is closed, all of the writes that share a target
+ * thing and section are sent with a single call to
+ * {@link Thing#applyProperties(Map)}. The future returned by each individual
+ * {@link ResourceLink#invoke} call is still completed individually, once the
+ * combined write finishes.
+ *
+ * <p>Batches nest: only closing the outermost batch flushes the pending writes.
+ *
+ * <pre>{@code
+ * try (ResourceLinkBatch ignored = ResourceLinkBatch.begin()) {
+ *     onOffLink.invoke(true);
+ *     levelLink.invoke(0.5f);
+ * }
+ * }</pre>
+ */
+final class ResourceLinkBatch implements AutoCloseable {
+    private static final boolean DEBUG = false;
+    private static final Logger LOGGER =
+            Logger.getLogger(ResourceLinkBatch.class.getCanonicalName());
+
+    private static final ThreadLocal<ResourceLinkBatch> sCurrentBatch = new ThreadLocal<>();
+
+    private static final class Entry<T> {
+        final PropertyKey<T> mKey;
+        @Nullable final T mValue;
+        final SettableFuture<Object> mFuture = SettableFuture.create();
+
+        Entry(PropertyKey<T> key, @Nullable T value) {
+            mKey = key;
+            mValue = value;
+        }
+
+        void putInMap(Map<String, Object> properties) {
+            mKey.putInMap(properties, mValue);
+        }
+
+        ListenableFuture<?> setAlone(Thing thing) {
+            return thing.setProperty(mKey, mValue);
+        }
+
+        void completeFrom(ListenableFuture<?> future) {
+            try {
+                Futures.getDone(future);
+                mFuture.set(null);
+
+            } catch (ExecutionException x) {
+                mFuture.setException(x.getCause());
+
+            } catch (CancellationException x) {
+                mFuture.cancel(false);
+            }
+        }
+    }
+
+    // Pending writes, grouped first by target thing and then by section.
+    private final Map<Thing, Map<Section, List<Entry<?>>>> mPending = new LinkedHashMap<>();
+
+    private int mDepth = 1;
+
+    private ResourceLinkBatch() {}
+
+    /**
+     * Opens a batch on the current thread, or joins the batch that is
+     * already open. The returned batch must be closed.
+     */
+    static ResourceLinkBatch begin() {
+        ResourceLinkBatch batch = sCurrentBatch.get();
+
+        if (batch == null) {
+            batch = new ResourceLinkBatch();
+            sCurrentBatch.set(batch);
+        } else {
+            batch.mDepth++;
+        }
+
+        return batch;
+    }
+
+    /**
+     * Returns the batch currently open on this thread, or null if there is none.
+     */
+    @Nullable
+    static ResourceLinkBatch current() {
+        return sCurrentBatch.get();
+    }
+
+    /**
+     * Queues a write of {@code value} to {@code key} on {@code thing}.
+     *
+     * @return a future that completes once the combined write has completed
+     */
+    <T> ListenableFuture<?> enqueue(Thing thing, PropertyKey<T> key, @Nullable T value) {
+        final Entry<T> entry = new Entry<>(key, value);
+
+        mPending.computeIfAbsent(thing, (ignored) -> new EnumMap<>(Section.class))
+                .computeIfAbsent(key.getSection(), (ignored) -> new ArrayList<>())
+                .add(entry);
+
+        return entry.mFuture;
+    }
+
+    @Override
+    public void close() {
+        if (--mDepth > 0) {
+            return;
+        }
+
+        // Detach before flushing so that any invocations triggered
+        // synchronously by the flush are not added to this batch.
+        sCurrentBatch.remove();
+
+        flush();
+    }
+
+    private void flush() {
+        for (Map.Entry<Thing, Map<Section, List<Entry<?>>>> thingEntry : mPending.entrySet()) {
+            final Thing thing = thingEntry.getKey();
+
+            for (List<Entry<?>> entries : thingEntry.getValue().values()) {
+                ListenableFuture<?> future;
+
+                try {
+                    if (entries.size() == 1) {
+                        future = entries.get(0).setAlone(thing);
+
+                    } else {
+                        Map<String, Object> properties = new LinkedHashMap<>();
+
+                        for (Entry<?> entry : entries) {
+                            entry.putInMap(properties);
+                        }
+
+                        if (DEBUG) LOGGER.info("Applying " + properties + " to " + thing);
+
+                        future = thing.applyProperties(properties);
+                    }
+                } catch (RuntimeException x) {
+                    future = Futures.immediateFailedFuture(x);
+                }
+
+                final ListenableFuture<?> combinedFuture = future;
+
+                for (Entry<?> entry : entries) {
+                    combinedFuture.addListener(
+                            () -> entry.completeFrom(combinedFuture),
+                            MoreExecutors.directExecutor());
+                }
+            }
+        }
+
+        mPending.clear();
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright (C) 2019 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.iot.m2m.local;
+
+import com.google.iot.m2m.base.Thing;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Result of {@link SceneRecallingGroup#recallScene}.
+ */
+public final class SceneRecallReport {
+    private final String mSceneId;
+    private final Set<Thing> mRecalledMembers;
+    private final Set<Thing> mMissingMembers;
+    private final Set<Thing> mFailedMembers;
+    private final boolean mHasUnlistedMembers;
+
+    /**
+     * @param sceneId the scene that was recalled
+     * @param recalledMembers members that successfully recalled the scene
+     * @param missingMembers members that don't have the scene and were skipped
+     * @param failedMembers members that were asked to recall the scene but failed
+     * @param hasUnlistedMembers true if the recall was also sent to members that
+     *                           can't be individually accounted for (for example,
+     *                           via multicast)
+     */
+    public SceneRecallReport(String sceneId,
+                             Set<Thing> recalledMembers,
+                             Set<Thing> missingMembers,
+                             Set<Thing> failedMembers,
+                             boolean hasUnlistedMembers) {
+        mSceneId = sceneId;
+        mRecalledMembers = Collections.unmodifiableSet(new HashSet<>(recalledMembers));
+        mMissingMembers = Collections.unmodifiableSet(new HashSet<>(missingMembers));
+        mFailedMembers = Collections.unmodifiableSet(new HashSet<>(failedMembers));
+        mHasUnlistedMembers = hasUnlistedMembers;
+    }
+
+    /** The scene that was recalled. */
+    public String getSceneId() {
+        return mSceneId;
+    }
+
+    /** Members that successfully recalled the scene. */
+    public Set<Thing> getRecalledMembers() {
+        return mRecalledMembers;
+    }
+
+    /** Members that don't have the scene, and thus were not asked to recall it. */
+    public Set<Thing> getMembersMissingScene() {
+        return mMissingMembers;
+    }
+
+    /** Members that were asked to recall the scene, but reported an error. */
+    public Set<Thing> getFailedMembers() {
+        return mFailedMembers;
+    }
+
+    /**
+     * Indicates if the recall was also delivered to members that aren't listed
+     * in this report, such as remote members reached via multicast.
+     */
+    public boolean hasUnlistedMembers() {
+        return mHasUnlistedMembers;
+    }
+
+    @Override
+    public String toString() {
+        return "<SceneRecallReport " + mSceneId
+                + " recalled=" + mRecalledMembers.size()
+                + " missing=" + mMissingMembers.size()
+                + " failed=" + mFailedMembers.size()
+                + (mHasUnlistedMembers ? " +unlisted" : "")
+                + ">";
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright (C) 2019 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.iot.m2m.local;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.errorprone.annotations.CanIgnoreReturnValue;
+import com.google.iot.m2m.base.Group;
+import com.google.iot.m2m.base.InvalidModifierListException;
+import com.google.iot.m2m.base.Modifier;
+import com.google.iot.m2m.trait.SceneTrait;
+import com.google.iot.m2m.trait.TransitionTrait;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A {@link Group} that can recall a scene across all of its members in a
+ * single operation.
+ *
+ * <p>Recalling a scene this way is equivalent to setting
+ * {@link SceneTrait#STAT_SCENE_ID} on the group, except that the members'
+ * scenes are resolved up front, members lacking the scene are skipped rather
+ * than sent a request, and the result reports which members were affected.
+ */
+public interface SceneRecallingGroup extends Group {
+    /**
+     * Recalls the scene {@code sceneId} on every member of this group.
+     *
+     * @param sceneId the scene to recall
+     * @param modifiers modifiers for the recall. Only {@link Modifier#duration(double)} is
+     *     supported; the future fails with {@link InvalidModifierListException} for any other.
+     * @return a future for a report describing which members recalled the scene
+     */
+    @CanIgnoreReturnValue
+    ListenableFuture<SceneRecallReport> recallScene(String sceneId, Modifier... modifiers);
+
+    /**
+     * Returns the properties to apply to a thing to recall {@code sceneId} with the given
+     * {@code modifiers}.
+     *
+     * @throws InvalidModifierListException if a modifier other than a duration is given
+     */
+    static Map<String, Object> createRecallProperties(String sceneId, Modifier... modifiers) {
+        final Map<String, Object> properties = new HashMap<>();
+
+        SceneTrait.STAT_SCENE_ID.putInMap(properties, sceneId);
+
+        for (Modifier mod : modifiers) {
+            if (mod instanceof Modifier.Duration) {
+                TransitionTrait.STAT_DURATION.putInMap(properties,
+                        (float)((Modifier.Duration)mod).getDuration());
+
+            } else {
+                throw new InvalidModifierListException(
+                        "Unsupported modifier for scene recall: " + mod);
+            }
+        }
+
+        return properties;
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright (C) 2019 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.iot.m2m.local;
+
+import java.net.URI;
+import java.util.*;
+import java.util.function.Function;
+
+/**
+ * Finds the strongly connected components of a graph of resources, using Tarjan's algorithm.
+ * It iterates rather than recursing, so large graphs can't overflow the stack. Used by
+ * {@link AutomationGraphAnalyzer} and {@link LocalPairingGraph} to find cycles.
+ */
+final class StronglyConnectedComponents {
+    private final Set<URI> mResources;
+    private final Function<URI, ? extends Iterable<URI>> mSuccessors;
+    private final Map<URI, Integer> mIndex = new HashMap<>();
+    private final Map<URI, Integer> mLowLink = new HashMap<>();
+    private final Deque<URI> mStack = new ArrayDeque<>();
+    private final Set<URI> mOnStack = new HashSet<>();
+    private final List<Set<URI>> mComponents = new ArrayList<>();
+    private int mNextIndex = 0;
+
+    /**
+     * Prepares to find the components of the graph made of {@code resources}, where
+     * {@code successors} returns the resources each resource has an edge to.
+     */
+    StronglyConnectedComponents(Set<URI> resources,
+                                Function<URI, ? extends Iterable<URI>> successors) {
+        mResources = resources;
+        mSuccessors = successors;
+    }
+
+    /** Returns every component, including those made of a single resource. */
+    List<Set<URI>> find() {
+        for (URI resource : mResources) {
+            if (!mIndex.containsKey(resource)) {
+                visit(resource);
+            }
+        }
+        return mComponents;
+    }
+
+    private void visit(URI root) {
+        Deque<URI> path = new ArrayDeque<>();
+        Deque<Iterator<URI>> iterators = new ArrayDeque<>();
+
+        push(root);
+        path.push(root);
+        iterators.push(mSuccessors.apply(root).iterator());
+
+        while (!path.isEmpty()) {
+            URI resource = path.peek();
+            Iterator<URI> successors = iterators.peek();
+
+            if (successors.hasNext()) {
+                URI next = successors.next();
+
+                if (!mIndex.containsKey(next)) {
+                    push(next);
+                    path.push(next);
+                    iterators.push(mSuccessors.apply(next).iterator());
+
+                } else if (mOnStack.contains(next)) {
+                    mLowLink.put(resource, Math.min(mLowLink.get(resource), mIndex.get(next)));
+                }
+                continue;
+            }
+
+            path.pop();
+            iterators.pop();
+
+            if (!path.isEmpty()) {
+                URI parent = path.peek();
+                mLowLink.put(parent, Math.min(mLowLink.get(parent), mLowLink.get(resource)));
+            }
+
+            if (mLowLink.get(resource).equals(mIndex.get(resource))) {
+                Set<URI> component = new LinkedHashSet<>();
+                URI member;
+
+                do {
+                    member = mStack.pop();
+                    mOnStack.remove(member);
+                    component.add(member);
+                } while (!member.equals(resource));
+
+                mComponents.add(component);
+            }
+        }
+    }
+
+    private void push(URI resource) {
+        mIndex.put(resource, mNextIndex);
+        mLowLink.put(resource, mNextIndex);
+        mNextIndex++;
+        mStack.push(resource);
+        mOnStack.add(resource);
+    }
+}
@@ -0,0 +1,839 @@
+/*
+ * Copyright (C) 2019 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.iot.m2m.local.rpn;
+
+import com.google.errorprone.annotations.CanIgnoreReturnValue;
+import com.google.iot.m2m.base.InvalidValueException;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.*;
+import java.util.logging.Logger;
+
+import static java.lang.invoke.MethodType.methodType;
+
+/**
+ * Compiles straight-line RPN recipes into a {@link MethodHandle} chain.
+ *
+ * <p>Rather than interpreting each token against a heap-allocated {@link RPNStack}, the
+ * compiler runs the recipe symbolically: every stack slot is tracked as a reference to the
+ * value that will occupy it at run time. Stack shuffles like {@code DUP} and {@code SWAP}
+ * disappear entirely, and each remaining operation becomes a call to a static method whose
+ * arguments are the values it consumes. Intermediate values are passed from one handle to
+ * the next as arguments, which the JIT keeps in locals instead of an array.
+ *
+ * <p>Every value also carries the type it was produced with. Numeric and boolean operations
+ * are implemented on primitives, and a value is only boxed or coerced through a
+ * {@link com.google.iot.m2m.base.TypeConverter} when it crosses into or out of an operation
+ * that works on objects (variables, the input and output, strings, maps and arrays). A purely
+ * numeric sub-expression thus runs without any allocation.
+ *
+ * <p>Operations are evaluated in exactly the order the interpreter would evaluate them, so
+ * side effects and errors are preserved. Recipes that use constructs the compiler doesn't
+ * handle (branches, loops, unknown operators) or that would overflow or underflow the stack
+ * are not compiled, and the caller falls back to the interpreter.
+ */
+final class RPNCompiler {
+    private static final boolean DEBUG = false;
+    private static final Logger LOGGER = Logger.getLogger(RPNCompiler.class.getCanonicalName());
+
+    /** Signature of a compiled recipe: {@code (context, input) -> output}. */
+    static final MethodType FUNCTION_TYPE =
+            methodType(Object.class, RPNContext.class, Object.class);
+
+    /**
+     * Upper bound on the number of intermediate values in a compiled recipe. Every value
+     * becomes a method handle parameter, and method handles are limited to 255 parameter
+     * slots (with {@code double} parameters taking up two).
+     */
+    private static final int MAX_VALUES = 120;
+
+    /** Argument index used to refer to the {@link RPNContext}. */
+    private static final int ARG_CONTEXT = -1;
+
+    /** Value index of the input to the recipe. */
+    private static final int ARG_INPUT = 0;
+
+    private static final MethodHandles.Lookup LOOKUP = MethodHandles.lookup();
+    private static final Map<String, MethodHandle> sIntrinsics = new HashMap<>();
+
+    /**
+     * Faster alternatives to entries in {@link #sIntrinsics}, used when the types of the
+     * arguments are known at compile time to exactly match the parameter types.
+     */
+    private static final Map<String, MethodHandle> sSpecializations = new HashMap<>();
+    private static final Random mRng = new Random();
+
+    private static final MethodHandle TO_DOUBLE =
+            findStatic("toDouble", double.class, Object.class);
+    private static final MethodHandle TO_BOOLEAN =
+            findStatic("toBoolean", boolean.class, Object.class);
+    private static final MethodHandle BOOLEAN_TO_DOUBLE =
+            findStatic("booleanToDouble", double.class, boolean.class);
+    private static final MethodHandle DOUBLE_TO_BOOLEAN =
+            findStatic("doubleToBoolean", boolean.class, double.class);
+    private static final MethodHandle GET_DICT =
+            findStatic("getDict", Object.class, Object.class);
+    private static final MethodHandle GET =
+            findStatic("get", Object.class, Object.class, Object.class);
+    private static final MethodHandle POP_REST =
+            findStatic("popRest", Object.class, Object.class);
+    private static final MethodHandle POP_LAST =
+            findStatic("popLast", Object.class, Object.class);
+    private static final MethodHandle GET_VARIABLE;
+    private static final MethodHandle GET_NAMED_VARIABLE;
+
+    static {
+        try {
+            GET_VARIABLE = LOOKUP.findVirtual(
+                    RPNContext.class, "getVariable", methodType(Object.class, int.class));
+            GET_NAMED_VARIABLE = LOOKUP.findVirtual(
+                    RPNContext.class, "getVariable", methodType(Object.class, String.class));
+        } catch (NoSuchMethodException | IllegalAccessException e) {
+            throw new AssertionError(e);
+        }
+
+        final Class<?> D = double.class;
+        final Class<?> Z = boolean.class;
+        final Class<?> O = Object.class;
+
+        intrinsic("+", "add", D, D, D);
+        intrinsic("-", "subtract", D, D, D);
+        intrinsic("*", "multiply", D, D, D);
+        intrinsic("/", "divide", D, D, D);
+        intrinsic("^", "power", D, D, D);
+        intrinsic("%", "modulus", D, D, D);
+        intrinsic("LOG", "log", D, D);
+        intrinsic("NEG", "negate", D, D);
+        intrinsic("ABS", "abs", D, D);
+        intrinsic("MIN", "min", D, D, D);
+        intrinsic("MAX", "max", D, D, D);
+        intrinsic("ROUND", "round", long.class, D);
+        intrinsic("FLOOR", "floor", D, D);
+        intrinsic("CEIL", "ceil", D, D);
+        intrinsic("SIN", "sin", D, D);
+        intrinsic("COS", "cos", D, D);
+        intrinsic("ASIN", "asin", D, D);
+        intrinsic("ACOS", "acos", D, D);
+        intrinsic("RND", "random", D);
+        intrinsic("RANGE", "range", D, D, D, D);
+        intrinsic("CLAMP", "clamp", D, D, D, D);
+        intrinsic("POLY2", "poly2", D, D, D, D, D);
+        intrinsic("POLY3", "poly3", D, D, D, D, D, D);
+
+        intrinsic("<", "lessThan", Z, O, O);
+        intrinsic("<=", "lessThanOrEqual", Z, O, O);
+        intrinsic(">", "greaterThan", Z, O, O);
+        intrinsic(">=", "greaterThanOrEqual", Z, O, O);
+        intrinsic("==", "equal", Z, O, O);
+        intrinsic("===", "strictEqual", Z, O, O);
+        intrinsic("!=", "notEqual", Z, O, O);
+
+        specialization("<", "lessThan", Z, D, D);
+        specialization("<=", "lessThanOrEqual", Z, D, D);
+        specialization(">", "greaterThan", Z, D, D);
+        specialization(">=", "greaterThanOrEqual", Z, D, D);
+        specialization("==", "equal", Z, D, D);
+        specialization("===", "strictEqual", Z, D, D);
+        specialization("!=", "notEqual", Z, D, D);
+
+        intrinsic("&&", "and", Z, Z, Z);
+        intrinsic("||", "or", Z, Z, Z);
+        intrinsic("XOR", "xor", Z, Z, Z);
+        intrinsic("!", "not", Z, Z);
+
+        intrinsic("{}", "newDict", O);
+        intrinsic("PUT", "put", O, O, O, O);
+        intrinsic("[]", "newList", O);
+        intrinsic("[1]", "newList1", O, O);
+        intrinsic("[2]", "newList2", O, O, O);
+        intrinsic("[3]", "newList3", O, O, O, O);
+        intrinsic("[4]", "newList4", O, O, O, O, O);
+        intrinsic("PUSH", "push", O, O, O);
+
+        vectorIntrinsic("V+", "add", O, O, O);
+        vectorIntrinsic("VSCALE", "scale", O, O, D);
+        vectorIntrinsic("VDOT", "dot", D, O, O);
+        vectorIntrinsic("M3*", "multiply3x3", O, O, O);
+        vectorIntrinsic("VCLAMP", "clamp", O, O, D, D);
+
+        constant("PI", D, Math.PI);
+        constant("TAU", D, Math.PI*2.0);
+        constant("E", D, Math.E);
+        constant("TRUE", Z, true);
+        constant("FALSE", Z, false);
+        constant("STOP", O, RPNContext.STOP);
+        constant("NULL", O, null);
+    }
+
+    private static MethodHandle findStatic(String name, Class<?> rtype, Class<?>... ptypes) {
+        try {
+            return LOOKUP.findStatic(RPNCompiler.class, name, methodType(rtype, ptypes));
+        } catch (NoSuchMethodException | IllegalAccessException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private static void intrinsic(String token, String name, Class<?> rtype, Class<?>... ptypes) {
+        sIntrinsics.put(token, findStatic(name, rtype, ptypes));
+    }
+
+    private static void vectorIntrinsic(
+            String token, String name, Class<?> rtype, Class<?>... ptypes) {
+        try {
+            sIntrinsics.put(token,
+                    LOOKUP.findStatic(RPNVectors.class, name, methodType(rtype, ptypes)));
+        } catch (NoSuchMethodException | IllegalAccessException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private static void specialization(
+            String token, String name, Class<?> rtype, Class<?>... ptypes) {
+        sSpecializations.put(token, findStatic(name, rtype, ptypes));
+    }
+
+    private static void constant(String token, Class<?> type, @Nullable Object value) {
+        sIntrinsics.put(token, MethodHandles.constant(type, value));
+    }
+
+    /** Thrown internally when a recipe cannot be compiled. */
+    private static final class CannotCompileException extends Exception {
+        CannotCompileException(String reason) {
+            super(reason, null, false, false);
+        }
+    }
+
+    /** A value produced by a single operation of the recipe. */
+    private static final class Value {
+        final MethodHandle mHandle;
+
+        /** Indexes of the values passed to {@link #mHandle}, or {@link #ARG_CONTEXT}. */
+        final int[] mArgs;
+
+        Value(MethodHandle handle, int[] args) {
+            mHandle = handle;
+            mArgs = args;
+        }
+    }
+
+    /** Symbolically executes a recipe, recording the values it computes. */
+    private static final class Builder {
+        final List<Value> mValues = new ArrayList<>();
+        final int[] mStack = new int[RPNStack.MAX_STACK_SIZE];
+        int mTop = 0;
+
+        Builder() throws CannotCompileException {
+            // The input value has no operation associated with it.
+            mValues.add(null);
+            push(ARG_INPUT);
+        }
+
+        void push(int value) throws CannotCompileException {
+            if (mTop >= mStack.length) {
+                throw new CannotCompileException("Stack overflow");
+            }
+            mStack[mTop++] = value;
+        }
+
+        @CanIgnoreReturnValue
+        int pop() throws CannotCompileException {
+            if (mTop <= 0) {
+                throw new CannotCompileException("Stack underflow");
+            }
+            return mStack[--mTop];
+        }
+
+        /** Returns the type that {@code value} has at run time. */
+        Class<?> typeOf(int value) {
+            if (value == ARG_CONTEXT) {
+                return RPNContext.class;
+            } else if (value == ARG_INPUT) {
+                return Object.class;
+            } else {
+                return mValues.get(value).mHandle.type().returnType();
+            }
+        }
+
+        int emit(MethodHandle handle, int... args) throws CannotCompileException {
+            if (mValues.size() > MAX_VALUES) {
+                throw new CannotCompileException("Too many operations");
+            }
+
+            Class<?>[] argTypes = new Class<?>[args.length];
+            for (int i = 0; i < args.length; i++) {
+                argTypes[i] = typeOf(args[i]);
+            }
+
+            mValues.add(new Value(adapt(handle, argTypes), args));
+            return mValues.size() - 1;
+        }
+
+        /**
+         * Pops the arguments of the operator {@code token} off of the stack and pushes the
+         * value it produces, using the specialized implementation if the argument types allow.
+         */
+        void apply(String token, MethodHandle handle) throws CannotCompileException {
+            int[] args = new int[handle.type().parameterCount()];
+            for (int i = args.length - 1; i >= 0; i--) {
+                args[i] = pop();
+            }
+
+            MethodHandle specialization = sSpecializations.get(token);
+
+            if (specialization != null) {
+                for (int i = 0; i < args.length; i++) {
+                    if (typeOf(args[i]) != specialization.type().parameterType(i)) {
+                        specialization = null;
+                        break;
+                    }
+                }
+            }
+
+            push(emit(specialization != null ? specialization : handle, args));
+        }
+
+        void operator(String token) throws CannotCompileException {
+            int a, b, c;
+
+            switch (token) {
+                case "NOP":
+                    break;
+
+                case "DUP":
+                    a = pop();
+                    push(a);
+                    push(a);
+                    break;
+
+                case "SWAP":
+                    a = pop();
+                    b = pop();
+                    push(a);
+                    push(b);
+                    break;
+
+                case "DROP":
+                    pop();
+                    break;
+
+                case "OVER":
+                    a = pop();
+                    b = pop();
+                    push(b);
+                    push(a);
+                    push(b);
+                    break;
+
+                case "ROT":
+                    a = pop();
+                    b = pop();
+                    c = pop();
+                    push(b);
+                    push(a);
+                    push(c);
+                    break;
+
+                case "GET":
+                    b = pop();
+                    a = pop();
+                    c = emit(GET_DICT, a);
+                    push(c);
+                    push(emit(GET, c, b));
+                    break;
+
+                case "POP":
+                    a = pop();
+                    push(emit(POP_REST, a));
+                    push(emit(POP_LAST, a));
+                    break;
+
+                default:
+                    MethodHandle handle = sIntrinsics.get(token);
+                    if (handle == null) {
+                        throw new CannotCompileException("Unsupported operator \"" + token + "\"");
+                    }
+                    apply(token, handle);
+                    break;
+            }
+        }
+
+        void variable(RPNNode.Variable variable) throws CannotCompileException {
+            final MethodHandle getter;
+
+            if (variable.mSlot == RPNContext.NO_SLOT) {
+                getter = MethodHandles.insertArguments(GET_NAMED_VARIABLE, 1, variable.mName);
+            } else {
+                getter = MethodHandles.insertArguments(GET_VARIABLE, 1, variable.mSlot);
+            }
+
+            push(emit(getter, ARG_CONTEXT));
+        }
+
+        void literal(Class<?> type, @Nullable Object value) throws CannotCompileException {
+            push(emit(MethodHandles.constant(type, value)));
+        }
+
+        int result() {
+            return mTop == 0 ? -1 : mStack[mTop - 1];
+        }
+    }
+
+    /**
+     * Adapts an intrinsic to take arguments of the given types, converting them to the types
+     * the intrinsic expects the same way the interpreter would. Conversions between
+     * primitives are done directly, everything else goes through the type converters.
+     */
+    private static MethodHandle adapt(MethodHandle handle, Class<?>[] argTypes) {
+        for (int i = 0; i < argTypes.length; i++) {
+            Class<?> param = handle.type().parameterType(i);
+            Class<?> arg = argTypes[i];
+
+            if (param == arg) {
+                continue;
+            }
+
+            if (param == double.class) {
+                if (arg == boolean.class) {
+                    handle = MethodHandles.filterArguments(handle, i, BOOLEAN_TO_DOUBLE);
+                } else if (arg != long.class) {
+                    handle = MethodHandles.filterArguments(
+                            handle, i, TO_DOUBLE.asType(methodType(double.class, arg)));
+                }
+
+            } else if (param == boolean.class) {
+                if (arg == double.class) {
+                    handle = MethodHandles.filterArguments(handle, i, DOUBLE_TO_BOOLEAN);
+                } else {
+                    handle = MethodHandles.filterArguments(
+                            handle, i, TO_BOOLEAN.asType(methodType(boolean.class, arg)));
+                }
+            }
+        }
+
+        // Anything left over is either boxing or a primitive widening conversion.
+        return handle.asType(methodType(handle.type().returnType(), argTypes));
+    }
+
+    /**
+     * Attempts to compile the given program into a method handle of type
+     * {@link #FUNCTION_TYPE}.
+     *
+     * @return the compiled program, or null if the program must be interpreted
+     */
+    static @Nullable MethodHandle compile(List<RPNNode> program) {
+        try {
+            Builder builder = new Builder();
+
+            for (RPNNode node : program) {
+                if (node instanceof RPNNode.Constant) {
+                    Object value = ((RPNNode.Constant) node).mValue;
+
+                    if (value instanceof Double) {
+                        builder.literal(double.class, value);
+                    } else if (value instanceof Boolean) {
+                        builder.literal(boolean.class, value);
+                    } else {
+                        builder.literal(Object.class, value);
+                    }
+
+                } else if (node instanceof RPNNode.Operator) {
+                    builder.operator(((RPNNode.Operator) node).mToken);
+
+                } else if (node instanceof RPNNode.Variable) {
+                    builder.variable((RPNNode.Variable) node);
+
+                } else {
+                    throw new CannotCompileException("Unsupported construct \"" + node + "\"");
+                }
+            }
+
+            return lower(builder.mValues, builder.result());
+
+        } catch (CannotCompileException e) {
+            if (DEBUG) LOGGER.info("Not compiling " + program + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    /** Returns the parameter types of the handle that runs after {@code count} values. */
+    private static List<Class<?>> parameterTypes(List<Value> values, int count) {
+        List<Class<?>> ret = new ArrayList<>(count + 2);
+        for (int i = count; i >= 1; i--) {
+            ret.add(values.get(i).mHandle.type().returnType());
+        }
+        ret.add(RPNContext.class);
+        ret.add(Object.class);
+        return ret;
+    }
+
+    /**
+     * Returns the parameter index of {@code value} in the handle that runs after
+     * {@code count} values. Parameters are ordered most-recent value first, followed by the
+     * context and the input.
+     */
+    private static int indexOf(int value, int count) {
+        if (value == ARG_CONTEXT) {
+            return count;
+        } else if (value == ARG_INPUT) {
+            return count + 1;
+        } else {
+            return count - value;
+        }
+    }
+
+    /**
+     * Turns a list of values into a single method handle. Starting from the handle that
+     * returns the result, each value is folded in as a new leading argument, computed from
+     * the arguments that follow it.
+     */
+    private static MethodHandle lower(List<Value> values, int result) {
+        final int count = values.size() - 1;
+        MethodHandle handle;
+
+        if (result < 0) {
+            handle = MethodHandles.dropArguments(
+                    MethodHandles.constant(Object.class, RPNContext.STOP),
+                    0, parameterTypes(values, count));
+        } else {
+            Class<?> type = values.get(result) == null
+                    ? Object.class
+                    : values.get(result).mHandle.type().returnType();
+
+            handle = MethodHandles.permuteArguments(
+                    MethodHandles.identity(type).asType(methodType(Object.class, type)),
+                    methodType(Object.class, parameterTypes(values, count)),
+                    indexOf(result, count));
+        }
+
+        for (int i = count; i >= 1; i--) {
+            Value value = values.get(i);
+            int[] reorder = new int[value.mArgs.length];
+
+            for (int j = 0; j < reorder.length; j++) {
+                reorder[j] = indexOf(value.mArgs[j], i - 1);
+            }
+
+            MethodHandle combiner = MethodHandles.permuteArguments(
+                    value.mHandle,
+                    methodType(value.mHandle.type().returnType(), parameterTypes(values, i - 1)),
+                    reorder);
+
+            handle = MethodHandles.foldArguments(handle, combiner);
+        }
+
+        return handle.asType(FUNCTION_TYPE);
+    }
+
+    // --------------------------------------------------------------------------------------------
+    // Intrinsics
+
+    private static double toDouble(@Nullable Object value) throws InvalidValueException {
+        return RPNContext.doubleType.coerceNonNull(value);
+    }
+
+    private static boolean toBoolean(@Nullable Object value) throws InvalidValueException {
+        return RPNContext.booleanType.coerceNonNull(value);
+    }
+
+    private static double booleanToDouble(boolean value) {
+        return value ? 1.0 : 0.0;
+    }
+
+    private static boolean doubleToBoolean(double value) {
+        // Mirrors the conversion done by TypeConverter.BOOLEAN
+        return value >= 0.5;
+    }
+
+    private static double add(double lhs, double rhs) {
+        return lhs + rhs;
+    }
+
+    private static double subtract(double lhs, double rhs) {
+        return lhs - rhs;
+    }
+
+    private static double multiply(double lhs, double rhs) {
+        return lhs * rhs;
+    }
+
+    private static double divide(double lhs, double rhs) {
+        return lhs / rhs;
+    }
+
+    private static double power(double lhs, double rhs) {
+        return Math.pow(lhs, rhs);
+    }
+
+    private static double modulus(double num, double div) {
+        return num - div*Math.floor(num/div);
+    }
+
+    private static double log(double arg) {
+        return Math.log(arg);
+    }
+
+    private static double negate(double arg) {
+        return -arg;
+    }
+
+    private static double abs(double arg) {
+        return Math.abs(arg);
+    }
+
+    private static double min(double lhs, double rhs) {
+        return lhs < rhs ? lhs : rhs;
+    }
+
+    private static double max(double lhs, double rhs) {
+        return lhs < rhs ? rhs : lhs;
+    }
+
+    private static long round(double arg) {
+        return Math.round(arg);
+    }
+
+    private static double floor(double arg) {
+        return Math.floor(arg);
+    }
+
+    private static double ceil(double arg) {
+        return Math.ceil(arg);
+    }
+
+    private static double sin(double arg) {
+        return Math.sin(arg*2.0*Math.PI);
+    }
+
+    private static double cos(double arg) {
+        return Math.cos(arg*2.0*Math.PI);
+    }
+
+    private static double asin(double arg) {
+        return Math.asin(arg)/(2.0*Math.PI);
+    }
+
+    private static double acos(double arg) {
+        return Math.acos(arg)/(2.0*Math.PI);
+    }
+
+    private static double random() {
+        return mRng.nextDouble();
+    }
+
+    private static double range(double value, double min, double max) {
+        return (value < min || value > max) ? 0.0 : 1.0;
+    }
+
+    private static double clamp(double value, double min, double max) {
+        if (value < min) {
+            return min;
+        } else if (value > max) {
+            return max;
+        } else {
+            return value;
+        }
+    }
+
+    private static double poly2(double x, double a, double b, double c) {
+        return x * (x * a + b) + c;
+    }
+
+    private static double poly3(double x, double a, double b, double c, double d) {
+        return x * (x * (x * a + b) + c) + d;
+    }
+
+    private static boolean lessThan(@Nullable Object lhs, @Nullable Object rhs) {
+        try {
+            return toDouble(lhs) < toDouble(rhs);
+        } catch (InvalidValueException ignore) {
+            return false;
+        }
+    }
+
+    private static boolean lessThanOrEqual(@Nullable Object lhs, @Nullable Object rhs) {
+        try {
+            return toDouble(lhs) < toDouble(rhs) + RPNContext.EPSILON;
+        } catch (InvalidValueException ignore) {
+            return false;
+        }
+    }
+
+    private static boolean greaterThan(@Nullable Object lhs, @Nullable Object rhs) {
+        try {
+            return toDouble(lhs) > toDouble(rhs);
+        } catch (InvalidValueException ignore) {
+            return false;
+        }
+    }
+
+    private static boolean greaterThanOrEqual(@Nullable Object lhs, @Nullable Object rhs) {
+        try {
+            return toDouble(lhs) + RPNContext.EPSILON > toDouble(rhs);
+        } catch (InvalidValueException ignore) {
+            return false;
+        }
+    }
+
+    private static boolean lessThan(double lhs, double rhs) {
+        return lhs < rhs;
+    }
+
+    private static boolean lessThanOrEqual(double lhs, double rhs) {
+        return lhs < rhs + RPNContext.EPSILON;
+    }
+
+    private static boolean greaterThan(double lhs, double rhs) {
+        return lhs > rhs;
+    }
+
+    private static boolean greaterThanOrEqual(double lhs, double rhs) {
+        return lhs + RPNContext.EPSILON > rhs;
+    }
+
+    private static boolean equal(double lhs, double rhs) {
+        // Same as equal(Object,Object) on boxed values, where Double.equals() compares bits.
+        return Double.doubleToLongBits(lhs) == Double.doubleToLongBits(rhs)
+                || Math.abs(lhs - rhs) < RPNContext.EPSILON;
+    }
+
+    private static boolean strictEqual(double lhs, double rhs) {
+        return Double.doubleToLongBits(lhs) == Double.doubleToLongBits(rhs);
+    }
+
+    private static boolean notEqual(double lhs, double rhs) {
+        return !equal(lhs, rhs);
+    }
+
+    private static boolean equal(@Nullable Object lhs, @Nullable Object rhs) {
+        return RPNContext.objectEquals(lhs, rhs);
+    }
+
+    private static boolean strictEqual(@Nullable Object lhs, @Nullable Object rhs) {
+        return Objects.equals(lhs, rhs);
+    }
+
+    private static boolean notEqual(@Nullable Object lhs, @Nullable Object rhs) {
+        if (Objects.equals(lhs, rhs)) {
+            return false;
+        } else if (rhs instanceof Number || lhs instanceof Number) {
+            try {
+                return Math.abs(toDouble(lhs) - toDouble(rhs)) >= RPNContext.EPSILON;
+            } catch (InvalidValueException x) {
+                return true;
+            }
+        } else {
+            return true;
+        }
+    }
+
+    private static boolean and(boolean lhs, boolean rhs) {
+        return lhs && rhs;
+    }
+
+    private static boolean or(boolean lhs, boolean rhs) {
+        return lhs || rhs;
+    }
+
+    private static boolean xor(boolean lhs, boolean rhs) {
+        return lhs ^ rhs;
+    }
+
+    private static boolean not(boolean arg) {
+        return !arg;
+    }
+
+    private static Object newDict() {
+        return new HashMap<String,Object>();
+    }
+
+    private static Object getDict(@Nullable Object dict) throws InvalidValueException {
+        return RPNContext.dictType.coerceNonNull(dict);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static @Nullable Object get(Object dict, @Nullable Object key)
+            throws InvalidValueException {
+        return ((Map<String,Object>) dict).get(RPNContext.stringType.coerceNonNull(key));
+    }
+
+    private static Object put(@Nullable Object dict, @Nullable Object value, @Nullable Object key)
+            throws InvalidValueException {
+        String realKey = RPNContext.stringType.coerceNonNull(key);
+        Map<String,Object> realDict = RPNContext.dictType.coerceNonNull(dict);
+        realDict.put(realKey, value);
+        return realDict;
+    }
+
+    private static Object newList() {
+        return new ArrayList<>();
+    }
+
+    private static Object newList1(@Nullable Object a) {
+        ArrayList<Object> list = new ArrayList<>();
+        list.add(a);
+        return list;
+    }
+
+    private static Object newList2(@Nullable Object a, @Nullable Object b) {
+        ArrayList<Object> list = new ArrayList<>();
+        list.add(a);
+        list.add(b);
+        return list;
+    }
+
+    private static Object newList3(@Nullable Object a, @Nullable Object b, @Nullable Object c) {
+        ArrayList<Object> list = new ArrayList<>();
+        list.add(a);
+        list.add(b);
+        list.add(c);
+        return list;
+    }
+
+    private static Object newList4(@Nullable Object a, @Nullable Object b,
+                                   @Nullable Object c, @Nullable Object d) {
+        ArrayList<Object> list = new ArrayList<>();
+        list.add(a);
+        list.add(b);
+        list.add(c);
+        list.add(d);
+        return list;
+    }
+
+    private static Object popRest(@Nullable Object array) throws InvalidValueException {
+        List<Object> list = RPNContext.listType.coerceNonNull(array);
+        if (list.isEmpty()) {
+            throw new InvalidValueException("Cannot pop value from empty array");
+        }
+        list = new ArrayList<>(list);
+        list.remove(list.size()-1);
+        return list;
+    }
+
+    private static @Nullable Object popLast(@Nullable Object array) throws InvalidValueException {
+        List<Object> list = RPNContext.listType.coerceNonNull(array);
+        return list.get(list.size()-1);
+    }
+
+    private static Object push(@Nullable Object array, @Nullable Object value)
+            throws InvalidValueException {
+        List<Object> list = new ArrayList<>(RPNContext.listType.coerceNonNull(array));
+        list.add(value);
+        return list;
+    }
+}
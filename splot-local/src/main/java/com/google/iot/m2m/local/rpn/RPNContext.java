@@ -15,12 +15,21 @@
  */
 package com.google.iot.m2m.local.rpn;
 
+import com.google.common.cache.CacheStats;
 import com.google.iot.m2m.base.InvalidValueException;
 import com.google.iot.m2m.base.TypeConverter;
 import org.checkerframework.checker.nullness.qual.Nullable;
 
 import java.lang.ref.WeakReference;
+import java.time.Clock;
+import java.time.DayOfWeek;
+import java.time.Instant;
+import java.time.ZonedDateTime;
+import java.time.temporal.WeekFields;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Variable context for forth-like RPN expression evaluator.
@@ -99,6 +108,19 @@ import java.util.*;
  *     <li>{@code [4]}: Pops four items off the stack and pushes a new array with those items.
  * </ul>
  *
+ * <h3>Vector Operations:</h3>
+ * <p>These operate on {@code float[]} and {@code double[]} values, as well as arrays of numbers.
+ * The result has the same type as the first vector argument, except for {@code M3*}, whose
+ * result has the same type as the vector it multiplies.
+ * <ul>
+ *     <li>{@code V+}: <small>(a, b -> a+b)</small> Element-wise addition.
+ *     <li>{@code VSCALE}: <small>(v, s -> v*s)</small> Multiplies every element by a number.
+ *     <li>{@code VDOT}: <small>(a, b -> a&middot;b)</small> Dot product.
+ *     <li>{@code M3*}: <small>(m, v -> m*v)</small> Multiplies a 3x3 matrix, given as a
+ *                      nine element vector in row-major order, by a three element vector.
+ *     <li>{@code VCLAMP}: <small>(v, min, max -> clampedV)</small> Element-wise clamp.
+ * </ul>
+ *
  * <h3>Constants:</h3>
  * <ul>
  *     <li>{@code PI}: ~3.14
@@ -130,7 +152,7 @@ import java.util.*;
  * of zero to one are clamped to either zero or one, whichever is closer.
  */
 public class RPNContext {
-    static private final double EPSILON = 0.0000000001;
+    static final double EPSILON = 0.0000000001;
     private static final String REGEX_NUMBER = "^[-+]?[0-9]+([.][0-9]+)?";
     private static final String REGEX_STRING = "^:.*";
     private static final String REGEX_VARIABLE = "^[a-zA-Z_][a-zA-Z0-9_.:]*$";
@@ -145,23 +167,23 @@ public class RPNContext {
     }
 
     public static final Object STOP = new Object();
-    private static final TypeConverter<Double> doubleType = TypeConverter.DOUBLE;
-    private static final TypeConverter<Integer> integerType = new TypeConverter<>(Integer.class);
-    private static final TypeConverter<Boolean> booleanType = TypeConverter.BOOLEAN;
-    private static final TypeConverter<String> stringType = TypeConverter.STRING;
+    static final TypeConverter<Double> doubleType = TypeConverter.DOUBLE;
+    static final TypeConverter<Integer> integerType = new TypeConverter<>(Integer.class);
+    static final TypeConverter<Boolean> booleanType = TypeConverter.BOOLEAN;
+    static final TypeConverter<String> stringType = TypeConverter.STRING;
 
     static private final Map<String,RPNOperation> mOperators = new HashMap<>();
     static private final Set<String> mBranchOperators = new HashSet<>();
 
     @SuppressWarnings("unchecked")
-    private static final TypeConverter<List<Object>> listType = new TypeConverter(List.class);
+    static final TypeConverter<List<Object>> listType = new TypeConverter(List.class);
 
     @SuppressWarnings("unchecked")
-    private static final TypeConverter<Map<String,Object>> dictType = new TypeConverter(Map.class);
+    static final TypeConverter<Map<String,Object>> dictType = new TypeConverter(Map.class);
 
     private static final Random mRng = new Random();
 
-    private static boolean objectEquals(@Nullable Object lhs, @Nullable Object rhs) {
+    static boolean objectEquals(@Nullable Object lhs, @Nullable Object rhs) {
         if (Objects.equals(lhs, rhs)) {
             return true;
         } else if (rhs instanceof Number || lhs instanceof Number) {
@@ -588,19 +610,161 @@ public class RPNContext {
             array.add(value);
             stack.push(array);
         });
+
+        mOperators.put("V+", (context, stack) -> {
+            Object b = stack.pop();
+            Object a = stack.pop();
+            stack.push(RPNVectors.add(a, b));
+        });
+
+        mOperators.put("VSCALE", (context, stack) -> {
+            double scale = doubleType.coerceNonNull(stack.pop());
+            stack.push(RPNVectors.scale(stack.pop(), scale));
+        });
+
+        mOperators.put("VDOT", (context, stack) -> {
+            Object b = stack.pop();
+            Object a = stack.pop();
+            stack.push(RPNVectors.dot(a, b));
+        });
+
+        mOperators.put("M3*", (context, stack) -> {
+            Object v = stack.pop();
+            Object m = stack.pop();
+            stack.push(RPNVectors.multiply3x3(m, v));
+        });
+
+        mOperators.put("VCLAMP", (context, stack) -> {
+            double max = doubleType.coerceNonNull(stack.pop());
+            double min = doubleType.coerceNonNull(stack.pop());
+            stack.push(RPNVectors.clamp(stack.pop(), min, max));
+        });
     }
 
-    public static boolean isStopSignal(Object x) {
+    public static boolean isStopSignal(@Nullable Object x) {
         return x == STOP;
     }
 
+    static RPNOperation getOperator(String token) {
+        return mOperators.get(token);
+    }
+
     // --------------------------------------------------------------------------------------------
 
+    // Variables are identified by a process-wide slot number, assigned the first time a
+    // variable name is seen. Each context stores its variables in arrays indexed by slot.
+    // Only the first MAX_VARIABLE_SLOTS names get a slot, so that recipes using many different
+    // names can't grow the table, or the arrays of every context, without bound. Names seen
+    // after that never get a slot, and are stored in maps keyed by name instead. Either way, a
+    // given name is always stored the same way.
+    private static final Map<String, Integer> sSlotsByName = new ConcurrentHashMap<>();
+    private static final List<String> sSlotNames = new CopyOnWriteArrayList<>();
+
+    /** Maximum number of variable names that are given a slot. */
+    public static final int MAX_VARIABLE_SLOTS = 256;
+
+    /** Returned by {@link #findVariableSlot(String)} for variables without a slot. */
+    static final int NO_SLOT = -1;
+
+    private static final Object[] EMPTY_VALUES = new Object[0];
+    private static final BitSet[] EMPTY_DEPENDENTS = new BitSet[0];
+
+    /**
+     * Returns the slot number for the variable {@code name}, assigning one if needed. Slot
+     * numbers are the same for every context, so they can be looked up once and used with
+     * {@link #setVariable(int, Object)} and {@link #getVariable(int)} to avoid looking up
+     * the variable by name on every access.
+     *
+     * <p>This is meant for the variable names known to the code, like {@code v}, which need
+     * to be looked up before recipes have used up the slots. The built-in variables always
+     * have one.
+     *
+     * @throws IllegalArgumentException if {@code name} is the name of an operator
+     * @throws IllegalStateException if {@code name} has no slot and none are left
+     */
+    public static int getVariableSlot(String name) {
+        final int slot = findVariableSlot(name);
+
+        if (slot == NO_SLOT) {
+            throw new IllegalStateException("No variable slot left for \"" + name + "\"");
+        }
+
+        return slot;
+    }
+
+    /**
+     * Returns the slot number for the variable {@code name}, assigning one if there are any
+     * left, or {@link #NO_SLOT} if the variable must be looked up by name.
+     *
+     * @throws IllegalArgumentException if {@code name} is the name of an operator
+     */
+    static int findVariableSlot(String name) {
+        Integer slot = sSlotsByName.get(name);
+
+        if (slot != null) {
+            return slot;
+        }
+
+        if (mOperators.containsKey(name)) {
+            throw new IllegalArgumentException("\"" + name + "\" is a function");
+        }
+
+        synchronized (sSlotsByName) {
+            slot = sSlotsByName.get(name);
+
+            if (slot == null) {
+                if (sSlotNames.size() >= MAX_VARIABLE_SLOTS) {
+                    return NO_SLOT;
+                }
+
+                slot = sSlotNames.size();
+                sSlotNames.add(name);
+                sSlotsByName.put(name, slot);
+            }
+
+            return slot;
+        }
+    }
+
+    /** Returns the number of variable names that have been given a slot. */
+    static int getVariableSlotCount() {
+        return sSlotNames.size();
+    }
+
+    static String getVariableName(int slot) {
+        return sSlotNames.get(slot);
+    }
+
     @Nullable
     private RPNContext mParent;
-    private Map<String,Object> mVariables = new HashMap<>();
-    private Set<WeakReference<RPNContext>> mChildren = new HashSet<>();
-    private Map<String, Set<WeakReference<RPNFunction>>> mVariableFunctionLookup = new HashMap<>();
+    private Object[] mValues = EMPTY_VALUES;
+    private BitSet mDefined = new BitSet();
+    private List<WeakReference<RPNContext>> mChildren = new ArrayList<>();
+
+    // Functions depending on variables in this context, and for each slot the indexes
+    // (into mFunctions) of the functions that depend on it.
+    private final List<WeakReference<RPNFunction>> mFunctions = new ArrayList<>();
+    private BitSet[] mDependents = EMPTY_DEPENDENTS;
+
+    // Values and dependents of the variables that have no slot, created when first needed.
+    private @Nullable Map<String, Object> mNamedValues = null;
+    private @Nullable Map<String, BitSet> mNamedDependents = null;
+
+    private boolean mCompilerEnabled = true;
+
+    /** Default for {@link #setInstructionLimit(int)}. */
+    public static final int DEFAULT_INSTRUCTION_LIMIT = 100000;
+
+    /** Default for {@link #setTimeLimit(long, TimeUnit)}, in milliseconds. */
+    public static final long DEFAULT_TIME_LIMIT_MS = 100;
+
+    private int mInstructionLimit = DEFAULT_INSTRUCTION_LIMIT;
+    private long mTimeLimitNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_TIME_LIMIT_MS);
+
+    @Nullable
+    private Clock mRtcClock = null;
+    private long mRtcSecond = Long.MIN_VALUE;
+    private final Object[] mRtcValues = new Object[RTC_VARIABLES.length];
 
     public RPNContext() {
         mParent = null;
@@ -609,9 +773,77 @@ public class RPNContext {
     public RPNContext(RPNContext parent) {
         mParent = parent;
         mParent.mChildren.add(new WeakReference<>(this));
+        mCompilerEnabled = parent.mCompilerEnabled;
+        mInstructionLimit = parent.mInstructionLimit;
+        mTimeLimitNanos = parent.mTimeLimitNanos;
+    }
+
+    /**
+     * Determines if recipes compiled by this context are turned into compiled code or
+     * always interpreted. Recipes that the compiler doesn't support are always interpreted.
+     * Enabled by default; child contexts inherit this setting from their parent when they
+     * are created.
+     *
+     * @see RPNFunction#isCompiled()
+     */
+    public void setCompilerEnabled(boolean enabled) {
+        mCompilerEnabled = enabled;
+    }
+
+    public boolean isCompilerEnabled() {
+        return mCompilerEnabled;
+    }
+
+    /**
+     * Sets the maximum number of instructions a single evaluation of a recipe compiled by this
+     * context may run, counting every iteration of loops. Evaluations that go over the limit
+     * throw {@link RPNLimitExceededException}. Child contexts inherit this setting from their
+     * parent when they are created.
+     *
+     * @param limit the maximum number of instructions, which must be positive
+     */
+    public void setInstructionLimit(int limit) {
+        if (limit <= 0) {
+            throw new IllegalArgumentException("Instruction limit must be positive");
+        }
+        mInstructionLimit = limit;
+    }
+
+    public int getInstructionLimit() {
+        return mInstructionLimit;
+    }
+
+    /**
+     * Sets the maximum amount of time a single evaluation of a recipe compiled by this context
+     * may take. Evaluations that run longer throw {@link RPNLimitExceededException}. The limit
+     * is checked periodically while loops run, so it may be overshot slightly. Child contexts
+     * inherit this setting from their parent when they are created.
+     *
+     * @param limit the maximum duration, or zero for no time limit
+     */
+    public void setTimeLimit(long limit, TimeUnit unit) {
+        if (limit < 0) {
+            throw new IllegalArgumentException("Time limit must not be negative");
+        }
+        mTimeLimitNanos = unit.toNanos(limit);
+    }
+
+    public long getTimeLimit(TimeUnit unit) {
+        return unit.convert(mTimeLimitNanos, TimeUnit.NANOSECONDS);
     }
 
     public void didChangeVariable(String key) {
+        Integer slot = sSlotsByName.get(key);
+
+        if (slot != null) {
+            didChangeVariable(slot);
+        } else {
+            didChangeNamedVariable(key);
+        }
+    }
+
+    /** Like {@link #didChangeVariable(int)}, for a variable that has no slot. */
+    private void didChangeNamedVariable(String key) {
         boolean needsChildCleanup = false;
         for (WeakReference<RPNContext> ref : mChildren) {
             RPNContext child = ref.get();
@@ -621,50 +853,128 @@ public class RPNContext {
                continue;
             }
 
-            child.didChangeVariable(key);
+            child.didChangeNamedVariable(key);
         }
 
         if (needsChildCleanup) {
-            Set<WeakReference<RPNContext>> newChildren = new HashSet<>();
-            for (WeakReference<RPNContext> ref : mChildren) {
-                RPNContext child = ref.get();
-                if (child == null) {
-                    continue;
-                }
-                newChildren.add(ref);
+            mChildren.removeIf(ref -> ref.get() == null);
+        }
+
+        if (mNamedDependents != null) {
+            final BitSet dependents = mNamedDependents.get(key);
+
+            if (dependents != null) {
+                notifyDependents(dependents);
+            }
+        }
+    }
+
+    /**
+     * Notifies functions depending on the variable in {@code slot}, in this context and in
+     * all of its children, that the variable has changed.
+     */
+    public void didChangeVariable(int slot) {
+        boolean needsChildCleanup = false;
+        for (WeakReference<RPNContext> ref : mChildren) {
+            RPNContext child = ref.get();
+
+            if (child == null) {
+               needsChildCleanup = true;
+               continue;
             }
-            mChildren = newChildren;
+
+            child.didChangeVariable(slot);
         }
 
-        if (mVariableFunctionLookup.containsKey(key)) {
-            boolean needsFuncCleanup = false;
-            Set<WeakReference<RPNFunction>> funcs = mVariableFunctionLookup.get(key);
-            for (WeakReference<RPNFunction> ref : funcs) {
-                RPNFunction func = ref.get();
-                if (func == null) {
-                    needsFuncCleanup = true;
-                    continue;
-                }
-                func.didChange();
+        if (needsChildCleanup) {
+            mChildren.removeIf(ref -> ref.get() == null);
+        }
+
+        if (slot >= mDependents.length || mDependents[slot] == null) {
+            return;
+        }
+
+        notifyDependents(mDependents[slot]);
+    }
+
+    private void notifyDependents(BitSet dependents) {
+        for (int i = dependents.nextSetBit(0); i >= 0; i = dependents.nextSetBit(i + 1)) {
+            RPNFunction func = mFunctions.get(i).get();
+
+            if (func == null) {
+                removeFunction(i);
+                continue;
             }
 
-            if (needsFuncCleanup) {
-                Set<WeakReference<RPNFunction>> newFuncs = new HashSet<>();
-                for (WeakReference<RPNFunction> ref : funcs) {
-                    RPNFunction func = ref.get();
-                    if (func == null) {
-                        continue;
-                    }
-                    newFuncs.add(ref);
-                }
-                mVariableFunctionLookup.put(key, newFuncs);
+            func.didChange();
+        }
+    }
+
+    /** Forgets about a garbage-collected function, allowing its index to be reused. */
+    private void removeFunction(int index) {
+        for (BitSet dependents : mDependents) {
+            if (dependents != null) {
+                dependents.clear(index);
+            }
+        }
+
+        if (mNamedDependents != null) {
+            for (BitSet dependents : mNamedDependents.values()) {
+                dependents.clear(index);
             }
         }
     }
 
+    private int addFunction(RPNFunction function) {
+        int unused = -1;
+
+        for (int i = 0; i < mFunctions.size(); i++) {
+            RPNFunction func = mFunctions.get(i).get();
+
+            if (func == function) {
+                return i;
+            }
+
+            if (func == null && unused < 0) {
+                unused = i;
+            }
+        }
+
+        if (unused < 0) {
+            mFunctions.add(new WeakReference<>(function));
+            return mFunctions.size() - 1;
+        }
+
+        removeFunction(unused);
+        mFunctions.set(unused, new WeakReference<>(function));
+        return unused;
+    }
+
     public void addFunctionVariableDependency(RPNFunction function, String variable) {
-        Set<WeakReference<RPNFunction>> functions = mVariableFunctionLookup.computeIfAbsent(variable, (k) -> new HashSet<>());
-        functions.add(new WeakReference<>(function));
+        final int slot = findVariableSlot(variable);
+
+        if (slot != NO_SLOT) {
+            addFunctionVariableDependency(function, slot);
+            return;
+        }
+
+        if (mNamedDependents == null) {
+            mNamedDependents = new HashMap<>();
+        }
+
+        mNamedDependents.computeIfAbsent(variable, k -> new BitSet()).set(addFunction(function));
+    }
+
+    public void addFunctionVariableDependency(RPNFunction function, int slot) {
+        if (slot >= mDependents.length) {
+            mDependents = Arrays.copyOf(mDependents, slot + 1);
+        }
+
+        if (mDependents[slot] == null) {
+            mDependents[slot] = new BitSet();
+        }
+
+        mDependents[slot].set(addFunction(function));
     }
 
     public void setVariable(String key, @Nullable Object value) {
@@ -672,53 +982,209 @@ public class RPNContext {
             throw new IllegalArgumentException("Can't set constant, \"" + key + "\" is a function");
         }
 
-        mVariables.put(key, value);
-        didChangeVariable(key);
+        final int slot = findVariableSlot(key);
+
+        if (slot != NO_SLOT) {
+            setVariable(slot, value);
+            return;
+        }
+
+        if (mNamedValues == null) {
+            mNamedValues = new HashMap<>();
+        }
+
+        mNamedValues.put(key, value);
+        didChangeNamedVariable(key);
+    }
+
+    /**
+     * Sets the value of the variable in {@code slot}.
+     *
+     * @see #getVariableSlot(String)
+     */
+    public void setVariable(int slot, @Nullable Object value) {
+        if (slot >= mValues.length) {
+            mValues = Arrays.copyOf(mValues, slot + 1);
+        }
+
+        mValues[slot] = value;
+        mDefined.set(slot);
+        didChangeVariable(slot);
     }
 
     public @Nullable Object getVariable(String key) {
-        if (!mVariables.containsKey(key)) {
-            if (mOperators.containsKey(key)) {
-                throw new IllegalArgumentException("Can't get value for function \"" + key + "\"");
+        Integer slot = sSlotsByName.get(key);
+
+        if (slot != null) {
+            return getVariable(slot);
+        }
+
+        if (mOperators.containsKey(key)) {
+            throw new IllegalArgumentException("Can't get value for function \"" + key + "\"");
+        }
+
+        for (RPNContext context = this; context != null; context = context.mParent) {
+            if (context.mNamedValues != null && context.mNamedValues.containsKey(key)) {
+                return context.mNamedValues.get(key);
+            }
+        }
+
+        throw new RPNUnknownVariableException("Unknown variable \"" + key + "\"");
+    }
+
+    /**
+     * Returns the value of the variable in {@code slot}, looking in parent contexts if it
+     * isn't set in this one.
+     *
+     * @throws RPNUnknownVariableException if the variable isn't set
+     * @see #getVariableSlot(String)
+     */
+    public @Nullable Object getVariable(int slot) {
+        RPNContext rtcContext = null;
+
+        for (RPNContext context = this; context != null; context = context.mParent) {
+            if (context.mDefined.get(slot)) {
+                return context.mValues[slot];
+            }
+
+            if (rtcContext == null && context.mRtcClock != null) {
+                rtcContext = context;
             }
+        }
+
+        if (rtcContext != null && isRtcSlot(slot)) {
+            final Clock clock = rtcContext.mRtcClock;
 
-            if (mParent != null) {
-                return mParent.getVariable(key);
+            if (clock != null) {
+                return rtcContext.getRtcVariable(clock, slot);
             }
+        }
+
+        throw new RPNUnknownVariableException("Unknown variable \"" + getVariableName(slot) + "\"");
+    }
+
+    private static final String[] RTC_VARIABLES = {
+        "rtc.dom", "rtc.doy", "rtc.moy", "rtc.awm", "rtc.y", "rtc.wom", "rtc.woy", "rtc.tod", "rtc.dow"
+    };
+
+    // The RTC slots are allocated while this class is being initialized, so they are
+    // guaranteed to be contiguous.
+    private static final int SLOT_RTC_FIRST = getVariableSlot(RTC_VARIABLES[0]);
+
+    static {
+        for (int i = 1; i < RTC_VARIABLES.length; i++) {
+            if (getVariableSlot(RTC_VARIABLES[i]) != SLOT_RTC_FIRST + i) {
+                throw new AssertionError("RTC variable slots are not contiguous");
+            }
+        }
+    }
+
+    // Variables the code looks up by slot, which must have one before recipes can use them
+    // all up.
+    private static final String[] BUILTIN_VARIABLES = {"v", "v_l", "c", "i"};
+
+    static {
+        for (String name : BUILTIN_VARIABLES) {
+            getVariableSlot(name);
+        }
+    }
+
+    private static final int SLOT_RTC_DOM = SLOT_RTC_FIRST;
+    private static final int SLOT_RTC_DOY = SLOT_RTC_FIRST + 1;
+    private static final int SLOT_RTC_MOY = SLOT_RTC_FIRST + 2;
+    private static final int SLOT_RTC_AWM = SLOT_RTC_FIRST + 3;
+    private static final int SLOT_RTC_Y = SLOT_RTC_FIRST + 4;
+    private static final int SLOT_RTC_WOM = SLOT_RTC_FIRST + 5;
+    private static final int SLOT_RTC_WOY = SLOT_RTC_FIRST + 6;
+    private static final int SLOT_RTC_TOD = SLOT_RTC_FIRST + 7;
+    private static final int SLOT_RTC_DOW = SLOT_RTC_FIRST + 8;
+
+    private static final WeekFields RTC_WEEK_FIELDS = WeekFields.of(DayOfWeek.MONDAY, 1);
+
+    /**
+     * Makes the {@code rtc.*} variables available to this context and its children, computed
+     * from {@code clock} whenever a recipe reads one of them. Recipes that don't reference
+     * any {@code rtc.*} variable never consult the clock. The values are computed at most once
+     * per second of clock time. Variables set explicitly with {@link #setVariable(int, Object)}
+     * take precedence.
+     *
+     * @param clock the clock to use, or null to stop providing the {@code rtc.*} variables
+     */
+    public void setRtcClock(@Nullable Clock clock) {
+        mRtcClock = clock;
+        mRtcSecond = Long.MIN_VALUE;
+    }
 
-            throw new RPNUnknownVariableException("Unknown variable \"" + key + "\"");
+    /**
+     * Returns the clock used for the {@code rtc.*} variables in this context, or null if it
+     * doesn't provide them.
+     *
+     * @see #setRtcClock(Clock)
+     */
+    public @Nullable Clock getRtcClock() {
+        return mRtcClock;
+    }
+
+    private static boolean isRtcSlot(int slot) {
+        return slot >= SLOT_RTC_FIRST && slot < SLOT_RTC_FIRST + RTC_VARIABLES.length;
+    }
+
+    private Object getRtcVariable(Clock clock, int slot) {
+        final long millis = clock.millis();
+        final long second = Math.floorDiv(millis, 1000L);
+
+        if (second != mRtcSecond) {
+            ZonedDateTime now = ZonedDateTime.ofInstant(
+                    Instant.ofEpochMilli(millis), clock.getZone());
+
+            mRtcValues[SLOT_RTC_DOM - SLOT_RTC_FIRST] = now.getDayOfMonth() - 1;
+            mRtcValues[SLOT_RTC_DOY - SLOT_RTC_FIRST] = now.getDayOfYear() - 1;
+            mRtcValues[SLOT_RTC_MOY - SLOT_RTC_FIRST] = now.getMonthValue() - 1;
+            mRtcValues[SLOT_RTC_AWM - SLOT_RTC_FIRST] = (now.getDayOfMonth() - 1) / 7;
+            mRtcValues[SLOT_RTC_Y - SLOT_RTC_FIRST] = now.getYear();
+            mRtcValues[SLOT_RTC_WOM - SLOT_RTC_FIRST] = now.get(RTC_WEEK_FIELDS.weekOfMonth());
+            mRtcValues[SLOT_RTC_WOY - SLOT_RTC_FIRST] =
+                    now.get(RTC_WEEK_FIELDS.weekOfWeekBasedYear()) - 1;
+            mRtcValues[SLOT_RTC_TOD - SLOT_RTC_FIRST] = now.toLocalTime().toSecondOfDay() / 3600.0;
+            mRtcValues[SLOT_RTC_DOW - SLOT_RTC_FIRST] = now.getDayOfWeek().getValue() - 1;
+
+            mRtcSecond = second;
         }
 
-        return mVariables.get(key);
+        return mRtcValues[slot - SLOT_RTC_FIRST];
     }
 
+    /**
+     * Sets the {@code rtc.*} variables in this context from {@code now}. Prefer
+     * {@link #setRtcClock(Clock)}, which only computes these values when a recipe reads them.
+     */
     public void updateRtcVariables(Calendar now) {
         final int SECONDS_PER_HOUR = 60*60;
 
         now.setFirstDayOfWeek(Calendar.MONDAY);
 
-        setVariable("rtc.dom", now.get(Calendar.DAY_OF_MONTH) - now.getMinimum(Calendar.DAY_OF_MONTH));
-        setVariable("rtc.doy", now.get(Calendar.DAY_OF_YEAR)  - now.getMinimum(Calendar.DAY_OF_YEAR));
-        setVariable("rtc.moy", now.get(Calendar.MONTH) - now.getMinimum(Calendar.MONTH));
-        setVariable("rtc.awm", now.get(Calendar.DAY_OF_WEEK_IN_MONTH) - now.getMinimum(Calendar.DAY_OF_WEEK_IN_MONTH));
-        setVariable("rtc.y", now.get(Calendar.YEAR));
-        setVariable("rtc.wom", now.get(Calendar.WEEK_OF_MONTH) - now.getMinimum(Calendar.WEEK_OF_MONTH));
-        setVariable("rtc.woy", now.get(Calendar.WEEK_OF_YEAR) - now.getMinimum(Calendar.WEEK_OF_YEAR));
+        setVariable(SLOT_RTC_DOM, now.get(Calendar.DAY_OF_MONTH) - now.getMinimum(Calendar.DAY_OF_MONTH));
+        setVariable(SLOT_RTC_DOY, now.get(Calendar.DAY_OF_YEAR)  - now.getMinimum(Calendar.DAY_OF_YEAR));
+        setVariable(SLOT_RTC_MOY, now.get(Calendar.MONTH) - now.getMinimum(Calendar.MONTH));
+        setVariable(SLOT_RTC_AWM, now.get(Calendar.DAY_OF_WEEK_IN_MONTH) - now.getMinimum(Calendar.DAY_OF_WEEK_IN_MONTH));
+        setVariable(SLOT_RTC_Y, now.get(Calendar.YEAR));
+        setVariable(SLOT_RTC_WOM, now.get(Calendar.WEEK_OF_MONTH) - now.getMinimum(Calendar.WEEK_OF_MONTH));
+        setVariable(SLOT_RTC_WOY, now.get(Calendar.WEEK_OF_YEAR) - now.getMinimum(Calendar.WEEK_OF_YEAR));
 
         int secondOfDay = now.get(Calendar.SECOND)
                 + now.get(Calendar.MINUTE)*60
                 + now.get(Calendar.HOUR_OF_DAY)*3600;
-        setVariable("rtc.tod", (double)secondOfDay/SECONDS_PER_HOUR);
+        setVariable(SLOT_RTC_TOD, (double)secondOfDay/SECONDS_PER_HOUR);
 
         // Convert to zero-based day with monday as start of week.
         int dow = now.get(Calendar.DAY_OF_WEEK) - Calendar.MONDAY;
         if (dow < 0) {
-            dow = 7 - dow;
+            dow += 7;
         }
-        setVariable("rtc.dow", dow);
+        setVariable(SLOT_RTC_DOW, dow);
     }
 
-    private TokenType identifyToken(String token) {
+    private static TokenType identifyToken(String token) {
         if (token.matches(REGEX_NUMBER)) {
             return TokenType.CONST_NUMBER;
         }
@@ -742,25 +1208,25 @@ public class RPNContext {
         return TokenType.INVALID;
     }
 
-    private RPNOperation compileRestOfIfThen(RPNFunction function, List<String> tokens) {
+    private static RPNNode parseRestOfIfThen(List<String> tokens) {
 
         // Remove IF token
         tokens.remove(0);
 
-        RPNOperation opIf = compile(function, tokens);
-        RPNOperation opElse;
+        List<RPNNode> nodesIf = parse(tokens);
+        List<RPNNode> nodesElse;
 
         if (tokens.isEmpty()) {
             throw new RPNSyntaxErrorException("Missing ENDIF");
         }
 
         if ("ENDIF".equals(tokens.get(0))) {
-            opElse = RPNOperation.NOOP;
+            nodesElse = Collections.emptyList();
 
         } else if ("ELSE".equals(tokens.get(0))) {
             tokens.remove(0);
 
-            opElse = compile(function, tokens);
+            nodesElse = parse(tokens);
 
             if (tokens.isEmpty()) {
                 throw new RPNSyntaxErrorException("Missing ENDIF");
@@ -776,24 +1242,18 @@ public class RPNContext {
 
         tokens.remove(0);
 
-        return (context,stack) -> {
-            if (booleanType.coerceNonNull(stack.pop())) {
-                opIf.perform(context, stack);
-            } else {
-                opElse.perform(context, stack);
-            }
-        };
+        return new RPNNode.IfElse(nodesIf, nodesElse);
     }
 
-    private RPNOperation compileRestOfCaseOf(RPNFunction function, List<String> tokens) {
-        Map<Object, RPNOperation> labels = new HashMap<>();
-        RPNOperation opDefault = RPNOperation.NOOP;
+    private static RPNNode parseRestOfCaseOf(List<String> tokens) {
+        Map<Object, List<RPNNode>> labels = new LinkedHashMap<>();
+        List<RPNNode> nodesDefault = Collections.emptyList();
 
         // Remove CASE token
         tokens.remove(0);
 
         do {
-            RPNOperation opLabel = compile(function, tokens);
+            List<RPNNode> nodesLabel = parse(tokens);
 
             if (tokens.isEmpty()) {
                 throw new RPNSyntaxErrorException("Missing ENDCASE");
@@ -801,7 +1261,7 @@ public class RPNContext {
 
             if ("OF".equals(tokens.get(0))) {
                 tokens.remove(0);
-                RPNOperation opAction = compile(function, tokens);
+                List<RPNNode> nodesAction = parse(tokens);
 
                 if (tokens.isEmpty()) {
                     throw new RPNSyntaxErrorException("Missing ENDCASE");
@@ -817,19 +1277,19 @@ public class RPNContext {
                 RPNStack stack = new RPNStack();
                 Object label;
                 try {
-                    opLabel.perform(new RPNContext(), stack);
+                    RPNNode.toOperation(nodesLabel).perform(new RPNContext(), stack);
                     label = stack.pop();
                 } catch (InvalidValueException|RPNException e) {
                     throw new RPNSyntaxErrorException("Case label must be constant", e);
                 }
 
-                labels.put(label, opAction);
+                labels.put(label, nodesAction);
 
                 continue;
             }
 
             if ("ENDCASE".equals(tokens.get(0))) {
-                opDefault = opLabel;
+                nodesDefault = nodesLabel;
                 break;
             }
 
@@ -847,27 +1307,14 @@ public class RPNContext {
 
         tokens.remove(0);
 
-        final RPNOperation realDefault = opDefault;
-
-        return (context,stack) -> {
-            Object value = stack.pop();
-            for (Map.Entry<Object, RPNOperation> entry : labels.entrySet()) {
-                if (objectEquals(entry.getKey(), value)) {
-                    entry.getValue().perform(context,stack);
-                    return;
-                }
-            }
-            stack.push(value);
-            realDefault.perform(context,stack);
-            stack.pop();
-        };
+        return new RPNNode.CaseOf(labels, nodesDefault);
     }
 
-    private RPNOperation compileRestOfDoLoop(RPNFunction function, List<String> tokens) {
+    private static RPNNode parseRestOfDoLoop(List<String> tokens) {
         // Remove DO token
         tokens.remove(0);
 
-        RPNOperation opLoop = compile(function, tokens);
+        List<RPNNode> nodesLoop = parse(tokens);
 
         if (tokens.isEmpty()) {
             throw new RPNSyntaxErrorException("Missing LOOP");
@@ -875,19 +1322,11 @@ public class RPNContext {
 
         tokens.remove(0);
 
-        return (context,stack) -> {
-            int start = integerType.coerceNonNull(stack.pop());
-            int limit = integerType.coerceNonNull(stack.pop());
-            RPNContext newContext = new RPNContext(context);
-            for (; limit > start ; start++) {
-                newContext.setVariable("i",start);
-                opLoop.perform(newContext, stack);
-            }
-        };
+        return new RPNNode.DoLoop(nodesLoop);
     }
 
-    private RPNOperation compile(RPNFunction function, List<String> tokens) {
-        RPNComboOperation operation = new RPNComboOperation();
+    static List<RPNNode> parse(List<String> tokens) {
+        List<RPNNode> nodes = new ArrayList<>();
 
         while (!tokens.isEmpty()) {
             String token = tokens.get(0);
@@ -899,8 +1338,7 @@ public class RPNContext {
                 case CONST_NUMBER:
                     tokens.remove(0);
                     try {
-                        double value = Double.valueOf(token);
-                        operation.mOperations.add((context, stack) -> stack.push(value));
+                        nodes.add(new RPNNode.Constant(Double.valueOf(token)));
                     } catch (NumberFormatException e) {
                         throw new RPNSyntaxErrorException(e);
                     }
@@ -908,67 +1346,59 @@ public class RPNContext {
 
                 case CONST_STRING:
                     tokens.remove(0);
-                    try {
-                        String value = token.replaceAll("^:", "");
-                        operation.mOperations.add((context, stack) -> stack.push(value));
-                    } catch (NumberFormatException e) {
-                        throw new RPNSyntaxErrorException(e);
-                    }
+                    nodes.add(new RPNNode.Constant(token.replaceAll("^:", "")));
                     break;
 
                 case OPERATOR:
                     tokens.remove(0);
-                    operation.mOperations.add(mOperators.get(token));
+                    nodes.add(new RPNNode.Operator(token));
                     break;
 
                 case BRANCH:
                     switch (token) {
                         case "IF":
-                            operation.mOperations.add(compileRestOfIfThen(function, tokens));
+                            nodes.add(parseRestOfIfThen(tokens));
                             break;
 
                         case "CASE":
-                            operation.mOperations.add(compileRestOfCaseOf(function, tokens));
+                            nodes.add(parseRestOfCaseOf(tokens));
                             break;
 
                         case "DO":
-                            operation.mOperations.add(compileRestOfDoLoop(function, tokens));
+                            nodes.add(parseRestOfDoLoop(tokens));
                             break;
 
                         default:
-                            return operation;
+                            return nodes;
                     }
                     break;
 
                 case VARIABLE:
                     tokens.remove(0);
-                    addFunctionVariableDependency(function, token);
-                    operation.mOperations.add((context, stack) -> stack.push(context.getVariable(token)));
+                    nodes.add(new RPNNode.Variable(token));
                     break;
 
                 case INVALID:
                     throw new RPNSyntaxErrorException("Invalid token \"" + token + "\"");
             }
         }
-        return operation;
+        return nodes;
     }
 
     public RPNFunction compile(String recipe) {
-        List<String> tokenList = new ArrayList<>(Arrays.asList(recipe.split("\\s+")));
-
-        RPNComboOperation operation = new RPNComboOperation();
-        RPNFunction function = new RPNFunction(this, operation);
-
-        operation.mOperations.add(compile(function, tokenList));
-
-        if (!tokenList.isEmpty()) {
-            throw new RPNSyntaxErrorException("Unexpected token \"" + tokenList.get(0) + "\"");
-        }
+        return RPNProgram.forRecipe(recipe).instantiate(this);
+    }
 
-        return function;
+    /**
+     * Returns statistics for the cache of parsed and compiled recipes, which is shared by
+     * all contexts. Calls to {@link #compile(String)} with a recipe that is already in the
+     * cache count as hits.
+     */
+    public static CacheStats getRecipeCacheStats() {
+        return RPNProgram.getCacheStats();
     }
 
-    class RPNComboOperation implements RPNOperation {
+    static class RPNComboOperation implements RPNOperation {
         final List<RPNOperation> mOperations = new ArrayList<>();
 
         public void addOperation(RPNOperation x) {
@@ -977,6 +1407,10 @@ public class RPNContext {
 
         @Override
         public void perform(RPNContext context, RPNStack stack) throws InvalidValueException {
+            // Empty blocks still cost something, so that an empty loop body can't spin
+            // forever without hitting the instruction limit.
+            stack.charge(Math.max(1, mOperations.size()));
+
             for (RPNOperation op : mOperations) {
                 op.perform(context, stack);
             }
@@ -16,9 +16,18 @@
 package com.google.iot.m2m.local.rpn;
 
 import com.google.iot.m2m.base.InvalidValueException;
+import org.checkerframework.checker.nullness.qual.Nullable;
 
+import java.lang.invoke.MethodHandle;
 import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.function.Function;
 
 public class RPNFunction implements Function<Object, Object> {
@@ -26,6 +35,33 @@ public class RPNFunction implements Function<Object, Object> {
     RPNOperation mOperation = null;
     Runnable mListener = null;
 
+    /** Optimized program that {@link #mOperation} was built from. */
+    List<RPNNode> mProgram = Collections.emptyList();
+
+    /** Compiled form of {@link #mOperation}, or null if it must be interpreted. */
+    @Nullable MethodHandle mCompiled = null;
+
+    /** Slots of the variables {@link #mProgram} reads. Must not be modified. */
+    BitSet mVariableSlots = new BitSet();
+
+    /** Names of the variables {@link #mProgram} reads that have no slot. Must not be modified. */
+    Set<String> mVariableNames = Collections.emptySet();
+
+    /** False if {@link #mProgram} uses a non-deterministic operator like {@code RND}. */
+    boolean mDeterministic = true;
+
+    /** Only one in this many evaluations is timed, see {@link #getMeanEvaluationNanos()}. */
+    static final int TIMING_SAMPLE_INTERVAL = 16;
+
+    private final LongAdder mEvaluationCount = new LongAdder();
+    private final LongAdder mTimedCount = new LongAdder();
+    private final LongAdder mTimedNanos = new LongAdder();
+    private final AtomicLong mMaxEvaluationNanos = new AtomicLong();
+    private final LongAdder mLimitExceededCount = new LongAdder();
+
+    // Not synchronized, since an occasional extra or missed sample doesn't matter.
+    private int mUntilTimed = 1;
+
     RPNFunction(RPNContext context, RPNOperation operation) {
         mContext = context;
         mOperation = operation;
@@ -36,10 +72,144 @@ public class RPNFunction implements Function<Object, Object> {
         return sIdentity;
     }
 
+    /**
+     * Indicates if this function runs as compiled code rather than being interpreted.
+     */
+    public boolean isCompiled() {
+        return mCompiled != null;
+    }
+
+    /**
+     * Returns the recipe this function actually runs, after constant folding and other
+     * optimizations have been applied. Intended for debugging.
+     */
+    public String dumpProgram() {
+        return RPNNode.toString(mProgram);
+    }
+
+    /**
+     * Indicates if the result of this function is completely determined by its input and
+     * the values of {@code variables}: it reads no other variables and uses no
+     * non-deterministic operators like {@code RND}. Callers can use this to decide if a
+     * previous result can be reused when none of those have changed.
+     */
+    public boolean dependsOnlyOn(String... variables) {
+        if (!mDeterministic) {
+            return false;
+        }
+
+        BitSet others = (BitSet) mVariableSlots.clone();
+        Set<String> otherNames = new HashSet<>(mVariableNames);
+
+        for (String variable : variables) {
+            final int slot = RPNContext.findVariableSlot(variable);
+
+            if (slot == RPNContext.NO_SLOT) {
+                otherNames.remove(variable);
+            } else {
+                others.clear(slot);
+            }
+        }
+
+        return others.isEmpty() && otherNames.isEmpty();
+    }
+
+    /** Number of instructions in the program this function runs, after optimization. */
+    public int getInstructionCount() {
+        return mProgram.size();
+    }
+
+    /** Number of times this function has been evaluated. */
+    public long getEvaluationCount() {
+        return mEvaluationCount.sum();
+    }
+
+    /**
+     * Average time an evaluation of this function takes, in nanoseconds. Only one in every
+     * {@value #TIMING_SAMPLE_INTERVAL} evaluations is timed, since reading the clock can cost
+     * as much as evaluating a short recipe.
+     */
+    public double getMeanEvaluationNanos() {
+        final long samples = mTimedCount.sum();
+        return samples == 0 ? 0 : (double) mTimedNanos.sum() / samples;
+    }
+
+    /**
+     * Longest time a timed evaluation of this function has taken, in nanoseconds.
+     *
+     * @see #getMeanEvaluationNanos()
+     */
+    public long getMaxEvaluationNanos() {
+        return mMaxEvaluationNanos.get();
+    }
+
+    /**
+     * Number of evaluations of this function that were stopped for exceeding the instruction
+     * or time limit of its context.
+     */
+    public long getLimitExceededCount() {
+        return mLimitExceededCount.sum();
+    }
+
     @Override
     public Object apply(Object o) {
+        mEvaluationCount.increment();
+
+        if (--mUntilTimed > 0) {
+            try {
+                return evaluate(o);
+
+            } catch (RPNLimitExceededException e) {
+                mLimitExceededCount.increment();
+                throw e;
+            }
+        }
+
+        mUntilTimed = TIMING_SAMPLE_INTERVAL;
+
+        final long start = System.nanoTime();
+
+        try {
+            return evaluate(o);
+
+        } catch (RPNLimitExceededException e) {
+            mLimitExceededCount.increment();
+            throw e;
+
+        } finally {
+            final long elapsed = System.nanoTime() - start;
+
+            mTimedCount.increment();
+            mTimedNanos.add(elapsed);
+            mMaxEvaluationNanos.accumulateAndGet(elapsed, Math::max);
+        }
+    }
+
+    private Object evaluate(Object o) {
+        final MethodHandle compiled = mCompiled;
+        final int instructionLimit = mContext.getInstructionLimit();
+
+        // Compiled recipes are straight-line code, so they can't run longer than the number
+        // of instructions they contain.
+        if (compiled != null && mProgram.size() <= instructionLimit) {
+            try {
+                return (Object) compiled.invokeExact(mContext, o);
+
+            } catch (InvalidValueException e) {
+                throw new RPNInvalidTypeForOperatorException(e);
+
+            } catch (RuntimeException | Error e) {
+                throw e;
+
+            } catch (Throwable t) {
+                throw new RPNException(t);
+            }
+        }
+
+        final long timeLimit = mContext.getTimeLimit(TimeUnit.NANOSECONDS);
         RPNStack stack = new RPNStack();
 
+        stack.setLimits(instructionLimit, timeLimit);
         stack.push(o);
 
         try {
@@ -0,0 +1,29 @@
+/*
+ * Copyright (C) 2019 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.iot.m2m.local.rpn;
+
+/**
+ * Thrown when evaluating a recipe exceeds the instruction or time limit of its context.
+ *
+ * @see RPNContext#setInstructionLimit(int)
+ * @see RPNContext#setTimeLimit(long, java.util.concurrent.TimeUnit)
+ */
+public class RPNLimitExceededException extends RPNException {
+    RPNLimitExceededException() {}
+    RPNLimitExceededException(Throwable t) { super(t); }
+    RPNLimitExceededException(String d) { super(d); }
+    RPNLimitExceededException(String d, Throwable t) { super(d,t); }
+}
@@ -0,0 +1,351 @@
+/*
+ * Copyright (C) 2019 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.iot.m2m.local.rpn;
+
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+import java.util.*;
+
+/**
+ * Parsed form of a recipe. A recipe is parsed into a list of nodes once, which is then
+ * optimized by {@link RPNOptimizer} and turned into either an interpreted
+ * {@link RPNOperation} or compiled code by {@link RPNCompiler}.
+ */
+abstract class RPNNode {
+    /** Builds the interpreted form of this node. */
+    abstract RPNOperation toOperation();
+
+    /** Appends the recipe text for this node to {@code builder}. */
+    abstract void appendTo(StringBuilder builder);
+
+    /**
+     * Adds the slots of all of the variables this node reads to {@code slots}, and the names
+     * of those that don't have a slot to {@code names}.
+     */
+    void collectVariables(BitSet slots, Set<String> names) {}
+
+    /**
+     * Returns false if this node can produce different results given the same stack and
+     * variables, like {@code RND} does.
+     */
+    boolean isDeterministic() {
+        return true;
+    }
+
+    static RPNOperation toOperation(List<RPNNode> nodes) {
+        RPNContext.RPNComboOperation operation = new RPNContext.RPNComboOperation();
+        for (RPNNode node : nodes) {
+            operation.addOperation(node.toOperation());
+        }
+        return operation;
+    }
+
+    static void appendTo(StringBuilder builder, List<RPNNode> nodes) {
+        for (RPNNode node : nodes) {
+            if (builder.length() != 0) {
+                builder.append(' ');
+            }
+            node.appendTo(builder);
+        }
+    }
+
+    static String toString(List<RPNNode> nodes) {
+        StringBuilder builder = new StringBuilder();
+        appendTo(builder, nodes);
+        return builder.toString();
+    }
+
+    static void collectVariables(BitSet slots, Set<String> names, List<RPNNode> nodes) {
+        for (RPNNode node : nodes) {
+            node.collectVariables(slots, names);
+        }
+    }
+
+    static boolean isDeterministic(List<RPNNode> nodes) {
+        for (RPNNode node : nodes) {
+            if (!node.isDeterministic()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        appendTo(builder);
+        return builder.toString();
+    }
+
+    /** Pushes a constant value. */
+    static final class Constant extends RPNNode {
+        final @Nullable Object mValue;
+
+        Constant(@Nullable Object value) {
+            mValue = value;
+        }
+
+        @Override
+        RPNOperation toOperation() {
+            final Object value = mValue;
+            return (context, stack) -> stack.push(value);
+        }
+
+        @Override
+        void appendTo(StringBuilder builder) {
+            if (mValue == null) {
+                builder.append("NULL");
+            } else if (RPNContext.isStopSignal(mValue)) {
+                builder.append("STOP");
+            } else if (mValue instanceof Boolean) {
+                builder.append((Boolean) mValue ? "TRUE" : "FALSE");
+            } else if (mValue instanceof String) {
+                builder.append(':').append(mValue);
+            } else {
+                builder.append(mValue);
+            }
+        }
+    }
+
+    /** Performs one of the built-in operators. */
+    static final class Operator extends RPNNode {
+        final String mToken;
+
+        Operator(String token) {
+            mToken = token;
+        }
+
+        @Override
+        RPNOperation toOperation() {
+            return RPNContext.getOperator(mToken);
+        }
+
+        @Override
+        void appendTo(StringBuilder builder) {
+            builder.append(mToken);
+        }
+
+        @Override
+        boolean isDeterministic() {
+            return !"RND".equals(mToken);
+        }
+    }
+
+    /** Pushes the value of a variable. */
+    static final class Variable extends RPNNode {
+        final String mName;
+
+        /** Slot of the variable, or {@link RPNContext#NO_SLOT} if it is looked up by name. */
+        final int mSlot;
+
+        Variable(String name) {
+            mName = name;
+            mSlot = RPNContext.findVariableSlot(name);
+        }
+
+        @Override
+        RPNOperation toOperation() {
+            final int slot = mSlot;
+            final String name = mName;
+
+            if (slot == RPNContext.NO_SLOT) {
+                return (context, stack) -> stack.push(context.getVariable(name));
+            }
+
+            return (context, stack) -> stack.push(context.getVariable(slot));
+        }
+
+        @Override
+        void appendTo(StringBuilder builder) {
+            builder.append(mName);
+        }
+
+        @Override
+        void collectVariables(BitSet slots, Set<String> names) {
+            if (mSlot == RPNContext.NO_SLOT) {
+                names.add(mName);
+            } else {
+                slots.set(mSlot);
+            }
+        }
+    }
+
+    /** {@code IF ... ELSE ... ENDIF} */
+    static final class IfElse extends RPNNode {
+        final List<RPNNode> mThen;
+        final List<RPNNode> mElse;
+
+        IfElse(List<RPNNode> thenNodes, List<RPNNode> elseNodes) {
+            mThen = thenNodes;
+            mElse = elseNodes;
+        }
+
+        @Override
+        RPNOperation toOperation() {
+            final RPNOperation opIf = toOperation(mThen);
+            final RPNOperation opElse = mElse.isEmpty() ? RPNOperation.NOOP : toOperation(mElse);
+
+            return (context,stack) -> {
+                if (RPNContext.booleanType.coerceNonNull(stack.pop())) {
+                    opIf.perform(context, stack);
+                } else {
+                    opElse.perform(context, stack);
+                }
+            };
+        }
+
+        @Override
+        void appendTo(StringBuilder builder) {
+            builder.append("IF");
+            appendTo(builder, mThen);
+            if (!mElse.isEmpty()) {
+                builder.append(" ELSE");
+                appendTo(builder, mElse);
+            }
+            builder.append(" ENDIF");
+        }
+
+        @Override
+        void collectVariables(BitSet slots, Set<String> names) {
+            collectVariables(slots, names, mThen);
+            collectVariables(slots, names, mElse);
+        }
+
+        @Override
+        boolean isDeterministic() {
+            return isDeterministic(mThen) && isDeterministic(mElse);
+        }
+    }
+
+    /** {@code CASE ... OF ... ENDOF ... ENDCASE} */
+    static final class CaseOf extends RPNNode {
+        final Map<Object, List<RPNNode>> mLabels;
+        final List<RPNNode> mDefault;
+
+        CaseOf(Map<Object, List<RPNNode>> labels, List<RPNNode> defaultNodes) {
+            mLabels = labels;
+            mDefault = defaultNodes;
+        }
+
+        /** Returns the body for the label matching {@code value}, or null if none match. */
+        @Nullable List<RPNNode> getBodyForValue(@Nullable Object value) {
+            for (Map.Entry<Object, List<RPNNode>> entry : mLabels.entrySet()) {
+                if (RPNContext.objectEquals(entry.getKey(), value)) {
+                    return entry.getValue();
+                }
+            }
+            return null;
+        }
+
+        @Override
+        RPNOperation toOperation() {
+            final Map<Object, RPNOperation> labels = new LinkedHashMap<>();
+            final RPNOperation opDefault = toOperation(mDefault);
+
+            for (Map.Entry<Object, List<RPNNode>> entry : mLabels.entrySet()) {
+                labels.put(entry.getKey(), toOperation(entry.getValue()));
+            }
+
+            return (context,stack) -> {
+                Object value = stack.pop();
+                for (Map.Entry<Object, RPNOperation> entry : labels.entrySet()) {
+                    if (RPNContext.objectEquals(entry.getKey(), value)) {
+                        entry.getValue().perform(context,stack);
+                        return;
+                    }
+                }
+                stack.push(value);
+                opDefault.perform(context,stack);
+                stack.pop();
+            };
+        }
+
+        @Override
+        void appendTo(StringBuilder builder) {
+            builder.append("CASE");
+            for (Map.Entry<Object, List<RPNNode>> entry : mLabels.entrySet()) {
+                builder.append(' ');
+                new Constant(entry.getKey()).appendTo(builder);
+                builder.append(" OF");
+                appendTo(builder, entry.getValue());
+                builder.append(" ENDOF");
+            }
+            appendTo(builder, mDefault);
+            builder.append(" ENDCASE");
+        }
+
+        @Override
+        void collectVariables(BitSet slots, Set<String> names) {
+            for (List<RPNNode> body : mLabels.values()) {
+                collectVariables(slots, names, body);
+            }
+            collectVariables(slots, names, mDefault);
+        }
+
+        @Override
+        boolean isDeterministic() {
+            for (List<RPNNode> body : mLabels.values()) {
+                if (!isDeterministic(body)) {
+                    return false;
+                }
+            }
+            return isDeterministic(mDefault);
+        }
+    }
+
+    /** {@code DO ... LOOP} */
+    static final class DoLoop extends RPNNode {
+        private static final int SLOT_I = RPNContext.getVariableSlot("i");
+
+        final List<RPNNode> mBody;
+
+        DoLoop(List<RPNNode> body) {
+            mBody = body;
+        }
+
+        @Override
+        RPNOperation toOperation() {
+            final RPNOperation opLoop = toOperation(mBody);
+
+            return (context,stack) -> {
+                int start = RPNContext.integerType.coerceNonNull(stack.pop());
+                int limit = RPNContext.integerType.coerceNonNull(stack.pop());
+                RPNContext newContext = new RPNContext(context);
+                for (; limit > start ; start++) {
+                    newContext.setVariable(SLOT_I, start);
+                    opLoop.perform(newContext, stack);
+                }
+            };
+        }
+
+        @Override
+        void appendTo(StringBuilder builder) {
+            builder.append("DO");
+            appendTo(builder, mBody);
+            builder.append(" LOOP");
+        }
+
+        @Override
+        void collectVariables(BitSet slots, Set<String> names) {
+            collectVariables(slots, names, mBody);
+        }
+
+        @Override
+        boolean isDeterministic() {
+            return isDeterministic(mBody);
+        }
+    }
+}
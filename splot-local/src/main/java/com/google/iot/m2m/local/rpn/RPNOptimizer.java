@@ -0,0 +1,291 @@
+/*
+ * Copyright (C) 2019 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.iot.m2m.local.rpn;
+
+import com.google.iot.m2m.base.InvalidValueException;
+
+import java.util.*;
+
+/**
+ * Optimization pass over parsed recipes.
+ *
+ * <ul>
+ *     <li>Operators whose arguments are all constants are evaluated at compile time and
+ *     replaced with their result ({@code PI 2 *} becomes {@code 6.283185307179586}).
+ *     <li>{@code IF} and {@code CASE} on constant values are replaced with the branch that
+ *     would be taken.
+ *     <li>Stack shuffles that cancel each other out ({@code DUP DROP}, {@code SWAP SWAP})
+ *     and {@code NOP} are removed.
+ * </ul>
+ *
+ * <p>Only operators without side effects are folded, and an operator is left alone if
+ * evaluating it at compile time fails, so that the error still happens at run time. The
+ * stack depth is tracked where it can be known, and optimizations that would hide a stack
+ * overflow or underflow are skipped.
+ */
+final class RPNOptimizer {
+    /** Indicates that the stack depth can't be determined at compile time. */
+    private static final int UNKNOWN_DEPTH = -1;
+
+    /** Stack effect of each operator: number of values popped and number pushed. */
+    private static final Map<String, int[]> sStackEffects = new HashMap<>();
+
+    /** Operators that can be evaluated at compile time when their arguments are constant. */
+    private static final Set<String> sFoldable = new HashSet<>();
+
+    private static void effect(boolean foldable, int pops, int pushes, String... tokens) {
+        for (String token : tokens) {
+            sStackEffects.put(token, new int[] {pops, pushes});
+            if (foldable) {
+                sFoldable.add(token);
+            }
+        }
+    }
+
+    static {
+        effect(true, 2, 1, "+", "-", "*", "/", "^", "%", "MIN", "MAX");
+        effect(true, 2, 1, "<", "<=", ">", ">=", "==", "===", "!=", "&&", "||", "XOR");
+        effect(true, 1, 1, "LOG", "NEG", "ABS", "ROUND", "FLOOR", "CEIL", "!");
+        effect(true, 1, 1, "SIN", "COS", "ASIN", "ACOS");
+        effect(true, 3, 1, "RANGE", "CLAMP");
+        effect(true, 4, 1, "POLY2");
+        effect(true, 5, 1, "POLY3");
+        effect(true, 0, 1, "PI", "TAU", "E", "TRUE", "FALSE", "STOP", "NULL");
+        effect(true, 0, 0, "NOP");
+        effect(true, 1, 2, "DUP");
+        effect(true, 2, 2, "SWAP");
+        effect(true, 1, 0, "DROP");
+        effect(true, 2, 3, "OVER");
+        effect(true, 3, 3, "ROT");
+
+        // These either have side effects or produce mutable values, so they can't be folded.
+        effect(false, 0, 1, "RND", "{}", "[]");
+        effect(false, 1, 1, "[1]");
+        effect(false, 2, 1, "[2]", "PUSH");
+        effect(false, 3, 1, "[3]", "PUT");
+        effect(false, 4, 1, "[4]");
+        effect(false, 2, 2, "GET");
+        effect(false, 1, 2, "POP");
+        effect(false, 2, 1, "V+", "VSCALE", "VDOT", "M3*");
+        effect(false, 3, 1, "VCLAMP");
+    }
+
+    private static final RPNContext sFoldingContext = new RPNContext();
+
+    /** Thrown when the stack is known to overflow. */
+    private static final class StackOverflow extends Exception {
+        StackOverflow() {
+            super(null, null, false, false);
+        }
+    }
+
+    private RPNOptimizer() {}
+
+    /**
+     * Returns an optimized version of {@code program}, which is expected to start with the
+     * input already on the stack.
+     */
+    static List<RPNNode> optimize(List<RPNNode> program) {
+        try {
+            return optimize(program, 1);
+
+        } catch (StackOverflow e) {
+            // Leave the program as-is, so that the overflow is reported at run time.
+            return program;
+        }
+    }
+
+    private static int countTrailingConstants(List<RPNNode> nodes) {
+        int count = 0;
+        for (int i = nodes.size() - 1; i >= 0 && nodes.get(i) instanceof RPNNode.Constant; i--) {
+            count++;
+        }
+        return count;
+    }
+
+    private static boolean isOperator(List<RPNNode> nodes, String token) {
+        return !nodes.isEmpty()
+                && nodes.get(nodes.size() - 1) instanceof RPNNode.Operator
+                && token.equals(((RPNNode.Operator) nodes.get(nodes.size() - 1)).mToken);
+    }
+
+    private static RPNNode.Constant removeLast(List<RPNNode> nodes) {
+        return (RPNNode.Constant) nodes.remove(nodes.size() - 1);
+    }
+
+    /**
+     * Evaluates the operator {@code token} using the trailing constants in {@code out} as
+     * arguments, replacing them with the result. Returns false, leaving {@code out}
+     * untouched, if the operator fails.
+     */
+    private static boolean fold(String token, int pops, List<RPNNode> out) {
+        RPNStack stack = new RPNStack();
+
+        for (int i = out.size() - pops; i < out.size(); i++) {
+            stack.push(((RPNNode.Constant) out.get(i)).mValue);
+        }
+
+        try {
+            RPNContext.getOperator(token).perform(sFoldingContext, stack);
+        } catch (InvalidValueException | RPNException e) {
+            return false;
+        }
+
+        for (int i = 0; i < pops; i++) {
+            removeLast(out);
+        }
+
+        List<RPNNode> results = new ArrayList<>();
+        while (!stack.isEmpty()) {
+            results.add(new RPNNode.Constant(stack.pop()));
+        }
+        Collections.reverse(results);
+        out.addAll(results);
+
+        return true;
+    }
+
+    private static void pushFront(Deque<RPNNode> pending, List<RPNNode> nodes) {
+        for (int i = nodes.size() - 1; i >= 0; i--) {
+            pending.addFirst(nodes.get(i));
+        }
+    }
+
+    private static int push(int depth, int count) throws StackOverflow {
+        if (depth == UNKNOWN_DEPTH) {
+            return UNKNOWN_DEPTH;
+        }
+        depth += count;
+        if (depth > RPNStack.MAX_STACK_SIZE) {
+            throw new StackOverflow();
+        }
+        return depth;
+    }
+
+    private static List<RPNNode> optimize(List<RPNNode> nodes, int depth) throws StackOverflow {
+        final Deque<RPNNode> pending = new ArrayDeque<>(nodes);
+        final List<RPNNode> out = new ArrayList<>();
+
+        while (!pending.isEmpty()) {
+            final RPNNode node = pending.removeFirst();
+
+            if (node instanceof RPNNode.Operator) {
+                final String token = ((RPNNode.Operator) node).mToken;
+                final int[] effect = sStackEffects.get(token);
+
+                if (effect == null) {
+                    out.add(node);
+                    depth = UNKNOWN_DEPTH;
+                    continue;
+                }
+
+                final int pops = effect[0];
+                final int pushes = effect[1];
+
+                if (depth != UNKNOWN_DEPTH && depth < pops) {
+                    // This will underflow at run time. Leave the rest alone.
+                    out.add(node);
+                    depth = UNKNOWN_DEPTH;
+                    continue;
+                }
+
+                if (sFoldable.contains(token)
+                        && countTrailingConstants(out) >= pops
+                        && fold(token, pops, out)) {
+                    depth = push(depth, pushes - pops);
+                    continue;
+                }
+
+                if (depth >= 2 && "DROP".equals(token) && isOperator(out, "DUP")) {
+                    out.remove(out.size() - 1);
+                    depth -= 1;
+                    continue;
+                }
+
+                if (depth >= 2 && "SWAP".equals(token) && isOperator(out, "SWAP")) {
+                    out.remove(out.size() - 1);
+                    continue;
+                }
+
+                out.add(node);
+                depth = push(depth, pushes - pops);
+
+            } else if (node instanceof RPNNode.IfElse) {
+                final RPNNode.IfElse ifElse = (RPNNode.IfElse) node;
+
+                if (countTrailingConstants(out) >= 1) {
+                    final Object condition = ((RPNNode.Constant) out.get(out.size() - 1)).mValue;
+
+                    try {
+                        final boolean taken = RPNContext.booleanType.coerceNonNull(condition);
+                        removeLast(out);
+                        depth = push(depth, -1);
+                        pushFront(pending, taken ? ifElse.mThen : ifElse.mElse);
+                        continue;
+
+                    } catch (InvalidValueException ignore) {
+                        // Report the error at run time.
+                    }
+                }
+
+                out.add(new RPNNode.IfElse(
+                        optimize(ifElse.mThen, UNKNOWN_DEPTH),
+                        optimize(ifElse.mElse, UNKNOWN_DEPTH)));
+                depth = UNKNOWN_DEPTH;
+
+            } else if (node instanceof RPNNode.CaseOf) {
+                final RPNNode.CaseOf caseOf = (RPNNode.CaseOf) node;
+
+                if (countTrailingConstants(out) >= 1) {
+                    final RPNNode.Constant value = removeLast(out);
+                    final List<RPNNode> body = caseOf.getBodyForValue(value.mValue);
+
+                    if (body != null) {
+                        depth = push(depth, -1);
+                        pushFront(pending, body);
+
+                    } else {
+                        // The default branch runs with the value on the stack, which is
+                        // dropped afterwards.
+                        pending.addFirst(new RPNNode.Operator("DROP"));
+                        pushFront(pending, caseOf.mDefault);
+                        pending.addFirst(value);
+                        depth = push(depth, -1);
+                    }
+                    continue;
+                }
+
+                final Map<Object, List<RPNNode>> labels = new LinkedHashMap<>();
+                for (Map.Entry<Object, List<RPNNode>> entry : caseOf.mLabels.entrySet()) {
+                    labels.put(entry.getKey(), optimize(entry.getValue(), UNKNOWN_DEPTH));
+                }
+                out.add(new RPNNode.CaseOf(labels, optimize(caseOf.mDefault, UNKNOWN_DEPTH)));
+                depth = UNKNOWN_DEPTH;
+
+            } else if (node instanceof RPNNode.DoLoop) {
+                out.add(new RPNNode.DoLoop(optimize(((RPNNode.DoLoop) node).mBody, UNKNOWN_DEPTH)));
+                depth = UNKNOWN_DEPTH;
+
+            } else {
+                // Constants and variables
+                out.add(node);
+                depth = push(depth, 1);
+            }
+        }
+
+        return out;
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright (C) 2019 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.iot.m2m.local.rpn;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+import java.lang.invoke.MethodHandle;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * A parsed and optimized recipe that doesn't depend on any particular {@link RPNContext}.
+ * Programs are cached by recipe string, so that many pairings, rules or timers using the
+ * same recipe share a single parsed and compiled copy. Each {@link RPNFunction} is a cheap
+ * binding of a program to the context it reads its variables from.
+ */
+final class RPNProgram {
+    /** Maximum number of distinct recipes kept in {@link #sCache}. */
+    static final int CACHE_SIZE = 1024;
+
+    private static final Cache<String, RPNProgram> sCache = CacheBuilder.newBuilder()
+            .maximumSize(CACHE_SIZE)
+            .recordStats()
+            .build();
+
+    private final List<RPNNode> mProgram;
+    private final RPNOperation mOperation;
+    private final BitSet mVariableSlots = new BitSet();
+    private final Set<String> mVariableNames = new HashSet<>();
+    private final boolean mDeterministic;
+
+    // The compiled form is only built the first time it is needed by a context with the
+    // compiler enabled.
+    private volatile boolean mCompileAttempted = false;
+    private volatile @Nullable MethodHandle mCompiled = null;
+
+    private RPNProgram(List<RPNNode> program) {
+        mProgram = program;
+        mOperation = RPNNode.toOperation(program);
+        RPNNode.collectVariables(mVariableSlots, mVariableNames, program);
+        mDeterministic = RPNNode.isDeterministic(program);
+    }
+
+    /**
+     * Returns the program for {@code recipe}, parsing it if it isn't already cached.
+     *
+     * @throws RPNSyntaxErrorException if the recipe can't be parsed
+     */
+    static RPNProgram forRecipe(String recipe) {
+        RPNProgram program = sCache.getIfPresent(recipe);
+
+        if (program == null) {
+            program = parse(recipe);
+            sCache.put(recipe, program);
+        }
+
+        return program;
+    }
+
+    static CacheStats getCacheStats() {
+        return sCache.stats();
+    }
+
+    static void clearCache() {
+        sCache.invalidateAll();
+    }
+
+    private static RPNProgram parse(String recipe) {
+        List<String> tokenList = new ArrayList<>(Arrays.asList(recipe.split("\\s+")));
+
+        List<RPNNode> program = RPNContext.parse(tokenList);
+
+        if (!tokenList.isEmpty()) {
+            throw new RPNSyntaxErrorException("Unexpected token \"" + tokenList.get(0) + "\"");
+        }
+
+        return new RPNProgram(RPNOptimizer.optimize(program));
+    }
+
+    private @Nullable MethodHandle getCompiled() {
+        if (!mCompileAttempted) {
+            synchronized (this) {
+                if (!mCompileAttempted) {
+                    mCompiled = RPNCompiler.compile(mProgram);
+                    mCompileAttempted = true;
+                }
+            }
+        }
+        return mCompiled;
+    }
+
+    /** Creates a function that runs this program using the variables in {@code context}. */
+    RPNFunction instantiate(RPNContext context) {
+        RPNFunction function = new RPNFunction(context, mOperation);
+
+        function.mProgram = mProgram;
+        function.mVariableSlots = mVariableSlots;
+        function.mVariableNames = mVariableNames;
+        function.mDeterministic = mDeterministic;
+
+        for (int i = mVariableSlots.nextSetBit(0); i >= 0; i = mVariableSlots.nextSetBit(i + 1)) {
+            context.addFunctionVariableDependency(function, i);
+        }
+
+        for (String name : mVariableNames) {
+            context.addFunctionVariableDependency(function, name);
+        }
+
+        if (context.isCompilerEnabled()) {
+            function.mCompiled = getCompiled();
+        }
+
+        return function;
+    }
+}
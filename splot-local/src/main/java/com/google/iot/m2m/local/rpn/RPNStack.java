@@ -19,11 +19,62 @@ import com.google.errorprone.annotations.CanIgnoreReturnValue;
 import org.checkerframework.checker.nullness.qual.Nullable;
 
 class RPNStack {
-    private static final int MAX_STACK_SIZE = 16;
+    static final int MAX_STACK_SIZE = 16;
+
+    /** Number of blocks run between checks of the deadline. */
+    private static final int TIME_CHECK_INTERVAL = 64;
 
     Object[] mStack = new Object[MAX_STACK_SIZE];
     int mTop = 0;
 
+    // Limits for the evaluation using this stack. Unlimited unless setLimits() is called.
+    private long mInstructionsLeft = Long.MAX_VALUE;
+    private long mTimeLimitNanos = 0;
+    private long mDeadline = 0;
+    private int mUntilTimeCheck = TIME_CHECK_INTERVAL;
+
+    /**
+     * Limits the evaluation using this stack to {@code instructions} instructions, and to
+     * {@code timeLimitNanos} nanoseconds if it isn't zero.
+     */
+    void setLimits(long instructions, long timeLimitNanos) {
+        mInstructionsLeft = instructions;
+        mTimeLimitNanos = timeLimitNanos;
+    }
+
+    /**
+     * Accounts for running {@code instructions} more instructions, which is done once per
+     * block of straight-line code rather than once per instruction.
+     *
+     * @throws RPNLimitExceededException if the instruction limit or deadline has been exceeded
+     */
+    void charge(int instructions) {
+        mInstructionsLeft -= instructions;
+
+        if (mInstructionsLeft < 0) {
+            throw new RPNLimitExceededException("Instruction limit exceeded");
+        }
+
+        if (mTimeLimitNanos != 0 && --mUntilTimeCheck <= 0) {
+            checkDeadline();
+        }
+    }
+
+    private void checkDeadline() {
+        final long now = System.nanoTime();
+
+        mUntilTimeCheck = TIME_CHECK_INTERVAL;
+
+        // Reading the clock isn't free, so short evaluations never do. The time limit is
+        // counted from the first check instead, which is close enough to the start.
+        if (mDeadline == 0) {
+            mDeadline = now + mTimeLimitNanos;
+
+        } else if (now - mDeadline > 0) {
+            throw new RPNLimitExceededException("Time limit exceeded");
+        }
+    }
+
     public boolean isEmpty() {
         return mTop == 0;
     }
@@ -0,0 +1,204 @@
+/*
+ * Copyright (C) 2019 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.iot.m2m.local.rpn;
+
+import com.google.iot.m2m.base.InvalidValueException;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+import java.util.Collection;
+
+/**
+ * Element-wise vector operators, used by both the interpreter and {@link RPNCompiler}.
+ *
+ * <p>Vectors are {@code float[]} or {@code double[]} values, like the chromaticity and
+ * whitepoint properties of {@link com.google.iot.m2m.trait.LightTrait}, or lists of numbers.
+ * Results have the same type as the first vector operand, or as the vector being multiplied
+ * for {@link #multiply3x3}, so that a {@code float[]} property value can be transformed and
+ * written back without conversion. Lists are treated as {@code double[]}.
+ */
+final class RPNVectors {
+    private RPNVectors() {}
+
+    /**
+     * Returns {@code value} if it is a {@code float[]} or {@code double[]}, converting
+     * collections of numbers to a {@code double[]}.
+     */
+    static Object toVector(@Nullable Object value) throws InvalidValueException {
+        if (value instanceof float[] || value instanceof double[]) {
+            return value;
+        }
+
+        if (value instanceof Collection<?>) {
+            Collection<?> collection = (Collection<?>) value;
+            double[] vector = new double[collection.size()];
+            int i = 0;
+
+            for (Object item : collection) {
+                vector[i++] = RPNContext.doubleType.coerceNonNull(item);
+            }
+
+            return vector;
+        }
+
+        throw new InvalidValueException("Expected vector, got " + value);
+    }
+
+    private static int length(Object vector) {
+        if (vector instanceof float[]) {
+            return ((float[]) vector).length;
+        }
+        return ((double[]) vector).length;
+    }
+
+    private static double get(Object vector, int i) {
+        if (vector instanceof float[]) {
+            return ((float[]) vector)[i];
+        }
+        return ((double[]) vector)[i];
+    }
+
+    private static void checkLength(Object vector, int length) throws InvalidValueException {
+        if (length(vector) != length) {
+            throw new InvalidValueException(
+                    "Expected vector of length " + length + ", got " + length(vector));
+        }
+    }
+
+    /** Returns {@code a + b}. */
+    static Object add(@Nullable Object a, @Nullable Object b) throws InvalidValueException {
+        Object lhs = toVector(a);
+        Object rhs = toVector(b);
+
+        checkLength(rhs, length(lhs));
+
+        if (lhs instanceof float[]) {
+            float[] src = (float[]) lhs;
+            float[] ret = new float[src.length];
+
+            if (rhs instanceof float[]) {
+                float[] other = (float[]) rhs;
+                for (int i = 0; i < ret.length; i++) {
+                    ret[i] = src[i] + other[i];
+                }
+            } else {
+                for (int i = 0; i < ret.length; i++) {
+                    ret[i] = (float) (src[i] + get(rhs, i));
+                }
+            }
+            return ret;
+        }
+
+        double[] src = (double[]) lhs;
+        double[] ret = new double[src.length];
+
+        if (rhs instanceof double[]) {
+            double[] other = (double[]) rhs;
+            for (int i = 0; i < ret.length; i++) {
+                ret[i] = src[i] + other[i];
+            }
+        } else {
+            for (int i = 0; i < ret.length; i++) {
+                ret[i] = src[i] + get(rhs, i);
+            }
+        }
+        return ret;
+    }
+
+    /** Returns {@code v * scale}. */
+    static Object scale(@Nullable Object v, double scale) throws InvalidValueException {
+        Object vector = toVector(v);
+
+        if (vector instanceof float[]) {
+            float[] src = (float[]) vector;
+            float[] ret = new float[src.length];
+            for (int i = 0; i < ret.length; i++) {
+                ret[i] = (float) (src[i] * scale);
+            }
+            return ret;
+        }
+
+        double[] src = (double[]) vector;
+        double[] ret = new double[src.length];
+        for (int i = 0; i < ret.length; i++) {
+            ret[i] = src[i] * scale;
+        }
+        return ret;
+    }
+
+    /** Returns the dot product of {@code a} and {@code b}. */
+    static double dot(@Nullable Object a, @Nullable Object b) throws InvalidValueException {
+        Object lhs = toVector(a);
+        Object rhs = toVector(b);
+        int length = length(lhs);
+        double ret = 0;
+
+        checkLength(rhs, length);
+
+        for (int i = 0; i < length; i++) {
+            ret += get(lhs, i) * get(rhs, i);
+        }
+        return ret;
+    }
+
+    /**
+     * Returns the product of the 3x3 matrix {@code m}, given as a nine element vector in
+     * row-major order, and the three element vector {@code v}. The result has the same type
+     * as {@code v}, whatever the type of {@code m}.
+     */
+    static Object multiply3x3(@Nullable Object m, @Nullable Object v)
+            throws InvalidValueException {
+        Object matrix = toVector(m);
+        Object vector = toVector(v);
+
+        checkLength(matrix, 9);
+        checkLength(vector, 3);
+
+        double x = get(vector, 0);
+        double y = get(vector, 1);
+        double z = get(vector, 2);
+
+        double rx = get(matrix, 0) * x + get(matrix, 1) * y + get(matrix, 2) * z;
+        double ry = get(matrix, 3) * x + get(matrix, 4) * y + get(matrix, 5) * z;
+        double rz = get(matrix, 6) * x + get(matrix, 7) * y + get(matrix, 8) * z;
+
+        if (vector instanceof float[]) {
+            return new float[] {(float) rx, (float) ry, (float) rz};
+        }
+        return new double[] {rx, ry, rz};
+    }
+
+    /** Clamps every element of {@code v} to be between {@code min} and {@code max}. */
+    static Object clamp(@Nullable Object v, double min, double max)
+            throws InvalidValueException {
+        Object vector = toVector(v);
+
+        if (vector instanceof float[]) {
+            float[] src = (float[]) vector;
+            float[] ret = new float[src.length];
+            for (int i = 0; i < ret.length; i++) {
+                ret[i] = (float) Math.min(Math.max(src[i], min), max);
+            }
+            return ret;
+        }
+
+        double[] src = (double[]) vector;
+        double[] ret = new double[src.length];
+        for (int i = 0; i < ret.length; i++) {
+            ret[i] = Math.min(Math.max(src[i], min), max);
+        }
+        return ret;
+    }
+}
@@ -0,0 +1,266 @@
+/*
+ * Copyright (C) 2019 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.iot.m2m.local;
+
+import com.google.common.base.Ticker;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.iot.m2m.base.TechnologyRuntimeException;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.junit.jupiter.api.Test;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ActionDispatchTest {
+    long mNow = 0;
+    final Ticker mTicker = new Ticker() {
+        @Override
+        public long read() {
+            return mNow;
+        }
+    };
+
+    /** Records invocations and lets the test decide when they complete. */
+    static class FakeResourceLink extends ResourceLink<Object> {
+        final URI mUri;
+        final List<Object> mInvoked = new ArrayList<>();
+        final List<SettableFuture<Object>> mPending = new ArrayList<>();
+
+        FakeResourceLink(String uri) {
+            mUri = URI.create(uri);
+        }
+
+        @Override
+        public ListenableFuture<Object> fetchValue() {
+            return Futures.immediateFuture(null);
+        }
+
+        @Override
+        public ListenableFuture<?> invoke(@Nullable Object value) {
+            SettableFuture<Object> future = SettableFuture.create();
+            mInvoked.add(value);
+            mPending.add(future);
+            return future;
+        }
+
+        @Override
+        public URI getUri() {
+            return mUri;
+        }
+
+        @Override
+        public void registerListener(Executor executor, Listener<Object> listener) {}
+
+        @Override
+        public void unregisterListener(Listener<Object> listener) {}
+    }
+
+    ActionDispatch dispatch(List<ResourceLink<Object>> links, List<Object> bodies,
+                            int maxConcurrency) {
+        return new ActionDispatch(links, bodies, maxConcurrency,
+                MoreExecutors.directExecutor(), mTicker);
+    }
+
+    @Test
+    void deduplicatesIdenticalActions() throws Exception {
+        FakeResourceLink a = new FakeResourceLink("/1/s/onof/v");
+        FakeResourceLink b = new FakeResourceLink("/2/s/onof/v");
+
+        ActionDispatch dispatch = dispatch(
+                Arrays.<ResourceLink<Object>>asList(a, b, a, a),
+                Arrays.<Object>asList(true, true, true, new int[]{1}),
+                16);
+
+        assertEquals(3, dispatch.getInvocationCount());
+
+        ListenableFuture<List<ActionOutcome>> future = dispatch.start();
+        assertEquals(1, a.mInvoked.size());
+        assertEquals(1, b.mInvoked.size());
+
+        // The second write to a waits for the first one.
+        a.mPending.get(0).set(null);
+        assertEquals(2, a.mInvoked.size());
+        a.mPending.get(1).set(null);
+        assertFalse(future.isDone());
+
+        b.mPending.get(0).setException(new TechnologyRuntimeException());
+        assertTrue(future.isDone());
+
+        List<ActionOutcome> outcomes = future.get();
+        assertEquals(4, outcomes.size());
+        assertTrue(outcomes.get(0).isSuccess());
+        assertFalse(outcomes.get(0).isDuplicate());
+        assertFalse(outcomes.get(1).isSuccess());
+        assertTrue(outcomes.get(1).getError() instanceof TechnologyRuntimeException);
+        assertTrue(outcomes.get(2).isSuccess());
+        assertTrue(outcomes.get(2).isDuplicate());
+        assertFalse(outcomes.get(3).isDuplicate());
+    }
+
+    @Test
+    void keepsOrderOfWritesToSameResource() throws Exception {
+        FakeResourceLink a = new FakeResourceLink("/1/s/levl/v");
+        FakeResourceLink b = new FakeResourceLink("/2/s/levl/v");
+
+        ActionDispatch dispatch = dispatch(
+                Arrays.<ResourceLink<Object>>asList(a, a, b, a, a),
+                Arrays.<Object>asList(1.0, 0.0, 1.0, 1.0, 1.0),
+                16);
+
+        // Only the last write is merged: the one before it wrote the same value, but the
+        // first one is followed by a different value.
+        assertEquals(4, dispatch.getInvocationCount());
+
+        ListenableFuture<List<ActionOutcome>> future = dispatch.start();
+        assertEquals(Arrays.<Object>asList(1.0), a.mInvoked);
+        assertEquals(Arrays.<Object>asList(1.0), b.mInvoked);
+
+        a.mPending.get(0).set(null);
+        assertEquals(Arrays.<Object>asList(1.0, 0.0), a.mInvoked);
+
+        a.mPending.get(1).set(null);
+        assertEquals(Arrays.<Object>asList(1.0, 0.0, 1.0), a.mInvoked);
+
+        a.mPending.get(2).set(null);
+        b.mPending.get(0).set(null);
+
+        List<ActionOutcome> outcomes = future.get();
+        assertEquals(5, outcomes.size());
+        assertFalse(outcomes.get(3).isDuplicate());
+        assertTrue(outcomes.get(4).isDuplicate());
+    }
+
+    @Test
+    void neverMergesNonIdempotentActions() throws Exception {
+        FakeResourceLink toggle = new FakeResourceLink("/1/s/onof/v?tog");
+        FakeResourceLink increment = new FakeResourceLink("/1/s/levl/v?inc");
+        FakeResourceLink method = new FakeResourceLink("/1/f/scen/save");
+
+        ActionDispatch dispatch = dispatch(
+                Arrays.<ResourceLink<Object>>asList(
+                        toggle, toggle, increment, increment, method, method),
+                Arrays.<Object>asList(null, null, 0.1, 0.1, "a", "a"),
+                16);
+
+        assertEquals(6, dispatch.getInvocationCount());
+
+        dispatch.start();
+        toggle.mPending.get(0).set(null);
+        increment.mPending.get(0).set(null);
+        method.mPending.get(0).set(null);
+
+        assertEquals(2, toggle.mInvoked.size());
+        assertEquals(2, increment.mInvoked.size());
+        assertEquals(2, method.mInvoked.size());
+
+        assertTrue(ActionDispatch.isPlainWrite(URI.create("loop://1/s/levl/v")));
+        assertTrue(ActionDispatch.isPlainWrite(URI.create("/1/c/enab/v?d=2")));
+        assertFalse(ActionDispatch.isPlainWrite(URI.create("/1/s/levl/v?inc")));
+        assertFalse(ActionDispatch.isPlainWrite(URI.create("/1/f/scen/save")));
+    }
+
+    @Test
+    void limitsConcurrency() throws Exception {
+        List<FakeResourceLink> fakes = new ArrayList<>();
+        List<ResourceLink<Object>> links = new ArrayList<>();
+        List<Object> bodies = new ArrayList<>();
+
+        for (int i = 0; i < 5; i++) {
+            FakeResourceLink link = new FakeResourceLink("/" + i + "/s/levl/v");
+            fakes.add(link);
+            links.add(link);
+            bodies.add(0.5);
+        }
+
+        ListenableFuture<List<ActionOutcome>> future = dispatch(links, bodies, 2).start();
+
+        assertEquals(1, fakes.get(0).mInvoked.size());
+        assertEquals(1, fakes.get(1).mInvoked.size());
+        assertEquals(0, fakes.get(2).mInvoked.size());
+
+        mNow += TimeUnit.MILLISECONDS.toNanos(30);
+        fakes.get(1).mPending.get(0).set(null);
+        assertEquals(1, fakes.get(2).mInvoked.size());
+        assertEquals(0, fakes.get(3).mInvoked.size());
+
+        mNow += TimeUnit.MILLISECONDS.toNanos(20);
+        for (int i = 0; i < 5; i++) {
+            if (i != 1) {
+                fakes.get(i).mPending.get(0).set(null);
+            }
+        }
+
+        List<ActionOutcome> outcomes = future.get();
+        assertEquals(30, outcomes.get(1).getLatency(TimeUnit.MILLISECONDS));
+        assertEquals(50, outcomes.get(0).getLatency(TimeUnit.MILLISECONDS));
+        assertEquals(20, outcomes.get(2).getLatency(TimeUnit.MILLISECONDS));
+        assertEquals(0, outcomes.get(4).getLatency(TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    void reportsOutcomesAsTheyComplete() throws Exception {
+        FakeResourceLink hung = new FakeResourceLink("/1/s/levl/v");
+        FakeResourceLink failing = new FakeResourceLink("/2/s/levl/v");
+        List<ActionOutcome> reported = new ArrayList<>();
+
+        ActionDispatch dispatch = dispatch(
+                Arrays.<ResourceLink<Object>>asList(hung, failing, failing),
+                Arrays.<Object>asList(1.0, 0.5, 0.5),
+                16);
+        dispatch.setListener(reported::add);
+
+        ListenableFuture<List<ActionOutcome>> future = dispatch.start();
+
+        failing.mPending.get(0).setException(new TechnologyRuntimeException());
+
+        // The failure is reported even though the first action hasn't completed.
+        assertFalse(future.isDone());
+        assertEquals(2, reported.size());
+        assertEquals(1, reported.get(0).getIndex());
+        assertTrue(reported.get(0).getError() instanceof TechnologyRuntimeException);
+        assertTrue(reported.get(1).isDuplicate());
+
+        hung.mPending.get(0).set(null);
+        assertTrue(future.isDone());
+        assertEquals(3, reported.size());
+        assertEquals(0, reported.get(2).getIndex());
+    }
+
+    @Test
+    void reportsSynchronousFailures() throws Exception {
+        ResourceLink<Object> broken = new FakeResourceLink("/1/s/levl/v") {
+            @Override
+            public ListenableFuture<?> invoke(@Nullable Object value) {
+                throw new IllegalStateException();
+            }
+        };
+
+        List<ActionOutcome> outcomes = dispatch(
+                Arrays.asList(broken), Arrays.<Object>asList(1.0), 1).start().get();
+
+        assertTrue(outcomes.get(0).getError() instanceof IllegalStateException);
+        assertTrue(dispatch(new ArrayList<>(), new ArrayList<>(), 1).start().get().isEmpty());
+    }
+}
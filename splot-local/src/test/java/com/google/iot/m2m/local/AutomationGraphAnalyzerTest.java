@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2019 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.iot.m2m.local;
+
+import org.junit.jupiter.api.Test;
+
+import java.net.URI;
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class AutomationGraphAnalyzerTest {
+    private static final URI A = URI.create("loop://localhost/a/s/onof/v");
+    private static final URI B = URI.create("loop://localhost/b/s/onof/v");
+    private static final URI C = URI.create("loop://localhost/c/s/onof/v");
+    private static final URI D = URI.create("loop://localhost/d/s/onof/v");
+
+    @Test
+    void computesFanInAndFanOut() {
+        AutomationGraphAnalyzer.Report report = new AutomationGraphAnalyzer()
+                .addPairing("pairings/1", A, B, true, false)
+                .addPairing("pairings/2", A, C, true, false)
+                .addRule("rules/1", Arrays.asList(A, B), Collections.singletonList(C))
+                .addTimer("timers/1", Collections.singletonList(C))
+                .analyze(100);
+
+        assertEquals(3, report.getFanOut(A));
+        assertEquals(1, report.getFanOut(B));
+        assertEquals(0, report.getFanOut(C));
+        assertEquals(0, report.getFanIn(A));
+        assertEquals(1, report.getFanIn(B));
+        assertEquals(3, report.getFanIn(C));
+        assertEquals(new HashSet<>(Arrays.asList(A, B, C)), report.getResources());
+
+        // A triggers both pairings and the rule, and the first pairing triggers the rule again.
+        assertEquals(4, report.getEvaluationCount(A));
+        assertTrue(report.isClean());
+    }
+
+    @Test
+    void ignoresBidirectionalPairing() {
+        AutomationGraphAnalyzer.Report report = new AutomationGraphAnalyzer()
+                .addPairing("pairings/1", A, B, true, true)
+                .analyze(100);
+
+        assertTrue(report.getCycles().isEmpty());
+        assertEquals(1, report.getEvaluationCount(A));
+        assertEquals(1, report.getEvaluationCount(B));
+    }
+
+    @Test
+    void findsCycles() {
+        AutomationGraphAnalyzer.Report report = new AutomationGraphAnalyzer()
+                .addPairing("pairings/1", A, B, true, false)
+                .addPairing("pairings/2", B, C, true, false)
+                .addRule("rules/1", Collections.singletonList(C), Collections.singletonList(A))
+                .addRule("rules/2", Collections.singletonList(D), Collections.singletonList(D))
+                .analyze(100);
+
+        assertEquals(2, report.getCycles().size());
+
+        AutomationGraphAnalyzer.Cycle cycle = report.getCycles().stream()
+                .filter(c -> c.getResources().size() == 3)
+                .findFirst()
+                .orElseThrow(AssertionError::new);
+
+        assertEquals(new HashSet<>(Arrays.asList(A, B, C)), cycle.getResources());
+        assertEquals(new HashSet<>(Arrays.asList("pairings/1", "pairings/2", "rules/1")),
+                cycle.getAutomations());
+
+        // The cycle is followed until the depth limit.
+        assertEquals(AutomationGraphAnalyzer.DEFAULT_DEPTH_LIMIT, report.getEvaluationCount(A));
+        assertFalse(report.isClean());
+    }
+
+    @Test
+    void reportsHotSpots() {
+        AutomationGraphAnalyzer analyzer = new AutomationGraphAnalyzer().setDepthLimit(4);
+
+        // Every resource is copied to each of the next layer's resources.
+        List<List<URI>> layers = new ArrayList<>();
+
+        for (int layer = 0; layer < 4; layer++) {
+            List<URI> resources = new ArrayList<>();
+            for (int i = 0; i < 3; i++) {
+                resources.add(URI.create("loop://localhost/l" + layer + "n" + i + "/s/lvl/v"));
+            }
+            layers.add(resources);
+        }
+
+        int id = 1;
+        for (int layer = 0; layer < 3; layer++) {
+            for (URI from : layers.get(layer)) {
+                for (URI to : layers.get(layer + 1)) {
+                    analyzer.addPairing("pairings/" + id++, from, to, true, false);
+                }
+            }
+        }
+
+        AutomationGraphAnalyzer.Report report = analyzer.analyze(20);
+
+        // 3 + 9 + 27 evaluations for the first layer, 3 + 9 for the second.
+        URI first = layers.get(0).get(0);
+        URI second = layers.get(1).get(0);
+
+        assertEquals(39, report.getEvaluationCount(first));
+        assertEquals(12, report.getEvaluationCount(second));
+        assertEquals(3, report.getHotSpots().size());
+        assertEquals(Long.valueOf(39), report.getHotSpots().get(first));
+        assertFalse(report.getHotSpots().containsKey(second));
+        assertTrue(report.getCycles().isEmpty());
+    }
+}
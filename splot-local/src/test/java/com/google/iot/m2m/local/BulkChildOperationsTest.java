@@ -0,0 +1,120 @@
+/*
+ * Copyright (C) 2019 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.iot.m2m.local;
+
+import com.google.iot.m2m.base.InvalidMethodArgumentsException;
+import com.google.iot.m2m.base.ParamKey;
+import com.google.iot.m2m.base.Thing;
+import com.google.iot.m2m.util.NestedPersistentStateManager;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+class BulkChildOperationsTest {
+    @SuppressWarnings("unchecked")
+    static final ParamKey<Map<String, Object>[]> PARAM_ITEMS = new ParamKey("items", Map[].class);
+    static final ParamKey<String[]> PARAM_IDS = new ParamKey<>("ids", String[].class);
+
+    final Thing mParent = mock(Thing.class);
+    final ChildPersistentStateManager mStateManager = new ChildPersistentStateManager();
+    final ChildPersistentStateManagerTest.CountingListener mListener =
+            new ChildPersistentStateManagerTest.CountingListener();
+    final Map<String, Thing> mChildren = new HashMap<>();
+    final Map<Thing, String> mIds = new HashMap<>();
+
+    @BeforeEach
+    void before() {
+        // Children are saved separately, so that adding and removing them saves the list.
+        mStateManager.setExternalManager(new NestedPersistentStateManager(), "children/");
+        mStateManager.setPersistentStateListener(mListener);
+    }
+
+    Thing create(Map<String, Object> args) throws InvalidMethodArgumentsException {
+        if (args.containsKey("bad")) {
+            throw new InvalidMethodArgumentsException("Bad value for \"bad\"");
+        }
+
+        Thing child = mock(Thing.class);
+        String id = "" + (mChildren.size() + 1);
+        mChildren.put(id, child);
+        mIds.put(child, id);
+        mStateManager.startManaging(id, new ChildPersistentStateManagerTest.Child());
+        return child;
+    }
+
+    boolean delete(Thing child) {
+        String id = mIds.remove(child);
+
+        if (id == null) {
+            return false;
+        }
+
+        mChildren.remove(id);
+        mStateManager.stopManaging(id);
+        return true;
+    }
+
+    String[] createChildren(Map<String, Object>... items) throws InvalidMethodArgumentsException {
+        Map<String, Object> args = new HashMap<>();
+        PARAM_ITEMS.putInMap(args, items);
+        return BulkChildOperations.createChildren(args, PARAM_ITEMS, mParent, mStateManager,
+                this::create, mIds::get, this::delete);
+    }
+
+    int deleteChildren(String... ids) throws InvalidMethodArgumentsException {
+        Map<String, Object> args = new HashMap<>();
+        PARAM_IDS.putInMap(args, ids);
+        return BulkChildOperations.deleteChildren(args, PARAM_IDS, mParent, mStateManager,
+                mChildren::get, this::delete);
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    void createsAndDeletesInOneSave() throws Exception {
+        Map<String, Object> item = Collections.emptyMap();
+
+        assertArrayEquals(new String[] {"1", "2", "3"}, createChildren(item, item, item));
+        assertEquals(1, mListener.mSaveCount);
+
+        assertEquals(2, deleteChildren("1", "3", "7"));
+        assertEquals(2, mListener.mSaveCount);
+        assertEquals(Collections.singleton("2"), mChildren.keySet());
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    void rollsBackOnBadItem() {
+        Map<String, Object> item = Collections.emptyMap();
+        Map<String, Object> bad = Collections.singletonMap("bad", true);
+
+        InvalidMethodArgumentsException x = assertThrows(
+                InvalidMethodArgumentsException.class, () -> createChildren(item, bad, item));
+
+        assertTrue(x.getMessage().startsWith("Item 1: "), x.getMessage());
+        assertTrue(mChildren.isEmpty());
+        assertTrue(mStateManager.copyPersistentState().isEmpty());
+
+        assertThrows(InvalidMethodArgumentsException.class,
+                () -> BulkChildOperations.deleteChildren(new HashMap<>(), PARAM_IDS,
+                        mParent, mStateManager, mChildren::get, this::delete));
+    }
+}
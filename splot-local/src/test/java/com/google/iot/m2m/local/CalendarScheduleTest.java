@@ -0,0 +1,137 @@
+/*
+ * Copyright (C) 2019 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.iot.m2m.local;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CalendarScheduleTest {
+    private static final ZoneId NEW_YORK = ZoneId.of("America/New_York");
+
+    private static ZonedDateTime at(String time) {
+        return ZonedDateTime.parse(time);
+    }
+
+    @Test
+    void weekdaysAtSeven() {
+        CalendarSchedule schedule = CalendarSchedule.parse("0 7 * * MON-FRI");
+
+        // Friday 2019-03-01 at 08:00 UTC: next is Monday.
+        assertEquals(at("2019-03-04T07:00Z"), schedule.next(at("2019-03-01T08:00Z")));
+
+        // Exactly at a fire time: next is the day after.
+        assertEquals(at("2019-03-05T07:00Z"), schedule.next(at("2019-03-04T07:00Z")));
+        assertEquals(at("2019-03-04T07:00Z"), schedule.next(at("2019-03-04T06:59:59Z")));
+    }
+
+    @Test
+    void parsesFields() {
+        assertEquals(at("2019-03-01T00:15Z"),
+                CalendarSchedule.parse("*/15 * * * *").next(at("2019-03-01T00:00Z")));
+        assertEquals(at("2019-03-01T10:05Z"),
+                CalendarSchedule.parse("5 10,22 * * *").next(at("2019-03-01T09:00Z")));
+        assertEquals(at("2019-06-01T00:00Z"),
+                CalendarSchedule.parse("@monthly").next(at("2019-05-15T12:00Z")));
+        assertEquals(at("2020-01-01T00:00Z"),
+                CalendarSchedule.parse("@yearly").next(at("2019-05-15T12:00Z")));
+
+        // Sunday may be 0 or 7.
+        assertEquals(at("2019-03-03T12:00Z"),
+                CalendarSchedule.parse("0 12 * * 7").next(at("2019-03-01T00:00Z")));
+        assertEquals(at("2019-03-03T12:00Z"),
+                CalendarSchedule.parse("0 12 * * sun").next(at("2019-03-01T00:00Z")));
+
+        assertThrows(IllegalArgumentException.class, () -> CalendarSchedule.parse("0 7 * *"));
+        assertThrows(IllegalArgumentException.class, () -> CalendarSchedule.parse("60 7 * * *"));
+        assertThrows(IllegalArgumentException.class, () -> CalendarSchedule.parse("0 7 * * FOO"));
+        assertThrows(IllegalArgumentException.class,
+                () -> CalendarSchedule.parse("TZ=Nowhere/Atlantis 0 7 * * *"));
+    }
+
+    @Test
+    void dayOfMonthOrDayOfWeek() {
+        // The 13th, or any Friday.
+        CalendarSchedule schedule = CalendarSchedule.parse("0 0 13 * FRI");
+
+        assertEquals(at("2019-09-06T00:00Z"), schedule.next(at("2019-09-01T00:00Z")));
+        assertEquals(at("2019-09-13T00:00Z"), schedule.next(at("2019-09-06T00:00Z")));
+        assertEquals(at("2019-10-04T00:00Z"), schedule.next(at("2019-09-27T00:00Z")));
+        assertEquals(at("2019-10-11T00:00Z"), schedule.next(at("2019-10-04T00:00Z")));
+        assertEquals(at("2019-10-13T00:00Z"), schedule.next(at("2019-10-11T00:00Z")));
+    }
+
+    @Test
+    void rareAndImpossibleDates() {
+        assertEquals(at("2020-02-29T00:00Z"),
+                CalendarSchedule.parse("0 0 29 2 *").next(at("2019-03-01T00:00Z")));
+
+        // Both restricted: either the 29th or a Monday, in February.
+        assertEquals(at("2020-02-03T00:00Z"),
+                CalendarSchedule.parse("0 0 29 2 MON").next(at("2019-03-01T00:00Z")));
+
+        assertNull(CalendarSchedule.parse("0 0 30 2 *").next(at("2019-03-01T00:00Z")));
+    }
+
+    @Test
+    void usesTimeZone() {
+        CalendarSchedule schedule = CalendarSchedule.parse("TZ=America/New_York 0 7 * * *");
+
+        assertEquals(NEW_YORK, schedule.getZone());
+        assertEquals(at("2019-03-01T07:00-05:00[America/New_York]"),
+                schedule.next(at("2019-03-01T00:00Z")));
+        assertEquals(at("2019-07-01T07:00-04:00[America/New_York]"),
+                schedule.next(at("2019-07-01T00:00Z")));
+
+        // Without a zone, the zone of the given time is used.
+        assertEquals(ZonedDateTime.of(2019, 3, 1, 7, 0, 0, 0, NEW_YORK),
+                CalendarSchedule.parse("0 7 * * *")
+                        .next(ZonedDateTime.of(2019, 3, 1, 0, 0, 0, 0, NEW_YORK)));
+    }
+
+    @Test
+    void handlesDaylightSavingTime() {
+        // Clocks go forward from 2:00 to 3:00 on 2019-03-10.
+        CalendarSchedule skipped = CalendarSchedule.parse("30 2 * * *");
+        ZonedDateTime beforeGap = ZonedDateTime.of(2019, 3, 10, 1, 0, 0, 0, NEW_YORK);
+        ZonedDateTime fired = skipped.next(beforeGap);
+
+        assertEquals(ZonedDateTime.of(2019, 3, 10, 3, 30, 0, 0, NEW_YORK), fired);
+        assertEquals(ZonedDateTime.of(2019, 3, 11, 2, 30, 0, 0, NEW_YORK), skipped.next(fired));
+
+        // Clocks go back from 2:00 to 1:00 on 2019-11-03, so 1:30 happens twice.
+        ZonedDateTime beforeOverlap = ZonedDateTime.of(2019, 11, 3, 0, 0, 0, 0, NEW_YORK);
+        CalendarSchedule repeated = CalendarSchedule.parse("30 1 * * *");
+
+        fired = repeated.next(beforeOverlap);
+        assertEquals(ZoneOffset.ofHours(-4), fired.getOffset());
+        assertEquals(ZonedDateTime.of(2019, 11, 4, 1, 30, 0, 0, NEW_YORK), repeated.next(fired));
+
+        // Hourly schedules fire in both.
+        CalendarSchedule hourly = CalendarSchedule.parse("30 * * * *");
+
+        fired = hourly.next(beforeOverlap.plusHours(1));
+        assertEquals(ZoneOffset.ofHours(-4), fired.getOffset());
+        fired = hourly.next(fired);
+        assertEquals(1, fired.getHour());
+        assertEquals(ZoneOffset.ofHours(-5), fired.getOffset());
+        assertEquals(2, hourly.next(fired).getHour());
+    }
+}
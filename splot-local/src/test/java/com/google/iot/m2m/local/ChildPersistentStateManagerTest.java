@@ -0,0 +1,185 @@
+/*
+ * Copyright (C) 2019 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.iot.m2m.local;
+
+import com.google.iot.m2m.base.PersistentStateInterface;
+import com.google.iot.m2m.base.PersistentStateListener;
+import com.google.iot.m2m.util.NestedPersistentStateManager;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ChildPersistentStateManagerTest {
+    static class Child implements PersistentStateInterface {
+        PersistentStateListener mListener = null;
+        final Map<String, Object> mMap = new HashMap<>();
+        int mCopyCount = 0;
+
+        void set(String key, Object value) {
+            mMap.put(key, value);
+            if (mListener != null) {
+                mListener.onSavePersistentState(this);
+            }
+        }
+
+        @Override
+        public Map<String, Object> copyPersistentState() {
+            mCopyCount++;
+            return new HashMap<>(mMap);
+        }
+
+        @Override
+        public void initWithPersistentState(@Nullable Map<String, Object> persistentState) {
+            if (persistentState != null) {
+                mMap.putAll(persistentState);
+            }
+        }
+
+        @Override
+        public void setPersistentStateListener(@Nullable PersistentStateListener listener) {
+            mListener = listener;
+        }
+    }
+
+    static class CountingListener implements PersistentStateListener {
+        int mSaveCount = 0;
+
+        @Override
+        public void onSavePersistentState(PersistentStateInterface persistentStateInterface) {
+            mSaveCount++;
+        }
+
+        @Override
+        public void onSavePersistentStateBlocking(
+                PersistentStateInterface persistentStateInterface) {
+            mSaveCount++;
+        }
+    }
+
+    @Test
+    void savesChildrenSeparately() {
+        NestedPersistentStateManager store = new NestedPersistentStateManager();
+        ChildPersistentStateManager manager = new ChildPersistentStateManager();
+        CountingListener listener = new CountingListener();
+
+        manager.setExternalManager(store, "pairings/");
+        manager.setPersistentStateListener(listener);
+
+        Child a = new Child();
+        Child b = new Child();
+        manager.startManaging("1", a);
+        manager.startManaging("2", b);
+        assertEquals(2, listener.mSaveCount);
+
+        // Changing a child saves only that child, not the index.
+        int copies = b.mCopyCount;
+        a.set("name", "Alpha");
+        assertEquals(2, listener.mSaveCount);
+        assertEquals(copies, b.mCopyCount);
+        assertTrue(store.copyPersistentState().containsKey("pairings/1"));
+
+        Map<String, Object> index = manager.copyPersistentState();
+        assertEquals(2, index.size());
+        assertEquals(new HashMap<>(), index.get("1"));
+
+        manager.stopManaging("2");
+        assertEquals(3, listener.mSaveCount);
+        assertFalse(store.copyPersistentState().containsKey("pairings/2"));
+
+        // Restoring from the index gets the state back from the store.
+        ChildPersistentStateManager restored = new ChildPersistentStateManager();
+        restored.setExternalManager(store, "pairings/");
+        restored.initWithPersistentState(manager.copyPersistentState());
+        restored.setPersistentStateListener(listener);
+
+        store.stopManaging("pairings/1");
+        Child a2 = new Child();
+        restored.startManaging("1", a2);
+        assertEquals("Alpha", a2.mMap.get("name"));
+        assertEquals(3, listener.mSaveCount);
+    }
+
+    @Test
+    void migratesNestedState() {
+        Map<String, Object> nested = new HashMap<>();
+        Map<String, Object> childState = new HashMap<>();
+        childState.put("name", "Legacy");
+        nested.put("7", childState);
+
+        NestedPersistentStateManager store = new NestedPersistentStateManager();
+        ChildPersistentStateManager manager = new ChildPersistentStateManager();
+        CountingListener listener = new CountingListener();
+
+        manager.setExternalManager(store, "rules/");
+        manager.initWithPersistentState(nested);
+        manager.setPersistentStateListener(listener);
+
+        Child child = new Child();
+        manager.startManaging("7", child);
+
+        assertEquals("Legacy", child.mMap.get("name"));
+        assertEquals(1, listener.mSaveCount);
+        assertEquals(new HashMap<>(), manager.copyPersistentState().get("7"));
+        assertTrue(store.copyPersistentState().containsKey("rules/7"));
+    }
+
+    @Test
+    void batchesSaves() {
+        ChildPersistentStateManager manager = new ChildPersistentStateManager();
+        CountingListener listener = new CountingListener();
+
+        manager.setPersistentStateListener(listener);
+
+        manager.beginBatch();
+        for (int i = 0; i < 100; i++) {
+            Child child = new Child();
+            manager.startManaging("" + i, child);
+            child.set("name", "Child " + i);
+        }
+        assertEquals(0, listener.mSaveCount);
+        manager.endBatch();
+
+        assertEquals(1, listener.mSaveCount);
+        assertEquals(100, manager.copyPersistentState().size());
+
+        // Nothing changed, so nothing to save.
+        manager.beginBatch();
+        manager.endBatch();
+        assertEquals(1, listener.mSaveCount);
+
+        assertThrows(IllegalStateException.class, manager::endBatch);
+    }
+
+    @Test
+    void nestsByDefault() {
+        ChildPersistentStateManager manager = new ChildPersistentStateManager();
+        Child child = new Child();
+
+        manager.startManaging("1", child);
+        child.set("name", "Nested");
+
+        @SuppressWarnings("unchecked")
+        Map<String, Object> state = (Map<String, Object>) manager.copyPersistentState().get("1");
+        assertEquals("Nested", state.get("name"));
+
+        assertThrows(IllegalStateException.class,
+                () -> manager.setExternalManager(new NestedPersistentStateManager(), ""));
+    }
+}
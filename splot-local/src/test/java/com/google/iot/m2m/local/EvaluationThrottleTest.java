@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2019 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.iot.m2m.local;
+
+import com.google.iot.m2m.base.InvalidPropertyValueException;
+import com.google.iot.m2m.testing.VirtualTimeScheduledExecutorService;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class EvaluationThrottleTest {
+    VirtualTimeScheduledExecutorService mExecutor = null;
+    AtomicInteger mRuns = new AtomicInteger();
+    EvaluationThrottle mThrottle = null;
+
+    @BeforeEach
+    void before() {
+        mExecutor = new VirtualTimeScheduledExecutorService();
+        mThrottle = new EvaluationThrottle(mRuns::incrementAndGet,
+                new LocalTimerService(mExecutor, mExecutor.getTicker()), mExecutor.getTicker());
+    }
+
+    @Test
+    void holdOffCoalescesChanges() {
+        assertFalse(mThrottle.isEnabled());
+
+        mThrottle.setHoldOff(TimeUnit.MILLISECONDS.toNanos(50));
+        assertTrue(mThrottle.isEnabled());
+
+        for (int i = 0; i < 5; i++) {
+            mThrottle.trigger();
+        }
+
+        mExecutor.advanceBy(49, TimeUnit.MILLISECONDS);
+        assertEquals(0, mRuns.get());
+
+        mExecutor.advanceBy(1, TimeUnit.MILLISECONDS);
+        assertEquals(1, mRuns.get());
+        assertEquals(5, mThrottle.getTriggerCount());
+        assertEquals(1, mThrottle.getRunCount());
+    }
+
+    @Test
+    void maxRateDelaysRuns() throws Exception {
+        mThrottle.setMinInterval(EvaluationThrottle.rateToIntervalNanos(10.0f));
+        assertEquals(10.0f, mThrottle.getMaxRate(), 0.01f);
+
+        // The first change is handled right away...
+        mThrottle.trigger();
+        mExecutor.runDueTasks();
+        assertEquals(1, mRuns.get());
+
+        // ...but the following ones have to wait until 100ms after it.
+        mExecutor.advanceBy(20, TimeUnit.MILLISECONDS);
+        mThrottle.trigger();
+        mThrottle.trigger();
+        mExecutor.advanceBy(79, TimeUnit.MILLISECONDS);
+        assertEquals(1, mRuns.get());
+
+        mExecutor.advanceBy(1, TimeUnit.MILLISECONDS);
+        assertEquals(2, mRuns.get());
+        assertEquals(3, mThrottle.getTriggerCount());
+    }
+
+    @Test
+    void cancel() {
+        mThrottle.setHoldOff(TimeUnit.MILLISECONDS.toNanos(20));
+        mThrottle.trigger();
+        mThrottle.cancel();
+
+        mExecutor.advanceBy(50, TimeUnit.MILLISECONDS);
+        assertEquals(0, mRuns.get());
+    }
+
+    @Test
+    void convertsPropertyValues() throws Exception {
+        assertEquals(0, EvaluationThrottle.secondsToNanos(null));
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(250), EvaluationThrottle.secondsToNanos(0.25f));
+        assertEquals(0, EvaluationThrottle.rateToIntervalNanos(0.0f));
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(500), EvaluationThrottle.rateToIntervalNanos(2.0f));
+
+        assertThrows(InvalidPropertyValueException.class,
+                () -> EvaluationThrottle.secondsToNanos(-1.0f));
+        assertThrows(InvalidPropertyValueException.class,
+                () -> EvaluationThrottle.secondsToNanos(Float.NaN));
+        assertThrows(InvalidPropertyValueException.class,
+                () -> EvaluationThrottle.rateToIntervalNanos(-1.0f));
+        assertThrows(InvalidPropertyValueException.class,
+                () -> EvaluationThrottle.rateToIntervalNanos(Float.POSITIVE_INFINITY));
+    }
+}
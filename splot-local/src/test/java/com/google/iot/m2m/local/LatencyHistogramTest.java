@@ -0,0 +1,78 @@
+/*
+ * Copyright (C) 2019 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.iot.m2m.local;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class LatencyHistogramTest {
+    @Test
+    void bucketsCoverAllDurations() {
+        long previous = -1;
+
+        for (int bucket = 0; bucket < LatencyHistogram.BUCKET_COUNT; bucket++) {
+            long upper = LatencyHistogram.upperBoundOf(bucket);
+            assertTrue(upper > previous, "bucket " + bucket);
+            assertEquals(bucket, LatencyHistogram.bucketFor(previous + 1));
+            assertEquals(bucket, LatencyHistogram.bucketFor(upper));
+            previous = upper;
+        }
+
+        assertEquals(Long.MAX_VALUE, previous);
+        assertEquals(0, LatencyHistogram.bucketFor(-5));
+    }
+
+    @Test
+    void percentilesAreWithinBucketError() {
+        LatencyHistogram histogram = new LatencyHistogram();
+
+        assertEquals(0, histogram.getNanosAtFraction(0.99));
+        assertEquals(0, histogram.getMeanNanos());
+
+        for (long i = 1; i <= 1000; i++) {
+            histogram.record(i * 1000);
+        }
+
+        assertEquals(1000, histogram.getCount());
+        assertEquals(500500.0, histogram.getMeanNanos(), 0.001);
+
+        long p99 = histogram.getNanosAtFraction(0.99);
+        assertTrue(p99 >= 990000 && p99 <= 990000 * 1.125, "p99 = " + p99);
+
+        long p50 = histogram.getNanosAtFraction(0.5);
+        assertTrue(p50 >= 500000 && p50 <= 500000 * 1.125, "p50 = " + p50);
+    }
+
+    @Test
+    void addsOtherHistograms() {
+        LatencyHistogram a = new LatencyHistogram();
+        LatencyHistogram b = new LatencyHistogram();
+        LatencyHistogram total = new LatencyHistogram();
+
+        a.record(10);
+        b.record(1000000);
+        b.record(1000000);
+
+        total.add(a);
+        total.add(b);
+
+        assertEquals(3, total.getCount());
+        assertEquals(2000010 / 3.0, total.getMeanNanos(), 0.001);
+        assertEquals(10, total.getNanosAtFraction(0.3));
+        assertTrue(total.getNanosAtFraction(0.99) >= 1000000);
+    }
+}
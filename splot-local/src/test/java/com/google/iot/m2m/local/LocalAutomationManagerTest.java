@@ -0,0 +1,58 @@
+/*
+ * Copyright (C) 2018 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.iot.m2m.local;
+
+import com.google.iot.m2m.trait.AutomationTimerManagerTrait;
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class LocalAutomationManagerTest extends TestBase {
+    @Test
+    @SuppressWarnings("unchecked")
+    void bulkOperationsSaveOnce() throws Exception {
+        LocalTechnology technology = new LocalTechnology(mExecutor);
+        LocalAutomationManager manager = new LocalAutomationManager(technology);
+        ChildPersistentStateManagerTest.CountingListener listener =
+                new ChildPersistentStateManagerTest.CountingListener();
+
+        manager.initWithPersistentState(null);
+        manager.setPersistentStateListener(listener);
+
+        Map<String, Object> item = new HashMap<>();
+        AutomationTimerManagerTrait.PARAM_NAME.putInMap(item, "Timer");
+
+        Map<String, Object> createArgs = new HashMap<>();
+        AutomationTimerManagerTrait.PARAM_ITEMS.putInMap(
+                createArgs, new Map[] {item, item, item});
+
+        String[] ids = manager.invokeMethod(
+                AutomationTimerManagerTrait.METHOD_CREATE_BULK, createArgs).get();
+
+        assertEquals(3, ids.length);
+        assertEquals(1, listener.mSaveCount);
+
+        Map<String, Object> deleteArgs = new HashMap<>();
+        AutomationTimerManagerTrait.PARAM_IDS.putInMap(deleteArgs, ids);
+
+        assertEquals(3, (int) manager.invokeMethod(
+                AutomationTimerManagerTrait.METHOD_DELETE_BULK, deleteArgs).get());
+        assertEquals(2, listener.mSaveCount);
+    }
+}
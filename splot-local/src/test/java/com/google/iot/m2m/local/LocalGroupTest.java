@@ -19,9 +19,12 @@ import static org.junit.jupiter.api.Assertions.*;
 
 import com.google.iot.m2m.base.Thing;
 import com.google.iot.m2m.base.Group;
+import com.google.iot.m2m.base.InvalidModifierListException;
+import com.google.iot.m2m.base.Modifier;
 import com.google.iot.m2m.trait.*;
 import com.google.iot.m2m.util.NestedPersistentStateManager;
 import java.util.Map;
+import java.util.concurrent.ExecutionException;
 import java.util.logging.Logger;
 import org.junit.jupiter.api.Test;
 
@@ -277,6 +280,59 @@ public class LocalGroupTest extends TestBase {
         assertFalse(bulb3.fetchProperty(OnOffTrait.STAT_VALUE).get());
     }
 
+    @Test
+    public void localGroupRecallSceneTest() throws Exception {
+        LocalTechnology technology = new LocalTechnology(mExecutor);
+
+        MyLightBulbNoTrans bulb1 = new MyLightBulbNoTrans();
+        MyLightBulbNoTrans bulb2 = new MyLightBulbNoTrans();
+        MyLightBulbNoTrans bulb3 = new MyLightBulbNoTrans();
+
+        technology.prepareToHost();
+
+        technology.host(bulb1);
+        technology.host(bulb2);
+        technology.host(bulb3);
+
+        Group livingRoom = technology.createNewGroup().get();
+
+        technology.host(livingRoom);
+
+        livingRoom.addMember(bulb1).get();
+        livingRoom.addMember(bulb2).get();
+        livingRoom.addMember(bulb3).get();
+
+        bulb1.setProperty(OnOffTrait.STAT_VALUE, true).get();
+        bulb2.setProperty(OnOffTrait.STAT_VALUE, true).get();
+        bulb1.saveCurrentStateToSceneId("on");
+        bulb2.saveCurrentStateToSceneId("on");
+
+        livingRoom.setProperty(OnOffTrait.STAT_VALUE, false).get();
+
+        assertTrue(livingRoom instanceof SceneRecallingGroup);
+
+        SceneRecallReport report = ((SceneRecallingGroup) livingRoom).recallScene("on").get();
+
+        assertEquals("on", report.getSceneId());
+        assertEquals(2, report.getRecalledMembers().size());
+        assertTrue(report.getRecalledMembers().contains(bulb1));
+        assertTrue(report.getRecalledMembers().contains(bulb2));
+        assertEquals(1, report.getMembersMissingScene().size());
+        assertTrue(report.getMembersMissingScene().contains(bulb3));
+        assertTrue(report.getFailedMembers().isEmpty());
+        assertFalse(report.hasUnlistedMembers());
+
+        assertTrue(bulb1.fetchProperty(OnOffTrait.STAT_VALUE).get());
+        assertTrue(bulb2.fetchProperty(OnOffTrait.STAT_VALUE).get());
+        assertFalse(bulb3.fetchProperty(OnOffTrait.STAT_VALUE).get());
+        assertEquals("on", bulb1.fetchProperty(SceneTrait.STAT_SCENE_ID).get());
+
+        // Modifiers that make no sense for a scene recall are rejected.
+        ExecutionException x = assertThrows(ExecutionException.class,
+                () -> ((SceneRecallingGroup) livingRoom).recallScene("on", Modifier.all()).get());
+        assertTrue(x.getCause() instanceof InvalidModifierListException);
+    }
+
     @Test
     public void localGroupPersistenceTest() throws Exception {
         String livingRoomGroupId;
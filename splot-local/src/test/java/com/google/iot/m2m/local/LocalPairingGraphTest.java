@@ -0,0 +1,170 @@
+/*
+ * Copyright (C) 2019 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.iot.m2m.local;
+
+import com.google.common.base.Ticker;
+import com.google.iot.m2m.trait.AutomationPairingTrait;
+import org.junit.jupiter.api.Test;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class LocalPairingGraphTest {
+    static final URI A = URI.create("/1/s/levl/v");
+    static final URI B = URI.create("/2/s/levl/v");
+    static final URI C = URI.create("/3/s/levl/v");
+    static final URI D = URI.create("/4/s/levl/v");
+
+    long mNow = 0;
+    final Ticker mTicker = new Ticker() {
+        @Override
+        public long read() {
+            return mNow;
+        }
+    };
+    final LocalPairingGraph mGraph = new LocalPairingGraph(mTicker);
+    final Map<String, Boolean> mInCycle = new HashMap<>();
+
+    LocalPairingGraph.Listener listener(String name) {
+        return inCycle -> mInCycle.put(name, inCycle);
+    }
+
+    @Test
+    void detectsCyclesAtConfigurationTime() {
+        LocalPairingGraph.Listener ab = listener("ab");
+        LocalPairingGraph.Listener bc = listener("bc");
+        LocalPairingGraph.Listener ca = listener("ca");
+
+        // A single pairing that pushes and pulls is not a cycle.
+        mGraph.update(ab, A, B, true, true);
+        assertEquals(0, mGraph.getCycleCount());
+
+        mGraph.update(bc, B, C, true, false);
+        assertEquals(0, mGraph.getCycleCount());
+        assertTrue(mInCycle.isEmpty());
+
+        mGraph.update(ca, C, A, true, false);
+        assertEquals(3, mGraph.getCycleCount());
+        assertEquals(Boolean.TRUE, mInCycle.get("ab"));
+        assertEquals(Boolean.TRUE, mInCycle.get("bc"));
+        assertEquals(Boolean.TRUE, mInCycle.get("ca"));
+
+        // Disabling one of them breaks the cycle.
+        mGraph.update(bc, B, C, false, false);
+        assertEquals(0, mGraph.getCycleCount());
+        assertEquals(Boolean.FALSE, mInCycle.get("ab"));
+        assertEquals(Boolean.FALSE, mInCycle.get("ca"));
+    }
+
+    @Test
+    void detectsCyclesInLargeGraphs() {
+        final int count = 1000;
+        List<LocalPairingGraph.Listener> pairings = new ArrayList<>();
+
+        // A long chain of pairings that keep neighbouring resources in sync isn't a cycle.
+        for (int i = 0; i < count; i++) {
+            LocalPairingGraph.Listener pairing = listener("sync" + i);
+            pairings.add(pairing);
+            mGraph.update(pairing, URI.create("/" + i + "/s/levl/v"),
+                    URI.create("/" + (i + 1) + "/s/levl/v"), true, true);
+        }
+
+        assertEquals(0, mGraph.getCycleCount());
+
+        // Pushing from the end of the chain back to its start closes a loop through all of them.
+        LocalPairingGraph.Listener back = listener("back");
+        mGraph.update(back, URI.create("/" + count + "/s/levl/v"),
+                URI.create("/0/s/levl/v"), true, false);
+        assertEquals(count + 1, mGraph.getCycleCount());
+
+        // Removing any link of the chain leaves no cycle.
+        mGraph.update(pairings.get(count / 2), null, null, false, false);
+        assertEquals(0, mGraph.getCycleCount());
+        assertEquals(Boolean.FALSE, mInCycle.get("back"));
+    }
+
+    @Test
+    void dropsLoopsAtRunTime() {
+        // A pushes to B with "1 +", B pushes back to A.
+        assertNull(mGraph.propagate(A, 1.0, B, 2.0));
+        assertNull(mGraph.propagate(B, 2.0, C, 2.0));
+        assertEquals(AutomationPairingTrait.TRAP_PROPAGATION_LOOP,
+                mGraph.propagate(B, 2.0, A, 3.0));
+
+        // Writing the same value back is harmless.
+        assertNull(mGraph.propagate(C, 2.0, B, 2.0));
+
+        assertEquals(3, mGraph.getPropagationCount());
+        assertEquals(1, mGraph.getLoopCount());
+        assertEquals(1, mGraph.getStormCount());
+    }
+
+    @Test
+    void comparesAgainstValueAtDestination() {
+        // A pushes to B with "2 *", and B pushes back to A with "2 /".
+        assertNull(mGraph.propagate(A, 1.0, B, 2.0));
+
+        // A gets back the value it already had, which ends the change.
+        assertNull(mGraph.propagate(B, 2.0, A, 1.0));
+
+        // C pushes to D as-is, and D pushes to A with "1 +".
+        assertNull(mGraph.propagate(C, 1.0, D, 1.0));
+        assertNull(mGraph.propagate(D, 1.0, A, 2.0));
+
+        // A pushes back to C as-is: the same value A received, but not the value C had.
+        assertEquals(AutomationPairingTrait.TRAP_PROPAGATION_LOOP,
+                mGraph.propagate(A, 2.0, C, 2.0));
+
+        assertEquals(4, mGraph.getPropagationCount());
+        assertEquals(1, mGraph.getLoopCount());
+    }
+
+    @Test
+    void unrelatedChangesStartOver() {
+        assertNull(mGraph.propagate(A, 1.0, B, 2.0));
+
+        // B changed to something we didn't write, so it isn't a loop.
+        assertNull(mGraph.propagate(B, 5.0, A, 6.0));
+
+        assertNull(mGraph.propagate(C, 1.0, D, 1.0));
+
+        // Our write to D has been forgotten by the time D changes.
+        mNow += TimeUnit.MILLISECONDS.toNanos(LocalPairingGraph.CAUSALITY_WINDOW_MS + 1);
+        assertNull(mGraph.propagate(D, 1.0, C, 2.0));
+
+        assertEquals(0, mGraph.getStormCount());
+    }
+
+    @Test
+    void enforcesHopLimit() {
+        mGraph.setHopLimit(3);
+
+        assertNull(mGraph.propagate(A, 1.0, B, 1.0));
+        assertNull(mGraph.propagate(B, 1.0, C, 1.0));
+        assertNull(mGraph.propagate(C, 1.0, D, 1.0));
+        assertEquals(AutomationPairingTrait.TRAP_PROPAGATION_HOP_LIMIT,
+                mGraph.propagate(D, 1.0, URI.create("/5/s/levl/v"), 1.0));
+
+        assertEquals(1, mGraph.getHopLimitCount());
+        assertThrows(IllegalArgumentException.class, () -> mGraph.setHopLimit(0));
+    }
+}
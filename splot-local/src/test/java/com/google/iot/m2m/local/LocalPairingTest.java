@@ -18,12 +18,15 @@ package com.google.iot.m2m.local;
 import com.google.iot.m2m.base.Thing;
 import com.google.iot.m2m.base.Splot;
 import com.google.iot.m2m.base.UnacceptableThingException;
+import com.google.iot.m2m.testing.VirtualTimeScheduledExecutorService;
 import com.google.iot.m2m.trait.*;
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 
 import java.net.URI;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
 
 import static org.junit.jupiter.api.Assertions.*;
@@ -482,6 +485,67 @@ class LocalPairingTest extends TestBase {
         assertEquals(initialCount+2, (int)pairing.fetchProperty(AutomationPairingTrait.STAT_COUNT).get());
     }
 
+    @Test
+    public void holdOffTest() throws Exception {
+        setupLevelPairing();
+
+        pairing.setProperty(AutomationPairingTrait.CONF_HOLD_OFF, 0.1f).get();
+
+        int initialCount = pairing.fetchProperty(AutomationPairingTrait.STAT_COUNT).get();
+
+        bulb1.setProperty(LevelTrait.STAT_VALUE, 0.25f).get();
+        bulb1.setProperty(LevelTrait.STAT_VALUE, 0.5f).get();
+        bulb1.setProperty(LevelTrait.STAT_VALUE, 0.75f).get();
+
+        tick(10);
+
+        // Nothing is propagated until the hold-off window has elapsed.
+        assertEquals(initialCount, (int)pairing.fetchProperty(AutomationPairingTrait.STAT_COUNT).get());
+
+        tick(200);
+
+        // Then only the latest value is.
+        assertEquals(0.75f, (float)bulb2.fetchProperty(LevelTrait.STAT_VALUE).get());
+        assertEquals(initialCount+1, (int)pairing.fetchProperty(AutomationPairingTrait.STAT_COUNT).get());
+
+        assertThrows(ExecutionException.class,
+                () -> pairing.setProperty(AutomationPairingTrait.CONF_HOLD_OFF, -1f).get());
+    }
+
+    @Test
+    public void holdOffVirtualTimeTest() throws Exception {
+        VirtualTimeScheduledExecutorService virtualExecutor =
+                new VirtualTimeScheduledExecutorService();
+        LocalTimerService timerService =
+                new LocalTimerService(virtualExecutor, virtualExecutor.getTicker());
+
+        // Replace the pairing with one whose throttles run in virtual time.
+        technology.unhost(pairing);
+        pairing = new LocalPairing(technology, new LocalPairingGraph(), timerService);
+        technology.host(pairing);
+
+        setupLevelPairing();
+
+        pairing.setProperty(AutomationPairingTrait.CONF_HOLD_OFF, 3600f).get();
+
+        int initialCount = pairing.fetchProperty(AutomationPairingTrait.STAT_COUNT).get();
+
+        bulb1.setProperty(LevelTrait.STAT_VALUE, 0.25f).get();
+        bulb1.setProperty(LevelTrait.STAT_VALUE, 0.5f).get();
+
+        tick(10);
+        virtualExecutor.advanceBy(3599, TimeUnit.SECONDS);
+        tick(10);
+
+        assertEquals(initialCount, (int)pairing.fetchProperty(AutomationPairingTrait.STAT_COUNT).get());
+
+        virtualExecutor.advanceBy(1, TimeUnit.SECONDS);
+        tick(10);
+
+        assertEquals(0.5f, (float)bulb2.fetchProperty(LevelTrait.STAT_VALUE).get());
+        assertEquals(initialCount+1, (int)pairing.fetchProperty(AutomationPairingTrait.STAT_COUNT).get());
+    }
+
     @Test
     public void simplePullTest() throws Exception {
         setupOnOffPairing();
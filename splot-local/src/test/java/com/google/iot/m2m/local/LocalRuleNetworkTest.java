@@ -0,0 +1,195 @@
+/*
+ * Copyright (C) 2019 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.iot.m2m.local;
+
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.iot.m2m.local.rpn.RPNContext;
+import com.google.iot.m2m.local.rpn.RPNLimitExceededException;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.junit.jupiter.api.Test;
+
+import java.net.URI;
+import java.util.*;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class LocalRuleNetworkTest {
+    /** A resource link whose value is changed directly by the test. */
+    static class FakeResourceLink extends ResourceLink<Object> {
+        final URI mUri;
+        final Set<Listener<Object>> mListeners = new HashSet<>();
+
+        FakeResourceLink(String uri) {
+            mUri = URI.create(uri);
+        }
+
+        void changeValue(@Nullable Object value) {
+            for (Listener<Object> listener : new ArrayList<>(mListeners)) {
+                listener.onResourceLinkChanged(this, value);
+            }
+        }
+
+        @Override
+        public ListenableFuture<Object> fetchValue() {
+            return Futures.immediateFuture(null);
+        }
+
+        @Override
+        public ListenableFuture<?> invoke(@Nullable Object value) {
+            return Futures.immediateFuture(null);
+        }
+
+        @Override
+        public URI getUri() {
+            return mUri;
+        }
+
+        @Override
+        public void registerListener(Executor executor, Listener<Object> listener) {
+            mListeners.add(listener);
+        }
+
+        @Override
+        public void unregisterListener(Listener<Object> listener) {
+            mListeners.remove(listener);
+        }
+    }
+
+    final LocalRuleNetwork mNetwork = new LocalRuleNetwork(Runnable::run);
+
+    @Test
+    void identicalConditionsShareNode() {
+        FakeResourceLink link = new FakeResourceLink("loop://sensor/s/onof/v");
+        List<LocalRuleNetwork.Node> changed = new ArrayList<>();
+        LocalRuleNetwork.Listener listener1 = changed::add;
+        LocalRuleNetwork.Listener listener2 = changed::add;
+        LocalRuleNetwork.Listener listener3 = changed::add;
+
+        LocalRuleNetwork.Node node1 = mNetwork.subscribe(link, "v 0.5 >", listener1);
+        LocalRuleNetwork.Node node2 = mNetwork.subscribe(
+                new FakeResourceLink("loop://sensor/s/onof/v"), "v 0.5 >", listener2);
+        LocalRuleNetwork.Node node3 = mNetwork.subscribe(link, "v 0.7 >", listener3);
+
+        assertSame(node1, node2);
+        assertNotSame(node1, node3);
+        assertEquals(2, mNetwork.getNodeCount());
+        assertEquals(1, mNetwork.getSharedNodeCount());
+        assertEquals(3, mNetwork.getSubscriptionCount());
+        assertEquals(2, link.mListeners.size());
+
+        link.changeValue(0.6);
+
+        assertEquals(3, changed.size());
+        assertTrue(node1.getResult());
+        assertTrue(node2.getResult());
+        assertFalse(node3.getResult());
+
+        // Both rules got the result of node1, but it was only evaluated once.
+        assertEquals(2, mNetwork.getChangeCount());
+        assertEquals(2, mNetwork.getEvaluationCount());
+        assertEquals(3, mNetwork.getNotificationCount());
+
+        link.changeValue(0.8);
+
+        assertTrue(node1.getResult());
+        assertTrue(node3.getResult());
+        assertEquals(4, mNetwork.getEvaluationCount());
+
+        mNetwork.unsubscribe(node1, listener1);
+        assertEquals(2, mNetwork.getNodeCount());
+        assertEquals(0, mNetwork.getSharedNodeCount());
+
+        mNetwork.unsubscribe(node2, listener2);
+        mNetwork.unsubscribe(node3, listener3);
+        assertEquals(0, mNetwork.getNodeCount());
+        assertTrue(link.mListeners.isEmpty());
+    }
+
+    @Test
+    void newSubscribersGetCurrentResult() {
+        FakeResourceLink link = new FakeResourceLink("loop://sensor/s/onof/v");
+        List<LocalRuleNetwork.Node> changed1 = new ArrayList<>();
+        List<LocalRuleNetwork.Node> changed2 = new ArrayList<>();
+
+        LocalRuleNetwork.Node node = mNetwork.subscribe(link, "v 0.5 >", changed1::add);
+
+        // Nothing to report until the resource has a value.
+        mNetwork.subscribe(link, "v 0.5 >", changed2::add);
+        assertTrue(changed2.isEmpty());
+
+        link.changeValue(0.6);
+        assertEquals(1, changed1.size());
+        assertEquals(1, changed2.size());
+
+        List<LocalRuleNetwork.Node> changed3 = new ArrayList<>();
+        assertSame(node, mNetwork.subscribe(link, "v 0.5 >", changed3::add));
+        assertEquals(Collections.singletonList(node), changed3);
+        assertEquals(1, changed1.size());
+        assertTrue(node.getResult());
+    }
+
+    @Test
+    void firstValueReachesFirstSubscriber() {
+        // Reports its value as soon as a listener is registered.
+        FakeResourceLink link = new FakeResourceLink("loop://sensor/s/onof/v") {
+            @Override
+            public void registerListener(Executor executor, Listener<Object> listener) {
+                super.registerListener(executor, listener);
+                listener.onResourceLinkChanged(this, 0.6);
+            }
+        };
+        List<LocalRuleNetwork.Node> changed = new ArrayList<>();
+
+        LocalRuleNetwork.Node node = mNetwork.subscribe(link, "v 0.5 >", changed::add);
+
+        assertEquals(Collections.singletonList(node), changed);
+        assertTrue(node.getResult());
+    }
+
+    @Test
+    void nodesUseTemplateLimits() {
+        RPNContext template = new RPNContext();
+        template.setInstructionLimit(100);
+        template.setCompilerEnabled(false);
+        LocalRuleNetwork network = new LocalRuleNetwork(Runnable::run, template);
+        FakeResourceLink link = new FakeResourceLink("loop://sensor/s/onof/v");
+
+        RPNContext context = network.newContext();
+        assertEquals(100, context.getInstructionLimit());
+        assertFalse(context.isCompilerEnabled());
+        assertEquals(template.getTimeLimit(TimeUnit.NANOSECONDS),
+                context.getTimeLimit(TimeUnit.NANOSECONDS));
+
+        LocalRuleNetwork.Node node =
+                network.subscribe(link, "1000 0 DO 1 + LOOP v >", changedNode -> {});
+        link.changeValue(0.5);
+
+        assertThrows(RPNLimitExceededException.class, node::getResult);
+    }
+
+    @Test
+    void isShareable() {
+        RPNContext context = new RPNContext();
+
+        assertTrue(LocalRuleNetwork.isShareable(context.compile("v 0.5 >")));
+        assertFalse(LocalRuleNetwork.isShareable(context.compile("v v_l !=")));
+        assertFalse(LocalRuleNetwork.isShareable(context.compile("c 3 <")));
+        assertFalse(LocalRuleNetwork.isShareable(context.compile("RND 0.5 >")));
+    }
+}
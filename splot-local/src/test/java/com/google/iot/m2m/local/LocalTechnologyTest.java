@@ -0,0 +1,147 @@
+/*
+ * Copyright (C) 2019 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.iot.m2m.local;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.*;
+
+import com.google.iot.m2m.base.Group;
+import com.google.iot.m2m.base.Section;
+import com.google.iot.m2m.base.SectionListener;
+import com.google.iot.m2m.base.Thing;
+import com.google.iot.m2m.trait.*;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+
+class LocalTechnologyTest extends TestBase {
+    @Test
+    void testDiscoveryByTrait() throws Exception {
+        LocalTechnology technology = new LocalTechnology(mExecutor);
+
+        Thing bulb1 = new MyLightBulbNoTrans();
+        Thing bulb2 = new MyLightBulbNoTrans();
+
+        technology.prepareToHost();
+        technology.host(bulb1);
+        technology.host(bulb2);
+
+        Group group = technology.createNewGroup().get();
+        technology.host(group);
+
+        Set<Thing> things =
+                technology
+                        .createDiscoveryQueryBuilder()
+                        .mustHaveTrait(OnOffTrait.TRAIT_ID)
+                        .buildAndRun()
+                        .get();
+
+        assertEquals(2, things.size());
+        assertTrue(things.contains(bulb1));
+        assertTrue(things.contains(bulb2));
+
+        things =
+                technology
+                        .createDiscoveryQueryBuilder()
+                        .mustHaveTrait(GroupTrait.TRAIT_ID)
+                        .buildAndRun()
+                        .get();
+
+        assertEquals(1, things.size());
+        assertTrue(things.contains(group));
+
+        technology.unhost(bulb2);
+
+        things =
+                technology
+                        .createDiscoveryQueryBuilder()
+                        .mustHaveTrait(OnOffTrait.TRAIT_ID)
+                        .mustHaveTrait(LevelTrait.TRAIT_ID)
+                        .buildAndRun()
+                        .get();
+
+        assertEquals(1, things.size());
+        assertTrue(things.contains(bulb1));
+    }
+
+    @Test
+    void testDiscoveryByUid() throws Exception {
+        LocalTechnology technology = new LocalTechnology(mExecutor);
+
+        Thing bulb1 = new MyLightBulbNoTrans();
+        Thing bulb2 = new MyLightBulbNoTrans();
+
+        technology.prepareToHost();
+        technology.host(bulb1);
+        technology.host(bulb2);
+
+        String uid = bulb1.fetchProperty(BaseTrait.META_UID).get();
+
+        assertSame(bulb1, technology.getHostedThingForUid(uid));
+
+        Set<Thing> things =
+                technology.createDiscoveryQueryBuilder().mustHaveUid(uid).buildAndRun().get();
+
+        assertEquals(1, things.size());
+        assertTrue(things.contains(bulb1));
+
+        // The index must follow UID changes.
+        bulb1.setProperty(BaseTrait.META_UID, "new-uid").get();
+
+        assertNull(technology.getHostedThingForUid(uid));
+        assertSame(bulb1, technology.getHostedThingForUid("new-uid"));
+
+        technology.unhost(bulb1);
+
+        assertNull(technology.getHostedThingForUid("new-uid"));
+    }
+
+    @Test
+    void testUidIndexIgnoresPartialMetadata() throws Exception {
+        LocalTechnology technology = new LocalTechnology(mExecutor);
+        Thing thing = mock(Thing.class);
+        ArgumentCaptor<SectionListener> listener = ArgumentCaptor.forClass(SectionListener.class);
+
+        technology.prepareToHost();
+        technology.host(thing);
+
+        verify(thing).registerSectionListener(any(), eq(Section.METADATA), listener.capture());
+
+        Map<String, Object> metadata = new HashMap<>();
+        BaseTrait.META_UID.putInMap(metadata, "uid");
+        listener.getValue().onSectionChanged(thing, metadata);
+
+        assertSame(thing, technology.getHostedThingForUid("uid"));
+
+        // A change that doesn't include the UID leaves the index alone.
+        Map<String, Object> delta = new HashMap<>();
+        BaseTrait.META_NAME.putInMap(delta, "name");
+        listener.getValue().onSectionChanged(thing, delta);
+
+        assertSame(thing, technology.getHostedThingForUid("uid"));
+
+        // A UID explicitly set to null removes it from the index.
+        delta.clear();
+        BaseTrait.META_UID.putInMap(delta, null);
+        listener.getValue().onSectionChanged(thing, delta);
+
+        assertNull(technology.getHostedThingForUid("uid"));
+    }
+}
@@ -417,6 +417,39 @@ public class LocalThingTest extends TestBase {
         verify(mChildListenerMock, never()).onChildAdded(any(), any(), any());
     }
 
+    @Test
+    public void localSceneKeysReleasedTest() throws Exception {
+        MyLightBulbNoTrans fe = new MyLightBulbNoTrans();
+
+        assertEquals(0, fe.getSceneKeyCount());
+
+        fe.saveCurrentStateToSceneId("a");
+        fe.saveCurrentStateToSceneId("b");
+
+        final int keyCount = fe.getSceneKeyCount();
+        assertTrue(keyCount > 0);
+
+        fe.removeSceneId("a");
+        assertEquals(keyCount, fe.getSceneKeyCount());
+
+        fe.removeSceneId("b");
+        assertEquals(0, fe.getSceneKeyCount());
+
+        // Creating and removing many scenes doesn't grow the key table.
+        for (int i = 0; i < 1000; i++) {
+            fe.saveCurrentStateToSceneId("scene" + i);
+            fe.removeSceneId("scene" + i);
+        }
+
+        assertEquals(0, fe.getSceneKeyCount());
+
+        fe.setProperty(OnOffTrait.STAT_VALUE, true).get();
+        fe.saveCurrentStateToSceneId("on");
+        fe.setProperty(OnOffTrait.STAT_VALUE, false).get();
+        fe.setProperty(SceneTrait.STAT_SCENE_ID, "on").get();
+        assertEquals(true, fe.fetchProperty(OnOffTrait.STAT_VALUE).get());
+    }
+
     @SuppressWarnings("unchecked")
     @Test
     public void localScenePersistenceTest() throws Exception {
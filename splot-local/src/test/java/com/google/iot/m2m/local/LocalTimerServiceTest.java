@@ -0,0 +1,172 @@
+/*
+ * Copyright (C) 2019 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.iot.m2m.local;
+
+import com.google.common.base.Ticker;
+import com.google.iot.m2m.testing.VirtualTimeScheduledExecutorService;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class LocalTimerServiceTest {
+    VirtualTimeScheduledExecutorService mExecutor = null;
+    LocalTimerService mService = null;
+
+    // How far the service's clock runs ahead of the executor, to simulate a busy executor.
+    long mLagNanos = 0;
+
+    @BeforeEach
+    void before() {
+        mExecutor = new VirtualTimeScheduledExecutorService();
+        mLagNanos = 0;
+        mService = new LocalTimerService(mExecutor, new Ticker() {
+            @Override
+            public long read() {
+                return mExecutor.nanoTime() + mLagNanos;
+            }
+        });
+    }
+
+    @Test
+    void firesInOrder() {
+        List<Integer> fired = new ArrayList<>();
+
+        LocalTimerService.Timeout second =
+                mService.schedule(() -> fired.add(2), 60, TimeUnit.MILLISECONDS);
+        LocalTimerService.Timeout first =
+                mService.schedule(() -> fired.add(1), 20, TimeUnit.MILLISECONDS);
+
+        assertEquals(2, mService.getPendingCount());
+        assertFalse(first.isDone());
+        assertEquals(20, first.getDelay(TimeUnit.MILLISECONDS));
+
+        mExecutor.advanceBy(20, TimeUnit.MILLISECONDS);
+
+        assertEquals(Collections.singletonList(1), fired);
+        assertTrue(first.isDone());
+        assertFalse(second.isDone());
+
+        mExecutor.advanceBy(39, TimeUnit.MILLISECONDS);
+        assertEquals(1, fired.size());
+
+        mExecutor.advanceBy(1, TimeUnit.MILLISECONDS);
+
+        assertEquals(2, fired.size());
+        assertEquals(2, (int) fired.get(1));
+        assertEquals(0, mService.getPendingCount());
+        assertEquals(2, mService.getFiredCount());
+        assertEquals(2, mService.getBatchCount());
+        assertEquals(0, mService.getMaxLateness(TimeUnit.NANOSECONDS));
+    }
+
+    @Test
+    void firesDueTimeoutsInOneBatch() {
+        List<Integer> fired = new ArrayList<>();
+
+        for (int i = 0; i < 3; i++) {
+            final int value = i;
+            mService.schedule(() -> fired.add(value), 10 + i, TimeUnit.MILLISECONDS);
+        }
+
+        // The executor gets to the first timeout 40ms late, when all three are due.
+        mLagNanos = TimeUnit.MILLISECONDS.toNanos(40);
+        mExecutor.advanceBy(100, TimeUnit.MILLISECONDS);
+
+        assertEquals(3, fired.size());
+        assertEquals(3, mService.getFiredCount());
+        assertEquals(1, mService.getBatchCount());
+        assertEquals(40, mService.getMaxLateness(TimeUnit.MILLISECONDS));
+        assertEquals(39, mService.getMeanLateness(TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    void cancel() {
+        List<Integer> fired = new ArrayList<>();
+        List<LocalTimerService.Timeout> timeouts = new ArrayList<>();
+
+        for (int i = 0; i < 100; i++) {
+            final int value = i;
+            timeouts.add(mService.schedule(() -> fired.add(value), 20, TimeUnit.MILLISECONDS));
+        }
+
+        for (int i = 1; i < 100; i++) {
+            assertTrue(timeouts.get(i).cancel());
+            assertFalse(timeouts.get(i).cancel());
+            assertTrue(timeouts.get(i).isDone());
+        }
+
+        assertEquals(1, mService.getPendingCount());
+
+        mExecutor.advanceBy(20, TimeUnit.MILLISECONDS);
+
+        assertEquals(Collections.singletonList(0), fired);
+        assertFalse(timeouts.get(0).cancel());
+        assertEquals(0, mService.getPendingCount());
+    }
+
+    @Test
+    void exceptionsDoNotStopOtherTimeouts() {
+        List<Integer> fired = new ArrayList<>();
+
+        mService.schedule(() -> { throw new IllegalStateException(); }, 10, TimeUnit.MILLISECONDS);
+        mService.schedule(() -> fired.add(1), 10, TimeUnit.MILLISECONDS);
+
+        mExecutor.advanceBy(10, TimeUnit.MILLISECONDS);
+
+        assertEquals(Collections.singletonList(1), fired);
+    }
+
+    @Test
+    void manyTimeoutsInVirtualTime() {
+        final int timerCount = 100000;
+        VirtualTimeScheduledExecutorService executor = new VirtualTimeScheduledExecutorService();
+        LocalTimerService service = new LocalTimerService(executor, executor.getTicker());
+        Random random = new Random(1234);
+        long[] fired = new long[1];
+
+        // Each timer restarts itself with a delay of up to an hour when it fires.
+        class Timer implements Runnable {
+            void start() {
+                service.schedule(this, 1 + random.nextInt(3600), TimeUnit.SECONDS);
+            }
+
+            @Override
+            public void run() {
+                fired[0]++;
+                start();
+            }
+        }
+
+        for (int i = 0; i < timerCount; i++) {
+            new Timer().start();
+        }
+
+        executor.advanceBy(3, TimeUnit.DAYS);
+
+        // Each timer fires about every half hour, so about 144 times over three days.
+        assertTrue(fired[0] > timerCount * 140L, "fired " + fired[0]);
+        assertEquals(fired[0], service.getFiredCount());
+        assertEquals(timerCount, service.getPendingCount());
+        assertEquals(0, service.getMaxLateness(TimeUnit.NANOSECONDS));
+    }
+}
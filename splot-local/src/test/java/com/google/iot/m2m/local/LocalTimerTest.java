@@ -24,6 +24,9 @@ import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneOffset;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.logging.Logger;
@@ -185,6 +188,9 @@ class LocalTimerTest extends TestBase {
         assertEquals(0.4f, (float)bulb1.fetchProperty(LevelTrait.STAT_VALUE).get());
         assertTrue(timer.fetchProperty(AutomationTimerTrait.STAT_RUNNING).get());
 
+        // One evaluation when enabled, then one for each of the two fires.
+        assertEquals(3, timer.getStatistics().getEvaluationCount());
+
         timer.setProperty(AutomationTimerTrait.STAT_RUNNING, false).get();
 
         assertFalse(timer.fetchProperty(AutomationTimerTrait.STAT_RUNNING).get());
@@ -233,4 +239,42 @@ class LocalTimerTest extends TestBase {
         assertEquals(0.4f, (float)bulb1.fetchProperty(LevelTrait.STAT_VALUE).get());
         assertFalse(timer.fetchProperty(AutomationTimerTrait.STAT_RUNNING).get());
     }
+
+    @Test
+    public void calendarScheduleTest() throws Exception {
+        Map<String,Object> action = new HashMap<>();
+
+        ActionsTrait.PARAM_ACTION_PATH.putInMap(action,
+                technology.getNativeUriForProperty(bulb1, LevelTrait.STAT_VALUE, Operation.INCREMENT));
+
+        ActionsTrait.PARAM_ACTION_BODY.putInMap(action, 0.2);
+
+        // The clock stands still, so once the timer fires it must move on to the next day
+        // rather than firing again for the same time.
+        timer.setClock(Clock.fixed(Instant.parse("2019-03-01T06:59:59.800Z"), ZoneOffset.UTC));
+
+        assertThrows(Exception.class, () -> timer.setProperty(
+                AutomationTimerTrait.CONF_SCHEDULE_CALENDAR, "0 7 * *").get());
+
+        timer.insertValueIntoProperty(ActionsTrait.CONF_ACTIONS, action).get();
+        timer.setProperty(AutomationTimerTrait.CONF_SCHEDULE_CALENDAR, "0 7 * * *").get();
+        timer.setProperty(AutomationTimerTrait.CONF_AUTO_RESET, true).get();
+        timer.setProperty(EnabledDisabledTrait.STAT_VALUE, true).get();
+
+        assertEquals(0.2f, timer.fetchProperty(AutomationTimerTrait.STAT_NEXT).get(), 0.01f);
+
+        tick(100);
+
+        assertEquals(0.0f, (float)bulb1.fetchProperty(LevelTrait.STAT_VALUE).get());
+
+        tick(250);
+
+        assertEquals(0.2f, (float)bulb1.fetchProperty(LevelTrait.STAT_VALUE).get());
+        assertTrue(timer.fetchProperty(AutomationTimerTrait.STAT_RUNNING).get());
+        assertEquals(86400.2f, timer.fetchProperty(AutomationTimerTrait.STAT_NEXT).get(), 0.01f);
+
+        tick(200);
+
+        assertEquals(0.2f, (float)bulb1.fetchProperty(LevelTrait.STAT_VALUE).get());
+    }
 }
@@ -0,0 +1,200 @@
+/*
+ * Copyright (C) 2019 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.iot.m2m.local;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.*;
+
+import com.google.iot.m2m.base.PropertyListener;
+import com.google.iot.m2m.base.Thing;
+import com.google.iot.m2m.trait.LevelTrait;
+import com.google.iot.m2m.trait.OnOffTrait;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.Test;
+import org.mockito.stubbing.Answer;
+
+class PropertySubscriptionMultiplexerTest extends TestBase {
+    @Test
+    void testSharesUpstreamRegistration() throws Exception {
+        PropertySubscriptionMultiplexer multiplexer = new PropertySubscriptionMultiplexer();
+        MyLightBulbNoTrans bulb = new MyLightBulbNoTrans();
+
+        List<Boolean> values1 = new CopyOnWriteArrayList<>();
+        List<Boolean> values2 = new CopyOnWriteArrayList<>();
+        PropertyListener<Boolean> listener1 = (thing, key, value) -> values1.add(value);
+        PropertyListener<Boolean> listener2 = (thing, key, value) -> values2.add(value);
+
+        multiplexer.subscribe(bulb, OnOffTrait.STAT_VALUE, listener1);
+        multiplexer.subscribe(bulb, OnOffTrait.STAT_VALUE, listener2);
+
+        assertEquals(1, multiplexer.getUpstreamCount());
+        assertEquals(2, multiplexer.getListenerCount(bulb, OnOffTrait.STAT_VALUE));
+
+        // The second listener is handed the value the first one already saw.
+        assertEquals(values1, values2);
+
+        bulb.setProperty(OnOffTrait.STAT_VALUE, true).get();
+
+        assertEquals(Boolean.TRUE, values1.get(values1.size() - 1));
+        assertEquals(Boolean.TRUE, values2.get(values2.size() - 1));
+
+        multiplexer.unsubscribe(bulb, OnOffTrait.STAT_VALUE, listener1);
+        assertEquals(1, multiplexer.getUpstreamCount());
+
+        multiplexer.unsubscribe(bulb, OnOffTrait.STAT_VALUE, listener2);
+        assertEquals(0, multiplexer.getUpstreamCount());
+
+        int count = values2.size();
+        bulb.setProperty(OnOffTrait.STAT_VALUE, false).get();
+        assertEquals(count, values2.size());
+    }
+
+    @Test
+    void testSeparatePropertiesAreSeparateSubscriptions() {
+        PropertySubscriptionMultiplexer multiplexer = new PropertySubscriptionMultiplexer();
+        MyLightBulbNoTrans bulb1 = new MyLightBulbNoTrans();
+        MyLightBulbNoTrans bulb2 = new MyLightBulbNoTrans();
+
+        PropertyListener<Boolean> onOffListener = (thing, key, value) -> {};
+        PropertyListener<Float> levelListener = (thing, key, value) -> {};
+
+        multiplexer.subscribe(bulb1, OnOffTrait.STAT_VALUE, onOffListener);
+        multiplexer.subscribe(bulb1, LevelTrait.STAT_VALUE, levelListener);
+        multiplexer.subscribe(bulb2, OnOffTrait.STAT_VALUE, onOffListener);
+
+        assertEquals(3, multiplexer.getUpstreamCount());
+
+        multiplexer.unsubscribe(bulb1, OnOffTrait.STAT_VALUE, onOffListener);
+        multiplexer.unsubscribe(bulb1, LevelTrait.STAT_VALUE, levelListener);
+        multiplexer.unsubscribe(bulb2, OnOffTrait.STAT_VALUE, onOffListener);
+
+        assertEquals(0, multiplexer.getUpstreamCount());
+    }
+
+    @Test
+    void testConcurrentSubscribeAndUnsubscribe() throws Exception {
+        PropertySubscriptionMultiplexer multiplexer = new PropertySubscriptionMultiplexer();
+        Thing thing = mock(Thing.class);
+        AtomicInteger upstream = new AtomicInteger();
+        AtomicInteger maxUpstream = new AtomicInteger();
+
+        doAnswer(invocation -> {
+            maxUpstream.accumulateAndGet(upstream.incrementAndGet(), Math::max);
+            return null;
+        }).when(thing).registerPropertyListener(any(), any(), any());
+
+        doAnswer(invocation -> {
+            upstream.decrementAndGet();
+            return null;
+        }).when(thing).unregisterPropertyListener(any(), any());
+
+        List<Thread> threads = new ArrayList<>();
+
+        for (int i = 0; i < 4; i++) {
+            PropertyListener<Boolean> listener = (t, key, value) -> {};
+
+            threads.add(new Thread(() -> {
+                for (int j = 0; j < 1000; j++) {
+                    multiplexer.subscribe(thing, OnOffTrait.STAT_VALUE, listener);
+                    multiplexer.unsubscribe(thing, OnOffTrait.STAT_VALUE, listener);
+                }
+            }));
+        }
+
+        for (Thread thread : threads) {
+            thread.start();
+        }
+
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals(0, multiplexer.getUpstreamCount());
+        assertEquals(0, upstream.get());
+        assertEquals(1, maxUpstream.get());
+    }
+
+    @Test
+    void testNoDeadlockWithThingLocks() throws Exception {
+        PropertySubscriptionMultiplexer multiplexer = new PropertySubscriptionMultiplexer();
+        Thing thing1 = mock(Thing.class);
+        Thing thing2 = mock(Thing.class);
+
+        // Like LocalThing, registering holds the thing's lock and hands the listener the
+        // current value on the calling thread.
+        Answer<Void> register = invocation -> {
+            synchronized (invocation.getMock()) {
+                PropertyListener<Object> listener = invocation.getArgument(2);
+                listener.onPropertyChanged(
+                        (Thing) invocation.getMock(), invocation.getArgument(1), true);
+            }
+            return null;
+        };
+
+        doAnswer(register).when(thing1).registerPropertyListener(any(), any(), any());
+        doAnswer(register).when(thing2).registerPropertyListener(any(), any(), any());
+
+        List<Boolean> values = new CopyOnWriteArrayList<>();
+        PropertyListener<Boolean> listener = (thing, key, value) -> values.add(value);
+        CountDownLatch holdingThing1 = new CountDownLatch(1);
+
+        // Subscribes to thing1, which has to wait for its lock.
+        Thread thread2 = new Thread(() -> {
+            try {
+                holdingThing1.await();
+            } catch (InterruptedException x) {
+                throw new AssertionError(x);
+            }
+
+            multiplexer.subscribe(thing1, OnOffTrait.STAT_VALUE, listener);
+        });
+
+        // Holds the lock of thing1 while subscribing to thing2, like a listener of thing1
+        // that subscribes to another resource when it gets a value.
+        Thread thread1 = new Thread(() -> {
+            synchronized (thing1) {
+                holdingThing1.countDown();
+
+                try {
+                    while (thread2.getState() != Thread.State.BLOCKED) {
+                        Thread.sleep(1);
+                    }
+                } catch (InterruptedException x) {
+                    throw new AssertionError(x);
+                }
+
+                multiplexer.subscribe(thing2, OnOffTrait.STAT_VALUE, listener);
+            }
+        });
+
+        thread1.setDaemon(true);
+        thread2.setDaemon(true);
+        thread1.start();
+        thread2.start();
+        thread1.join(5000);
+        thread2.join(5000);
+
+        assertFalse(thread1.isAlive(), "deadlocked");
+        assertFalse(thread2.isAlive(), "deadlocked");
+        assertEquals(2, values.size());
+        assertEquals(2, multiplexer.getUpstreamCount());
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright (C) 2019 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.iot.m2m.local;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.iot.m2m.trait.LevelTrait;
+import com.google.iot.m2m.trait.OnOffTrait;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import org.junit.jupiter.api.Test;
+
+class ResourceLinkBatchTest extends TestBase {
+    class CountingLightBulb extends MyLightBulbNoTrans {
+        final List<Map<String, Object>> mApplied = new ArrayList<>();
+
+        @Override
+        public ListenableFuture<?> applyProperties(Map<String, Object> properties) {
+            synchronized (mApplied) {
+                mApplied.add(properties);
+            }
+            return super.applyProperties(properties);
+        }
+    }
+
+    @Test
+    void testCoalescesWritesToSameThing() throws Exception {
+        CountingLightBulb bulb = new CountingLightBulb();
+
+        ResourceLink<Boolean> onOffLink =
+                PropertyResourceLink.create(
+                        bulb, OnOffTrait.STAT_VALUE, URI.create("loop://1/s/onof/v"));
+        ResourceLink<Float> levelLink =
+                PropertyResourceLink.create(
+                        bulb, LevelTrait.STAT_VALUE, URI.create("loop://1/s/levl/v"));
+
+        ListenableFuture<?> onOffFuture;
+        ListenableFuture<?> levelFuture;
+
+        try (ResourceLinkBatch ignored = ResourceLinkBatch.begin()) {
+            onOffFuture = onOffLink.invoke(true);
+            levelFuture = levelLink.invoke(0.5f);
+
+            assertFalse(onOffFuture.isDone());
+            assertFalse(levelFuture.isDone());
+            assertTrue(bulb.mApplied.isEmpty());
+        }
+
+        onOffFuture.get();
+        levelFuture.get();
+
+        assertEquals(1, bulb.mApplied.size());
+        assertEquals(2, bulb.mApplied.get(0).size());
+        assertTrue(bulb.fetchProperty(OnOffTrait.STAT_VALUE).get());
+        assertEquals(0.5f, bulb.fetchProperty(LevelTrait.STAT_VALUE).get(), 0.0001f);
+    }
+
+    @Test
+    void testNestedBatchFlushesOnOutermostClose() throws Exception {
+        CountingLightBulb bulb = new CountingLightBulb();
+
+        ResourceLink<Boolean> onOffLink =
+                PropertyResourceLink.create(
+                        bulb, OnOffTrait.STAT_VALUE, URI.create("loop://1/s/onof/v"));
+        ResourceLink<Float> levelLink =
+                PropertyResourceLink.create(
+                        bulb, LevelTrait.STAT_VALUE, URI.create("loop://1/s/levl/v"));
+
+        ListenableFuture<?> onOffFuture;
+        ListenableFuture<?> levelFuture;
+
+        try (ResourceLinkBatch outer = ResourceLinkBatch.begin()) {
+            try (ResourceLinkBatch inner = ResourceLinkBatch.begin()) {
+                assertSame(outer, inner);
+                onOffFuture = onOffLink.invoke(true);
+            }
+
+            assertFalse(onOffFuture.isDone());
+            levelFuture = levelLink.invoke(0.25f);
+        }
+
+        assertNull(ResourceLinkBatch.current());
+
+        onOffFuture.get();
+        levelFuture.get();
+
+        assertEquals(1, bulb.mApplied.size());
+    }
+
+    @Test
+    void testWithoutBatchWritesImmediately() throws Exception {
+        CountingLightBulb bulb = new CountingLightBulb();
+
+        ResourceLink<Boolean> onOffLink =
+                PropertyResourceLink.create(
+                        bulb, OnOffTrait.STAT_VALUE, URI.create("loop://1/s/onof/v"));
+        ResourceLink<Float> levelLink =
+                PropertyResourceLink.create(
+                        bulb, LevelTrait.STAT_VALUE, URI.create("loop://1/s/levl/v"));
+
+        onOffLink.invoke(true).get();
+        levelLink.invoke(0.5f).get();
+
+        assertEquals(2, bulb.mApplied.size());
+    }
+}
@@ -0,0 +1,155 @@
+package com.google.iot.m2m.local.rpn;
+
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RPNCompilerTest {
+    RPNContext mCompiledContext = null;
+    RPNContext mInterpretedContext = null;
+
+    @BeforeEach
+    void setUp() {
+        mCompiledContext = new RPNContext();
+        mInterpretedContext = new RPNContext();
+        mInterpretedContext.setCompilerEnabled(false);
+    }
+
+    void assertSameResult(String expr, @Nullable Object input) {
+        RPNFunction compiled = mCompiledContext.compile(expr);
+        RPNFunction interpreted = mInterpretedContext.compile(expr);
+
+        assertTrue(compiled.isCompiled(), "Expected \"" + expr + "\" to be compiled");
+        assertFalse(interpreted.isCompiled());
+
+        Object expected = interpreted.apply(input);
+        Object actual = compiled.apply(input);
+
+        if (RPNContext.isStopSignal(expected)) {
+            assertTrue(RPNContext.isStopSignal(actual));
+        } else {
+            assertEquals(expected, actual, expr);
+        }
+    }
+
+    @Test
+    void compiledMatchesInterpreter() {
+        assertSameResult("", 1.0);
+        assertSameResult("2 * 1 +", 3.0);
+        assertSameResult("DUP DUP * SWAP DROP", 3.0);
+        assertSameResult("1 2 3 ROT [3]", 0.0);
+        assertSameResult("1 OVER [3]", 5);
+        assertSameResult("ROUND", 2.5);
+        assertSameResult("0.5 >", 0.7);
+        assertSameResult(":foo ==", "foo");
+        assertSameResult("1 !=", true);
+        assertSameResult("1 ===", 1.0);
+        assertSameResult("0.5 && !", 0.7);
+        assertSameResult("2 <", "not a number");
+        assertSameResult("STOP", 0.0);
+        assertSameResult("NULL", 0.0);
+        assertSameResult("DROP", 0.0);
+        assertSameResult("{} 25.0 :x PUT 75.0 :y PUT :y GET SWAP DROP", null);
+        assertSameResult("POP SWAP POP SWAP DROP [2]", Arrays.asList(1.0, 2.0, 3.0));
+        assertSameResult("5 PUSH", new ArrayList<>(Arrays.asList(1.0, 2.0)));
+        assertSameResult(
+                "POP 0.1858 - SWAP POP 0.3320 - SWAP DROP SWAP / "
+                        + "-449 3525 -6823.3 5520.33 POLY3 1500 7000 CLAMP",
+                Arrays.asList(0.3127, 0.3290));
+    }
+
+    @Test
+    void mixedTypesMatchInterpreter() {
+        assertSameResult("2 < 1 +", 1.0);
+        assertSameResult("2 > 1 +", 1.0);
+        assertSameResult("ROUND 1 +", 2.6);
+        assertSameResult("ROUND 1 ==", 1.4);
+        assertSameResult("DUP &&", 0.7);
+        assertSameResult("DUP &&", 0.3);
+        assertSameResult("TRUE 1 +", 0.0);
+        assertSameResult("1 == 2 *", 1.0);
+        assertSameResult("0 / DUP ==", 0.0);
+        assertSameResult("0 / DUP !=", 0.0);
+        assertSameResult("-0 ===", 0.0);
+        assertSameResult("-0 ==", 0.0);
+        assertSameResult("1 2 [2] 1 ==", 1.0);
+        assertSameResult("2 * :x ==", 1.0);
+        assertSameResult("2 <=", 2.0);
+        assertSameResult("2 >=", 2.0);
+    }
+
+    @Test
+    void vectorsMatchInterpreter() {
+        float[] xy = {0.3127f, 0.3290f};
+        double[] rgb = {0.25, 0.5, 1.0};
+
+        assertSameResult("DUP VDOT", rgb);
+        assertSameResult("DUP VDOT 2 *", xy);
+        assertSameResult("0 0 [2] VDOT", xy);
+
+        RPNFunction compiled = mCompiledContext.compile("DUP V+ 0.5 VSCALE 0.3 0.75 VCLAMP");
+        RPNFunction interpreted = mInterpretedContext.compile("DUP V+ 0.5 VSCALE 0.3 0.75 VCLAMP");
+
+        assertTrue(compiled.isCompiled());
+        assertArrayEquals((double[]) interpreted.apply(rgb), (double[]) compiled.apply(rgb));
+        assertArrayEquals((float[]) interpreted.apply(xy), (float[]) compiled.apply(xy));
+    }
+
+    @Test
+    void compiledReadsVariables() {
+        mCompiledContext.setVariable("foo", 2.0);
+
+        RPNFunction func = mCompiledContext.compile("foo *");
+
+        assertTrue(func.isCompiled());
+        assertEquals(6.0, func.apply(3.0));
+
+        mCompiledContext.setVariable("foo", 3.0);
+
+        assertEquals(9.0, func.apply(3.0));
+    }
+
+    @Test
+    void dictsAreNotShared() {
+        RPNFunction func = mCompiledContext.compile("{} SWAP :x PUT");
+
+        assertTrue(func.isCompiled());
+
+        Object first = func.apply(1.0);
+        Object second = func.apply(2.0);
+
+        HashMap<String, Object> expected = new HashMap<>();
+        expected.put("x", 1.0);
+
+        assertEquals(expected, first);
+        assertNotSame(first, second);
+    }
+
+    @Test
+    void unsupportedConstructsFallBack() {
+        assertFalse(mCompiledContext.compile("IF 10 ELSE 100 ENDIF").isCompiled());
+        assertFalse(mCompiledContext.compile("4 0 DO i + LOOP").isCompiled());
+        assertFalse(mCompiledContext.compile("+").isCompiled());
+
+        assertEquals(10.0, mCompiledContext.compile("IF 10 ELSE 100 ENDIF").apply(1.0));
+    }
+
+    @Test
+    void compiledErrors() {
+        assertThrows(
+                RPNInvalidTypeForOperatorException.class,
+                () -> mCompiledContext.compile("1 +").apply("foo"));
+        assertThrows(
+                RPNInvalidTypeForOperatorException.class,
+                () -> mCompiledContext.compile("POP").apply(new ArrayList<>()));
+        assertThrows(
+                RPNUnknownVariableException.class,
+                () -> mCompiledContext.compile("what").apply(0.0));
+    }
+}
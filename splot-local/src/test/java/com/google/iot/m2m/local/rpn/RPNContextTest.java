@@ -4,12 +4,19 @@ import com.google.iot.m2m.base.InvalidValueException;
 import com.google.iot.m2m.base.TypeConverter;
 import org.checkerframework.checker.nullness.qual.Nullable;
 import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Disabled;
 import org.junit.jupiter.api.Test;
 
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneOffset;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -18,6 +25,15 @@ class RPNContextTest {
 
     RPNContext mContext = null;
 
+    @BeforeAll
+    static void reserveVariableSlots() {
+        // variableSlots() needs these to have slots even if variablesWithoutSlots() runs first,
+        // which is the only test that uses them all up.
+        RPNContext.getVariableSlot("foo");
+        RPNContext.getVariableSlot("bar");
+        RPNContext.getVariableSlot("undefined");
+    }
+
     @BeforeEach
     void setUp() {
         mContext = new RPNContext();
@@ -511,6 +527,135 @@ class RPNContextTest {
         assertExpression(7.5, "foo bar *");
     }
 
+    @Test
+    void rtcVariables() {
+        // Sunday, March 10th 2019, 1:30pm
+        Clock clock = Clock.fixed(Instant.parse("2019-03-10T13:30:00Z"), ZoneOffset.UTC);
+
+        assertThrows(RPNUnknownVariableException.class, () -> mContext.compile("rtc.y").apply(0));
+
+        mContext.setRtcClock(clock);
+        RPNContext child = new RPNContext(mContext);
+
+        assertEquals(2019, child.compile("rtc.y").apply(0));
+        assertEquals(2, child.compile("rtc.moy").apply(0));
+        assertEquals(9, child.compile("rtc.dom").apply(0));
+        assertEquals(68, child.compile("rtc.doy").apply(0));
+        assertEquals(6, child.compile("rtc.dow").apply(0));
+        assertEquals(1, child.compile("rtc.awm").apply(0));
+        assertEquals(2, child.compile("rtc.wom").apply(0));
+        assertEquals(9, child.compile("rtc.woy").apply(0));
+        assertEquals(13.5, child.compile("rtc.tod").apply(0));
+
+        child.setVariable("rtc.y", 1999);
+        assertEquals(1999, child.compile("rtc.y").apply(0));
+
+        mContext.setRtcClock(Clock.offset(clock, Duration.ofDays(1)));
+        assertEquals(0, child.compile("rtc.dow").apply(0));
+    }
+
+    @Test
+    void recipeCache() {
+        final String recipe = "v 2 * 17 +";
+
+        RPNProgram.clearCache();
+        long hits = RPNContext.getRecipeCacheStats().hitCount();
+
+        RPNContext first = new RPNContext();
+        RPNContext second = new RPNContext();
+        first.setVariable("v", 1.0);
+        second.setVariable("v", 2.0);
+
+        RPNFunction firstFunc = first.compile(recipe);
+        RPNFunction secondFunc = second.compile(recipe);
+
+        assertEquals(hits + 1, RPNContext.getRecipeCacheStats().hitCount());
+        assertSame(firstFunc.mProgram, secondFunc.mProgram);
+        assertEquals(19.0, firstFunc.apply(0));
+        assertEquals(21.0, secondFunc.apply(0));
+
+        int[] changes = new int[1];
+        secondFunc.setListener(() -> changes[0]++);
+        first.setVariable("v", 3.0);
+        assertEquals(0, changes[0]);
+
+        assertThrows(RPNSyntaxErrorException.class, () -> first.compile("1 ENDIF"));
+        assertThrows(RPNSyntaxErrorException.class, () -> first.compile("1 ENDIF"));
+    }
+
+    @Test
+    void variableSlots() {
+        final int fooSlot = RPNContext.getVariableSlot("foo");
+
+        assertEquals(fooSlot, RPNContext.getVariableSlot("foo"));
+        assertNotEquals(fooSlot, RPNContext.getVariableSlot("bar"));
+        assertThrows(IllegalArgumentException.class, () -> RPNContext.getVariableSlot("SWAP"));
+
+        mContext.setVariable(fooSlot, 2.0);
+        assertEquals(2.0, mContext.getVariable("foo"));
+
+        RPNContext child = new RPNContext(mContext);
+        RPNFunction func = child.compile("foo 2 *");
+        int[] changes = new int[1];
+        func.setListener(() -> changes[0]++);
+
+        assertEquals(4.0, func.apply(0));
+
+        mContext.setVariable(fooSlot, 3.0);
+        assertEquals(1, changes[0]);
+        assertEquals(6.0, func.apply(0));
+
+        mContext.setVariable("bar", 1.0);
+        assertEquals(1, changes[0]);
+
+        assertThrows(
+                RPNUnknownVariableException.class,
+                () -> mContext.getVariable(RPNContext.getVariableSlot("undefined")));
+    }
+
+    @Test
+    void variablesWithoutSlots() {
+        final int count = RPNContext.MAX_VARIABLE_SLOTS + 10;
+        final String last = "unslotted" + (count - 1);
+        RPNContext child = new RPNContext(mContext);
+
+        for (int i = 0; i < count; i++) {
+            mContext.setVariable("unslotted" + i, (double) i);
+        }
+
+        assertEquals(RPNContext.MAX_VARIABLE_SLOTS, RPNContext.getVariableSlotCount());
+        assertEquals(RPNContext.NO_SLOT, RPNContext.findVariableSlot(last));
+        assertThrows(IllegalStateException.class, () -> RPNContext.getVariableSlot(last));
+        assertNotEquals(RPNContext.NO_SLOT, RPNContext.findVariableSlot("v"));
+        assertEquals((double) (count - 1), child.getVariable(last));
+        assertThrows(RPNUnknownVariableException.class, () -> child.getVariable("unslotted"));
+
+        RPNFunction func = child.compile(last + " unslotted0 +");
+        int[] changes = new int[1];
+        func.setListener(() -> changes[0]++);
+
+        assertEquals((double) (count - 1), func.apply(0));
+        assertTrue(func.dependsOnlyOn(last, "unslotted0"));
+        assertFalse(func.dependsOnlyOn("unslotted0"));
+
+        mContext.setVariable(last, 1.0);
+        assertEquals(1, changes[0]);
+        assertEquals(1.0, func.apply(0));
+
+        child.setVariable(last, 2.0);
+        assertEquals(2, changes[0]);
+        assertEquals(2.0, func.apply(0));
+        assertEquals(1.0, mContext.getVariable(last));
+
+        mContext.setCompilerEnabled(true);
+        RPNFunction compiled = mContext.compile(last + " *");
+
+        assertTrue(compiled.isCompiled());
+        assertEquals(3.0, compiled.apply(3.0));
+        mContext.setVariable(last, 2.0);
+        assertEquals(6.0, compiled.apply(3.0));
+    }
+
     @Test
     void exceptionStackUnderflow() {
         assertThrows(RPNStackUnderflowException.class, () -> mContext.compile("+").apply(0.0));
@@ -522,6 +667,55 @@ class RPNContextTest {
         assertThrows(RPNStackOverflowException.class, () -> mContext.compile(overflowProg).apply(0.0));
     }
 
+    @Test
+    void exceptionLimitExceeded() {
+        mContext.setInstructionLimit(1000);
+
+        RPNFunction loop = mContext.compile("100 0 DO DROP i LOOP");
+        assertEquals(99, loop.apply(0.0));
+
+        RPNFunction longLoop = mContext.compile("1000 0 DO DROP i LOOP");
+        assertThrows(RPNLimitExceededException.class, () -> longLoop.apply(0.0));
+        assertEquals(1, longLoop.getLimitExceededCount());
+
+        // Children inherit the limits of their parent.
+        RPNContext child = new RPNContext(mContext);
+        assertEquals(1000, child.getInstructionLimit());
+
+        mContext.setInstructionLimit(Integer.MAX_VALUE);
+        mContext.setTimeLimit(10, TimeUnit.MILLISECONDS);
+        RPNFunction slowLoop = mContext.compile("100000000 0 DO DROP i LOOP");
+        assertThrows(RPNLimitExceededException.class, () -> slowLoop.apply(0.0));
+
+        // Loops with an empty body are stopped by the instruction limit alone.
+        mContext.setInstructionLimit(1000);
+        mContext.setTimeLimit(0, TimeUnit.MILLISECONDS);
+        RPNFunction emptyLoop = mContext.compile("1000000000 0 DO LOOP");
+        assertThrows(RPNLimitExceededException.class, () -> emptyLoop.apply(0.0));
+
+        // Straight-line recipes count every instruction, even when compiled.
+        mContext.setInstructionLimit(3);
+        assertEquals(4.0, mContext.compile("2 *").apply(2.0));
+        assertThrows(
+                RPNLimitExceededException.class,
+                () -> mContext.compile("2 * 1 + 1 -").apply(2.0));
+    }
+
+    @Test
+    void evaluationStatistics() {
+        RPNFunction func = mContext.compile("2 *");
+
+        assertEquals(0, func.getEvaluationCount());
+
+        assertEquals(4.0, func.apply(2.0));
+        assertEquals(6.0, func.apply(3.0));
+
+        assertEquals(2, func.getEvaluationCount());
+        assertTrue(func.getMeanEvaluationNanos() > 0);
+        assertTrue(func.getMaxEvaluationNanos() >= func.getMeanEvaluationNanos());
+        assertEquals(0, func.getLimitExceededCount());
+    }
+
     @Test
     void exceptionUnknownVariable() {
         assertThrows(RPNUnknownVariableException.class, () -> mContext.compile("what").apply(0.0));
@@ -559,10 +753,93 @@ class RPNContextTest {
         assertExpression(40.0, "20 10 0 DO 2 + LOOP", 0.0);
     }
 
+    void assertOptimized(String expected, String expr) {
+        assertEquals(expected, mContext.compile(expr).dumpProgram());
+    }
+
+    @Test
+    void optimizer() {
+        assertOptimized("6.283185307179586 *", "PI 2 * *");
+        assertOptimized("DROP 3.0", "DROP 1 2 +");
+        assertOptimized("DROP 0.5", "DROP 2 0 1 CLAMP 2 /");
+        assertOptimized("1.0 +", "DUP DROP 1 SWAP SWAP NOP +");
+        assertOptimized("DROP 10.0", "DROP 1 IF 10 ELSE 100 ENDIF");
+        assertOptimized("DROP 100.0", "DROP FALSE IF 10 ELSE 100 ENDIF");
+        assertOptimized("DROP 10.0", "DROP 1 CASE 0 OF 0 ENDOF 1 OF 10 ENDOF 100 SWAP ENDCASE");
+        assertOptimized("DROP 100.0", "DROP 2 CASE 0 OF 0 ENDOF 1 OF 10 ENDOF 100 SWAP ENDCASE");
+        assertOptimized("IF 2.0 ELSE 3.0 ENDIF", "IF 1 1 + ELSE 1 2 + ENDIF");
+
+        // Errors must still happen at run time
+        assertOptimized(":foo 1.0 +", ":foo 1 +");
+        assertOptimized("DROP DROP", "DROP DROP");
+        assertThrows(
+                RPNStackUnderflowException.class,
+                () -> mContext.compile("DUP DROP DROP DROP").apply(0.0));
+
+        // Side effects and mutable values aren't folded
+        assertOptimized("RND", "RND");
+        assertOptimized("{} 1.0 :x PUT", "{} 1 :x PUT");
+
+        assertExpression(1.0, "1 2 + IF 1 + ENDIF", 0.0);
+        assertExpression(6.0, "2 DUP DROP *", 3.0);
+    }
+
     double calcCct(double x, double y) {
         double n = (x - 0.3320) / (y - 0.1858);
         return -449.0*n*n*n + 3525.0*n*n - 6823.3*n + 5520.33;
     }
+    @Test
+    void vectorOperators() {
+        float[] xy = {0.3127f, 0.3290f};
+        double[] rgb = {0.25, 0.5, 1.0};
+
+        assertArrayEquals(new float[] {0.6254f, 0.658f},
+                (float[]) mContext.compile("DUP V+").apply(xy), 0.00001f);
+        assertArrayEquals(new double[] {1.25, 1.5, 2.0},
+                (double[]) mContext.compile("1 1 1 [3] V+").apply(rgb));
+        assertArrayEquals(new double[] {0.5, 1.0, 2.0},
+                (double[]) mContext.compile("2 VSCALE").apply(rgb));
+        assertEquals(0.25*0.25 + 0.5*0.5 + 1.0,
+                mContext.compile("DUP VDOT").apply(rgb));
+        assertArrayEquals(new double[] {0.25, 0.5, 0.75},
+                (double[]) mContext.compile("0.25 0.75 VCLAMP").apply(rgb));
+        assertArrayEquals(new float[] {0.3127f, 0.3290f},
+                (float[]) mContext.compile("0 1 VCLAMP").apply(xy));
+
+        // Swaps the first and last element
+        double[] swap = {0, 0, 1, 0, 1, 0, 1, 0, 0};
+        mContext.setVariable("swap", swap);
+        assertArrayEquals(new double[] {1.0, 0.5, 0.25},
+                (double[]) mContext.compile("swap SWAP M3*").apply(rgb));
+
+        // The result of M3* follows the type of the vector, not of the matrix.
+        float[] xyz = {1.0f, 0.5f, 0.25f};
+        assertArrayEquals(new float[] {0.25f, 0.5f, 1.0f},
+                (float[]) mContext.compile("swap SWAP M3*").apply(xyz));
+        mContext.setVariable("fswap", new float[] {0, 0, 1, 0, 1, 0, 1, 0, 0});
+        assertArrayEquals(new double[] {1.0, 0.5, 0.25},
+                (double[]) mContext.compile("fswap SWAP M3*").apply(rgb));
+        assertArrayEquals(new double[] {1.0, 0.5, 0.25},
+                (double[]) mContext.compile("fswap SWAP M3*")
+                        .apply(Arrays.asList(0.25, 0.5, 1.0)));
+
+        assertThrows(RPNException.class, () -> mContext.compile("DUP V+").apply(1.0));
+        assertThrows(RPNException.class, () -> mContext.compile("1 [1] V+").apply(rgb));
+        assertThrows(RPNException.class, () -> mContext.compile("DUP M3*").apply(rgb));
+    }
+
+    @Test
+    void dependsOnlyOn() {
+        assertTrue(mContext.compile("v 0.5 >").dependsOnlyOn("v"));
+        assertTrue(mContext.compile("0.5 >").dependsOnlyOn());
+        assertTrue(mContext.compile("IF 1 ELSE v ENDIF").dependsOnlyOn("v"));
+        assertFalse(mContext.compile("v v_l !=").dependsOnlyOn("v"));
+        assertTrue(mContext.compile("v v_l !=").dependsOnlyOn("v", "v_l"));
+        assertFalse(mContext.compile("v rtc.h 12 > &&").dependsOnlyOn("v"));
+        assertFalse(mContext.compile("RND 0.5 >").dependsOnlyOn());
+        assertFalse(mContext.compile("IF RND ENDIF").dependsOnlyOn());
+    }
+
     @Test
     void correlatedColorTemperatureExample() {
         // This expression calculates the approx. correlated color temperature from an [x,y] input
@@ -0,0 +1,61 @@
+/*
+ * Copyright (C) 2019 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.iot.m2m.testing;
+
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneId;
+
+/**
+ * {@link Clock} which follows the virtual time of a {@link VirtualTimeScheduledExecutorService}.
+ *
+ * @see VirtualTimeScheduledExecutorService#getClock(Instant, ZoneId)
+ */
+public final class VirtualClock extends Clock {
+    private final VirtualTimeScheduledExecutorService mExecutor;
+    private final Instant mStart;
+    private final ZoneId mZone;
+
+    /**
+     * Creates a clock which reads {@code start} when the virtual time of {@code executor} is
+     * zero.
+     */
+    public VirtualClock(VirtualTimeScheduledExecutorService executor, Instant start, ZoneId zone) {
+        mExecutor = executor;
+        mStart = start;
+        mZone = zone;
+    }
+
+    @Override
+    public ZoneId getZone() {
+        return mZone;
+    }
+
+    @Override
+    public Clock withZone(ZoneId zone) {
+        return new VirtualClock(mExecutor, mStart, zone);
+    }
+
+    @Override
+    public Instant instant() {
+        return mStart.plusNanos(mExecutor.nanoTime());
+    }
+
+    @Override
+    public String toString() {
+        return "VirtualClock{start=" + mStart + ", zone=" + mZone + "}";
+    }
+}
@@ -0,0 +1,500 @@
+/*
+ * Copyright (C) 2019 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.iot.m2m.testing;
+
+import com.google.common.base.Ticker;
+import com.google.errorprone.annotations.CanIgnoreReturnValue;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.*;
+
+/**
+ * {@link ScheduledExecutorService} which runs in virtual time instead of real time, for
+ * deterministic tests of code that uses timers.
+ *
+ * <p>Nothing runs on its own: scheduled tasks are only run, in order of their deadlines, when
+ * the test moves time forward with {@link #advanceBy}, {@link #advanceTo} or
+ * {@link #advanceToNextTask}. Tasks with the same deadline run in the order they were
+ * scheduled. Since time only moves when the test says so, days of timers can be simulated in
+ * as long as it takes to run the tasks themselves.
+ *
+ * <p>Tasks passed to {@link #execute} run right away on the calling thread. If they are
+ * submitted from within another task, they run once that task returns. Exceptions thrown by
+ * those tasks are rethrown by the next call that advances time, so that they don't go
+ * unnoticed.
+ *
+ * <p>The time used by this executor can be given to the code under test using
+ * {@link #nanoTime()}, {@link #getTicker()} or {@link #getClock(Instant, ZoneId)}. Virtual
+ * time starts at zero.
+ *
+ * <p>This class is thread-safe, but tasks are always run by the thread advancing time.
+ */
+public final class VirtualTimeScheduledExecutorService extends AbstractExecutorService
+        implements ScheduledExecutorService {
+
+    /** Number of cancelled tasks that may stay in the queue before it is purged. */
+    private static final int MIN_PURGE_COUNT = 64;
+
+    private static final Comparator<Task<?>> TASK_ORDER =
+            Comparator.<Task<?>>comparingLong(task -> task.mDeadline)
+                    .thenComparingLong(task -> task.mSequence);
+
+    private final PriorityQueue<Task<?>> mQueue = new PriorityQueue<>(TASK_ORDER);
+    private final Queue<Runnable> mExecuteQueue = new ArrayDeque<>();
+    private final List<Throwable> mExceptions = new ArrayList<>();
+    private final Ticker mTicker = new Ticker() {
+        @Override
+        public long read() {
+            return nanoTime();
+        }
+    };
+
+    private volatile long mNanoTime = 0;
+    private long mNextSequence = 0;
+    private long mExecutedCount = 0;
+    private int mCancelledCount = 0;
+    private boolean mIsExecuting = false;
+    private boolean mIsShutdown = false;
+
+    private class Task<V> extends FutureTask<V> implements RunnableScheduledFuture<V> {
+        /**
+         * Zero for tasks that run once, positive for tasks run at a fixed rate, negative for
+         * tasks run with a fixed delay.
+         */
+        private final long mPeriod;
+
+        private long mDeadline;
+        private long mSequence;
+        private boolean mIsQueued = false;
+
+        Task(Callable<V> callable, long deadline) {
+            super(callable);
+            mDeadline = deadline;
+            mPeriod = 0;
+        }
+
+        Task(Runnable runnable, long deadline, long period) {
+            super(runnable, null);
+            mDeadline = deadline;
+            mPeriod = period;
+        }
+
+        @Override
+        public boolean isPeriodic() {
+            return mPeriod != 0;
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(mDeadline - mNanoTime, TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed other) {
+            if (other == this) {
+                return 0;
+            }
+
+            return Long.compare(
+                    getDelay(TimeUnit.NANOSECONDS), other.getDelay(TimeUnit.NANOSECONDS));
+        }
+
+        @Override
+        public void run() {
+            if (!isPeriodic()) {
+                super.run();
+
+            } else if (runAndReset()) {
+                synchronized (VirtualTimeScheduledExecutorService.this) {
+                    if (mPeriod > 0) {
+                        mDeadline += mPeriod;
+                    } else {
+                        mDeadline = mNanoTime - mPeriod;
+                    }
+
+                    if (!mIsShutdown) {
+                        addToQueue(this);
+                    }
+                }
+            }
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            final boolean ret = super.cancel(mayInterruptIfRunning);
+
+            if (ret) {
+                onTaskCancelled(this);
+            }
+
+            return ret;
+        }
+    }
+
+    /** Returns the current virtual time, in nanoseconds. */
+    public long nanoTime() {
+        return mNanoTime;
+    }
+
+    /** Returns a {@link Ticker} which reads the current virtual time. */
+    public Ticker getTicker() {
+        return mTicker;
+    }
+
+    /**
+     * Returns a {@link Clock} in time zone {@code zone} which reads {@code start} when
+     * virtual time is zero.
+     */
+    public Clock getClock(Instant start, ZoneId zone) {
+        return new VirtualClock(this, start, zone);
+    }
+
+    /** Number of scheduled tasks which haven't run yet. Periodic tasks count once. */
+    public synchronized int getPendingCount() {
+        return mQueue.size() - mCancelledCount;
+    }
+
+    /** Number of times a task has been run, counting each run of periodic tasks. */
+    public synchronized long getExecutedCount() {
+        return mExecutedCount;
+    }
+
+    /**
+     * Moves virtual time forward by {@code duration}, running every task which becomes due
+     * on the way, at its deadline.
+     *
+     * @return the number of tasks that were run
+     */
+    @CanIgnoreReturnValue
+    public long advanceBy(long duration, TimeUnit unit) {
+        if (duration < 0) {
+            throw new IllegalArgumentException("Negative duration " + duration);
+        }
+
+        return advanceTo(mNanoTime + unit.toNanos(duration));
+    }
+
+    /**
+     * Moves virtual time forward to {@code nanoTime}, running every task which becomes due on
+     * the way, at its deadline. Time never moves backward.
+     *
+     * @return the number of tasks that were run
+     */
+    @CanIgnoreReturnValue
+    public long advanceTo(long nanoTime) {
+        long count = 0;
+        Task<?> task;
+
+        while ((task = pollTaskDueBy(nanoTime)) != null) {
+            runTask(task);
+            count++;
+        }
+
+        synchronized (this) {
+            if (nanoTime > mNanoTime) {
+                mNanoTime = nanoTime;
+            }
+        }
+
+        throwExceptions();
+        return count;
+    }
+
+    /**
+     * Moves virtual time forward to the deadline of the next task, running it and any other
+     * task with the same deadline.
+     *
+     * @return the number of tasks that were run, zero if nothing is scheduled
+     */
+    @CanIgnoreReturnValue
+    public long advanceToNextTask() {
+        final long deadline;
+
+        synchronized (this) {
+            removeCancelledHead();
+
+            if (mQueue.isEmpty()) {
+                return 0;
+            }
+
+            deadline = mQueue.peek().mDeadline;
+        }
+
+        return advanceTo(Math.max(deadline, mNanoTime));
+    }
+
+    /**
+     * Runs every task whose deadline has been reached, without moving time forward.
+     *
+     * @return the number of tasks that were run
+     */
+    @CanIgnoreReturnValue
+    public long runDueTasks() {
+        return advanceTo(mNanoTime);
+    }
+
+    private synchronized @Nullable Task<?> pollTaskDueBy(long nanoTime) {
+        removeCancelledHead();
+
+        final Task<?> task = mQueue.peek();
+
+        if (task == null || task.mDeadline > nanoTime) {
+            return null;
+        }
+
+        mQueue.poll();
+        task.mIsQueued = false;
+
+        if (task.mDeadline > mNanoTime) {
+            mNanoTime = task.mDeadline;
+        }
+
+        return task;
+    }
+
+    private void removeCancelledHead() {
+        while (!mQueue.isEmpty() && mQueue.peek().isCancelled()) {
+            mQueue.poll().mIsQueued = false;
+            mCancelledCount--;
+        }
+    }
+
+    private void addToQueue(Task<?> task) {
+        task.mSequence = mNextSequence++;
+        task.mIsQueued = true;
+        mQueue.add(task);
+    }
+
+    private synchronized void onTaskCancelled(Task<?> cancelled) {
+        if (!cancelled.mIsQueued) {
+            return;
+        }
+
+        mCancelledCount++;
+
+        if (mCancelledCount > Math.max(MIN_PURGE_COUNT, mQueue.size() / 2)) {
+            Iterator<Task<?>> iter = mQueue.iterator();
+
+            while (iter.hasNext()) {
+                final Task<?> task = iter.next();
+
+                if (task.isCancelled()) {
+                    task.mIsQueued = false;
+                    iter.remove();
+                }
+            }
+
+            mCancelledCount = 0;
+        }
+    }
+
+    private void runTask(Runnable task) {
+        synchronized (this) {
+            mExecutedCount++;
+        }
+
+        task.run();
+    }
+
+    private synchronized void throwExceptions() {
+        if (mExceptions.isEmpty()) {
+            return;
+        }
+
+        final AssertionError error =
+                new AssertionError("Executed task threw an exception", mExceptions.get(0));
+
+        for (Throwable t : mExceptions.subList(1, mExceptions.size())) {
+            error.addSuppressed(t);
+        }
+
+        mExceptions.clear();
+        throw error;
+    }
+
+    private synchronized <V> Task<V> enqueue(Task<V> task) {
+        if (mIsShutdown) {
+            throw new RejectedExecutionException("Executor has been shut down");
+        }
+
+        addToQueue(task);
+        return task;
+    }
+
+    private long deadlineAfter(long delay, TimeUnit unit) {
+        final long nanos = Math.max(0, unit.toNanos(delay));
+        final long now = mNanoTime;
+
+        // Saturate rather than overflow for delays like Long.MAX_VALUE.
+        return nanos > Long.MAX_VALUE - now ? Long.MAX_VALUE : now + nanos;
+    }
+
+    @Override
+    public ScheduledFuture<?> schedule(Runnable command, long delay, TimeUnit unit) {
+        return enqueue(new Task<>(command, deadlineAfter(delay, unit), 0));
+    }
+
+    @Override
+    public <V> ScheduledFuture<V> schedule(Callable<V> callable, long delay, TimeUnit unit) {
+        return enqueue(new Task<>(callable, deadlineAfter(delay, unit)));
+    }
+
+    @Override
+    public ScheduledFuture<?> scheduleAtFixedRate(
+            Runnable command, long initialDelay, long period, TimeUnit unit) {
+        if (period <= 0) {
+            throw new IllegalArgumentException("Period must be positive");
+        }
+
+        return enqueue(
+                new Task<>(command, deadlineAfter(initialDelay, unit), unit.toNanos(period)));
+    }
+
+    @Override
+    public ScheduledFuture<?> scheduleWithFixedDelay(
+            Runnable command, long initialDelay, long delay, TimeUnit unit) {
+        if (delay <= 0) {
+            throw new IllegalArgumentException("Delay must be positive");
+        }
+
+        return enqueue(
+                new Task<>(command, deadlineAfter(initialDelay, unit), -unit.toNanos(delay)));
+    }
+
+    @Override
+    public void execute(Runnable command) {
+        synchronized (this) {
+            if (mIsShutdown) {
+                throw new RejectedExecutionException("Executor has been shut down");
+            }
+
+            mExecuteQueue.add(command);
+
+            if (mIsExecuting) {
+                return;
+            }
+
+            mIsExecuting = true;
+        }
+
+        try {
+            while (true) {
+                final Runnable next;
+
+                synchronized (this) {
+                    next = mExecuteQueue.poll();
+
+                    if (next == null) {
+                        break;
+                    }
+                }
+
+                try {
+                    runTask(next);
+                } catch (RuntimeException | Error x) {
+                    synchronized (this) {
+                        mExceptions.add(x);
+                    }
+                }
+            }
+        } finally {
+            synchronized (this) {
+                mIsExecuting = false;
+            }
+        }
+    }
+
+    @Override
+    public synchronized void shutdown() {
+        mIsShutdown = true;
+    }
+
+    @Override
+    public synchronized List<Runnable> shutdownNow() {
+        mIsShutdown = true;
+
+        List<Runnable> ret = new ArrayList<>(mExecuteQueue);
+
+        for (Task<?> task : mQueue) {
+            task.mIsQueued = false;
+
+            if (!task.isCancelled()) {
+                ret.add(task);
+            }
+        }
+
+        mExecuteQueue.clear();
+        mQueue.clear();
+        mCancelledCount = 0;
+
+        return Collections.unmodifiableList(ret);
+    }
+
+    @Override
+    public synchronized boolean isShutdown() {
+        return mIsShutdown;
+    }
+
+    /**
+     * Returns true once this executor has been shut down and no scheduled task remains.
+     * Tasks scheduled before a {@link #shutdown()} still run when time is advanced.
+     */
+    @Override
+    public synchronized boolean isTerminated() {
+        return mIsShutdown && getPendingCount() == 0 && mExecuteQueue.isEmpty();
+    }
+
+    /**
+     * Advances virtual time until this executor is terminated or {@code timeout} has passed.
+     */
+    @Override
+    public boolean awaitTermination(long timeout, TimeUnit unit) {
+        final long end = mNanoTime + unit.toNanos(timeout);
+
+        while (!isTerminated()) {
+            final long deadline;
+
+            synchronized (this) {
+                removeCancelledHead();
+
+                if (mQueue.isEmpty() || mQueue.peek().mDeadline > end) {
+                    break;
+                }
+
+                deadline = mQueue.peek().mDeadline;
+            }
+
+            advanceTo(deadline);
+        }
+
+        if (!isTerminated()) {
+            advanceTo(end);
+        }
+
+        return isTerminated();
+    }
+}
@@ -0,0 +1,202 @@
+/*
+ * Copyright (C) 2019 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.iot.m2m.testing;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.jupiter.api.Test;
+
+@SuppressWarnings("FutureReturnValueIgnored")
+class VirtualTimeScheduledExecutorServiceTest {
+    @Test
+    void tasksRunInDeadlineOrder() {
+        VirtualTimeScheduledExecutorService executor = new VirtualTimeScheduledExecutorService();
+        List<String> log = new ArrayList<>();
+
+        executor.schedule(() -> log.add("c@" + executor.nanoTime()), 30, TimeUnit.NANOSECONDS);
+        executor.schedule(() -> log.add("a@" + executor.nanoTime()), 10, TimeUnit.NANOSECONDS);
+        executor.schedule(() -> log.add("b@" + executor.nanoTime()), 10, TimeUnit.NANOSECONDS);
+
+        assertEquals(3, executor.getPendingCount());
+        assertEquals(0, executor.advanceBy(9, TimeUnit.NANOSECONDS));
+        assertTrue(log.isEmpty());
+
+        assertEquals(3, executor.advanceBy(100, TimeUnit.NANOSECONDS));
+        assertEquals(109, executor.nanoTime());
+        assertEquals(3, executor.getExecutedCount());
+        assertEquals(0, executor.getPendingCount());
+
+        List<String> expected = new ArrayList<>();
+        expected.add("a@10");
+        expected.add("b@10");
+        expected.add("c@30");
+        assertEquals(expected, log);
+    }
+
+    @Test
+    void executeRunsInline() {
+        VirtualTimeScheduledExecutorService executor = new VirtualTimeScheduledExecutorService();
+        List<String> log = new ArrayList<>();
+
+        executor.execute(() -> {
+            executor.execute(() -> log.add("inner"));
+            log.add("outer");
+        });
+
+        List<String> expected = new ArrayList<>();
+        expected.add("outer");
+        expected.add("inner");
+        assertEquals(expected, log);
+
+        executor.execute(() -> {
+            throw new IllegalStateException();
+        });
+
+        assertThrows(AssertionError.class, executor::runDueTasks);
+        executor.runDueTasks();
+    }
+
+    @Test
+    void periodicTasks() {
+        VirtualTimeScheduledExecutorService executor = new VirtualTimeScheduledExecutorService();
+        AtomicInteger fixedRate = new AtomicInteger();
+        AtomicInteger fixedDelay = new AtomicInteger();
+
+        ScheduledFuture<?> rateFuture =
+                executor.scheduleAtFixedRate(
+                        fixedRate::incrementAndGet, 0, 1, TimeUnit.SECONDS);
+        executor.scheduleWithFixedDelay(
+                fixedDelay::incrementAndGet, 500, 1000, TimeUnit.MILLISECONDS);
+
+        executor.advanceBy(10, TimeUnit.SECONDS);
+        assertEquals(11, fixedRate.get());
+        assertEquals(10, fixedDelay.get());
+
+        assertTrue(rateFuture.cancel(false));
+        assertEquals(1, executor.getPendingCount());
+
+        executor.advanceBy(10, TimeUnit.SECONDS);
+        assertEquals(11, fixedRate.get());
+        assertEquals(20, fixedDelay.get());
+    }
+
+    @Test
+    void cancelAndShutdown() throws Exception {
+        VirtualTimeScheduledExecutorService executor = new VirtualTimeScheduledExecutorService();
+        AtomicInteger count = new AtomicInteger();
+        List<Future<?>> futures = new ArrayList<>();
+
+        for (int i = 0; i < 1000; i++) {
+            futures.add(executor.schedule(count::incrementAndGet, i, TimeUnit.MILLISECONDS));
+        }
+
+        for (int i = 0; i < 1000; i += 2) {
+            futures.get(i).cancel(false);
+        }
+
+        assertEquals(500, executor.getPendingCount());
+
+        ScheduledFuture<Integer> result =
+                executor.schedule(() -> count.get(), 1, TimeUnit.HOURS);
+
+        executor.shutdown();
+        assertThrows(
+                RejectedExecutionException.class,
+                () -> executor.schedule(count::incrementAndGet, 1, TimeUnit.SECONDS));
+        assertFalse(executor.isTerminated());
+
+        assertTrue(executor.awaitTermination(2, TimeUnit.HOURS));
+        assertEquals(TimeUnit.HOURS.toNanos(1), executor.nanoTime());
+        assertEquals(500, (int) result.get());
+    }
+
+    @Test
+    void clockAndTicker() {
+        VirtualTimeScheduledExecutorService executor = new VirtualTimeScheduledExecutorService();
+        Instant start = Instant.parse("2019-03-10T09:59:00Z");
+        Clock clock = executor.getClock(start, ZoneId.of("America/Los_Angeles"));
+
+        assertEquals(start, clock.instant());
+
+        executor.advanceBy(2, TimeUnit.MINUTES);
+
+        assertEquals(Instant.parse("2019-03-10T10:01:00Z"), clock.instant());
+        assertEquals(
+                Instant.parse("2019-03-10T10:01:00Z"),
+                clock.withZone(ZoneOffset.UTC).instant());
+        assertEquals(TimeUnit.MINUTES.toNanos(2), executor.getTicker().read());
+    }
+
+    @Test
+    void manyTimersOverManyDays() {
+        final int timerCount = 100000;
+        final long days = 3;
+        VirtualTimeScheduledExecutorService executor = new VirtualTimeScheduledExecutorService();
+        Random random = new Random(1234);
+        AtomicLong fired = new AtomicLong();
+        AtomicLong lastDeadline = new AtomicLong();
+
+        // Each timer reschedules itself with a random delay of up to an hour, like
+        // a repeating timer whose schedule program depends on the time.
+        class Timer implements Runnable {
+            long mDeadline;
+
+            void schedule() {
+                long delay = 1 + (long) (random.nextDouble() * TimeUnit.HOURS.toNanos(1));
+                mDeadline = executor.nanoTime() + delay;
+                executor.schedule(this, delay, TimeUnit.NANOSECONDS);
+            }
+
+            @Override
+            public void run() {
+                assertEquals(mDeadline, executor.nanoTime());
+                assertTrue(lastDeadline.get() <= mDeadline);
+                lastDeadline.set(mDeadline);
+                fired.incrementAndGet();
+                schedule();
+            }
+        }
+
+        for (int i = 0; i < timerCount; i++) {
+            new Timer().schedule();
+        }
+
+        long start = System.nanoTime();
+
+        executor.advanceBy(days, TimeUnit.DAYS);
+
+        long elapsedSeconds = TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - start);
+
+        // Each timer fires about every half hour, so about 144 times over three days.
+        assertTrue(fired.get() > timerCount * 140L, "fired " + fired.get());
+        assertEquals(fired.get(), executor.getExecutedCount());
+        assertEquals(timerCount, executor.getPendingCount());
+        assertTrue(elapsedSeconds < 60, "took " + elapsedSeconds + " seconds");
+    }
+}
@@ -21,6 +21,7 @@ import com.google.iot.m2m.annotation.Trait;
 import com.google.iot.m2m.base.*;
 
 import java.net.URI;
+import java.util.Map;
 
 import static com.google.iot.m2m.annotation.Property.*;
 
@@ -66,6 +67,27 @@ public final class AutomationPairingManagerTrait {
     public static final MethodKey<Thing> METHOD_CREATE =
             new MethodKey<>(TRAIT_ID, "create", Thing.class);
 
+    /**
+     * Method for creating several pairings at once. Each entry of {@link #PARAM_ITEMS} takes
+     * the same parameters as {@link #METHOD_CREATE}. Returns the IDs of the new pairings, in
+     * the same order. If any of them can't be created, none of them are.
+     *
+     * @see #METHOD_DELETE_BULK
+     */
+    @Method
+    public static final MethodKey<String[]> METHOD_CREATE_BULK =
+            new MethodKey<>(TRAIT_ID, "bcreate", String[].class);
+
+    /**
+     * Method for deleting several pairings at once, identified by {@link #PARAM_IDS}.
+     * Returns the number of pairings that were deleted; unknown IDs are ignored.
+     *
+     * @see #METHOD_CREATE_BULK
+     */
+    @Method
+    public static final MethodKey<Integer> METHOD_DELETE_BULK =
+            new MethodKey<>(TRAIT_ID, "bdelete", Integer.class);
+
     /**
      * Recyclable flag parameter.
      *
@@ -136,4 +158,19 @@ public final class AutomationPairingManagerTrait {
      */
     public static final ParamKey<String> PARAM_REVERSE_TRANSFORM =
             new ParamKey<>("xrev", String.class);
+
+    /**
+     * The arguments for each pairing to create.
+     *
+     * @see #METHOD_CREATE_BULK
+     */
+    @SuppressWarnings("unchecked")
+    public static final ParamKey<Map<String, Object>[]> PARAM_ITEMS = new ParamKey("items", Map[].class);
+
+    /**
+     * The IDs of the pairings to delete.
+     *
+     * @see #METHOD_DELETE_BULK
+     */
+    public static final ParamKey<String[]> PARAM_IDS = new ParamKey<>("ids", String[].class);
 }
@@ -149,8 +149,36 @@ public final class AutomationPairingTrait {
     public static final PropertyKey<String> CONF_REVERSE_TRANSFORM =
             new PropertyKey<>(Section.CONFIG, TRAIT_ID, "xrev", java.lang.String.class);
 
+    /**
+     * Hold-off window, in seconds. If non-zero, the first change to the source (or to the
+     * destination, when pulling) starts the window, and only the latest value is propagated
+     * once it has elapsed. Changes arriving during the window are not propagated on their own.
+     * Defaults to zero, which propagates changes as soon as they arrive.
+     */
+    @Property(READ_WRITE)
+    public static final PropertyKey<Float> CONF_HOLD_OFF =
+            new PropertyKey<>(Section.CONFIG, TRAIT_ID, "hoff", java.lang.Float.class);
+
+    /**
+     * Maximum propagation rate in each direction, in changes per second. Changes arriving
+     * faster than this are coalesced, and the latest value is propagated when the rate allows.
+     * Defaults to zero, which means no limit.
+     */
+    @Property(READ_WRITE)
+    public static final PropertyKey<Float> CONF_MAX_RATE =
+            new PropertyKey<>(Section.CONFIG, TRAIT_ID, "mrat", java.lang.Float.class);
+
     public static String TRAP_SOURCE_WRITE_FAIL = "src-write-fail";
     public static String TRAP_DESTINATION_WRITE_FAIL = "dst-write-fail";
     public static String TRAP_SOURCE_READ_FAIL = "src-read-fail";
     public static String TRAP_DESTINATION_READ_FAIL = "dst-read-fail";
+
+    /** Trap indicating that this pairing is part of a cycle of pairings. */
+    public static String TRAP_PROPAGATION_CYCLE = "prop-cycle";
+
+    /** Trap indicating that a change was dropped because it was going around a loop. */
+    public static String TRAP_PROPAGATION_LOOP = "prop-loop";
+
+    /** Trap indicating that a change was dropped because it passed through too many pairings. */
+    public static String TRAP_PROPAGATION_HOP_LIMIT = "prop-hop-limit";
 }
@@ -74,6 +74,27 @@ public final class AutomationRuleManagerTrait {
     public static final MethodKey<Thing> METHOD_CREATE =
             new MethodKey<>(TRAIT_ID, "create", Thing.class);
 
+    /**
+     * Method for creating several rules at once. Each entry of {@link #PARAM_ITEMS} takes
+     * the same parameters as {@link #METHOD_CREATE}. Returns the IDs of the new rules, in
+     * the same order. If any of them can't be created, none of them are.
+     *
+     * @see #METHOD_DELETE_BULK
+     */
+    @Method
+    public static final MethodKey<String[]> METHOD_CREATE_BULK =
+            new MethodKey<>(TRAIT_ID, "bcreate", String[].class);
+
+    /**
+     * Method for deleting several rules at once, identified by {@link #PARAM_IDS}.
+     * Returns the number of rules that were deleted; unknown IDs are ignored.
+     *
+     * @see #METHOD_CREATE_BULK
+     */
+    @Method
+    public static final MethodKey<Integer> METHOD_DELETE_BULK =
+            new MethodKey<>(TRAIT_ID, "bdelete", Integer.class);
+
     /**
      * Recyclable flag parameter.
      *
@@ -159,4 +180,19 @@ public final class AutomationRuleManagerTrait {
      * @see #METHOD_CREATE
      */
     public static final ParamKey<Object> PARAM_ACTION_BODY = new ParamKey<>("actb", Object.class);
+
+    /**
+     * The arguments for each rule to create.
+     *
+     * @see #METHOD_CREATE_BULK
+     */
+    @SuppressWarnings("unchecked")
+    public static final ParamKey<Map<String, Object>[]> PARAM_ITEMS = new ParamKey("items", Map[].class);
+
+    /**
+     * The IDs of the rules to delete.
+     *
+     * @see #METHOD_DELETE_BULK
+     */
+    public static final ParamKey<String[]> PARAM_IDS = new ParamKey<>("ids", String[].class);
 }
@@ -129,6 +129,25 @@ public final class AutomationRuleTrait {
 
     public static final String MATCH_ANY = "any";
 
+    /**
+     * Hold-off window, in seconds. If non-zero, the first change to a monitored resource
+     * starts the window and the conditions are evaluated only once it has elapsed, using the
+     * latest values. Changes arriving during the window don't cause any additional
+     * evaluations. Defaults to zero, which evaluates changes as soon as they arrive.
+     */
+    @Property(READ_WRITE)
+    public static final PropertyKey<Float> CONF_HOLD_OFF =
+            new PropertyKey<>(Section.CONFIG, TRAIT_ID, "hoff", java.lang.Float.class);
+
+    /**
+     * Maximum evaluation rate, in evaluations per second. Changes arriving faster than this
+     * are coalesced, and evaluated once with the latest values when the rate allows.
+     * Defaults to zero, which means no limit.
+     */
+    @Property(READ_WRITE)
+    public static final PropertyKey<Float> CONF_MAX_RATE =
+            new PropertyKey<>(Section.CONFIG, TRAIT_ID, "mrat", java.lang.Float.class);
+
     /**
      * Path for condition. Optional.
      * @see #CONF_CONDITIONS
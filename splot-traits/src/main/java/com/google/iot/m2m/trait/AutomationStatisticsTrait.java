@@ -0,0 +1,110 @@
+/*
+ * Copyright (C) 2019 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.iot.m2m.trait;
+
+import com.google.iot.m2m.annotation.Property;
+import com.google.iot.m2m.annotation.Trait;
+import com.google.iot.m2m.base.PropertyKey;
+import com.google.iot.m2m.base.Section;
+
+import static com.google.iot.m2m.annotation.Property.*;
+
+/**
+ * Experimental trait reporting how much work an automation primitive is doing, such as how
+ * often it is evaluated and how long that takes. Implemented by pairings, rules and timers.
+ * Automation managers implement it to report the totals for all of their children.
+ *
+ * <p>All of these properties are kept in memory only, and start over after a power cycle.
+ * Durations are in seconds.
+ */
+@Trait
+public final class AutomationStatisticsTrait {
+    // Prevent instantiation
+    private AutomationStatisticsTrait() {}
+
+    /** Abstract class for implementing trait behavior on a local thing. */
+    public abstract static class AbstractLocalTrait extends LocalAutomationStatisticsTrait {}
+
+    /** The name of this trait */
+    public static final String TRAIT_NAME = "AutomationStatistics";
+
+    /** The URI that identifies the specification used to implement this trait. */
+    public static final String TRAIT_URI = "tag:google.com,2018:m2m:traits:automation-statistics:v1:v0#r0";
+
+    /** The Short ID of this trait (<code>"asta"</code>) */
+    public static final String TRAIT_ID = "asta";
+
+    /** Flag indicating if this trait supports children or not. */
+    public static final boolean TRAIT_SUPPORTS_CHILDREN = false;
+
+    /**
+     * Property key for the URI that identifies the specification used to implement this trait. This
+     * property is present on all traits.
+     */
+    @Property(READ_ONLY | REQUIRED)
+    public static final PropertyKey<String> META_TRAIT_URI =
+            new PropertyKey<>(Section.METADATA, TRAIT_ID, "turi", String.class);
+
+    /**
+     * The number of times the automation has been evaluated: a pairing transforming a value,
+     * a rule checking its conditions, or a timer running its schedule program.
+     */
+    @Property(READ_ONLY)
+    public static final PropertyKey<Integer> STAT_EVAL_COUNT =
+            new PropertyKey<>(Section.STATE, TRAIT_ID, "evc", java.lang.Integer.class);
+
+    /** The average time an evaluation takes, in seconds. */
+    @Property(READ_ONLY)
+    public static final PropertyKey<Float> STAT_EVAL_MEAN =
+            new PropertyKey<>(Section.STATE, TRAIT_ID, "evmn", java.lang.Float.class);
+
+    /** The time that 99% of evaluations take less than, in seconds. */
+    @Property(READ_ONLY)
+    public static final PropertyKey<Float> STAT_EVAL_P99 =
+            new PropertyKey<>(Section.STATE, TRAIT_ID, "ev99", java.lang.Float.class);
+
+    /**
+     * The number of RPN instructions in the recipes the automation evaluates, after
+     * optimization.
+     */
+    @Property(READ_ONLY)
+    public static final PropertyKey<Integer> STAT_INSTRUCTION_COUNT =
+            new PropertyKey<>(Section.STATE, TRAIT_ID, "insn", java.lang.Integer.class);
+
+    /** The number of writes or actions the automation has performed on other resources. */
+    @Property(READ_ONLY)
+    public static final PropertyKey<Integer> STAT_INVOKE_COUNT =
+            new PropertyKey<>(Section.STATE, TRAIT_ID, "ivc", java.lang.Integer.class);
+
+    /** The average time it takes a write or action to complete, in seconds. */
+    @Property(READ_ONLY)
+    public static final PropertyKey<Float> STAT_INVOKE_MEAN =
+            new PropertyKey<>(Section.STATE, TRAIT_ID, "ivmn", java.lang.Float.class);
+
+    /** The time that 99% of writes or actions take less than to complete, in seconds. */
+    @Property(READ_ONLY)
+    public static final PropertyKey<Float> STAT_INVOKE_P99 =
+            new PropertyKey<>(Section.STATE, TRAIT_ID, "iv99", java.lang.Float.class);
+
+    /**
+     * The number of changes that didn't lead to an evaluation, or whose result was thrown
+     * away: changes merged by a hold-off or maximum rate, and changes dropped to stop a
+     * propagation loop.
+     */
+    @Property(READ_ONLY)
+    public static final PropertyKey<Integer> STAT_DROP_COUNT =
+            new PropertyKey<>(Section.STATE, TRAIT_ID, "drop", java.lang.Integer.class);
+}
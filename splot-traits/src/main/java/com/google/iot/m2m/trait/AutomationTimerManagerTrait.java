@@ -78,6 +78,27 @@ public final class AutomationTimerManagerTrait {
     public static final MethodKey<Thing> METHOD_CREATE =
             new MethodKey<>(TRAIT_ID, "create", Thing.class);
 
+    /**
+     * Method for creating several timers at once. Each entry of {@link #PARAM_ITEMS} takes
+     * the same parameters as {@link #METHOD_CREATE}. Returns the IDs of the new timers, in
+     * the same order. If any of them can't be created, none of them are.
+     *
+     * @see #METHOD_DELETE_BULK
+     */
+    @Method
+    public static final MethodKey<String[]> METHOD_CREATE_BULK =
+            new MethodKey<>(TRAIT_ID, "bcreate", String[].class);
+
+    /**
+     * Method for deleting several timers at once, identified by {@link #PARAM_IDS}.
+     * Returns the number of timers that were deleted; unknown IDs are ignored.
+     *
+     * @see #METHOD_CREATE_BULK
+     */
+    @Method
+    public static final MethodKey<Integer> METHOD_DELETE_BULK =
+            new MethodKey<>(TRAIT_ID, "bdelete", Integer.class);
+
     /**
      * Recyclable flag parameter.
      *
@@ -180,4 +201,19 @@ public final class AutomationTimerManagerTrait {
      * @see #METHOD_CREATE
      */
     public static final ParamKey<Object> PARAM_ACTION_BODY = new ParamKey<>("actb", Object.class);
+
+    /**
+     * The arguments for each timer to create.
+     *
+     * @see #METHOD_CREATE_BULK
+     */
+    @SuppressWarnings("unchecked")
+    public static final ParamKey<Map<String, Object>[]> PARAM_ITEMS = new ParamKey("items", Map[].class);
+
+    /**
+     * The IDs of the timers to delete.
+     *
+     * @see #METHOD_DELETE_BULK
+     */
+    public static final ParamKey<String[]> PARAM_IDS = new ParamKey<>("ids", String[].class);
 }
@@ -131,6 +131,34 @@ public final class AutomationTimerTrait {
     public static final PropertyKey<String> CONF_SCHEDULE_PROGRAM =
             new PropertyKey<>(Section.CONFIG, TRAIT_ID, "schd", String.class);
 
+    /**
+     * Calendar schedule. If this is not empty, it is used to calculate the next fire time
+     * instead of {@link #CONF_SCHEDULE_PROGRAM}.
+     *
+     * <p>The schedule has the five fields of a crontab entry, optionally preceded by a time
+     * zone: {@code [TZ=<zone>] <minute> <hour> <day-of-month> <month> <day-of-week>}. Each
+     * field is either {@code *} or a comma-separated list of values or ranges, optionally
+     * followed by a step. Months may also be written as {@code JAN}-{@code DEC}, and days of
+     * the week as {@code SUN}-{@code SAT}. If both the day of the month and the day of the
+     * week are restricted, a day matching either one matches. Without a time zone, local
+     * time is used.
+     *
+     * <p>Times skipped when daylight saving time starts fire right after the change. Times
+     * repeated when it ends only fire once, unless the schedule fires every hour.
+     *
+     * <h2>Examples</h2>
+     * <ul>
+     *     <li>{@code 0 7 * * MON-FRI}: Every weekday at 7 AM</li>
+     *     <li>{@code 30 13 * * *}: Every day at 1:30 PM</li>
+     *     <li>{@code 0 12 * * TUE}: Every tuesday at noon</li>
+     *     <li>{@code TZ=Europe/Paris 0 9 1 * *}: At 9 AM Paris time on the first of every
+     *     month</li>
+     * </ul>
+     */
+    @Property
+    public static final PropertyKey<String> CONF_SCHEDULE_CALENDAR =
+            new PropertyKey<>(Section.CONFIG, TRAIT_ID, "cal", String.class);
+
     /**
      * Predicate program. This program is evaluated whenever the timer expires. If the
      * predicate evaluates to true, then the actions are fired. If it evaluates to false,